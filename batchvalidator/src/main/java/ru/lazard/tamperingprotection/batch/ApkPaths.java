@@ -0,0 +1,101 @@
+package ru.lazard.tamperingprotection.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy iterator of apk files from command line arguments:<br>
+ * 1) apk file,<br>
+ * 2) directory: all <code>*.apk</code> files of directory and its subdirectories (in order of names),<br>
+ * 3) <code>@list.txt</code>: file with one path per line (empty lines and lines started with <code>#</code> are skipped),
+ * <code>@-</code> reads list from standard input.<br>
+ * Only current directory listing and current line of list are kept in memory, so thousands of apk files are streamed.
+ * Not thread safe.
+ */
+public final class ApkPaths implements Iterator<File> {
+
+    private static final String APK_SUFFIX = ".apk";
+
+    private final Deque<Object> pending = new ArrayDeque<Object>(); // File (apk or directory), String (list), BufferedReader (opened list)
+    private File next;
+    private IOException error;
+
+    public ApkPaths(String... arguments) {
+        this(Arrays.asList(arguments));
+    }
+
+    public ApkPaths(List<String> arguments) {
+        for (String argument : arguments) {
+            pending.addLast(argument.startsWith("@") ? argument.substring(1) : new File(argument));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null && !pending.isEmpty()) {
+                Object item = pending.peekFirst();
+                if (item instanceof BufferedReader) {
+                    String line = ((BufferedReader) item).readLine();
+                    if (line == null) {
+                        pending.removeFirst();
+                        ((BufferedReader) item).close();
+                    } else if (line.trim().length() > 0 && !line.trim().startsWith("#")) {
+                        next = new File(line.trim());
+                    }
+                } else if (item instanceof String) {
+                    pending.removeFirst();
+                    InputStream in = "-".equals(item) ? System.in : new FileInputStream((String) item);
+                    pending.addFirst(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+                } else {
+                    pending.removeFirst();
+                    File file = (File) item;
+                    if (!file.isDirectory()) {
+                        next = file; // not existing file is reported as error of apk
+                        continue;
+                    }
+                    File[] children = file.listFiles();
+                    if (children == null) throw new IOException("Can't list " + file);
+                    Arrays.sort(children);
+                    for (int i = children.length - 1; i >= 0; i--) { // directories are walked depth first, in order of names
+                        if (children[i].isDirectory() || children[i].getName().endsWith(APK_SUFFIX)) pending.addFirst(children[i]);
+                    }
+                }
+            }
+        } catch (IOException exception) {
+            error = exception;
+            pending.clear();
+        }
+        return next != null;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        File file = next;
+        next = null;
+        return file;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return - error of list reading or directory listing (iteration stops on it), or null.
+     */
+    public IOException getError() {
+        return error;
+    }
+}
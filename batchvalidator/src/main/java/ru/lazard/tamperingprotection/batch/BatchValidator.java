@@ -0,0 +1,341 @@
+package ru.lazard.tamperingprotection.batch;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ru.lazard.tamperingprotection.ApkIndex;
+import ru.lazard.tamperingprotection.ApkSigningBlock;
+import ru.lazard.tamperingprotection.EntryDigester;
+import ru.lazard.tamperingprotection.FixtureEnvironmentProbe;
+import ru.lazard.tamperingprotection.ProtectionConfig;
+import ru.lazard.tamperingprotection.TamperingProtection;
+import ru.lazard.tamperingprotection.ValidationPolicy;
+import ru.lazard.tamperingprotection.ValidationPolicyEncoder;
+import ru.lazard.tamperingprotection.ValidationReport;
+
+/**
+ * Validation of many apk files on host by same checks as {@link TamperingProtection} makes on device.<br>
+ * Facts which PackageManager reports on device are read from apk itself ({@link FixtureEnvironmentProbe} is filled for each apk):
+ * package name and debuggable flag from {@link BinaryManifest}, signing certificates from APK Signing Block (v2/v3)
+ * or, if apk has no signing block, from JAR signature (<code>META-INF/*.RSA|DSA|EC</code>).<br>
+ * Apk files are taken from iterator one by one and validated on fixed count of threads. Count of apk files in flight is bounded
+ * (two per thread), so memory doesn't depend on count of apk files. Installer store is not known on host, so stores of policy are ignored.
+ */
+public final class BatchValidator {
+
+    private static final String SIGNATURE_DIR = "META-INF/";
+    private static final String[] SIGNATURE_SUFFIXES = {".RSA", ".DSA", ".EC"};
+    private static final int MAX_SIGNATURE_SIZE = 1024 * 1024;
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+    private final ProtectionConfig config;
+    private final int threads;
+
+    /**
+     * @param config  - accepted values and enabled checks (same as on device).
+     * @param threads - count of validation threads.
+     */
+    public BatchValidator(ProtectionConfig config, int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("threads=" + threads);
+        ValidationPolicy policy = new ValidationPolicyEncoder(config.getPolicy()).setStores().build();
+        this.config = config.toBuilder().setPolicy(policy).setCacheEnabled(false).setPersistentCache(null).build();
+        this.threads = threads;
+    }
+
+    /**
+     * Validate all apk files.
+     *
+     * @param apks     - apk files, taken lazily (for example {@link ApkPaths}).
+     * @param listener - receives result of each apk in order of completion. Calls are serialized (never concurrent).
+     * @return - count of apk files and throughput.
+     */
+    public Summary run(Iterator<File> apks, final Listener listener) throws InterruptedException {
+        final Summary summary = new Summary();
+        final Semaphore inFlight = new Semaphore(2 * threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            while (apks.hasNext()) {
+                final File apk = apks.next();
+                inFlight.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Result result = validate(apk);
+                            summary.add(result);
+                            synchronized (listener) {
+                                listener.onResult(result);
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // wait for apk files in flight
+            }
+        }
+        summary.elapsedNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * Validate one apk on current thread.
+     *
+     * @return - result, never throws: unreadable apk is reported by {@link Result#getError()}.
+     */
+    public Result validate(File apk) {
+        long start = System.nanoTime();
+        Result result = new Result(apk.getPath(), apk.length());
+        try {
+            ApkIndex index = ApkIndex.of(apk.getPath());
+            BinaryManifest manifest = BinaryManifest.read(index);
+            byte[][] certificates = readCertificates(index);
+            result.packageName = manifest.getPackageName();
+            result.versionCode = manifest.getVersionCode();
+            result.isDebuggable = manifest.isDebuggable();
+            result.signatures = new String[certificates.length];
+            for (int i = 0; i < certificates.length; i++) {
+                result.signatures[i] = md5(certificates[i]);
+            }
+
+            FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(apk.getPath());
+            probe.setPackageName(manifest.getPackageName());
+            probe.setDebuggable(manifest.isDebuggable());
+            probe.setSignatureCertificates(certificates);
+            result.report = new TamperingProtection(probe, config).validateAndReport();
+        } catch (IOException exception) {
+            result.error = exception;
+        } catch (RuntimeException exception) {
+            result.error = exception;
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * @return - signing certificates as PackageManager reports: from APK Signing Block, else first certificate of each JAR signature.
+     */
+    static byte[][] readCertificates(ApkIndex index) throws IOException {
+        ApkSigningBlock block = ApkSigningBlock.read(index);
+        if (block != null && block.getCertificates().length > 0) return block.getCertificates();
+        List<byte[]> certificates = new ArrayList<byte[]>();
+        EntryDigester digester = null;
+        try {
+            for (int entry = 0; entry < index.size(); entry++) {
+                if (!isSignatureFile(index.getName(entry))) continue;
+                if (digester == null) digester = new EntryDigester(index);
+                byte[] signature = digester.read(entry, MAX_SIGNATURE_SIZE);
+                Collection<? extends Certificate> chain = CertificateFactory.getInstance("X.509").generateCertificates(new ByteArrayInputStream(signature));
+                if (!chain.isEmpty()) certificates.add(chain.iterator().next().getEncoded());
+            }
+        } catch (CertificateException exception) {
+            throw new IOException("Broken JAR signature in " + index.getPath(), exception);
+        } finally {
+            if (digester != null) digester.close();
+        }
+        return certificates.toArray(new byte[certificates.size()][]);
+    }
+
+    private static boolean isSignatureFile(String name) {
+        if (!name.startsWith(SIGNATURE_DIR) || name.indexOf('/', SIGNATURE_DIR.length()) >= 0) return false;
+        String upperCase = name.toUpperCase();
+        for (String suffix : SIGNATURE_SUFFIXES) {
+            if (upperCase.endsWith(suffix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return - MD5 fingerprint in same form as <code>TamperingProtection.getSignatures()</code>, for example <code>"CC:0C:FB:..."</code>.
+     */
+    static String md5(byte[] certificate) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(certificate);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception); // MD5 is always available
+        }
+        char[] chars = new char[digest.length * 3 - 1];
+        for (int i = 0; i < digest.length; i++) {
+            if (i > 0) chars[i * 3 - 1] = ':';
+            chars[i * 3] = HEX_UPPER[(digest[i] >> 4) & 0xF];
+            chars[i * 3 + 1] = HEX_UPPER[digest[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Receiver of results of {@link #run(Iterator, Listener)}.
+     */
+    public interface Listener {
+        void onResult(Result result);
+    }
+
+    /**
+     * Result of one apk.
+     */
+    public static final class Result {
+        private final String path;
+        private final long size;
+        private String packageName;
+        private int versionCode;
+        private boolean isDebuggable;
+        private String[] signatures = new String[0];
+        private ValidationReport report;
+        private Exception error;
+        private long elapsedNanos;
+
+        Result(String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return - size of apk file in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return - package name from manifest (null if apk is not readable).
+         */
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public int getVersionCode() {
+            return versionCode;
+        }
+
+        public boolean isDebuggable() {
+            return isDebuggable;
+        }
+
+        /**
+         * @return - MD5 fingerprints of signing certificates.
+         */
+        public String[] getSignatures() {
+            return signatures.clone();
+        }
+
+        /**
+         * @return - outcome of each check (null if apk is not readable).
+         */
+        public ValidationReport getReport() {
+            return report;
+        }
+
+        /**
+         * @return - exception if apk is not readable (not a zip, no manifest, broken signature), else null.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * @return - true if apk is readable and all checks passed.
+         */
+        public boolean isValid() {
+            return error == null && report.isValid();
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    /**
+     * Counts and throughput of {@link #run(Iterator, Listener)}.
+     */
+    public static final class Summary {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong validCount = new AtomicLong();
+        private final AtomicLong errorCount = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private long elapsedNanos;
+
+        void add(Result result) {
+            count.incrementAndGet();
+            bytes.addAndGet(result.getSize());
+            if (result.getError() != null) errorCount.incrementAndGet();
+            else if (result.isValid()) validCount.incrementAndGet();
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getValidCount() {
+            return validCount.get();
+        }
+
+        /**
+         * @return - count of readable apk files which failed checks.
+         */
+        public long getInvalidCount() {
+            return count.get() - validCount.get() - errorCount.get();
+        }
+
+        /**
+         * @return - count of apk files which are not readable.
+         */
+        public long getErrorCount() {
+            return errorCount.get();
+        }
+
+        /**
+         * @return - total size of apk files.
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getApksPerSecond() {
+            return elapsedNanos <= 0 ? 0 : count.get() * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return - throughput by size of apk files (1 MB = 1 000 000 bytes).
+         */
+        public double getMegabytesPerSecond() {
+            return elapsedNanos <= 0 ? 0 : bytes.get() * 1e3 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d apk (%d valid, %d invalid, %d errors), %.1f MB in %.2f s: %.1f apk/s, %.1f MB/s",
+                    getCount(), getValidCount(), getInvalidCount(), getErrorCount(), bytes.get() / 1e6, elapsedNanos / 1e9,
+                    getApksPerSecond(), getMegabytesPerSecond());
+        }
+    }
+}
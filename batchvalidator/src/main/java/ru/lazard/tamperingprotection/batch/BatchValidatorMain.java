@@ -0,0 +1,99 @@
+package ru.lazard.tamperingprotection.batch;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.lazard.tamperingprotection.ProtectionConfig;
+import ru.lazard.tamperingprotection.ValidationPolicyEncoder;
+
+/**
+ * Command line of {@link BatchValidator}: results are written as JSON lines ({@link JsonLines}),
+ * summary with throughput is written to standard error.<br>
+ * Exit code: 0 if all apk files are valid, 1 if any apk is invalid or not readable, 2 on bad arguments.
+ */
+public final class BatchValidatorMain {
+
+    private static final String USAGE = "Usage: BatchValidatorMain --policy <policy.txt> [--threads <n>] [--output <results.jsonl>] [--reject-debuggable] <apk | dir | @list.txt | @->...\n"
+            + "  --policy             accepted values in text policy format (see ValidationPolicyEncoder), store entries are ignored\n"
+            + "  --threads            count of validation threads (default: count of processors)\n"
+            + "  --output             file of results (default: standard output)\n"
+            + "  --reject-debuggable  apk with android:debuggable=\"true\" is invalid";
+
+    private BatchValidatorMain() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) throws IOException, InterruptedException {
+        String policyPath = null;
+        String outputPath = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean isDebuggableRejected = false;
+        List<String> inputs = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--policy")) policyPath = args[++i];
+                else if (args[i].equals("--output")) outputPath = args[++i];
+                else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--reject-debuggable")) isDebuggableRejected = true;
+                else if (args[i].startsWith("--")) throw new IllegalArgumentException("Unknown option " + args[i]);
+                else inputs.add(args[i]);
+            }
+            if (policyPath == null || inputs.isEmpty() || threads <= 0) throw new IllegalArgumentException("Policy and apk files are required.");
+        } catch (RuntimeException exception) { // missing value of option, bad number
+            System.err.println(exception.getMessage() == null ? exception.toString() : exception.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        ValidationPolicyEncoder encoder;
+        Reader reader = new InputStreamReader(new FileInputStream(policyPath), "UTF-8");
+        try {
+            encoder = ValidationPolicyEncoder.parse(reader);
+        } finally {
+            reader.close();
+        }
+        ProtectionConfig config = new ProtectionConfig.Builder()
+                .setPolicy(encoder.build())
+                .setAcceptStartInDebugMode(!isDebuggableRejected)
+                .build();
+
+        OutputStream out = outputPath == null ? System.out : new FileOutputStream(outputPath);
+        final PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 64 * 1024));
+        ApkPaths apks = new ApkPaths(inputs);
+        BatchValidator.Summary summary;
+        try {
+            summary = new BatchValidator(config, threads).run(apks, new BatchValidator.Listener() {
+                @Override
+                public void onResult(BatchValidator.Result result) {
+                    writer.println(JsonLines.toJson(result));
+                }
+            });
+        } finally {
+            if (outputPath == null) writer.flush();
+            else writer.close();
+        }
+        System.err.println(JsonLines.toJson(summary));
+        System.err.println(summary);
+        if (apks.getError() != null) {
+            System.err.println("Input error: " + apks.getError().getMessage());
+            return 1;
+        }
+        if (writer.checkError()) {
+            System.err.println("Results are not written.");
+            return 1;
+        }
+        return summary.getValidCount() == summary.getCount() ? 0 : 1;
+    }
+}
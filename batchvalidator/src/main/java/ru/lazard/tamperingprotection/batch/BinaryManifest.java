@@ -0,0 +1,206 @@
+package ru.lazard.tamperingprotection.batch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.ZipException;
+
+import ru.lazard.tamperingprotection.ApkIndex;
+import ru.lazard.tamperingprotection.EntryDigester;
+
+/**
+ * Facts of app from compiled (binary XML) <code>AndroidManifest.xml</code> of apk: package name, version code and debuggable flag
+ * (what PackageManager reports for installed app).<br>
+ * Only string pool, resource map and start elements are read, other chunks (namespaces, end elements, text) are skipped.
+ * Attributes of android namespace are matched by resource id (as framework does), or by name if apk has no resource map.
+ */
+public final class BinaryManifest {
+
+    public static final String ENTRY_NAME = "AndroidManifest.xml";
+
+    static final int RES_STRING_POOL_TYPE = 0x0001;
+    static final int RES_XML_TYPE = 0x0003;
+    static final int RES_XML_START_NAMESPACE_TYPE = 0x0100;
+    static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    static final int UTF8_FLAG = 1 << 8;
+    static final int TYPE_STRING = 0x03;
+    static final int TYPE_INT_DEC = 0x10;
+    static final int TYPE_INT_BOOLEAN = 0x12;
+    static final int ATTR_DEBUGGABLE = 0x0101000f;
+    static final int ATTR_VERSION_CODE = 0x0101021b;
+    static final int ATTRIBUTE_SIZE = 20;
+    private static final int MAX_MANIFEST_SIZE = 4 * 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    private final String packageName;
+    private final int versionCode;
+    private final boolean isDebuggable;
+
+    private BinaryManifest(String packageName, int versionCode, boolean isDebuggable) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.isDebuggable = isDebuggable;
+    }
+
+    /**
+     * Read manifest of apk.
+     *
+     * @throws ZipException - if apk has no manifest or manifest is broken.
+     */
+    public static BinaryManifest read(ApkIndex index) throws IOException {
+        int entry = index.indexOf(ENTRY_NAME);
+        if (entry < 0) throw new ZipException("No " + ENTRY_NAME + " in " + index.getPath());
+        EntryDigester digester = new EntryDigester(index);
+        try {
+            return parse(digester.read(entry, MAX_MANIFEST_SIZE));
+        } finally {
+            digester.close();
+        }
+    }
+
+    /**
+     * @param bytes - content of compiled <code>AndroidManifest.xml</code>.
+     * @throws ZipException - if manifest is not binary XML, is broken or has no package name.
+     */
+    public static BinaryManifest parse(byte[] bytes) throws ZipException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.length < 8 || (buffer.getShort(0) & 0xFFFF) != RES_XML_TYPE)
+            throw new ZipException("Manifest is not binary XML.");
+        try {
+            return parseChunks(buffer);
+        } catch (IndexOutOfBoundsException exception) {
+            ZipException zipException = new ZipException("Broken manifest: " + exception.getMessage());
+            zipException.initCause(exception);
+            throw zipException;
+        }
+    }
+
+    private static BinaryManifest parseChunks(ByteBuffer buffer) throws ZipException {
+        byte[] bytes = buffer.array();
+        int end = Math.min(bytes.length, buffer.getInt(4));
+        int position = buffer.getShort(2) & 0xFFFF;
+        String[] strings = null;
+        int[] resourceIds = new int[0];
+        String packageName = null;
+        int versionCode = 0;
+        boolean isDebuggable = false;
+        while (position + 8 <= end) {
+            int type = buffer.getShort(position) & 0xFFFF;
+            int headerSize = buffer.getShort(position + 2) & 0xFFFF;
+            int size = buffer.getInt(position + 4);
+            if (size < 8 || headerSize < 8 || headerSize > size || size > end - position)
+                throw new ZipException("Broken manifest chunk at " + position + ".");
+            if (type == RES_STRING_POOL_TYPE) {
+                strings = readStrings(buffer, position, headerSize, size);
+            } else if (type == RES_XML_RESOURCE_MAP_TYPE) {
+                resourceIds = new int[(size - headerSize) / 4];
+                for (int i = 0; i < resourceIds.length; i++) {
+                    resourceIds[i] = buffer.getInt(position + headerSize + 4 * i);
+                }
+            } else if (type == RES_XML_START_ELEMENT_TYPE) {
+                if (strings == null) throw new ZipException("Manifest element before string pool.");
+                int element = position + headerSize;
+                if (element + 20 > position + size) throw new ZipException("Broken manifest element at " + position + ".");
+                String name = string(strings, buffer.getInt(element + 4));
+                int attributeStart = buffer.getShort(element + 8) & 0xFFFF;
+                int attributeSize = buffer.getShort(element + 10) & 0xFFFF;
+                int attributeCount = buffer.getShort(element + 12) & 0xFFFF;
+                if (attributeSize < ATTRIBUTE_SIZE && attributeCount > 0 || element + attributeStart + (long) attributeSize * attributeCount > position + size)
+                    throw new ZipException("Broken manifest attributes at " + position + ".");
+                boolean isManifest = "manifest".equals(name);
+                boolean isApplication = "application".equals(name);
+                for (int i = 0; i < attributeCount && (isManifest || isApplication); i++) {
+                    int attribute = element + attributeStart + i * attributeSize;
+                    int nameIndex = buffer.getInt(attribute + 4);
+                    int rawValue = buffer.getInt(attribute + 8);
+                    int dataType = buffer.get(attribute + 15) & 0xFF;
+                    int data = buffer.getInt(attribute + 16);
+                    int resourceId = nameIndex >= 0 && nameIndex < resourceIds.length ? resourceIds[nameIndex] : 0;
+                    String attributeName = string(strings, nameIndex);
+                    if (isManifest && resourceId == 0 && "package".equals(attributeName)) {
+                        packageName = rawValue >= 0 ? string(strings, rawValue) : dataType == TYPE_STRING ? string(strings, data) : null;
+                    } else if (isManifest && is(resourceId, attributeName, ATTR_VERSION_CODE, "versionCode")) {
+                        versionCode = data;
+                    } else if (isApplication && is(resourceId, attributeName, ATTR_DEBUGGABLE, "debuggable")) {
+                        isDebuggable = dataType == TYPE_STRING ? "true".equals(string(strings, rawValue)) : data != 0;
+                    }
+                }
+            }
+            position += size;
+        }
+        if (packageName == null || packageName.length() == 0) throw new ZipException("No package name in manifest.");
+        return new BinaryManifest(packageName, versionCode, isDebuggable);
+    }
+
+    private static boolean is(int resourceId, String attributeName, int expectedResourceId, String expectedName) {
+        return resourceId != 0 ? resourceId == expectedResourceId : expectedName.equals(attributeName);
+    }
+
+    private static String string(String[] strings, int index) throws ZipException {
+        if (index == -1) return null;
+        if (index < 0 || index >= strings.length) throw new ZipException("Bad string index " + index + " in manifest.");
+        return strings[index];
+    }
+
+    /**
+     * String pool chunk: header (string count, style count, flags, offset of strings, offset of styles), offsets of strings, strings.<br>
+     * UTF-16 string: length in chars (1 or 2 units), chars. UTF-8 string: length in chars (1 or 2 bytes), length in bytes (1 or 2 bytes), bytes.
+     */
+    private static String[] readStrings(ByteBuffer buffer, int chunk, int headerSize, int size) throws ZipException {
+        if (headerSize < 28) throw new ZipException("Broken manifest string pool.");
+        int count = buffer.getInt(chunk + 8);
+        boolean isUtf8 = (buffer.getInt(chunk + 16) & UTF8_FLAG) != 0;
+        int stringsStart = chunk + buffer.getInt(chunk + 20);
+        int chunkEnd = chunk + size;
+        if (count < 0 || count > (size - headerSize) / 4 || stringsStart < chunk + headerSize || stringsStart > chunkEnd)
+            throw new ZipException("Broken manifest string pool.");
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int offset = buffer.getInt(chunk + headerSize + 4 * i);
+            int position = stringsStart + offset;
+            if (offset < 0 || position >= chunkEnd) throw new ZipException("Bad offset of manifest string " + i + ".");
+            if (isUtf8) {
+                position += (buffer.get(position) & 0x80) != 0 ? 2 : 1; // length in chars
+                int length = buffer.get(position) & 0xFF;
+                if ((length & 0x80) != 0) length = ((length & 0x7F) << 8) | (buffer.get(++position) & 0xFF);
+                position++;
+                if (position + length > chunkEnd) throw new ZipException("Bad length of manifest string " + i + ".");
+                strings[i] = new String(buffer.array(), position, length, UTF_8);
+            } else {
+                int length = buffer.getShort(position) & 0xFFFF;
+                if ((length & 0x8000) != 0) {
+                    position += 2;
+                    length = ((length & 0x7FFF) << 16) | (buffer.getShort(position) & 0xFFFF);
+                }
+                position += 2;
+                if (position + 2L * length > chunkEnd) throw new ZipException("Bad length of manifest string " + i + ".");
+                strings[i] = new String(buffer.array(), position, 2 * length, UTF_16LE);
+            }
+        }
+        return strings;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public int getVersionCode() {
+        return versionCode;
+    }
+
+    /**
+     * @return - value of <code>android:debuggable</code> attribute of application.
+     */
+    public boolean isDebuggable() {
+        return isDebuggable;
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryManifest{package=" + packageName + ", versionCode=" + versionCode + ", debuggable=" + isDebuggable + "}";
+    }
+}
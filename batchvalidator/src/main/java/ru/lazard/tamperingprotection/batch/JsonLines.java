@@ -0,0 +1,108 @@
+package ru.lazard.tamperingprotection.batch;
+
+import java.util.Locale;
+
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+import ru.lazard.tamperingprotection.ValidationReport;
+
+/**
+ * JSON form of batch results: one object per line (JSON Lines), so output of thousands of apk files can be
+ * streamed, grepped and loaded by <code>jq</code> or pandas line by line.<br>
+ * Result: <code>{"path":..,"size":..,"valid":..,"package":..,"versionCode":..,"debuggable":..,"signatures":[..],"elapsedMs":..,"failures":[{"check":..,"code":..,"message":..}]}</code>,
+ * unreadable apk: <code>{"path":..,"size":..,"valid":false,"error":..}</code>.
+ */
+public final class JsonLines {
+
+    private JsonLines() {
+    }
+
+    public static String toJson(BatchValidator.Result result) {
+        StringBuilder json = new StringBuilder(256).append('{');
+        field(json, "path").append(string(result.getPath()));
+        field(json, "size").append(result.getSize());
+        field(json, "valid").append(result.isValid());
+        if (result.getError() != null) {
+            field(json, "error").append(string(String.valueOf(result.getError().getMessage())));
+        } else {
+            field(json, "package").append(string(result.getPackageName()));
+            field(json, "versionCode").append(result.getVersionCode());
+            field(json, "debuggable").append(result.isDebuggable());
+            field(json, "signatures").append('[');
+            String[] signatures = result.getSignatures();
+            for (int i = 0; i < signatures.length; i++) {
+                if (i > 0) json.append(',');
+                json.append(string(signatures[i]));
+            }
+            json.append(']');
+        }
+        field(json, "elapsedMs").append(String.format(Locale.US, "%.3f", result.getElapsedNanos() / 1e6));
+        if (result.getReport() != null) {
+            field(json, "failures").append('[');
+            boolean isFirst = true;
+            for (ValidationReport.Entry entry : result.getReport().getEntries()) {
+                ValidationException failure = entry.getFailure();
+                if (failure == null) continue;
+                if (!isFirst) json.append(',');
+                isFirst = false;
+                json.append('{');
+                field(json, "check").append(string(entry.getName()));
+                field(json, "code").append(failure.getErrorCode());
+                field(json, "message").append(string(failure.getMessage()));
+                json.append('}');
+            }
+            json.append(']');
+        }
+        return json.append('}').toString();
+    }
+
+    public static String toJson(BatchValidator.Summary summary) {
+        StringBuilder json = new StringBuilder(256).append('{');
+        field(json, "summary").append(true);
+        field(json, "apks").append(summary.getCount());
+        field(json, "valid").append(summary.getValidCount());
+        field(json, "invalid").append(summary.getInvalidCount());
+        field(json, "errors").append(summary.getErrorCount());
+        field(json, "bytes").append(summary.getBytes());
+        field(json, "seconds").append(String.format(Locale.US, "%.3f", summary.getElapsedNanos() / 1e9));
+        field(json, "apksPerSecond").append(String.format(Locale.US, "%.2f", summary.getApksPerSecond()));
+        field(json, "mbPerSecond").append(String.format(Locale.US, "%.2f", summary.getMegabytesPerSecond()));
+        return json.append('}').toString();
+    }
+
+    private static StringBuilder field(StringBuilder json, String name) {
+        if (json.charAt(json.length() - 1) != '{') json.append(',');
+        return json.append('"').append(name).append("\":");
+    }
+
+    /**
+     * @return - quoted and escaped JSON string, or <code>null</code>.
+     */
+    static String string(String value) {
+        if (value == null) return "null";
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) builder.append(String.format("\\u%04x", (int) c));
+                    else builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
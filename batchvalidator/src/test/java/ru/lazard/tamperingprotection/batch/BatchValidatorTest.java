@@ -0,0 +1,132 @@
+package ru.lazard.tamperingprotection.batch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ru.lazard.tamperingprotection.ProtectionConfig;
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check parallel validation of directory of apk files by {@link BatchValidator}, input paths and JSON lines output.
+ */
+public class BatchValidatorTest {
+
+    private static final String PACKAGE_NAME = "ru.lazard.sample";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void directory_validatedInParallel() throws Exception {
+        File dir = folder.newFolder("apks");
+        File nested = new File(dir, "flavors");
+        assertTrue(nested.mkdir());
+        for (int i = 0; i < 20; i++) {
+            ManifestFixtures.apk(new File(i % 2 == 0 ? dir : nested, "app-" + i + ".apk"), ManifestFixtures.manifest(PACKAGE_NAME, i, false, i % 3 == 0, true), dex(i));
+        }
+        ManifestFixtures.apk(new File(dir, "other.apk"), ManifestFixtures.manifest("com.other", 1, false, false, true), dex(1));
+        ManifestFixtures.apk(new File(dir, "debug.apk"), ManifestFixtures.manifest(PACKAGE_NAME, 1, true, false, true), dex(1));
+        write(new File(dir, "broken.apk"), "not a zip".getBytes("UTF-8"));
+        write(new File(dir, "readme.txt"), "not an apk".getBytes("UTF-8"));
+
+        ProtectionConfig config = new ProtectionConfig.Builder()
+                .setAcceptedPackageNames(PACKAGE_NAME)
+                .setAcceptedStores("com.android.vending") // ignored: no installer on host
+                .setAcceptStartInDebugMode(false)
+                .build();
+        final List<BatchValidator.Result> results = new ArrayList<BatchValidator.Result>();
+        BatchValidator.Summary summary = new BatchValidator(config, 4).run(new ApkPaths(dir.getPath()), new BatchValidator.Listener() {
+            @Override
+            public void onResult(BatchValidator.Result result) {
+                results.add(result);
+            }
+        });
+
+        assertEquals(23, summary.getCount());
+        assertEquals(20, summary.getValidCount());
+        assertEquals(2, summary.getInvalidCount());
+        assertEquals(1, summary.getErrorCount());
+        assertTrue(summary.getBytes() > 0);
+        assertTrue(summary.getApksPerSecond() > 0);
+        Map<String, BatchValidator.Result> byName = new HashMap<String, BatchValidator.Result>();
+        for (BatchValidator.Result result : results) {
+            byName.put(new File(result.getPath()).getName(), result);
+        }
+        assertEquals(ValidationException.ERROR_CODE_PACKAGE_NAME_NOT_VALID, byName.get("other.apk").getReport().getFirstFailure().getErrorCode());
+        assertEquals(ValidationException.ERROR_CODE_DEBUG_MODE, byName.get("debug.apk").getReport().getFirstFailure().getErrorCode());
+        assertNotNull(byName.get("broken.apk").getError());
+        assertEquals(7, byName.get("app-7.apk").getVersionCode());
+    }
+
+    @Test
+    public void unsignedApk_failsSignatureCheck() throws Exception {
+        File apk = ManifestFixtures.apk(folder.newFile("app.apk"), ManifestFixtures.manifest(PACKAGE_NAME, 1, false, false, true), dex(1));
+        ProtectionConfig config = new ProtectionConfig.Builder().setAcceptedSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32").build();
+        BatchValidator.Result result = new BatchValidator(config, 1).validate(apk);
+        assertFalse(result.isValid());
+        assertEquals(0, result.getSignatures().length);
+        assertEquals(ValidationException.ERROR_CODE_SIGNATURE_IS_EMPTY, result.getReport().getFirstFailure().getErrorCode());
+    }
+
+    @Test
+    public void paths_readFromListAndDirectories() throws Exception {
+        File dir = folder.newFolder("dir");
+        write(new File(dir, "b.apk"), new byte[1]);
+        File a = write(new File(dir, "a.apk"), new byte[1]);
+        write(new File(dir, "notes.txt"), new byte[1]);
+        File list = write(folder.newFile("list.txt"), ("# release variants\n" + a.getPath() + "\n\n/missing.apk\n").getBytes("UTF-8"));
+        ApkPaths paths = new ApkPaths(dir.getPath(), "@" + list.getPath());
+        List<String> names = new ArrayList<String>();
+        while (paths.hasNext()) {
+            names.add(paths.next().getName());
+        }
+        assertEquals(Arrays.asList("a.apk", "b.apk", "a.apk", "missing.apk"), names);
+        assertNull(paths.getError());
+
+        ApkPaths missingList = new ApkPaths("@" + new File(folder.getRoot(), "missing.txt").getPath());
+        assertFalse(missingList.hasNext());
+        assertNotNull(missingList.getError());
+    }
+
+    @Test
+    public void results_writtenAsJsonLines() throws Exception {
+        File apk = ManifestFixtures.apk(folder.newFile("app \"1\".apk"), ManifestFixtures.manifest("com.other", 3, false, true, true), dex(1));
+        ProtectionConfig config = new ProtectionConfig.Builder().setAcceptedPackageNames(PACKAGE_NAME).build();
+        String json = JsonLines.toJson(new BatchValidator(config, 1).validate(apk));
+        assertFalse(json.contains("\n"));
+        assertTrue(JsonLines.string(apk.getPath()).endsWith("app \\\"1\\\".apk\""));
+        assertTrue(json, json.startsWith("{\"path\":" + JsonLines.string(apk.getPath()) + ",\"size\":" + apk.length() + ",\"valid\":false,\"package\":\"com.other\",\"versionCode\":3,"));
+        assertTrue(json, json.contains("\"failures\":[{\"check\":\"package\",\"code\":" + ValidationException.ERROR_CODE_PACKAGE_NAME_NOT_VALID + ",\"message\":\""));
+        assertEquals("\"a\\tb\\u0001\"", JsonLines.string("a\tb\u0001"));
+
+        String error = JsonLines.toJson(new BatchValidator(config, 1).validate(write(folder.newFile("broken.apk"), new byte[10])));
+        assertTrue(error, error.contains("\"valid\":false,\"error\":\""));
+        assertTrue(error, error.endsWith("}"));
+    }
+
+    private static byte[] dex(int seed) {
+        byte[] dex = new byte[4000 + seed];
+        for (int i = 0; i < dex.length; i++) {
+            dex[i] = (byte) (seed * 31 + i * (seed + 7));
+        }
+        return dex;
+    }
+
+    private static File write(File file, byte[] content) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+        return file;
+    }
+}
@@ -0,0 +1,55 @@
+package ru.lazard.tamperingprotection.batch;
+
+import org.junit.Test;
+
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check package name, version code and debuggable flag read by {@link BinaryManifest} from UTF-8 and UTF-16 binary manifests.
+ */
+public class BinaryManifestTest {
+
+    @Test
+    public void facts_readFromUtf16AndUtf8Pools() throws Exception {
+        for (boolean isUtf8 : new boolean[]{false, true}) {
+            BinaryManifest manifest = BinaryManifest.parse(ManifestFixtures.manifest("ru.lazard.sample", 42, true, isUtf8, true));
+            assertEquals("ru.lazard.sample", manifest.getPackageName());
+            assertEquals(42, manifest.getVersionCode());
+            assertTrue(manifest.isDebuggable());
+            assertFalse(BinaryManifest.parse(ManifestFixtures.manifest("ru.lazard.sample", 1, false, isUtf8, true)).isDebuggable());
+        }
+    }
+
+    @Test
+    public void attributes_matchedByNameWithoutResourceMap() throws Exception {
+        BinaryManifest manifest = BinaryManifest.parse(ManifestFixtures.manifest("ru.lazard.sample.Pro_Version", 7, true, false, false));
+        assertEquals("ru.lazard.sample.Pro_Version", manifest.getPackageName());
+        assertEquals(7, manifest.getVersionCode());
+        assertTrue(manifest.isDebuggable());
+    }
+
+    @Test
+    public void brokenManifest_rejected() throws Exception {
+        byte[] manifest = ManifestFixtures.manifest("ru.lazard.sample", 1, false, false, true);
+        assertFailure("<?xml version=\"1.0\"?><manifest package=\"a\"/>".getBytes("UTF-8")); // text xml
+        for (int length : new int[]{0, 7, 40, manifest.length / 2}) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(manifest, 0, truncated, 0, length);
+            assertFailure(truncated);
+        }
+        byte[] badString = manifest.clone();
+        badString[8 + 28] = 0x7F; // offset of first string out of pool
+        assertFailure(badString);
+    }
+
+    private static void assertFailure(byte[] manifest) {
+        try {
+            BinaryManifest.parse(manifest);
+            fail("Broken manifest accepted");
+        } catch (ZipException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ru.lazard.tamperingprotection.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Compiled <code>AndroidManifest.xml</code> (as aapt writes it) and apk files for batch tests.
+ */
+final class ManifestFixtures {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    private ManifestFixtures() {
+    }
+
+    /**
+     * Binary manifest: <code>&lt;manifest package versionCode&gt;&lt;application debuggable/&gt;&lt;/manifest&gt;</code>.
+     *
+     * @param isUtf8        - encoding of string pool (aapt2 writes UTF-8, old aapt UTF-16).
+     * @param hasResourceMap - attributes have resource ids (else they are matched by names).
+     */
+    static byte[] manifest(String packageName, int versionCode, boolean isDebuggable, boolean isUtf8, boolean hasResourceMap) {
+        String[] strings = {"versionCode", "debuggable", "package", "manifest", "application", packageName};
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        write(chunks, stringPool(strings, isUtf8));
+        if (hasResourceMap) {
+            ByteBuffer map = chunk(BinaryManifest.RES_XML_RESOURCE_MAP_TYPE, 8, 16);
+            map.putInt(BinaryManifest.ATTR_VERSION_CODE).putInt(BinaryManifest.ATTR_DEBUGGABLE);
+            write(chunks, map);
+        }
+        write(chunks, startElement(3,
+                new int[]{2, 5, BinaryManifest.TYPE_STRING, 5},
+                new int[]{0, -1, BinaryManifest.TYPE_INT_DEC, versionCode}));
+        write(chunks, startElement(4, new int[]{1, -1, BinaryManifest.TYPE_INT_BOOLEAN, isDebuggable ? -1 : 0}));
+        write(chunks, endElement(4));
+        write(chunks, endElement(3));
+        byte[] content = chunks.toByteArray();
+        ByteBuffer xml = chunk(BinaryManifest.RES_XML_TYPE, 8, 8 + content.length);
+        xml.put(content);
+        return xml.array();
+    }
+
+    /**
+     * Apk with manifest and dex, STORED or DEFLATED as aapt does (manifest and dex are deflated).
+     */
+    static File apk(File file, byte[] manifest, byte[] dex) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zip.putNextEntry(new ZipEntry(BinaryManifest.ENTRY_NAME));
+            zip.write(manifest);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("classes.dex"));
+            zip.write(dex);
+            zip.closeEntry();
+        } finally {
+            zip.close();
+        }
+        return file;
+    }
+
+    private static ByteBuffer stringPool(String[] strings, boolean isUtf8) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            offsets[i] = data.size();
+            if (isUtf8) {
+                byte[] bytes = strings[i].getBytes(UTF_8);
+                data.write(strings[i].length());
+                data.write(bytes.length);
+                data.write(bytes, 0, bytes.length);
+                data.write(0);
+            } else {
+                byte[] chars = strings[i].getBytes(UTF_16LE);
+                data.write(strings[i].length() & 0xFF);
+                data.write(strings[i].length() >> 8);
+                data.write(chars, 0, chars.length);
+                data.write(0);
+                data.write(0);
+            }
+        }
+        while (data.size() % 4 != 0) data.write(0);
+        int headerSize = 28;
+        int stringsStart = headerSize + 4 * strings.length;
+        ByteBuffer pool = chunk(BinaryManifest.RES_STRING_POOL_TYPE, headerSize, stringsStart + data.size());
+        pool.putInt(strings.length).putInt(0).putInt(isUtf8 ? BinaryManifest.UTF8_FLAG : 0).putInt(stringsStart).putInt(0);
+        for (int offset : offsets) {
+            pool.putInt(offset);
+        }
+        pool.put(data.toByteArray());
+        return pool;
+    }
+
+    /**
+     * @param attributes - name index, raw value index, data type, data.
+     */
+    private static ByteBuffer startElement(int name, int[]... attributes) {
+        ByteBuffer element = chunk(BinaryManifest.RES_XML_START_ELEMENT_TYPE, 16, 16 + 20 + BinaryManifest.ATTRIBUTE_SIZE * attributes.length);
+        element.putInt(1).putInt(-1); // line, comment
+        element.putInt(-1).putInt(name); // namespace, name
+        element.putShort((short) 20).putShort((short) BinaryManifest.ATTRIBUTE_SIZE).putShort((short) attributes.length);
+        element.putShort((short) 0).putShort((short) 0).putShort((short) 0); // id, class, style
+        for (int[] attribute : attributes) {
+            element.putInt(-1).putInt(attribute[0]).putInt(attribute[1]);
+            element.putShort((short) 8).put((byte) 0).put((byte) attribute[2]).putInt(attribute[3]);
+        }
+        return element;
+    }
+
+    private static ByteBuffer endElement(int name) {
+        ByteBuffer element = chunk(BinaryManifest.RES_XML_END_ELEMENT_TYPE, 16, 24);
+        element.putInt(1).putInt(-1).putInt(-1).putInt(name);
+        return element;
+    }
+
+    private static ByteBuffer chunk(int type, int headerSize, int size) {
+        ByteBuffer chunk = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.putShort((short) type).putShort((short) headerSize).putInt(size);
+        return chunk;
+    }
+
+    private static void write(ByteArrayOutputStream out, ByteBuffer chunk) {
+        out.write(chunk.array(), 0, chunk.capacity());
+    }
+}
@@ -0,0 +1,101 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic apk files for benchmarks. Half of apk size is dex files (DEFLATED), other half is
+ * native libs (STORED, 4Mb each) and small resources (DEFLATED, 2000 entries).<br>
+ * Files are generated once and reused by next runs. Directory can be set by <code>-Dtp.fixtures.dir=...</code>.
+ */
+final class ApkFixtures {
+
+    static final int RESOURCE_COUNT = 2000;
+    private static final int MB = 1024 * 1024;
+    private static final int NATIVE_LIB_SIZE = 4 * MB;
+
+    private ApkFixtures() {
+    }
+
+    /**
+     * @param dexCount - count of dex files (classes.dex ... classesN.dex).
+     * @param sizeMb   - approximate size of apk.
+     * @return - apk file.
+     */
+    static File apk(int dexCount, int sizeMb) throws IOException {
+        File directory = new File(System.getProperty("tp.fixtures.dir", new File(System.getProperty("java.io.tmpdir"), "tampering-protection-fixtures").getPath()));
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create " + directory);
+        File file = new File(directory, "apk-" + dexCount + "dex-" + sizeMb + "mb.apk");
+        if (file.isFile()) return file;
+
+        File temp = new File(directory, file.getName() + ".tmp");
+        Random random = new Random(dexCount * 31L + sizeMb);
+        long total = (long) sizeMb * MB;
+        long dexSize = total / 2 / dexCount;
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(temp));
+        try {
+            out.setLevel(Deflater.BEST_SPEED);
+            writeDeflated(out, "AndroidManifest.xml", random, 4096);
+            for (int i = 1; i <= dexCount; i++) {
+                writeDeflated(out, i == 1 ? "classes.dex" : "classes" + i + ".dex", random, dexSize);
+            }
+            long rest = total - dexSize * dexCount;
+            long resourceSize = Math.min(rest / 4 / RESOURCE_COUNT, 16 * 1024);
+            for (int i = 0; i < RESOURCE_COUNT; i++) {
+                writeDeflated(out, "res/drawable/image_" + i + ".xml", random, resourceSize);
+            }
+            rest -= resourceSize * RESOURCE_COUNT;
+            for (int i = 0; rest > 0; i++) {
+                int size = (int) Math.min(rest, NATIVE_LIB_SIZE);
+                writeStored(out, "lib/arm64-v8a/lib" + i + ".so", content(random, size));
+                rest -= size;
+            }
+            writeDeflated(out, "resources.arsc", random, 64 * 1024);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) throw new IOException("Can't rename " + temp + " to " + file);
+        return file;
+    }
+
+    /**
+     * Half random bytes, so content compress about 2 times (like dex files).
+     */
+    private static byte[] content(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        for (int i = 0; i < size; i += 2) {
+            bytes[i] = 0;
+        }
+        return bytes;
+    }
+
+    private static void writeDeflated(ZipOutputStream out, String name, Random random, long size) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        for (long written = 0; written < size; ) {
+            int chunk = (int) Math.min(MB, size - written);
+            out.write(content(random, chunk));
+            written += chunk;
+        }
+        out.closeEntry();
+    }
+
+    private static void writeStored(ZipOutputStream out, String name, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCompressedSize(content.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,56 @@
+package ru.lazard.tamperingprotection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dex CRC and total CRC extraction: cold (central directory parsed on each call) and warm (reused {@link ApkIndex}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CrcBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int dexCount;
+
+    @Param({"10", "100", "500"})
+    public int sizeMb;
+
+    private File apk;
+
+    @Setup
+    public void setUp() throws IOException {
+        apk = ApkFixtures.apk(dexCount, sizeMb);
+    }
+
+    @Benchmark
+    public long dexCrcCold() throws IOException {
+        return ApkIndex.read(apk).getDexCrc();
+    }
+
+    @Benchmark
+    public long totalCrcCold() throws IOException {
+        return ApkIndex.read(apk).getTotalCrc();
+    }
+
+    @Benchmark
+    public long dexCrc() throws IOException {
+        return ApkIndex.of(apk.getPath()).getDexCrc();
+    }
+
+    @Benchmark
+    public long totalCrc() throws IOException {
+        return ApkIndex.of(apk.getPath()).getTotalCrc();
+    }
+}
@@ -0,0 +1,78 @@
+package ru.lazard.tamperingprotection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emulator detection on properties of real device and of emulators (supplied by {@link FixtureEnvironmentProbe}),
+ * with default rules and with table of many synthetic signatures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EmulatorBenchmark {
+
+    @Param({"device", "emulator", "genymotion"})
+    public String device;
+
+    /**
+     * Count of extra synthetic rules (besides default rules).
+     */
+    @Param({"0", "500"})
+    public int extraRules;
+
+    private FixtureEnvironmentProbe probe;
+    private EmulatorDetector detector;
+    private String[] properties;
+
+    @Setup
+    public void setUp() {
+        probe = new FixtureEnvironmentProbe("");
+        if ("emulator".equals(device)) {
+            probe.setDeviceProperties("sdk_x86", "unknown", "generic_x86", "generic_x86", "Android SDK built for x86", "goldfish",
+                    "generic_x86/sdk_x86/generic_x86:7.0/NYC/3300117:userdebug/test-keys");
+        } else if ("genymotion".equals(device)) {
+            probe.setDeviceProperties("vbox86p", "Genymotion", "generic", "vbox86p", "Samsung Galaxy S6", "vbox86",
+                    "generic/vbox86p/vbox86p:6.0/MRA58K/genymotion08250738:userdebug/test-keys");
+        } else {
+            probe.setDeviceProperties("hammerhead", "LGE", "google", "hammerhead", "Nexus 5", "hammerhead",
+                    "google/hammerhead/hammerhead:6.0.1/M4B30Z/3437181:user/release-keys");
+        }
+        List<String> rules = new ArrayList<String>(Arrays.asList(EmulatorDetector.DEFAULT_RULES));
+        for (int i = 0; i < extraRules; i++) {
+            rules.add(EmulatorRule.PROPERTY_NAMES[i % EnvironmentProbe.PROPERTY_COUNT] + (i % 2 == 0 ? " equals 1 " : " contains 1 ") + "cloudphone" + i);
+        }
+        detector = EmulatorDetector.parse(EmulatorDetector.DEFAULT_THRESHOLD, rules.toArray(new String[rules.size()]));
+        properties = new String[EnvironmentProbe.PROPERTY_COUNT];
+        for (int i = 0; i < properties.length; i++) {
+            properties[i] = probe.getDeviceProperty(i);
+        }
+    }
+
+    /**
+     * Evaluation of all rules.
+     */
+    @Benchmark
+    public boolean compute() {
+        return detector.compute(properties).isEmulator();
+    }
+
+    /**
+     * Repeated check (result of first evaluation is reused).
+     */
+    @Benchmark
+    public boolean evaluate() {
+        return detector.evaluate(probe).isEmulator();
+    }
+}
@@ -0,0 +1,87 @@
+package ru.lazard.tamperingprotection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signature fingerprint formatting, lookups in {@link ValidationPolicy} and loading of policy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FingerprintBenchmark {
+
+    /**
+     * Count of accepted fingerprints and package names (accepted one is the last).
+     */
+    @Param({"1", "10", "100", "1000"})
+    public int acceptedCount;
+
+    private byte[] certificate;
+    private ValidationPolicy md5Policy;
+    private ValidationPolicy sha256Policy;
+    private byte[] encodedPolicy;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        certificate = new byte[1200]; // typical size of X.509 certificate
+        new Random(1).nextBytes(certificate);
+        ValidationPolicyEncoder md5 = new ValidationPolicyEncoder();
+        ValidationPolicyEncoder sha256 = new ValidationPolicyEncoder();
+        Random random = new Random(2);
+        for (int i = 0; i < acceptedCount - 1; i++) {
+            byte[] other = new byte[1200];
+            random.nextBytes(other);
+            md5.addSignature(SignatureFingerprints.md5(other)).addPackageName("com.whitelabel.variant" + i);
+            sha256.addSignature(SignatureFingerprints.sha256(other));
+        }
+        md5.addSignature(SignatureFingerprints.md5(certificate)).addPackageName("ru.lazard.sample");
+        sha256.addSignature(SignatureFingerprints.sha256(certificate));
+        md5Policy = md5.build();
+        sha256Policy = sha256.build();
+        encodedPolicy = md5.encode();
+    }
+
+    @Benchmark
+    public String formatMd5() throws NoSuchAlgorithmException {
+        return SignatureFingerprints.md5(certificate);
+    }
+
+    @Benchmark
+    public String formatSha256() throws NoSuchAlgorithmException {
+        return SignatureFingerprints.sha256(certificate);
+    }
+
+    @Benchmark
+    public boolean matchMd5() throws NoSuchAlgorithmException {
+        return md5Policy.containsSignature(certificate);
+    }
+
+    @Benchmark
+    public boolean matchSha256() throws NoSuchAlgorithmException {
+        return sha256Policy.containsSignature(certificate);
+    }
+
+    @Benchmark
+    public boolean matchPackageName() {
+        return md5Policy.containsPackageName("ru.lazard.sample");
+    }
+
+    /**
+     * Load of policy (CRC32 check, no parsing).
+     */
+    @Benchmark
+    public ValidationPolicy loadPolicy() {
+        return ValidationPolicy.load(encodedPolicy);
+    }
+}
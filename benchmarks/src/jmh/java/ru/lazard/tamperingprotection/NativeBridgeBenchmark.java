@@ -0,0 +1,77 @@
+package ru.lazard.tamperingprotection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Same checks through java code and through {@link NativeBridge}: central directory parsing, SHA-256 of native libraries
+ * (STORED, memory-mapped), content digest of whole apk (native code hashes only big STORED entries) and scan of
+ * <code>/proc/self/maps</code>.<br>
+ * Native library is built by <code>benchmarks:buildNativeBridge</code> task (Linux x86-64, <code>make</code> and C compiler).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NativeBridgeBenchmark {
+
+    @Param({"java", "native"})
+    public String backend;
+
+    @Param({"100"})
+    public int sizeMb;
+
+    private File apk;
+    private ApkIndex index;
+    private ProcScanner scanner;
+    private boolean[] found;
+
+    @Setup
+    public void setUp() throws IOException {
+        boolean isNative = "native".equals(backend);
+        if (isNative && !NativeBridge.isLoaded())
+            throw new IllegalStateException("Native library is not loaded: " + NativeBridge.getLoadError());
+        NativeBridge.setEnabled(isNative);
+        apk = ApkFixtures.apk(10, sizeMb);
+        index = ApkIndex.read(apk);
+        scanner = new ProcScanner(ProcScanner.MAPS, ProcScanner.DEFAULT_HOOK_SIGNATURES);
+        found = new boolean[scanner.getSignatureCount()];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        scanner.close();
+        NativeBridge.setEnabled(true);
+    }
+
+    @Benchmark
+    public ApkIndex centralDirectory() throws IOException {
+        return ApkIndex.read(apk);
+    }
+
+    @Benchmark
+    public NativeLibDigester.Result nativeLibs() throws IOException, NoSuchAlgorithmException {
+        return NativeLibDigester.digest(index, "arm64-v8a", null);
+    }
+
+    @Benchmark
+    public ApkContentDigest contentDigest() throws IOException, NoSuchAlgorithmException {
+        return ApkContentDigest.digest(index, 1);
+    }
+
+    @Benchmark
+    public int procMaps() throws IOException {
+        return scanner.scan(found);
+    }
+}
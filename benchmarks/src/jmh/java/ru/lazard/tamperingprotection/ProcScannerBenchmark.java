@@ -0,0 +1,69 @@
+package ru.lazard.tamperingprotection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan of real procfs files of benchmark JVM (<code>/proc/self/maps</code> has hundreds of lines) for hooking frameworks:
+ * {@link ProcScanner} (reused buffer, one automaton for all signatures) against line by line reading
+ * with <code>String.contains</code> of each signature. Run with <code>gc</code> profiler to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProcScannerBenchmark {
+
+    @Param({"maps", "status"})
+    public String file;
+
+    private ProcScanner scanner;
+    private boolean[] found;
+    private File proc;
+
+    @Setup
+    public void setUp() {
+        proc = "maps".equals(file) ? ProcScanner.MAPS : ProcScanner.STATUS;
+        scanner = new ProcScanner(proc, ProcScanner.DEFAULT_HOOK_SIGNATURES);
+        found = new boolean[scanner.getSignatureCount()];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        scanner.close();
+    }
+
+    @Benchmark
+    public int scanner() throws IOException {
+        return scanner.scan(found);
+    }
+
+    @Benchmark
+    public int readLine() throws IOException {
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(proc));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (String signature : ProcScanner.DEFAULT_HOOK_SIGNATURES) {
+                    if (line.contains(signature)) count++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+}
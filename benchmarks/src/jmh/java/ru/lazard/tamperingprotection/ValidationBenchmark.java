@@ -0,0 +1,63 @@
+package ru.lazard.tamperingprotection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full <code>validateAllOrThrowException</code> pipeline (all checks enabled, app is valid) with and without {@link ValidationCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ValidationBenchmark {
+
+    private static final String PACKAGE_NAME = "ru.lazard.sample";
+
+    @Param({"1", "10", "100"})
+    public int dexCount;
+
+    @Param({"false", "true"})
+    public boolean cacheEnabled;
+
+    private TamperingProtection protection;
+
+    @Setup
+    public void setUp() throws Exception {
+        File apk = ApkFixtures.apk(dexCount, 10);
+        byte[] certificate = new byte[1200];
+        new Random(1).nextBytes(certificate);
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(apk.getPath());
+        probe.setPackageName(PACKAGE_NAME);
+        probe.setInstallerPackageName(TamperingProtection.GOOGLE_PLAY_STORE_PACKAGE);
+        probe.setSignatureCertificates(certificate);
+        probe.setLastUpdateTime(apk.lastModified());
+        probe.setDeviceProperties("hammerhead", "LGE", "google", "hammerhead", "Nexus 5", "hammerhead",
+                "google/hammerhead/hammerhead:6.0.1/M4B30Z/3437181:user/release-keys");
+
+        protection = new TamperingProtection(probe);
+        protection.setAcceptedDexCrcs(ApkIndex.read(apk).getDexCrc());
+        protection.setAcceptedStores(TamperingProtection.GOOGLE_PLAY_STORE_PACKAGE);
+        protection.setAcceptedPackageNames(PACKAGE_NAME);
+        protection.setAcceptedSignatures(SignatureFingerprints.md5(certificate));
+        protection.setAcceptStartOnEmulator(false);
+        protection.setAcceptStartInDebugMode(false);
+        protection.setCacheEnabled(cacheEnabled);
+        ValidationCache.getInstance().invalidate();
+        protection.validateAllOrThrowException(); // fixture must be valid
+    }
+
+    @Benchmark
+    public void validateAllOrThrowException() throws TamperingProtection.ValidationException {
+        protection.validateAllOrThrowException();
+    }
+}
@@ -0,0 +1,24 @@
+package android.content;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+
+import java.io.File;
+
+/**
+ * JVM stand-in of android <code>Context</code> (only methods used by library). Benchmarks extend it with fixture values.
+ */
+public abstract class Context {
+
+    public abstract String getPackageCodePath();
+
+    public abstract PackageManager getPackageManager();
+
+    public abstract String getPackageName();
+
+    public abstract ApplicationInfo getApplicationInfo();
+
+    public abstract Context getApplicationContext();
+
+    public abstract File getFilesDir();
+}
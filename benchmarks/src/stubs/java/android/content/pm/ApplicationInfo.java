@@ -0,0 +1,11 @@
+package android.content.pm;
+
+/**
+ * JVM stand-in of android <code>ApplicationInfo</code>.
+ */
+public class ApplicationInfo {
+    public static final int FLAG_DEBUGGABLE = 1 << 1;
+    public int flags;
+    public String sourceDir;
+    public String nativeLibraryDir;
+}
@@ -0,0 +1,11 @@
+package android.content.pm;
+
+/**
+ * JVM stand-in of android <code>PackageInfo</code>.
+ */
+public class PackageInfo {
+    public String packageName;
+    public Signature[] signatures;
+    public long firstInstallTime;
+    public long lastUpdateTime;
+}
@@ -0,0 +1,22 @@
+package android.content.pm;
+
+/**
+ * JVM stand-in of android <code>PackageManager</code> (only methods used by library).
+ */
+public abstract class PackageManager {
+
+    public static final int GET_SIGNATURES = 0x00000040;
+
+    public abstract PackageInfo getPackageInfo(String packageName, int flags) throws NameNotFoundException;
+
+    public abstract String getInstallerPackageName(String packageName);
+
+    public static class NameNotFoundException extends Exception {
+        public NameNotFoundException() {
+        }
+
+        public NameNotFoundException(String name) {
+            super(name);
+        }
+    }
+}
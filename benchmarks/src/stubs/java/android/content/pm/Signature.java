@@ -0,0 +1,17 @@
+package android.content.pm;
+
+/**
+ * JVM stand-in of android <code>Signature</code>.
+ */
+public class Signature {
+
+    private final byte[] signature;
+
+    public Signature(byte[] signature) {
+        this.signature = signature.clone();
+    }
+
+    public byte[] toByteArray() {
+        return signature.clone();
+    }
+}
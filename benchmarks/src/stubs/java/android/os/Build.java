@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * JVM stand-in of android <code>Build</code>. Fields are not final (and not compile time constants),
+ * so benchmarks can inject properties of real device or emulator.
+ */
+public class Build {
+    public static String PRODUCT = "unknown";
+    public static String MANUFACTURER = "unknown";
+    public static String BRAND = "unknown";
+    public static String DEVICE = "unknown";
+    public static String MODEL = "unknown";
+    public static String HARDWARE = "unknown";
+    public static String FINGERPRINT = "unknown";
+    public static String CPU_ABI = "arm64-v8a";
+    public static String CPU_ABI2 = "";
+    public static String[] SUPPORTED_ABIS = {"arm64-v8a", "armeabi-v7a", "armeabi"};
+
+    public static class VERSION {
+        public static int SDK_INT = 24;
+    }
+}
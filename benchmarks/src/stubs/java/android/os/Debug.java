@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * JVM stand-in of android <code>Debug</code>: no java debugger, thread CPU time is not measured.
+ */
+public final class Debug {
+
+    private Debug() {
+    }
+
+    public static boolean isDebuggerConnected() {
+        return false;
+    }
+
+    public static boolean waitingForDebugger() {
+        return false;
+    }
+
+    public static long threadCpuTimeNanos() {
+        return -1;
+    }
+}
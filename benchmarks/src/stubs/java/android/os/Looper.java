@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * JVM stand-in of android <code>Looper</code>.
+ */
+public final class Looper {
+
+    private static final MessageQueue QUEUE = new MessageQueue();
+
+    private Looper() {
+    }
+
+    public static MessageQueue myQueue() {
+        return QUEUE;
+    }
+}
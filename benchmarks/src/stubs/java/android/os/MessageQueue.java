@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM stand-in of android <code>MessageQueue</code>: idle handlers are ignored.
+ */
+public final class MessageQueue {
+
+    public void addIdleHandler(IdleHandler handler) {
+    }
+
+    public void removeIdleHandler(IdleHandler handler) {
+    }
+
+    public interface IdleHandler {
+        boolean queueIdle();
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * JVM stand-in of android <code>SystemClock</code>.
+ */
+public final class SystemClock {
+
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
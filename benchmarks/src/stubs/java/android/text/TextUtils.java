@@ -0,0 +1,10 @@
+package android.text;
+
+/**
+ * JVM stand-in of android <code>TextUtils</code>.
+ */
+public class TextUtils {
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
@@ -0,0 +1,7 @@
+package androidx.annotation;
+
+/**
+ * JVM stand-in of androidx <code>NonNull</code> annotation.
+ */
+public @interface NonNull {
+}
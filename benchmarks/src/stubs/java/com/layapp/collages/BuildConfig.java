@@ -0,0 +1,8 @@
+package com.layapp.collages;
+
+/**
+ * JVM stand-in of generated <code>BuildConfig</code> (release build).
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
@@ -0,0 +1,57 @@
+package ru.lazard.tamperingprotection.integrity
+
+import org.gradle.api.Plugin
+import org.gradle.api.Project
+
+/**
+ * Package {@link ru.lazard.tamperingprotection.IntegrityManifest} into each apk of android application:<br>
+ * <code>generate&lt;Variant&gt;IntegrityManifest</code> runs right before package task and adds manifest to packaged resources,
+ * <code>verify&lt;Variant&gt;IntegrityManifest</code> checks built apk against its manifest.<br>
+ * Usage: <code>apply plugin: 'ru.lazard.tamperingprotection.integrity'</code> after <code>com.android.application</code> plugin.
+ */
+class IntegrityManifestPlugin implements Plugin<Project> {
+
+    @Override
+    void apply(Project project) {
+        project.plugins.withId('com.android.application') {
+            project.android.applicationVariants.all { variant ->
+                variant.outputs.each { output ->
+                    addTasks(project, variant, output)
+                }
+            }
+        }
+    }
+
+    private static void addTasks(Project project, variant, output) {
+        def packageTask = output.packageApplication
+        String suffix = variant.name.capitalize() + (variant.outputs.size() > 1 ? output.name.capitalize() : '')
+
+        IntegrityManifestTask generate = project.tasks.create("generate${suffix}IntegrityManifest", IntegrityManifestTask)
+        generate.description = "Packages integrity manifest into ${output.name} apk."
+        generate.resourceFile = { packageTask.resourceFile }
+        generate.dexFolders = { packageTask.dexFolders }
+        generate.jniFolders = { packageTask.jniFolders }
+        generate.javaResourceFiles = { packageTask.javaResourceFiles }
+        generate.manifestFile = new File(project.buildDir, "outputs/integrity/${variant.dirName}/${output.name}.bin")
+        def signingConfig = variant.signingConfig
+        if (signingConfig != null && signingConfig.signingReady) {
+            generate.storeFile = signingConfig.storeFile
+            generate.storePassword = signingConfig.storePassword
+            generate.storeType = signingConfig.storeType
+            generate.keyAlias = signingConfig.keyAlias
+        }
+        // inputs of package task are produced by its dependencies (resources, dex, native libs)
+        def packageDependencies = new ArrayList(packageTask.dependsOn)
+        generate.dependsOn(packageDependencies)
+        packageTask.dependsOn(generate)
+        project.gradle.taskGraph.whenReady {
+            generate.abiFilters = packageTask.hasProperty('abiFilters') ? packageTask.abiFilters : null
+        }
+
+        IntegrityManifestVerifyTask verify = project.tasks.create("verify${suffix}IntegrityManifest", IntegrityManifestVerifyTask)
+        verify.description = "Verifies ${output.name} apk against its integrity manifest."
+        verify.apkFile = { output.outputFile }
+        verify.dependsOn(output.zipAlign != null ? output.zipAlign : packageTask)
+        variant.assemble.dependsOn(verify)
+    }
+}
@@ -0,0 +1,295 @@
+package ru.lazard.tamperingprotection.integrity;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import ru.lazard.tamperingprotection.ApkIndex;
+import ru.lazard.tamperingprotection.IntegrityManifest;
+import ru.lazard.tamperingprotection.IntegrityManifestEncoder;
+
+/**
+ * Make {@link IntegrityManifest} of everything package task will put into apk and add manifest to packaged resources (<code>.ap_</code>),
+ * so package task signs apk with manifest inside.<br>
+ * Entries are taken from package task inputs: packaged resources (<code>AndroidManifest.xml</code>, <code>resources.arsc</code>,
+ * <code>res/*</code>, <code>assets/*</code>), dex files, native libraries (<code>lib/&lt;abi&gt;/*.so</code>) and java resources.
+ * Content digests (of entries and of their chunks) don't depend on compression, so recompression by package task don't change manifest.
+ */
+public class IntegrityManifestTask extends DefaultTask {
+
+    private Object resourceFile;
+    private Object dexFolders;
+    private Object jniFolders;
+    private Object javaResourceFiles;
+    private Collection<String> abiFilters;
+    private File storeFile;
+    private String storePassword;
+    private String storeType;
+    private String keyAlias;
+    private Object manifestFile;
+
+    /**
+     * @return - packaged resources (<code>.ap_</code> zip) of package task.
+     */
+    @InputFile
+    public File getResourceFile() {
+        return getProject().file(resourceFile);
+    }
+
+    public void setResourceFile(Object resourceFile) {
+        this.resourceFile = resourceFile;
+    }
+
+    @InputFiles
+    public FileCollection getDexFolders() {
+        return getProject().files(dexFolders);
+    }
+
+    public void setDexFolders(Object dexFolders) {
+        this.dexFolders = dexFolders;
+    }
+
+    /**
+     * @return - folders with native libraries (<code>&lt;abi&gt;/*.so</code>).
+     */
+    @InputFiles
+    public FileCollection getJniFolders() {
+        return getProject().files(jniFolders);
+    }
+
+    public void setJniFolders(Object jniFolders) {
+        this.jniFolders = jniFolders;
+    }
+
+    /**
+     * @return - jars and folders with java resources.
+     */
+    @InputFiles
+    public FileCollection getJavaResourceFiles() {
+        return getProject().files(javaResourceFiles);
+    }
+
+    public void setJavaResourceFiles(Object javaResourceFiles) {
+        this.javaResourceFiles = javaResourceFiles;
+    }
+
+    /**
+     * @return - ABIs packaged into apk (null or empty - all ABIs).
+     */
+    @Optional
+    @Input
+    public Collection<String> getAbiFilters() {
+        return abiFilters;
+    }
+
+    public void setAbiFilters(Collection<String> abiFilters) {
+        this.abiFilters = abiFilters;
+    }
+
+    /**
+     * @return - keystore of signing config (null - manifest without signer).
+     */
+    @Optional
+    @InputFile
+    public File getStoreFile() {
+        return storeFile;
+    }
+
+    public void setStoreFile(File storeFile) {
+        this.storeFile = storeFile;
+    }
+
+    @Optional
+    @Input
+    public String getStorePassword() {
+        return storePassword;
+    }
+
+    public void setStorePassword(String storePassword) {
+        this.storePassword = storePassword;
+    }
+
+    @Optional
+    @Input
+    public String getStoreType() {
+        return storeType;
+    }
+
+    public void setStoreType(String storeType) {
+        this.storeType = storeType;
+    }
+
+    @Optional
+    @Input
+    public String getKeyAlias() {
+        return keyAlias;
+    }
+
+    public void setKeyAlias(String keyAlias) {
+        this.keyAlias = keyAlias;
+    }
+
+    /**
+     * @return - copy of manifest (for audit and for upload to server).
+     */
+    @OutputFile
+    public File getManifestFile() {
+        return getProject().file(manifestFile);
+    }
+
+    public void setManifestFile(Object manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    @TaskAction
+    public void generate() throws IOException, GeneralSecurityException {
+        IntegrityManifestEncoder encoder = new IntegrityManifestEncoder();
+        File resources = getResourceFile();
+        addZip(encoder, resources); // manifest of previous build is not covered
+        for (File folder : getDexFolders()) {
+            File[] files = folder.listFiles();
+            if (files == null) continue;
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(".dex")) addFile(encoder, file.getName(), file);
+            }
+        }
+        for (File folder : getJniFolders()) {
+            File[] abis = folder.listFiles();
+            if (abis == null) continue;
+            for (File abi : abis) {
+                if (abi.isDirectory() && (abiFilters == null || abiFilters.isEmpty() || abiFilters.contains(abi.getName())))
+                    addFolder(encoder, abi, "lib/" + abi.getName() + "/");
+            }
+        }
+        for (File file : getJavaResourceFiles()) {
+            if (file.isDirectory()) addFolder(encoder, file, "");
+            else if (file.isFile()) addZip(encoder, file);
+        }
+        if (storeFile != null) encoder.setSignerCertificate(readCertificate());
+
+        byte[] manifest = encoder.encode();
+        File output = getManifestFile();
+        output.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(output);
+        try {
+            out.write(manifest);
+        } finally {
+            out.close();
+        }
+        addToZip(resources, manifest);
+        getLogger().info("Integrity manifest of " + encoder.getEntryCount() + " entries (" + manifest.length + " bytes) added to " + resources);
+    }
+
+    private static void addZip(IntegrityManifestEncoder encoder, File zip) throws IOException {
+        encoder.addApk(ApkIndex.read(zip)); // same entry digests as runtime verifier calculates
+    }
+
+    private static void addFolder(IntegrityManifestEncoder encoder, File folder, String prefix) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) addFolder(encoder, file, name + "/");
+            else if (IntegrityManifest.isCovered(name)) addFile(encoder, name, file);
+        }
+    }
+
+    private static void addFile(IntegrityManifestEncoder encoder, String name, File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            encoder.addEntry(name, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] readCertificate() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(storeType != null ? storeType : KeyStore.getDefaultType());
+        InputStream in = new FileInputStream(storeFile);
+        try {
+            keyStore.load(in, storePassword != null ? storePassword.toCharArray() : null);
+        } finally {
+            in.close();
+        }
+        Certificate certificate = keyStore.getCertificate(keyAlias);
+        if (certificate == null) throw new GradleException("Key \"" + keyAlias + "\" not found in " + storeFile);
+        return certificate.getEncoded();
+    }
+
+    /**
+     * Rewrite zip with manifest entry (STORED, so it can be read without inflating). Compression of other entries is kept.
+     */
+    private static void addToZip(File zip, byte[] manifest) throws IOException {
+        File temp = new File(zip.getPath() + ".tmp");
+        ZipFile in = new ZipFile(zip);
+        try {
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(temp));
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                Enumeration<? extends ZipEntry> entries = in.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.getName().equals(IntegrityManifest.ENTRY_NAME)) continue; // manifest of previous build
+                    ZipEntry copy = new ZipEntry(entry.getName());
+                    copy.setTime(entry.getTime());
+                    if (entry.getMethod() == ZipEntry.STORED) {
+                        copy.setMethod(ZipEntry.STORED);
+                        copy.setSize(entry.getSize());
+                        copy.setCompressedSize(entry.getSize());
+                        copy.setCrc(entry.getCrc());
+                    }
+                    out.putNextEntry(copy);
+                    InputStream content = in.getInputStream(entry);
+                    try {
+                        int read;
+                        while ((read = content.read(buffer)) >= 0) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        content.close();
+                    }
+                    out.closeEntry();
+                }
+                ZipEntry entry = new ZipEntry(IntegrityManifest.ENTRY_NAME);
+                CRC32 crc = new CRC32();
+                crc.update(manifest);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(manifest.length);
+                entry.setCompressedSize(manifest.length);
+                entry.setCrc(crc.getValue());
+                out.putNextEntry(entry);
+                out.write(manifest);
+                out.closeEntry();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!zip.delete() || !temp.renameTo(zip)) throw new IOException("Can't replace " + zip + " by " + temp);
+    }
+}
@@ -0,0 +1,51 @@
+package ru.lazard.tamperingprotection.integrity;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import ru.lazard.tamperingprotection.ApkIndex;
+import ru.lazard.tamperingprotection.IntegrityManifest;
+import ru.lazard.tamperingprotection.IntegrityVerifier;
+import ru.lazard.tamperingprotection.SamplingPlan;
+
+/**
+ * Verify all entries (and all chunks of entries) of built apk against packaged {@link IntegrityManifest}, so apk which would fail integrity check
+ * on device (for example packaging dropped or added entry) fails build instead.
+ */
+public class IntegrityManifestVerifyTask extends DefaultTask {
+
+    private Object apkFile;
+
+    @InputFile
+    public File getApkFile() {
+        return getProject().file(apkFile);
+    }
+
+    public void setApkFile(Object apkFile) {
+        this.apkFile = apkFile;
+    }
+
+    @TaskAction
+    public void verify() throws IOException, NoSuchAlgorithmException {
+        File apk = getApkFile();
+        ApkIndex index = ApkIndex.read(apk);
+        IntegrityManifest manifest = IntegrityManifest.read(index);
+        if (manifest == null) throw new GradleException("No integrity manifest in " + apk);
+        IntegrityVerifier verifier = new IntegrityVerifier(manifest, index);
+        check(apk, verifier.verify(Integer.MAX_VALUE, new Random()));
+        if (manifest.hasChunks())
+            check(apk, verifier.verify(SamplingPlan.forSampleSize(manifest, index, SamplingPlan.UNIT_CHUNKS, Integer.MAX_VALUE), new Random()));
+    }
+
+    private void check(File apk, IntegrityVerifier.Result result) {
+        if (!result.isValid()) throw new GradleException("Apk " + apk + " doesn't match its integrity manifest: " + result.getFailure());
+        getLogger().info("Integrity manifest verified: " + apk + " " + result);
+    }
+}
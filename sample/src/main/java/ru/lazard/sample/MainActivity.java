@@ -1,10 +1,17 @@
 package ru.lazard.sample;
 
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
 import android.widget.TextView;
 
+import java.io.IOException;
+
+import ru.lazard.tamperingprotection.ApkIndex;
+import ru.lazard.tamperingprotection.IntegrityManifest;
+import ru.lazard.tamperingprotection.PersistentValidationCache;
+import ru.lazard.tamperingprotection.ProtectionConfig;
 import ru.lazard.tamperingprotection.TamperingProtection;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener {
@@ -13,6 +20,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     private View simpleValidationButton;
     private View detailedValidationButton;
     private View maxProtectionButton;
+    private TamperingProtection protection; // immutable config: one instance is shared by all checks and threads
+    private TamperingProtection detailedProtection;
+    private TamperingProtection maxProtection; // created on first use: integrity manifest is read from apk
 
 
     @Override
@@ -28,7 +38,50 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         detailedValidationButton.setOnClickListener(this);
         maxProtectionButton.setOnClickListener(this);
 
-        detailedValidation();
+        ProtectionConfig config = new ProtectionConfig.Builder()
+                .setAcceptedPackageNames("ru.lazard.sample")
+                .setAcceptedSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32")
+                .setCacheEnabled(true) // same facts (signatures, package name) are read once for all checks
+                .setPersistentCache(PersistentValidationCache.of(this)) // signatures are not read again on next launch
+                .build();
+        protection = new TamperingProtection(this, config);
+
+        ProtectionConfig detailedConfig = new ProtectionConfig.Builder()
+                .setAcceptedDexCrcs() // don't validate classes.dex CRC code.
+                .setAcceptedStores() // allow all stores
+                .setAcceptedPackageNames("ru.lazard.sample")
+                .setAcceptedSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32")
+                .setAcceptStartOnEmulator(true)
+                .setAcceptStartInDebugMode(true)
+                .build();
+        detailedProtection = new TamperingProtection(this, detailedConfig);
+
+        asyncValidation();
+    }
+
+    private void asyncValidation() {
+        // checks run concurrently on background threads, UI thread isn't blocked by zip reading and PackageManager calls
+        protection.validateAsync(AsyncTask.THREAD_POOL_EXECUTOR, new TamperingProtection.ValidationListener() {
+            @Override
+            public void onValidationSuccess() {
+                showTextOnUiThread("Valid");
+            }
+
+            @Override
+            public void onValidationFailed(TamperingProtection.ValidationException e) {
+                e.printStackTrace();
+                showTextOnUiThread("FAILED   " + e.getMessage());
+            }
+        });
+    }
+
+    private void showTextOnUiThread(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                showText(message);
+            }
+        });
     }
 
     private void showText(String message) {
@@ -50,18 +103,33 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     private void maxProtectionExample() {
-        long dexCrc = Long.parseLong(this.getResources().getString(R.string.dexCrc)); // Keep dexCrc in resources (strings.xml) or in JNI code. Not hardcode in java classes.
-
-        TamperingProtection protection = new TamperingProtection(this);
-        protection.setAcceptedDexCrcs(dexCrc);
-        protection.setAcceptedStores(TamperingProtection.GOOGLE_PLAY_STORE_PACKAGE);
-        protection.setAcceptedPackageNames("ru.lazard.sample","ru.lazard.sample.Lite_Version","ru.lazard.sample.Pro_Version");
-        protection.setAcceptedSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32","AC:aC:aB:a3:aC:88:A9:66:aB:0D:C9:a8:aB:A6:aF:a2");
-        protection.setAcceptStartOnEmulator(false);
-        protection.setAcceptStartInDebugMode(false);
+        if (maxProtection == null) {
+            long dexCrc = Long.parseLong(this.getResources().getString(R.string.dexCrc)); // Keep dexCrc in resources (strings.xml) or in JNI code. Not hardcode in java classes.
+
+            IntegrityManifest manifest;
+            try {
+                // manifest is packaged into apk by integrityplugin (null if plugin is not applied)
+                manifest = IntegrityManifest.read(ApkIndex.of(getPackageCodePath()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                showText("FAILED   " + e.getMessage());
+                return;
+            }
+
+            ProtectionConfig config = new ProtectionConfig.Builder()
+                    .setAcceptedDexCrcs(dexCrc)
+                    .setAcceptedStores(TamperingProtection.GOOGLE_PLAY_STORE_PACKAGE)
+                    .setAcceptedPackageNames("ru.lazard.sample","ru.lazard.sample.Lite_Version","ru.lazard.sample.Pro_Version")
+                    .setAcceptedSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32","AC:aC:aB:a3:aC:88:A9:66:aB:0D:C9:a8:aB:A6:aF:a2")
+                    .setAcceptStartOnEmulator(false)
+                    .setAcceptStartInDebugMode(false)
+                    .setIntegrityManifest(manifest)
+                    .build();
+            maxProtection = new TamperingProtection(this, config);
+        }
 
         try {
-            protection.validateAllOrThrowException();
+            maxProtection.validateAllOrThrowException();
             showText("Valid");
         } catch (TamperingProtection.ValidationException e) {
             e.printStackTrace();
@@ -70,16 +138,8 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     private void detailedValidation() {
-        TamperingProtection protection = new TamperingProtection(this);
-        protection.setAcceptedDexCrcs(); // don't validate classes.dex CRC code.
-        protection.setAcceptedStores(); // allow all stores
-        protection.setAcceptedPackageNames("ru.lazard.sample");
-        protection.setAcceptedSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32");
-        protection.setAcceptStartOnEmulator(true);
-        protection.setAcceptStartInDebugMode(true);
-
         try {
-            protection.validateAllOrThrowException();
+            detailedProtection.validateAllOrThrowException();
             showText("Valid");
         } catch (TamperingProtection.ValidationException e) {
             e.printStackTrace();
@@ -88,13 +148,6 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     private void simpleValidation() {
-        TamperingProtection protection = new TamperingProtection(this);
-        protection.setAcceptedDexCrcs(); // don't validate classes.dex CRC code.
-        protection.setAcceptedStores(); // allow all stores
-        protection.setAcceptedPackageNames("ru.lazard.sample");
-        protection.setAcceptedSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32");
-        protection.setAcceptStartOnEmulator(true);
-        protection.setAcceptStartInDebugMode(true);
         boolean isValid = protection.validateAll();
 
         showText(isValid ? "Valid" : "Tampered");
@@ -0,0 +1,179 @@
+package ru.lazard.tamperingprotection;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.os.Build;
+import android.os.Debug;
+
+import com.layapp.collages.BuildConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * {@link EnvironmentProbe} of real device: facts are taken from <code>Context</code>, <code>PackageManager</code>,
+ * <code>Build</code> and <code>BuildConfig</code>. Each call make fresh request (no caching, see {@link ValidationCache}).
+ */
+public class AndroidEnvironmentProbe implements EnvironmentProbe {
+
+    private static ProcScanner tracerPidScanner;
+
+    private final Context context;
+
+    public AndroidEnvironmentProbe(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public String getApkPath() {
+        return context.getPackageCodePath();
+    }
+
+    @Override
+    public String getPackageName() {
+        return context.getApplicationContext().getPackageName();
+    }
+
+    @Override
+    public String getInstallerPackageName() {
+        CheckCounters.addIpcCall();
+        return context.getPackageManager().getInstallerPackageName(context.getPackageName());
+    }
+
+    @Override
+    public byte[][] getSignatureCertificates() throws IOException {
+        try {
+            return getSignatureCertificates(context);
+        } catch (PackageManager.NameNotFoundException exception) {
+            throw new IOException("Package not found: " + context.getPackageName(), exception);
+        }
+    }
+
+    /**
+     * @return - encoded signing certificates of app (empty if app not signed).
+     */
+    static byte[][] getSignatureCertificates(Context context) throws PackageManager.NameNotFoundException {
+        CheckCounters.addIpcCall();
+        PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), PackageManager.GET_SIGNATURES);
+        if (packageInfo.signatures == null || packageInfo.signatures.length <= 0) {
+            return new byte[0][];
+        }
+        int count = 0;
+        byte[][] certificates = new byte[packageInfo.signatures.length][];
+        for (Signature signature : packageInfo.signatures) {
+            if (signature == null) continue;
+            certificates[count++] = signature.toByteArray();
+        }
+        return count == certificates.length ? certificates : Arrays.copyOf(certificates, count);
+    }
+
+    @Override
+    public String getNativeLibraryDir() {
+        return context.getApplicationInfo().nativeLibraryDir;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public String[] getSupportedAbis() {
+        if (Build.VERSION.SDK_INT >= 21) return Build.SUPPORTED_ABIS.clone();
+        if (Build.CPU_ABI2 == null || Build.CPU_ABI2.length() == 0 || Build.CPU_ABI2.equals(Build.CPU_ABI))
+            return new String[]{Build.CPU_ABI};
+        return new String[]{Build.CPU_ABI, Build.CPU_ABI2};
+    }
+
+    @Override
+    public long getLastUpdateTime() {
+        CheckCounters.addIpcCall();
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0; // identity is defined by file only
+        }
+    }
+
+    @Override
+    public boolean isDebuggable() {
+        return 0 != (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE);
+    }
+
+    @Override
+    public boolean isDebugBuild() {
+        return BuildConfig.DEBUG;
+    }
+
+    @Override
+    public boolean isDebuggerConnected() {
+        return Debug.isDebuggerConnected() || Debug.waitingForDebugger();
+    }
+
+    @Override
+    public int getTracerPid() throws IOException {
+        return (int) Math.max(0, getTracerPidScanner().readField(0)); // status is kept open, watchdog re-reads it without allocation
+    }
+
+    /**
+     * @param status - process status file (<code>/proc/&lt;pid&gt;/status</code>).
+     * @return - value of <code>TracerPid</code> field, or 0 if status has no such field (not Linux).
+     */
+    static int readTracerPid(File status) throws IOException {
+        ProcScanner scanner = new ProcScanner(status, ProcScanner.TRACER_PID);
+        try {
+            return (int) Math.max(0, scanner.readField(0));
+        } finally {
+            scanner.close();
+        }
+    }
+
+    private static synchronized ProcScanner getTracerPidScanner() {
+        if (tracerPidScanner == null) tracerPidScanner = ProcScanner.forTracerPid();
+        return tracerPidScanner;
+    }
+
+    @Override
+    public long getThreadCpuTimeNanos() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    @Override
+    public String getDeviceProperty(int property) {
+        return getBuildProperty(property);
+    }
+
+    /**
+     * @param property - one of <code>EnvironmentProbe.PROPERTY_*</code> constants.
+     * @return - value of <code>Build</code> field.
+     */
+    static String getBuildProperty(int property) {
+        String value;
+        switch (property) {
+            case PROPERTY_PRODUCT:
+                value = Build.PRODUCT;
+                break;
+            case PROPERTY_MANUFACTURER:
+                value = Build.MANUFACTURER;
+                break;
+            case PROPERTY_BRAND:
+                value = Build.BRAND;
+                break;
+            case PROPERTY_DEVICE:
+                value = Build.DEVICE;
+                break;
+            case PROPERTY_MODEL:
+                value = Build.MODEL;
+                break;
+            case PROPERTY_HARDWARE:
+                value = Build.HARDWARE;
+                break;
+            case PROPERTY_FINGERPRINT:
+                value = Build.FINGERPRINT;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown device property: " + property);
+        }
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,209 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SHA-256 digest of content of all entries of apk (dex files, resources, assets, native libs...).<br>
+ * Each entry is hashed separately (entry digest), then entry digests are combined in order of central directory:<br>
+ * <code>root = SHA-256(name_0, digest_0); root = SHA-256(root, name_1, digest_1) ... </code><br>
+ * So result don't depend on order in which entries were hashed, and entries can be hashed in parallel
+ * ({@link #digest(ApkIndex, int)}), each worker reads its entries by offset through own <code>FileChannel</code>.
+ * Big STORED entries are hashed by native code if {@link NativeBridge} is available.
+ */
+public final class ApkContentDigest {
+
+    static final String ALGORITHM = "SHA-256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[][] entryDigests;
+    private final byte[] root;
+    private final long bytesHashed;
+    private final long elapsedNanos;
+    private final int threads;
+
+    private ApkContentDigest(byte[][] entryDigests, byte[] root, long bytesHashed, long elapsedNanos, int threads) {
+        this.entryDigests = entryDigests;
+        this.root = root;
+        this.bytesHashed = bytesHashed;
+        this.elapsedNanos = elapsedNanos;
+        this.threads = threads;
+    }
+
+    /**
+     * Hash all entries of apk on pool of threads sized to available cores.
+     */
+    public static ApkContentDigest digest(ApkIndex index) throws IOException, NoSuchAlgorithmException {
+        return digest(index, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Hash all entries of apk.
+     *
+     * @param index   - index of apk.
+     * @param threads - count of worker threads (1 - hash in current thread).
+     */
+    public static ApkContentDigest digest(final ApkIndex index, int threads) throws IOException, NoSuchAlgorithmException {
+        if (threads < 1) throw new IllegalArgumentException("threads=" + threads);
+        MessageDigest.getInstance(ALGORITHM); // fail fast if algorithm not available
+        long start = System.nanoTime();
+        final byte[][] entryDigests = new byte[index.size()][];
+        long bytesHashed;
+        int workers = Math.max(1, Math.min(threads, index.size()));
+        if (workers == 1) {
+            bytesHashed = new Worker(index, entryDigests, new AtomicInteger()).call();
+        } else {
+            // entries are taken from shared counter, so big and small entries are balanced between workers
+            AtomicInteger next = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                List<Future<Long>> futures = new ArrayList<Future<Long>>(workers);
+                for (int i = 0; i < workers; i++) {
+                    futures.add(executor.submit(new Worker(index, entryDigests, next)));
+                }
+                bytesHashed = 0;
+                for (Future<Long> future : futures) {
+                    bytesHashed += getResult(future);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        byte[] root = combine(index, entryDigests, 0, entryDigests.length, null);
+        return new ApkContentDigest(entryDigests, root, bytesHashed, System.nanoTime() - start, workers);
+    }
+
+    /**
+     * Combine entry digests into root digest (continue chain from previous root).
+     *
+     * @param previous - root of previous entries, or null for first entry.
+     */
+    static byte[] combine(ApkIndex index, byte[][] entryDigests, int from, int to, byte[] previous) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+        byte[] root = previous;
+        for (int i = from; i < to; i++) {
+            root = combine(digest, root, index.getName(i), entryDigests[i]);
+        }
+        return root == null ? digest.digest() : root;
+    }
+
+    static byte[] combine(MessageDigest digest, byte[] previous, String name, byte[] entryDigest) {
+        if (previous != null) digest.update(previous);
+        byte[] nameBytes = name.getBytes(UTF_8);
+        int length = nameBytes.length;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        digest.update(nameBytes);
+        digest.update(entryDigest);
+        return digest.digest();
+    }
+
+    private static long getResult(Future<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Apk hashing interrupted.", exception);
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Apk hashing failed.", cause);
+        }
+    }
+
+    /**
+     * @return - root digest of all entries.
+     */
+    public byte[] getRoot() {
+        return root.clone();
+    }
+
+    /**
+     * @return - root digest of all entries as lowercase hex.
+     */
+    public String getRootHex() {
+        return Hex.toHex(root);
+    }
+
+    /**
+     * @param entry - index of entry in {@link ApkIndex}.
+     * @return - SHA-256 of entry content.
+     */
+    public byte[] getEntryDigest(int entry) {
+        return entryDigests[entry].clone();
+    }
+
+    /**
+     * @return - count of hashed (uncompressed) bytes.
+     */
+    public long getBytesHashed() {
+        return bytesHashed;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return - count of threads used for hashing.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return - hashing throughput in MB/s.
+     */
+    public double getThroughputMBps() {
+        if (elapsedNanos <= 0) return 0;
+        return (bytesHashed / (1024.0 * 1024.0)) / (elapsedNanos / 1e9);
+    }
+
+    private static final class Worker implements Callable<Long> {
+        private final ApkIndex index;
+        private final byte[][] entryDigests;
+        private final AtomicInteger next;
+
+        private Worker(ApkIndex index, byte[][] entryDigests, AtomicInteger next) {
+            this.index = index;
+            this.entryDigests = entryDigests;
+            this.next = next;
+        }
+
+        @Override
+        public Long call() throws IOException, NoSuchAlgorithmException {
+            MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+            EntryDigester digester = new EntryDigester(index);
+            boolean isNative = NativeBridge.isAvailable();
+            long hashed = 0;
+            try {
+                int entry;
+                while ((entry = next.getAndIncrement()) < entryDigests.length) {
+                    if (Thread.currentThread().isInterrupted()) throw new IOException("Apk hashing interrupted.");
+                    long size = index.getSize(entry);
+                    if (isNative && size >= EntryDigester.MIN_MAPPED_SIZE && index.getMethod(entry) == ApkIndex.METHOD_STORED && index.getCompressedSize(entry) == size) {
+                        // big STORED entry (native library, media asset) is hashed in place by native code
+                        entryDigests[entry] = NativeBridge.sha256(index.getPath(), digester.getDataOffset(entry), size);
+                        hashed += size;
+                        continue;
+                    }
+                    hashed += digester.digest(entry, digest);
+                    entryDigests[entry] = digest.digest();
+                }
+            } finally {
+                digester.close();
+            }
+            return hashed;
+        }
+    }
+}
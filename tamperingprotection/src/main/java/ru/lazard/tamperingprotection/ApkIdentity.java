@@ -0,0 +1,109 @@
+package ru.lazard.tamperingprotection;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import java.io.File;
+
+/**
+ * Identity of installed apk: path, length and modification time of file and <code>lastUpdateTime</code> of package.<br>
+ * When identity changed then all cached facts about apk (signatures, CRC codes...) must be recalculated.
+ */
+public final class ApkIdentity {
+
+    private final String path;
+    private final long length;
+    private final long lastModified;
+    private final long lastUpdateTime;
+
+    public ApkIdentity(String path, long length, long lastModified, long lastUpdateTime) {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.lastUpdateTime = lastUpdateTime;
+    }
+
+    /**
+     * Identity of apk file.
+     *
+     * @param file           - apk file.
+     * @param lastUpdateTime - <code>PackageInfo.lastUpdateTime</code> of package (or 0 if unknown).
+     */
+    public static ApkIdentity of(File file, long lastUpdateTime) {
+        return new ApkIdentity(file.getPath(), file.length(), file.lastModified(), lastUpdateTime);
+    }
+
+    /**
+     * Identity of current app apk. <b>Note:</b> method make PackageManager call for <code>lastUpdateTime</code>.
+     */
+    public static ApkIdentity of(Context context) {
+        long lastUpdateTime = 0;
+        try {
+            lastUpdateTime = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // keep 0: identity is defined by file only
+        }
+        return of(new File(context.getPackageCodePath()), lastUpdateTime);
+    }
+
+    /**
+     * Cheap check (without PackageManager calls) is file still same as when identity was taken.
+     *
+     * @param file - apk file.
+     * @return - true if path, length and modification time of file not changed.
+     */
+    public boolean matches(File file) {
+        return matches(file, 0);
+    }
+
+    /**
+     * Check is apk still same as when identity was taken.
+     *
+     * @param file           - apk file.
+     * @param lastUpdateTime - current <code>PackageInfo.lastUpdateTime</code> of package (or 0 if unknown).
+     * @return - true if path, length and modification time of file not changed, and <code>lastUpdateTime</code> not changed
+     * (compared only when it is known for both).
+     */
+    public boolean matches(File file, long lastUpdateTime) {
+        if (lastUpdateTime != 0 && this.lastUpdateTime != 0 && lastUpdateTime != this.lastUpdateTime) return false;
+        return path.equals(file.getPath()) && length == file.length() && lastModified == file.lastModified();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ApkIdentity)) return false;
+        ApkIdentity that = (ApkIdentity) o;
+        return length == that.length && lastModified == that.lastModified && lastUpdateTime == that.lastUpdateTime && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path.hashCode();
+        result = 31 * result + (int) (length ^ (length >>> 32));
+        result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+        result = 31 * result + (int) (lastUpdateTime ^ (lastUpdateTime >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ApkIdentity{path=\"" + path + "\", length=" + length + ", lastModified=" + lastModified + ", lastUpdateTime=" + lastUpdateTime + "}";
+    }
+}
@@ -0,0 +1,498 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.ZipException;
+
+/**
+ * Immutable table of apk (zip) entries: names, CRC codes, sizes and offsets.<br>
+ * End of central directory record and central directory are read only once (by <code>FileChannel</code>),
+ * then all CRC methods and validators query this table instead of opening new <code>ZipFile</code>.<br>
+ * Class don't use android api, so it can be tested on plain JVM against fixture zip files.
+ * Central directory is parsed by native code if {@link NativeBridge} is available.<br><br>
+ * Usage:<br>
+ * <code>
+ * ApkIndex index = ApkIndex.of(context.getPackageCodePath());<br>
+ * long dexCrc = index.getDexCrc();<br>
+ * </code>
+ */
+public final class ApkIndex {
+
+    /**
+     * Compression method of stored (not compressed) entry.
+     */
+    public static final int METHOD_STORED = 0;
+    /**
+     * Compression method of deflated entry.
+     */
+    public static final int METHOD_DEFLATED = 8;
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int EOCD_SIGNATURE = 0x06054b50;
+    static final int EOCD_SIZE = 22;
+    static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    static final int ZIP64_EOCD_SIZE = 56;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final long UINT32_MASK = 0xFFFFFFFFL;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // names of entries are chosen by author of apk: with random seed of hash they can't be chosen to collide in name table
+    private static final int NAME_HASH_SEED = new SecureRandom().nextInt();
+
+    private static volatile ApkIndex lastIndex;
+    // index of thread: threads which check different apk files (batch validation) don't replace index of each other
+    private static final ThreadLocal<ApkIndex> threadIndex = new ThreadLocal<ApkIndex>();
+
+    private final String path;
+    private final long fileLength;
+    private final long lastModified;
+    private final long centralDirectoryOffset;
+    private final long centralDirectorySize;
+    private final long eocdOffset;
+    private final String[] names;
+    private final int[] crcs;
+    private final int[] methods;
+    private final long[] compressedSizes;
+    private final long[] sizes;
+    private final long[] localHeaderOffsets;
+    private final int[] nameTable;
+    private final int[] dexEntries;
+
+    private ApkIndex(String path, long fileLength, long lastModified, long centralDirectoryOffset, long centralDirectorySize, long eocdOffset,
+                     String[] names, int[] crcs, int[] methods, long[] compressedSizes, long[] sizes, long[] localHeaderOffsets) throws ZipException {
+        this.path = path;
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+        this.centralDirectorySize = centralDirectorySize;
+        this.eocdOffset = eocdOffset;
+        this.names = names;
+        this.crcs = crcs;
+        this.methods = methods;
+        this.compressedSizes = compressedSizes;
+        this.sizes = sizes;
+        this.localHeaderOffsets = localHeaderOffsets;
+        checkOverlaps(names, compressedSizes, localHeaderOffsets, centralDirectoryOffset);
+        this.nameTable = buildNameTable(names);
+        this.dexEntries = findDexEntries();
+    }
+
+    /**
+     * Get index of apk file. Index is reused while path, length and modification time of file are not changed
+     * (last index of process and last index of current thread are kept).
+     *
+     * @param path - path to apk file (for current app it's <code>context.getPackageCodePath()</code>).
+     * @return - index of apk file.
+     * @throws IOException - if file can't be read or it's not a valid zip file.
+     */
+    public static ApkIndex of(String path) throws IOException {
+        File file = new File(path);
+        ApkIndex index = lastIndex;
+        if (index != null && index.isSameFile(file)) return index;
+        index = threadIndex.get();
+        if (index != null && index.isSameFile(file)) return index;
+        index = read(file);
+        lastIndex = index;
+        threadIndex.set(index);
+        return index;
+    }
+
+    /**
+     * Read end of central directory record and central directory of zip file. Each call read file again.
+     *
+     * @param file - apk (zip) file.
+     * @return - new index of file.
+     * @throws IOException - if file can't be read or it's not a valid zip file.
+     */
+    public static ApkIndex read(File file) throws IOException {
+        long lastModified = file.lastModified();
+        if (NativeBridge.isAvailable()) return readNative(file.getPath(), lastModified);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return read(file.getPath(), lastModified, randomAccessFile.getChannel());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static ApkIndex read(String path, long lastModified, FileChannel channel) throws IOException {
+        long fileLength = channel.size();
+        if (fileLength < EOCD_SIZE) throw new ZipException("File too short to be a zip file: length=" + fileLength);
+
+        // find end of central directory record (it's followed by comment up to 64Kb)
+        int tailLength = (int) Math.min(fileLength, EOCD_SIZE + MAX_COMMENT_SIZE);
+        long tailOffset = fileLength - tailLength;
+        ByteBuffer tail = readFully(channel, tailOffset, tailLength);
+        int eocdPosition = -1;
+        for (int i = tailLength - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xFFFF) == tailLength) {
+                eocdPosition = i;
+                break;
+            }
+        }
+        if (eocdPosition < 0) throw new ZipException("End of central directory record not found.");
+        long eocdOffset = tailOffset + eocdPosition;
+
+        long entryCount = tail.getShort(eocdPosition + 10) & 0xFFFF;
+        long cdSize = tail.getInt(eocdPosition + 12) & UINT32_MASK;
+        long cdOffset = tail.getInt(eocdPosition + 16) & UINT32_MASK;
+        long cdEnd = eocdOffset;
+
+        if (entryCount == 0xFFFF || cdSize == UINT32_MASK || cdOffset == UINT32_MASK) {
+            // zip64 end of central directory locator is placed right before end of central directory record
+            if (eocdOffset >= ZIP64_EOCD_LOCATOR_SIZE) {
+                ByteBuffer locator = readFully(channel, eocdOffset - ZIP64_EOCD_LOCATOR_SIZE, ZIP64_EOCD_LOCATOR_SIZE);
+                if (locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                    long zip64EocdOffset = locator.getLong(8);
+                    if (zip64EocdOffset < 0 || zip64EocdOffset > eocdOffset - ZIP64_EOCD_LOCATOR_SIZE - ZIP64_EOCD_SIZE)
+                        throw new ZipException("Bad zip64 end of central directory offset: " + zip64EocdOffset);
+                    ByteBuffer zip64Eocd = readFully(channel, zip64EocdOffset, ZIP64_EOCD_SIZE);
+                    if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE)
+                        throw new ZipException("Zip64 end of central directory record not found.");
+                    entryCount = zip64Eocd.getLong(32);
+                    cdSize = zip64Eocd.getLong(40);
+                    cdOffset = zip64Eocd.getLong(48);
+                    cdEnd = zip64EocdOffset;
+                }
+            }
+        }
+
+        if (cdOffset < 0 || cdSize < 0 || cdOffset > cdEnd || cdSize > cdEnd - cdOffset)
+            throw new ZipException("Bad central directory: offset=" + cdOffset + " size=" + cdSize + " fileLength=" + fileLength);
+        if (cdSize > Integer.MAX_VALUE)
+            throw new ZipException("Central directory too large: size=" + cdSize);
+        if (entryCount < 0 || entryCount > cdSize / CENTRAL_HEADER_SIZE)
+            throw new ZipException("Bad entry count: " + entryCount + " for central directory size=" + cdSize);
+
+        ByteBuffer cd = channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize).order(ByteOrder.LITTLE_ENDIAN);
+        CheckCounters.addBytesRead(cdSize);
+
+        int count = (int) entryCount;
+        String[] names = new String[count];
+        int[] crcs = new int[count];
+        int[] methods = new int[count];
+        long[] compressedSizes = new long[count];
+        long[] sizes = new long[count];
+        long[] localHeaderOffsets = new long[count];
+        byte[] nameBytes = new byte[256];
+
+        int position = 0;
+        int limit = cd.limit();
+        for (int i = 0; i < count; i++) {
+            if (limit - position < CENTRAL_HEADER_SIZE || cd.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+                throw new ZipException("Bad central directory header of entry #" + i + " at offset " + (cdOffset + position));
+            int method = cd.getShort(position + 10) & 0xFFFF;
+            int crc = cd.getInt(position + 16);
+            long compressedSize = cd.getInt(position + 20) & UINT32_MASK;
+            long size = cd.getInt(position + 24) & UINT32_MASK;
+            int nameLength = cd.getShort(position + 28) & 0xFFFF;
+            int extraLength = cd.getShort(position + 30) & 0xFFFF;
+            int commentLength = cd.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = cd.getInt(position + 42) & UINT32_MASK;
+            int nameOffset = position + CENTRAL_HEADER_SIZE;
+            int extraOffset = nameOffset + nameLength;
+            int next = extraOffset + extraLength + commentLength;
+            if (next > limit)
+                throw new ZipException("Central directory header of entry #" + i + " overflows central directory.");
+
+            if (nameBytes.length < nameLength) nameBytes = new byte[nameLength];
+            cd.position(nameOffset);
+            cd.get(nameBytes, 0, nameLength);
+            names[i] = new String(nameBytes, 0, nameLength, UTF_8);
+
+            if (size == UINT32_MASK || compressedSize == UINT32_MASK || localHeaderOffset == UINT32_MASK) {
+                // values are placed in zip64 extra field (only values which are 0xFFFFFFFF in header, in this order)
+                int extra = extraOffset;
+                int extraEnd = extraOffset + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = cd.getShort(extra) & 0xFFFF;
+                    int length = cd.getShort(extra + 2) & 0xFFFF;
+                    int data = extra + 4;
+                    if (data + length > extraEnd)
+                        throw new ZipException("Bad extra field of entry \"" + names[i] + "\".");
+                    if (id == ZIP64_EXTRA_ID) {
+                        int dataEnd = data + length;
+                        if (size == UINT32_MASK && data + 8 <= dataEnd) {
+                            size = cd.getLong(data);
+                            data += 8;
+                        }
+                        if (compressedSize == UINT32_MASK && data + 8 <= dataEnd) {
+                            compressedSize = cd.getLong(data);
+                            data += 8;
+                        }
+                        if (localHeaderOffset == UINT32_MASK && data + 8 <= dataEnd) {
+                            localHeaderOffset = cd.getLong(data);
+                        }
+                        break;
+                    }
+                    extra = data + length;
+                }
+            }
+            if (localHeaderOffset < 0 || localHeaderOffset > cdOffset)
+                throw new ZipException("Bad local header offset of entry \"" + names[i] + "\": " + localHeaderOffset);
+            if (compressedSize < 0 || size < 0)
+                throw new ZipException("Bad size of entry \"" + names[i] + "\".");
+
+            crcs[i] = crc;
+            methods[i] = method;
+            compressedSizes[i] = compressedSize;
+            sizes[i] = size;
+            localHeaderOffsets[i] = localHeaderOffset;
+            position = next;
+        }
+
+        return new ApkIndex(path, fileLength, lastModified, cdOffset, cdSize, eocdOffset,
+                names, crcs, methods, compressedSizes, sizes, localHeaderOffsets);
+    }
+
+    /**
+     * Same as {@link #read(String, long, FileChannel)}, but central directory is parsed by {@link NativeBridge}.
+     */
+    private static ApkIndex readNative(String path, long lastModified) throws IOException {
+        byte[][] nameBytes = new byte[1][];
+        long[] table = NativeBridge.readCentralDirectory(path, nameBytes);
+        int count = (int) table[4];
+        String[] names = new String[count];
+        int[] crcs = new int[count];
+        int[] methods = new int[count];
+        long[] compressedSizes = new long[count];
+        long[] sizes = new long[count];
+        long[] localHeaderOffsets = new long[count];
+        int nameOffset = 0;
+        for (int i = 0; i < count; i++) {
+            int entry = NativeBridge.TABLE_HEADER_SIZE + i * NativeBridge.TABLE_ENTRY_SIZE;
+            methods[i] = (int) table[entry];
+            crcs[i] = (int) table[entry + 1];
+            compressedSizes[i] = table[entry + 2];
+            sizes[i] = table[entry + 3];
+            localHeaderOffsets[i] = table[entry + 4];
+            int nameLength = (int) table[entry + 5];
+            names[i] = new String(nameBytes[0], nameOffset, nameLength, UTF_8);
+            nameOffset += nameLength;
+        }
+        return new ApkIndex(path, table[0], lastModified, table[1], table[2], table[3],
+                names, crcs, methods, compressedSizes, sizes, localHeaderOffsets);
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset + buffer.position());
+            if (read < 0) throw new ZipException("Unexpected end of file at offset " + (offset + buffer.position()));
+        }
+        buffer.flip();
+        CheckCounters.addBytesRead(length);
+        return buffer;
+    }
+
+    private static int[] buildNameTable(String[] names) throws ZipException {
+        int capacity = 16;
+        while (capacity < names.length * 2) capacity <<= 1;
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < names.length; i++) {
+            int slot = hash(names[i]) & mask;
+            while (table[slot] != 0) {
+                // duplicate entries are rejected same as android platform does (protection from "master key" attacks)
+                if (names[table[slot] - 1].equals(names[i]))
+                    throw new ZipException("Duplicate entry: \"" + names[i] + "\".");
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        return table;
+    }
+
+    /**
+     * Seeded FNV-1a hash of name (<code>String.hashCode()</code> collisions are easy to generate: 65536 names of zip
+     * with same hash make name table quadratic).
+     */
+    private static int hash(String name) {
+        int hash = NAME_HASH_SEED;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Reject entries which data overlap other entry or central directory. Valid zip never has them, but many central
+     * directory headers of one small deflated entry make each reader of all entries inflate it again ("overlapping" zip bomb).
+     */
+    private static void checkOverlaps(String[] names, long[] compressedSizes, final long[] localHeaderOffsets, long centralDirectoryOffset) throws ZipException {
+        Integer[] order = null;
+        for (int i = 1; i < localHeaderOffsets.length && order == null; i++) {
+            if (localHeaderOffsets[i] < localHeaderOffsets[i - 1]) {
+                // central directory of almost any apk is in order of data, so entries are sorted only for unusual zip
+                order = new Integer[localHeaderOffsets.length];
+                for (int j = 0; j < order.length; j++) {
+                    order[j] = j;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer left, Integer right) {
+                        long difference = localHeaderOffsets[left] - localHeaderOffsets[right];
+                        return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+                    }
+                });
+            }
+        }
+        long end = 0;
+        int previous = -1;
+        for (int j = 0; j < localHeaderOffsets.length; j++) {
+            int i = order == null ? j : order[j];
+            long offset = localHeaderOffsets[i];
+            if (offset < end)
+                throw new ZipException("Entry \"" + names[i] + "\" overlaps entry \"" + names[previous] + "\".");
+            if (compressedSizes[i] > centralDirectoryOffset - offset - LOCAL_HEADER_SIZE)
+                throw new ZipException("Data of entry \"" + names[i] + "\" overlaps central directory.");
+            end = offset + LOCAL_HEADER_SIZE + compressedSizes[i]; // name and extra field of local header are not counted
+            previous = i;
+        }
+    }
+
+    private int[] findDexEntries() {
+        int count = 0;
+        int[] entries = new int[8];
+        for (int i = 1; ; i++) {
+            int entry = indexOf(i == 1 ? "classes.dex" : "classes" + i + ".dex");
+            if (entry < 0) break;
+            if (count == entries.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(entries, 0, grown, 0, count);
+                entries = grown;
+            }
+            entries[count++] = entry;
+        }
+        int[] result = new int[count];
+        System.arraycopy(entries, 0, result, 0, count);
+        return result;
+    }
+
+    boolean isSameFile(File file) {
+        return path.equals(file.getPath()) && fileLength == file.length() && lastModified == file.lastModified();
+    }
+
+    /**
+     * Find entry by name.
+     *
+     * @param name - full name of entry. For example <code>"classes.dex"</code> or <code>"res/layout/activity_main.xml"</code>.
+     * @return - index of entry, or -1 if entry not found.
+     */
+    public int indexOf(String name) {
+        int mask = nameTable.length - 1;
+        int slot = hash(name) & mask;
+        int value;
+        while ((value = nameTable[slot]) != 0) {
+            if (names[value - 1].equals(name)) return value - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return - count of entries in apk.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int entry) {
+        return names[entry];
+    }
+
+    /**
+     * @return - CRC code of entry as stored in central directory (unsigned 32 bit value).
+     */
+    public long getCrc(int entry) {
+        return crcs[entry] & UINT32_MASK;
+    }
+
+    /**
+     * @return - compression method: {@link #METHOD_STORED} or {@link #METHOD_DEFLATED}.
+     */
+    public int getMethod(int entry) {
+        return methods[entry];
+    }
+
+    public long getCompressedSize(int entry) {
+        return compressedSizes[entry];
+    }
+
+    public long getSize(int entry) {
+        return sizes[entry];
+    }
+
+    public long getLocalHeaderOffset(int entry) {
+        return localHeaderOffsets[entry];
+    }
+
+    /**
+     * Sum of CRC codes of all <code>classes.dex, classes2.dex, ... classesN.dex</code> entries.
+     */
+    public long getDexCrc() {
+        long crc = 0;
+        for (int entry : dexEntries) {
+            crc += getCrc(entry);
+        }
+        return crc;
+    }
+
+    /**
+     * @return - indexes of entries <code>classes.dex, classes2.dex, ... classesN.dex</code> in order.
+     */
+    public int[] getDexEntries() {
+        return dexEntries.clone();
+    }
+
+    /**
+     * Sum of CRC codes of all entries in apk.
+     */
+    public long getTotalCrc() {
+        long crc = 0;
+        for (int i = 0; i < crcs.length; i++) {
+            crc += getCrc(i);
+        }
+        return crc;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getCentralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    public long getCentralDirectorySize() {
+        return centralDirectorySize;
+    }
+
+    /**
+     * @return - offset of end of central directory record.
+     */
+    public long getEocdOffset() {
+        return eocdOffset;
+    }
+}
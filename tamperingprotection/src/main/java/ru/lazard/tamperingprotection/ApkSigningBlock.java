@@ -0,0 +1,159 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Parser of APK Signing Block (APK Signature Scheme v2 and v3), which is placed right before zip central directory.<br>
+ * Signer certificates are read directly from apk file (by memory-mapped buffer), without PackageManager call,
+ * so hooking of PackageManager doesn't affect them.<br>
+ * <b>Note:</b> parser don't verify signatures of signers and digests of apk content. Android verifies them on install only
+ * for schemes it supports: v2 since API 24, v3 since API 28. On older devices block isn't checked at all, so apk re-signed
+ * by v1 scheme with unsigned block copied from original apk gives certificates of original signer. Apps signed only by
+ * v1 scheme (jar signing) have no signing block.
+ */
+public final class ApkSigningBlock {
+
+    /**
+     * Id of APK Signature Scheme v2 block.
+     */
+    public static final int SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    /**
+     * Id of APK Signature Scheme v3 block.
+     */
+    public static final int SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0;
+
+    private static final long MAGIC_LO = 0x20676953204b5041L; // "APK Sig "
+    private static final long MAGIC_HI = 0x3234206b636f6c42L; // "Block 42"
+    private static final int FOOTER_SIZE = 24;
+    private static final int MIN_BLOCK_SIZE = 32;
+
+    private final int schemeVersion;
+    private final byte[][] certificates;
+
+    private ApkSigningBlock(int schemeVersion, byte[][] certificates) {
+        this.schemeVersion = schemeVersion;
+        this.certificates = certificates;
+    }
+
+    /**
+     * Read signer certificates from APK Signing Block. v3 block is used if present, else v2 block.
+     *
+     * @param index - index of apk (for offset of central directory).
+     * @return - parsed signing block, or null if apk has no v2/v3 signing block.
+     * @throws ZipException - if signing block is broken.
+     */
+    public static ApkSigningBlock read(ApkIndex index) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(index.getPath()), "r");
+        try {
+            return read(file.getChannel(), index.getCentralDirectoryOffset());
+        } finally {
+            file.close();
+        }
+    }
+
+    static ApkSigningBlock read(FileChannel channel, long centralDirectoryOffset) throws IOException {
+        if (centralDirectoryOffset < MIN_BLOCK_SIZE) return null;
+        ByteBuffer footer = ApkIndex.readFully(channel, centralDirectoryOffset - FOOTER_SIZE, FOOTER_SIZE);
+        if (footer.getLong(8) != MAGIC_LO || footer.getLong(16) != MAGIC_HI) return null;
+        long blockSize = footer.getLong(0); // size of block without first size field
+        if (blockSize < FOOTER_SIZE || blockSize > Integer.MAX_VALUE - 8 || blockSize + 8 > centralDirectoryOffset)
+            throw new ZipException("Bad APK Signing Block size: " + blockSize);
+        long blockOffset = centralDirectoryOffset - blockSize - 8;
+        ByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, blockOffset, blockSize + 8).order(ByteOrder.LITTLE_ENDIAN);
+        CheckCounters.addBytesRead(blockSize + 8);
+        if (block.getLong(0) != blockSize)
+            throw new ZipException("APK Signing Block sizes in header and footer are different.");
+
+        ByteBuffer pairs = slice(block, 8, (int) blockSize - FOOTER_SIZE);
+        ByteBuffer v2 = null;
+        ByteBuffer v3 = null;
+        try {
+            while (pairs.hasRemaining()) {
+                long pairLength = pairs.getLong();
+                if (pairLength < 4 || pairLength > pairs.remaining())
+                    throw new ZipException("Bad APK Signing Block entry length: " + pairLength);
+                int id = pairs.getInt();
+                ByteBuffer value = slice(pairs, pairs.position(), (int) pairLength - 4);
+                pairs.position(pairs.position() + (int) pairLength - 4);
+                if (id == SIGNATURE_SCHEME_V2_BLOCK_ID) v2 = value;
+                if (id == SIGNATURE_SCHEME_V3_BLOCK_ID) v3 = value;
+            }
+            if (v3 != null) return new ApkSigningBlock(3, readCertificates(v3, 3));
+            if (v2 != null) return new ApkSigningBlock(2, readCertificates(v2, 2));
+            return null;
+        } catch (BufferUnderflowException exception) {
+            ZipException zipException = new ZipException("Broken APK Signing Block.");
+            zipException.initCause(exception);
+            throw zipException;
+        }
+    }
+
+    /**
+     * Read first certificate of each signer.<br>
+     * v2 signer: signed data (digests, certificates, attributes), signatures, public key.<br>
+     * v3 signer: signed data (digests, certificates, min sdk, max sdk, attributes), min sdk, max sdk, signatures, public key.
+     */
+    private static byte[][] readCertificates(ByteBuffer schemeBlock, int version) throws ZipException {
+        ByteBuffer signers = lengthPrefixed(schemeBlock);
+        List<byte[]> certificates = new ArrayList<byte[]>();
+        while (signers.hasRemaining()) {
+            ByteBuffer signer = lengthPrefixed(signers);
+            ByteBuffer signedData = lengthPrefixed(signer);
+            lengthPrefixed(signedData); // digests
+            ByteBuffer signerCertificates = lengthPrefixed(signedData);
+            if (!signerCertificates.hasRemaining())
+                throw new ZipException("Signer of APK Signature Scheme v" + version + " has no certificates.");
+            ByteBuffer certificate = lengthPrefixed(signerCertificates);
+            byte[] bytes = new byte[certificate.remaining()];
+            certificate.get(bytes);
+            certificates.add(bytes);
+        }
+        if (certificates.isEmpty()) throw new ZipException("No signers in APK Signature Scheme v" + version + " block.");
+        return certificates.toArray(new byte[certificates.size()][]);
+    }
+
+    private static ByteBuffer lengthPrefixed(ByteBuffer buffer) throws ZipException {
+        if (buffer.remaining() < 4) throw new ZipException("Broken APK Signing Block: no length prefix.");
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new ZipException("Broken APK Signing Block: length " + length + " out of " + buffer.remaining() + " bytes.");
+        ByteBuffer value = slice(buffer, buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(offset + length);
+        duplicate.position(offset);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return - version of signature scheme which certificates are taken from: 2 or 3.
+     */
+    public int getSchemeVersion() {
+        return schemeVersion;
+    }
+
+    /**
+     * @return - encoded X.509 certificates, first certificate of each signer
+     * (same bytes as <code>Signature.toByteArray()</code> returns for the signer).
+     */
+    public byte[][] getCertificates() {
+        byte[][] copy = new byte[certificates.length][];
+        for (int i = 0; i < certificates.length; i++) {
+            copy[i] = certificates[i].clone();
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,107 @@
+package ru.lazard.tamperingprotection;
+
+import java.lang.reflect.Method;
+
+/**
+ * Counters of work made by check which is running on current thread (bytes read from apk, <code>PackageManager</code> calls).<br>
+ * Counting is enabled only while some check is measured ({@link #begin()}), otherwise {@link #addBytesRead(long)}
+ * and {@link #addIpcCall()} cost one volatile read.
+ */
+final class CheckCounters {
+
+    private static final ThreadLocal<CheckCounters> CURRENT = new ThreadLocal<CheckCounters>();
+    private static final Object LOCK = new Object();
+    private static volatile int activeCount;
+    private static Object threadMXBean;
+    private static Method allocatedBytesMethod;
+    private static boolean isAllocationLookupDone;
+
+    private final CheckCounters previous;
+    private final long allocatedAtStart;
+    private long bytesRead;
+    private int ipcCalls;
+
+    private CheckCounters(CheckCounters previous) {
+        this.previous = previous;
+        this.allocatedAtStart = getThreadAllocatedBytes();
+    }
+
+    /**
+     * Start counting on current thread. Must be followed by {@link #end()} on same thread.
+     */
+    static CheckCounters begin() {
+        synchronized (LOCK) {
+            activeCount++;
+        }
+        CheckCounters counters = new CheckCounters(CURRENT.get());
+        CURRENT.set(counters);
+        return counters;
+    }
+
+    void end() {
+        if (previous == null) CURRENT.remove();
+        else CURRENT.set(previous);
+        synchronized (LOCK) {
+            activeCount--;
+        }
+    }
+
+    static void addBytesRead(long bytes) {
+        if (activeCount == 0) return;
+        CheckCounters counters = CURRENT.get();
+        if (counters != null) counters.bytesRead += bytes;
+    }
+
+    static void addIpcCall() {
+        if (activeCount == 0) return;
+        CheckCounters counters = CURRENT.get();
+        if (counters != null) counters.ipcCalls++;
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    int getIpcCalls() {
+        return ipcCalls;
+    }
+
+    /**
+     * @return - bytes allocated by current thread since {@link #begin()}, or -1 if platform can't measure it.
+     */
+    long getAllocatedBytes() {
+        if (allocatedAtStart < 0) return -1;
+        long allocated = getThreadAllocatedBytes();
+        return allocated < 0 ? -1 : allocated - allocatedAtStart;
+    }
+
+    /**
+     * Allocated bytes of current thread by <code>com.sun.management.ThreadMXBean</code> (desktop JVM only, taken by reflection
+     * because <code>java.lang.management</code> is absent on Android).
+     */
+    private static long getThreadAllocatedBytes() {
+        Method method;
+        Object bean;
+        synchronized (LOCK) {
+            if (!isAllocationLookupDone) {
+                isAllocationLookupDone = true;
+                try {
+                    Object candidate = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+                    Method candidateMethod = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+                    threadMXBean = candidate;
+                    allocatedBytesMethod = candidateMethod;
+                } catch (Exception e) {
+                    // not supported, allocations are not measured
+                }
+            }
+            method = allocatedBytesMethod;
+            bean = threadMXBean;
+        }
+        if (method == null) return -1;
+        try {
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Digest which calculates SHA-256 of whole content and (truncated) SHA-256 of each chunk of fixed size in one pass,
+ * so {@link EntryDigester} feeds both digests of {@link IntegrityManifest} by one read of entry.<br>
+ * {@link #digest()} returns digest of whole content, chunk digests of same content are taken by {@link #getChunkDigests()}
+ * (valid until next update). Not thread safe.
+ */
+final class ChunkedDigest extends MessageDigest {
+
+    private final MessageDigest content;
+    private final MessageDigest chunk;
+    private final int chunkSize;
+    private final int chunkDigestSize;
+    private final ByteArrayOutputStream chunkDigests = new ByteArrayOutputStream();
+    private int chunkFilled;
+    private long length;
+    private boolean finished;
+
+    /**
+     * @param content         - digest of whole content.
+     * @param chunk           - digest of chunks.
+     * @param chunkSize       - size of chunk (last chunk of content can be shorter).
+     * @param chunkDigestSize - count of first bytes of chunk digest to keep.
+     */
+    ChunkedDigest(MessageDigest content, MessageDigest chunk, int chunkSize, int chunkDigestSize) {
+        super(content.getAlgorithm());
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize=" + chunkSize);
+        this.content = content;
+        this.chunk = chunk;
+        this.chunkSize = chunkSize;
+        this.chunkDigestSize = chunkDigestSize;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[]{input}, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        if (finished) {
+            chunkDigests.reset();
+            this.length = 0;
+            finished = false;
+        }
+        content.update(input, offset, length);
+        this.length += length;
+        while (length > 0) {
+            int part = Math.min(length, chunkSize - chunkFilled);
+            chunk.update(input, offset, part);
+            chunkFilled += part;
+            offset += part;
+            length -= part;
+            if (chunkFilled == chunkSize) finishChunk();
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        if (finished) {
+            chunkDigests.reset();
+            length = 0;
+        }
+        if (chunkFilled > 0) finishChunk();
+        finished = true;
+        return content.digest();
+    }
+
+    @Override
+    protected void engineReset() {
+        content.reset();
+        chunk.reset();
+        chunkDigests.reset();
+        chunkFilled = 0;
+        length = 0;
+        finished = false;
+    }
+
+    /**
+     * @return - truncated digests of all chunks of last digested content (empty content has no chunks).
+     */
+    byte[] getChunkDigests() {
+        return chunkDigests.toByteArray();
+    }
+
+    /**
+     * @return - length of last digested content.
+     */
+    long getLength() {
+        return length;
+    }
+
+    private void finishChunk() {
+        chunkDigests.write(chunk.digest(), 0, chunkDigestSize);
+        chunkFilled = 0;
+    }
+}
@@ -0,0 +1,128 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digest of real content of <code>classes.dex, classes2.dex ... classesN.dex</code>.<br>
+ * Unlike dex CRC (which is just stored in zip central directory and can be forged without any calculation),
+ * digest is calculated from entry bytes. Digest is SHA-256 of all dex files concatenated in order, so it's same as:<br>
+ * <code>cat classes.dex classes2.dex ... classesN.dex | sha256sum</code><br><br>
+ * Calculation can be done at once ({@link #digest(ApkIndex)}) or step by step with bytes budget per step
+ * ({@link #step(long)}), for example from idle handler, so it fits startup latency target.<br>
+ * <b>Note:</b> not thread safe.
+ */
+public final class DexDigester implements Closeable {
+
+    private final ApkIndex index;
+    private final int[] dexEntries;
+    private final MessageDigest digest;
+    private EntryDigester entryDigester;
+    private int current = -1;
+    private byte[] result;
+    private long bytesHashed;
+    private long elapsedNanos;
+
+    public DexDigester(ApkIndex index) throws NoSuchAlgorithmException {
+        this.index = index;
+        this.dexEntries = index.getDexEntries();
+        this.digest = MessageDigest.getInstance("SHA-256");
+    }
+
+    /**
+     * Calculate digest of all dex files at once.
+     *
+     * @return - lowercase hex SHA-256 digest.
+     */
+    public static String digest(ApkIndex index) throws IOException, NoSuchAlgorithmException {
+        DexDigester digester = new DexDigester(index);
+        try {
+            digester.step(Long.MAX_VALUE);
+            return digester.getDigestHex();
+        } finally {
+            digester.close();
+        }
+    }
+
+    /**
+     * Hash next part of dex files.
+     *
+     * @param byteBudget - max count of (uncompressed) bytes to hash in this step.
+     * @return - true if digest is complete.
+     */
+    public boolean step(long byteBudget) throws IOException {
+        if (result != null) return true;
+        long start = System.nanoTime();
+        try {
+            if (entryDigester == null) entryDigester = new EntryDigester(index);
+            long budget = byteBudget;
+            while (budget > 0) {
+                if (current < 0 || entryDigester.isEntryFinished()) {
+                    if (current + 1 >= dexEntries.length) {
+                        result = digest.digest();
+                        close();
+                        return true;
+                    }
+                    current++;
+                    entryDigester.begin(dexEntries[current]);
+                }
+                long hashed = entryDigester.update(digest, budget);
+                bytesHashed += hashed;
+                budget -= hashed;
+            }
+            return false;
+        } finally {
+            elapsedNanos += System.nanoTime() - start;
+        }
+    }
+
+    public boolean isComplete() {
+        return result != null;
+    }
+
+    /**
+     * @return - SHA-256 digest, or null if not complete.
+     */
+    public byte[] getDigest() {
+        return result == null ? null : result.clone();
+    }
+
+    /**
+     * @return - lowercase hex SHA-256 digest, or null if not complete.
+     */
+    public String getDigestHex() {
+        return result == null ? null : Hex.toHex(result);
+    }
+
+    /**
+     * @return - count of hashed (uncompressed) bytes.
+     */
+    public long getBytesHashed() {
+        return bytesHashed;
+    }
+
+    /**
+     * @return - total time spent in {@link #step(long)}.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return - hashing throughput in MB/s.
+     */
+    public double getThroughputMBps() {
+        if (elapsedNanos <= 0) return 0;
+        return (bytesHashed / (1024.0 * 1024.0)) / (elapsedNanos / 1e9);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (entryDigester != null) {
+            entryDigester.close();
+            entryDigester = null;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Emulator detection by table of {@link EmulatorRule}s (signatures of emulators are data, not code).<br>
+ * Rules are compiled once: <code>equals</code> rules to hash map per device property, all <code>contains</code> rules
+ * to single {@link MultiPatternMatcher}. So evaluation cost don't grow with count of rules: one hash lookup
+ * and one pass over bytes of each property.<br>
+ * Score of device is sum of scores of properties. Score of property is max weight of matched rules of this property
+ * (many matched signatures in same property are counted once). Device is emulator if score &gt;= threshold.<br>
+ * Last result is kept: device properties don't change while process is alive, so on device rules are evaluated once per process.<br>
+ * Thread safe.
+ */
+public final class EmulatorDetector {
+
+    /**
+     * Default threshold: 5 of 7 properties look like emulator.
+     */
+    public static final int DEFAULT_THRESHOLD = 5;
+
+    /**
+     * Default rules. First rules are received from this project: https://github.com/gingo/android-emulator-detector ,
+     * next are values of Android Studio (ranchu) and Genymotion images.
+     */
+    static final String[] DEFAULT_RULES = {
+            "PRODUCT equals 1 sdk",
+            "PRODUCT equals 1 google_sdk",
+            "PRODUCT equals 1 sdk_x86",
+            "PRODUCT equals 1 vbox86p",
+            "MANUFACTURER equals 1 unknown",
+            "MANUFACTURER equals 1 Genymotion",
+            "BRAND equals 1 generic",
+            "BRAND equals 1 generic_x86",
+            "DEVICE equals 1 generic",
+            "DEVICE equals 1 generic_x86",
+            "DEVICE equals 1 vbox86p",
+            "MODEL equals 1 sdk",
+            "MODEL equals 1 google_sdk",
+            "MODEL equals 1 Android SDK built for x86",
+            "HARDWARE equals 1 goldfish",
+            "HARDWARE equals 1 vbox86",
+            "FINGERPRINT contains 1 generic/sdk/generic",
+            "FINGERPRINT contains 1 generic_x86/sdk_x86/generic_x86",
+            "FINGERPRINT contains 1 generic/google_sdk/generic",
+            "FINGERPRINT contains 1 generic/vbox86p/vbox86p",
+
+            "PRODUCT equals 1 sdk_x86_64",
+            "PRODUCT equals 1 sdk_google",
+            "PRODUCT equals 1 sdk_gphone_x86",
+            "PRODUCT equals 1 sdk_gphone_x86_64",
+            "PRODUCT equals 1 sdk_gphone64_x86_64",
+            "PRODUCT equals 1 sdk_gphone64_arm64",
+            "PRODUCT equals 1 vbox86tp",
+            "BRAND equals 1 generic_x86_64",
+            "DEVICE equals 1 generic_x86_64",
+            "DEVICE equals 1 generic_arm64",
+            "DEVICE equals 1 emulator64_x86_64",
+            "DEVICE equals 1 emu64xa",
+            "DEVICE equals 1 emu64a",
+            "DEVICE equals 1 vbox86tp",
+            "MODEL equals 1 Android SDK built for x86_64",
+            "MODEL equals 1 Android SDK built for arm64",
+            "MODEL equals 1 sdk_gphone_x86",
+            "MODEL equals 1 sdk_gphone_x86_64",
+            "MODEL equals 1 sdk_gphone64_x86_64",
+            "MODEL equals 1 sdk_gphone64_arm64",
+            "HARDWARE equals 1 ranchu",
+            "FINGERPRINT contains 1 generic_x86_64/sdk_x86_64/",
+            "FINGERPRINT contains 1 /sdk_gphone",
+            "FINGERPRINT contains 1 /vbox86tp/",
+    };
+
+    private static volatile EmulatorDetector defaultDetector;
+
+    private final EmulatorRule[] rules;
+    private final int threshold;
+    private final List<HashMap<String, Integer>> equalsRules = new ArrayList<HashMap<String, Integer>>(EnvironmentProbe.PROPERTY_COUNT);
+    private final int[] containsRules; // pattern id -> rule index
+    private final boolean[] hasContainsRules = new boolean[EnvironmentProbe.PROPERTY_COUNT];
+    private final MultiPatternMatcher matcher;
+    private volatile Evaluation lastEvaluation;
+
+    /**
+     * Compile rules.
+     *
+     * @param rules     - rules (order of rules is order in score breakdown).
+     * @param threshold - min score of emulator.
+     */
+    public EmulatorDetector(List<EmulatorRule> rules, int threshold) {
+        this.rules = rules.toArray(new EmulatorRule[rules.size()]);
+        this.threshold = threshold;
+        for (int i = 0; i < EnvironmentProbe.PROPERTY_COUNT; i++) {
+            equalsRules.add(new HashMap<String, Integer>());
+        }
+        List<byte[]> patterns = new ArrayList<byte[]>();
+        int[] containsRules = new int[this.rules.length];
+        for (int i = 0; i < this.rules.length; i++) {
+            EmulatorRule rule = this.rules[i];
+            if (rule.getMatch() == EmulatorRule.MATCH_EQUALS) {
+                HashMap<String, Integer> values = equalsRules.get(rule.getProperty());
+                Integer previous = values.get(rule.getValue());
+                if (previous == null || this.rules[previous].getWeight() < rule.getWeight()) values.put(rule.getValue(), i);
+            } else {
+                containsRules[patterns.size()] = i;
+                patterns.add(utf8(rule.getValue()));
+                hasContainsRules[rule.getProperty()] = true;
+            }
+        }
+        this.containsRules = Arrays.copyOf(containsRules, patterns.size());
+        this.matcher = MultiPatternMatcher.compile(patterns.toArray(new byte[patterns.size()][]));
+    }
+
+    /**
+     * Compile rules from text form (see {@link EmulatorRule}). Empty lines and lines started with '#' are skipped.
+     *
+     * @throws IllegalArgumentException - if any line is not valid rule.
+     */
+    public static EmulatorDetector parse(int threshold, String... lines) {
+        List<EmulatorRule> rules = new ArrayList<EmulatorRule>(lines.length);
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.length() == 0 || trimmed.startsWith("#")) continue;
+            rules.add(EmulatorRule.parse(trimmed));
+        }
+        return new EmulatorDetector(rules, threshold);
+    }
+
+    /**
+     * @return - detector with {@link #DEFAULT_RULES} and {@link #DEFAULT_THRESHOLD} (compiled once per process).
+     */
+    public static EmulatorDetector getDefault() {
+        EmulatorDetector detector = defaultDetector;
+        if (detector == null) {
+            detector = parse(DEFAULT_THRESHOLD, DEFAULT_RULES);
+            defaultDetector = detector;
+        }
+        return detector;
+    }
+
+    /**
+     * Evaluate device described by probe.
+     */
+    public Result evaluate(EnvironmentProbe probe) {
+        String[] properties = new String[EnvironmentProbe.PROPERTY_COUNT];
+        for (int i = 0; i < properties.length; i++) {
+            properties[i] = probe.getDeviceProperty(i);
+        }
+        return evaluate(properties);
+    }
+
+    /**
+     * Evaluate device. If properties are same as on previous call then previous result is returned.
+     *
+     * @param properties - device properties indexed by <code>EnvironmentProbe.PROPERTY_*</code> constants.
+     */
+    public Result evaluate(String[] properties) {
+        Evaluation last = lastEvaluation;
+        if (last != null && Arrays.equals(last.properties, properties)) return last.result;
+        Result result = compute(properties);
+        lastEvaluation = new Evaluation(properties.clone(), result);
+        return result;
+    }
+
+    /**
+     * Evaluate device without reuse of previous result.
+     */
+    Result compute(String[] properties) {
+        int[] matchedRules = new int[EnvironmentProbe.PROPERTY_COUNT]; // best matched rule of property
+        Arrays.fill(matchedRules, -1);
+        boolean[] found = new boolean[matcher.getPatternCount()];
+        for (int property = 0; property < EnvironmentProbe.PROPERTY_COUNT; property++) {
+            String value = properties[property];
+            if (value == null) continue;
+            Integer rule = equalsRules.get(property).get(value);
+            if (rule != null) matchedRules[property] = rule;
+            if (!hasContainsRules[property]) continue;
+            Arrays.fill(found, false);
+            byte[] bytes = utf8(value);
+            matcher.scan(MultiPatternMatcher.INITIAL_STATE, bytes, 0, bytes.length, found);
+            for (int pattern = 0; pattern < found.length; pattern++) {
+                if (!found[pattern]) continue;
+                int candidate = containsRules[pattern];
+                if (rules[candidate].getProperty() != property) continue;
+                if (matchedRules[property] < 0 || rules[matchedRules[property]].getWeight() < rules[candidate].getWeight())
+                    matchedRules[property] = candidate;
+            }
+        }
+        int score = 0;
+        List<EmulatorRule> matched = new ArrayList<EmulatorRule>();
+        int[] propertyScores = new int[EnvironmentProbe.PROPERTY_COUNT];
+        for (int property = 0; property < EnvironmentProbe.PROPERTY_COUNT; property++) {
+            if (matchedRules[property] < 0) continue;
+            EmulatorRule rule = rules[matchedRules[property]];
+            propertyScores[property] = rule.getWeight();
+            score += rule.getWeight();
+            matched.add(rule);
+        }
+        return new Result(score, threshold, propertyScores, matched);
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return - count of rules.
+     */
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException exception) {
+            throw new IllegalStateException(exception); // UTF-8 is always supported
+        }
+    }
+
+    private static final class Evaluation {
+        private final String[] properties;
+        private final Result result;
+
+        private Evaluation(String[] properties, Result result) {
+            this.properties = properties;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Result of emulator detection with score breakdown.
+     */
+    public static final class Result {
+        private final int score;
+        private final int threshold;
+        private final int[] propertyScores;
+        private final List<EmulatorRule> matchedRules;
+
+        Result(int score, int threshold, int[] propertyScores, List<EmulatorRule> matchedRules) {
+            this.score = score;
+            this.threshold = threshold;
+            this.propertyScores = propertyScores;
+            this.matchedRules = Collections.unmodifiableList(matchedRules);
+        }
+
+        public boolean isEmulator() {
+            return score >= threshold;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        public int getThreshold() {
+            return threshold;
+        }
+
+        /**
+         * @param property - one of <code>EnvironmentProbe.PROPERTY_*</code> constants.
+         * @return - score of property (weight of best matched rule, or 0).
+         */
+        public int getPropertyScore(int property) {
+            return propertyScores[property];
+        }
+
+        /**
+         * @return - best matched rule of each property (in order of properties).
+         */
+        public List<EmulatorRule> getMatchedRules() {
+            return matchedRules;
+        }
+
+        /**
+         * @return - score breakdown, like <code>"score=6 threshold=5 [PRODUCT equals 1 sdk_x86, ...]"</code>.
+         */
+        @Override
+        public String toString() {
+            return "score=" + score + " threshold=" + threshold + " " + matchedRules;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.lazard.tamperingprotection;
+
+/**
+ * One emulator signature: device property, match type, weight and value.<br>
+ * Text form (used by {@link EmulatorDetector#parse(String...)}): <code>&lt;property&gt; &lt;match&gt; &lt;weight&gt; &lt;value&gt;</code>,
+ * for example <code>"FINGERPRINT contains 1 generic/sdk/generic"</code> or <code>"MODEL equals 1 Android SDK built for x86"</code>
+ * (value is the rest of line, it can contain spaces).
+ */
+public final class EmulatorRule {
+
+    /**
+     * Property equals to value (case sensitive).
+     */
+    public static final int MATCH_EQUALS = 0;
+    /**
+     * Property contains value (case sensitive).
+     */
+    public static final int MATCH_CONTAINS = 1;
+
+    static final String[] PROPERTY_NAMES = {"PRODUCT", "MANUFACTURER", "BRAND", "DEVICE", "MODEL", "HARDWARE", "FINGERPRINT"};
+    private static final String[] MATCH_NAMES = {"equals", "contains"};
+
+    private final int property;
+    private final int match;
+    private final int weight;
+    private final String value;
+
+    /**
+     * @param property - one of <code>EnvironmentProbe.PROPERTY_*</code> constants.
+     * @param match    - {@link #MATCH_EQUALS} or {@link #MATCH_CONTAINS}.
+     * @param weight   - score added when rule matched (not negative).
+     * @param value    - not empty value.
+     */
+    public EmulatorRule(int property, int match, int weight, String value) {
+        if (property < 0 || property >= EnvironmentProbe.PROPERTY_COUNT)
+            throw new IllegalArgumentException("Unknown device property: " + property);
+        if (match != MATCH_EQUALS && match != MATCH_CONTAINS)
+            throw new IllegalArgumentException("Unknown match type: " + match);
+        if (weight < 0) throw new IllegalArgumentException("Weight must not be negative: " + weight);
+        if (value == null || value.length() == 0) throw new IllegalArgumentException("Value must not be empty.");
+        this.property = property;
+        this.match = match;
+        this.weight = weight;
+        this.value = value;
+    }
+
+    /**
+     * Parse rule from text form.
+     *
+     * @throws IllegalArgumentException - if line is not valid rule.
+     */
+    public static EmulatorRule parse(String line) {
+        String[] parts = line.trim().split(" +", 4);
+        if (parts.length != 4) throw new IllegalArgumentException("Rule must be \"<property> <match> <weight> <value>\": \"" + line + "\".");
+        int property = indexOf(PROPERTY_NAMES, parts[0]);
+        int match = indexOf(MATCH_NAMES, parts[1]);
+        if (property < 0) throw new IllegalArgumentException("Unknown device property in rule: \"" + line + "\".");
+        if (match < 0) throw new IllegalArgumentException("Unknown match type in rule: \"" + line + "\".");
+        int weight;
+        try {
+            weight = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException exception) {
+            throw new IllegalArgumentException("Bad weight in rule: \"" + line + "\".", exception);
+        }
+        return new EmulatorRule(property, match, weight, parts[3]);
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    public int getProperty() {
+        return property;
+    }
+
+    public int getMatch() {
+        return match;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return - rule in text form.
+     */
+    @Override
+    public String toString() {
+        return PROPERTY_NAMES[property] + " " + MATCH_NAMES[match] + " " + weight + " " + value;
+    }
+}
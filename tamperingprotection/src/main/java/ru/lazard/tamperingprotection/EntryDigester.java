@@ -0,0 +1,317 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Stream content (uncompressed bytes) of apk entries into <code>MessageDigest</code> without loading entry into heap.<br>
+ * STORED entries are hashed through memory-mapped buffer, DEFLATED entries are read by positional
+ * <code>FileChannel.read</code> into reused direct buffer and inflated chunk by chunk.<br>
+ * Entry can be hashed at once ({@link #digest(int, MessageDigest)}) or incrementally with bytes budget
+ * ({@link #begin(int)} and {@link #update(MessageDigest, long)}).<br>
+ * <b>Note:</b> not thread safe, use one digester per thread.
+ */
+public final class EntryDigester implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    static final int MIN_MAPPED_SIZE = 64 * 1024;
+    private static final int MAX_MAPPED_SIZE = 64 * 1024 * 1024;
+
+    private final ApkIndex index;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(ApkIndex.LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private final Inflater inflater = new Inflater(true);
+    private long bytesRead;
+
+    private int entry = -1;
+    private long dataPosition;
+    private long dataEnd;
+    private long produced;
+
+    /**
+     * Open apk file of index for reading.
+     */
+    public EntryDigester(ApkIndex index) throws IOException {
+        this.index = index;
+        this.file = new RandomAccessFile(new File(index.getPath()), "r");
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Get offset of entry data (data is placed right after local file header).
+     *
+     * @param entry - index of entry in {@link ApkIndex}.
+     * @return - offset of first byte of (compressed) entry data in file.
+     * @throws ZipException - if local file header is broken or data is out of file.
+     */
+    public long getDataOffset(int entry) throws IOException {
+        long headerOffset = index.getLocalHeaderOffset(entry);
+        headerBuffer.clear();
+        while (headerBuffer.hasRemaining()) {
+            if (channel.read(headerBuffer, headerOffset + headerBuffer.position()) < 0)
+                throw new ZipException("Unexpected end of file in local header of \"" + index.getName(entry) + "\".");
+        }
+        bytesRead += ApkIndex.LOCAL_HEADER_SIZE;
+        CheckCounters.addBytesRead(ApkIndex.LOCAL_HEADER_SIZE);
+        if (headerBuffer.getInt(0) != ApkIndex.LOCAL_HEADER_SIGNATURE)
+            throw new ZipException("Bad local header signature of \"" + index.getName(entry) + "\".");
+        int nameLength = headerBuffer.getShort(26) & 0xFFFF;
+        int extraLength = headerBuffer.getShort(28) & 0xFFFF;
+        long dataOffset = headerOffset + ApkIndex.LOCAL_HEADER_SIZE + nameLength + extraLength;
+        if (dataOffset + index.getCompressedSize(entry) > index.getCentralDirectoryOffset())
+            throw new ZipException("Data of \"" + index.getName(entry) + "\" overlaps central directory.");
+        return dataOffset;
+    }
+
+    /**
+     * Hash whole content of entry.
+     *
+     * @param entry  - index of entry in {@link ApkIndex}.
+     * @param digest - digest for update by uncompressed entry content.
+     * @return - count of hashed (uncompressed) bytes.
+     */
+    public long digest(int entry, MessageDigest digest) throws IOException {
+        begin(entry);
+        long total = 0;
+        while (!isEntryFinished()) {
+            total += update(digest, Long.MAX_VALUE);
+        }
+        return total;
+    }
+
+    /**
+     * Start incremental hashing of entry. Continue it by {@link #update(MessageDigest, long)}.
+     *
+     * @param entry - index of entry in {@link ApkIndex}.
+     */
+    public void begin(int entry) throws IOException {
+        int method = index.getMethod(entry);
+        if (method != ApkIndex.METHOD_STORED && method != ApkIndex.METHOD_DEFLATED)
+            throw new ZipException("Unsupported compression method " + method + " of \"" + index.getName(entry) + "\".");
+        if (method == ApkIndex.METHOD_STORED && index.getCompressedSize(entry) != index.getSize(entry))
+            throw new ZipException("Stored entry \"" + index.getName(entry) + "\" has different compressed and uncompressed size.");
+        this.entry = -1;
+        this.dataPosition = getDataOffset(entry);
+        this.dataEnd = dataPosition + index.getCompressedSize(entry);
+        this.produced = 0;
+        this.entry = entry;
+        inflater.reset();
+    }
+
+    /**
+     * Hash next part of entry started by {@link #begin(int)}.
+     *
+     * @param digest   - digest for update by uncompressed entry content.
+     * @param maxBytes - max count of uncompressed bytes to hash in this call.
+     * @return - count of hashed (uncompressed) bytes.
+     */
+    public long update(MessageDigest digest, long maxBytes) throws IOException {
+        if (entry < 0) throw new IllegalStateException("Entry not started.");
+        if (isEntryFinished()) return 0;
+        long hashed = index.getMethod(entry) == ApkIndex.METHOD_STORED ? updateStored(digest, maxBytes) : updateDeflated(digest, maxBytes);
+        produced += hashed;
+        return hashed;
+    }
+
+    /**
+     * Skip next part of entry started by {@link #begin(int)} without hashing. STORED entry is skipped without reading,
+     * DEFLATED entry is inflated (deflate stream has no random access).
+     *
+     * @param bytes - count of uncompressed bytes to skip.
+     * @return - count of skipped (uncompressed) bytes, less than <code>bytes</code> only at end of entry.
+     */
+    public long skip(long bytes) throws IOException {
+        if (entry < 0) throw new IllegalStateException("Entry not started.");
+        if (isEntryFinished() || bytes <= 0) return 0;
+        long skipped;
+        if (index.getMethod(entry) == ApkIndex.METHOD_STORED) {
+            skipped = Math.min(bytes, dataEnd - dataPosition);
+            dataPosition += skipped;
+        } else {
+            skipped = 0;
+            try {
+                while (skipped < bytes && !inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (dataPosition >= dataEnd)
+                            throw new ZipException("Unexpected end of deflated data of \"" + index.getName(entry) + "\".");
+                        int chunk = readChunk(dataEnd - dataPosition);
+                        readBuffer.get(input, 0, chunk);
+                        inflater.setInput(input, 0, chunk);
+                    }
+                    int inflated = inflater.inflate(output, 0, (int) Math.min(output.length, bytes - skipped));
+                    if (inflated == 0 && (inflater.needsDictionary() || (!inflater.finished() && !inflater.needsInput())))
+                        throw new ZipException("Broken deflated data of \"" + index.getName(entry) + "\".");
+                    skipped += inflated;
+                    if (produced + skipped > index.getSize(entry))
+                        throw new ZipException("Content of \"" + index.getName(entry) + "\" is longer than declared size " + index.getSize(entry) + ".");
+                }
+            } catch (DataFormatException exception) {
+                ZipException zipException = new ZipException("Broken deflated data of \"" + index.getName(entry) + "\": " + exception.getMessage());
+                zipException.initCause(exception);
+                throw zipException;
+            }
+        }
+        produced += skipped;
+        return skipped;
+    }
+
+    /**
+     * @return - true if whole content of current entry is hashed.
+     */
+    public boolean isEntryFinished() {
+        if (entry < 0) return true;
+        if (index.getMethod(entry) == ApkIndex.METHOD_STORED) return dataPosition >= dataEnd;
+        return inflater.finished();
+    }
+
+    /**
+     * Read whole content of small entry into heap (for example {@link IntegrityManifest} asset).
+     *
+     * @param entry   - index of entry in {@link ApkIndex}.
+     * @param maxSize - max accepted uncompressed size of entry.
+     * @return - uncompressed content of entry.
+     * @throws ZipException - if entry is bigger than <code>maxSize</code> or broken.
+     */
+    public byte[] read(int entry, int maxSize) throws IOException {
+        if (index.getSize(entry) > maxSize)
+            throw new ZipException("Entry \"" + index.getName(entry) + "\" is too large: " + index.getSize(entry) + " bytes.");
+        begin(entry);
+        byte[] content = new byte[(int) index.getSize(entry)];
+        int position = 0;
+        try {
+            if (index.getMethod(entry) == ApkIndex.METHOD_STORED) {
+                while (position < content.length) {
+                    int chunk = readChunk(content.length - position);
+                    readBuffer.get(content, position, chunk);
+                    position += chunk;
+                }
+            } else {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (dataPosition >= dataEnd)
+                            throw new ZipException("Unexpected end of deflated data of \"" + index.getName(entry) + "\".");
+                        int chunk = readChunk(dataEnd - dataPosition);
+                        readBuffer.get(input, 0, chunk);
+                        inflater.setInput(input, 0, chunk);
+                    }
+                    int inflated;
+                    if (position == content.length) {
+                        // only end of deflate stream may be left, any content byte overflows declared size
+                        if ((inflated = inflater.inflate(output, 0, 1)) > 0)
+                            throw new ZipException("Content of \"" + index.getName(entry) + "\" is longer than declared size " + content.length + ".");
+                    } else {
+                        inflated = inflater.inflate(content, position, content.length - position);
+                        position += inflated;
+                    }
+                    if (inflated == 0 && (inflater.needsDictionary() || (!inflater.finished() && !inflater.needsInput())))
+                        throw new ZipException("Broken deflated data of \"" + index.getName(entry) + "\".");
+                }
+                if (position != content.length)
+                    throw new ZipException("Content of \"" + index.getName(entry) + "\" is shorter than declared size " + content.length + ".");
+            }
+        } catch (DataFormatException exception) {
+            ZipException zipException = new ZipException("Broken deflated data of \"" + index.getName(entry) + "\": " + exception.getMessage());
+            zipException.initCause(exception);
+            throw zipException;
+        } finally {
+            this.entry = -1;
+        }
+        return content;
+    }
+
+    /**
+     * @return - count of bytes read from file by this digester.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    private long updateStored(MessageDigest digest, long maxBytes) throws IOException {
+        long length = Math.min(maxBytes, dataEnd - dataPosition);
+        if (length >= MIN_MAPPED_SIZE) {
+            long end = dataPosition + length;
+            while (dataPosition < end) {
+                long window = Math.min(MAX_MAPPED_SIZE, end - dataPosition);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, dataPosition, window);
+                digest.update(mapped);
+                dataPosition += window;
+                bytesRead += window;
+                CheckCounters.addBytesRead(window);
+            }
+            return length;
+        }
+        long remaining = length;
+        while (remaining > 0) {
+            int chunk = readChunk(remaining);
+            readBuffer.get(input, 0, chunk);
+            digest.update(input, 0, chunk);
+            remaining -= chunk;
+        }
+        return length;
+    }
+
+    private long updateDeflated(MessageDigest digest, long maxBytes) throws IOException {
+        long hashed = 0;
+        try {
+            while (hashed < maxBytes && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (dataPosition >= dataEnd)
+                        throw new ZipException("Unexpected end of deflated data of \"" + index.getName(entry) + "\".");
+                    int chunk = readChunk(dataEnd - dataPosition);
+                    readBuffer.get(input, 0, chunk);
+                    inflater.setInput(input, 0, chunk);
+                }
+                int length = (int) Math.min(output.length, maxBytes - hashed);
+                int inflated = inflater.inflate(output, 0, length);
+                if (inflated == 0 && (inflater.needsDictionary() || (!inflater.finished() && !inflater.needsInput())))
+                    throw new ZipException("Broken deflated data of \"" + index.getName(entry) + "\".");
+                digest.update(output, 0, inflated);
+                hashed += inflated;
+                if (produced + hashed > index.getSize(entry))
+                    throw new ZipException("Content of \"" + index.getName(entry) + "\" is longer than declared size " + index.getSize(entry) + ".");
+            }
+        } catch (DataFormatException exception) {
+            ZipException zipException = new ZipException("Broken deflated data of \"" + index.getName(entry) + "\": " + exception.getMessage());
+            zipException.initCause(exception);
+            throw zipException;
+        }
+        if (inflater.finished() && produced + hashed != index.getSize(entry))
+            throw new ZipException("Content of \"" + index.getName(entry) + "\" is shorter than declared size " + index.getSize(entry) + ".");
+        return hashed;
+    }
+
+    private int readChunk(long remaining) throws IOException {
+        readBuffer.clear();
+        if (remaining < readBuffer.capacity()) readBuffer.limit((int) remaining);
+        while (readBuffer.hasRemaining()) {
+            if (channel.read(readBuffer, dataPosition + readBuffer.position()) < 0)
+                throw new ZipException("Unexpected end of file in data of \"" + index.getName(entry) + "\".");
+        }
+        int chunk = readBuffer.position();
+        readBuffer.flip();
+        dataPosition += chunk;
+        bytesRead += chunk;
+        CheckCounters.addBytesRead(chunk);
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+}
@@ -0,0 +1,94 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.IOException;
+
+/**
+ * Source of all facts about app and device which are validated by {@link TamperingProtection}:
+ * apk path, package name, installer, signing certificates, debug flags and device properties.<br>
+ * On device use {@link AndroidEnvironmentProbe} (it's used by default). {@link FixtureEnvironmentProbe} keep facts in memory,
+ * so validation can run on plain JVM (tests, benchmarks, batch tools).<br>
+ * Implementations must be thread safe: checks are run concurrently.
+ */
+public interface EnvironmentProbe {
+
+    int PROPERTY_PRODUCT = 0;
+    int PROPERTY_MANUFACTURER = 1;
+    int PROPERTY_BRAND = 2;
+    int PROPERTY_DEVICE = 3;
+    int PROPERTY_MODEL = 4;
+    int PROPERTY_HARDWARE = 5;
+    int PROPERTY_FINGERPRINT = 6;
+    /**
+     * Count of device properties (properties are numbered from 0).
+     */
+    int PROPERTY_COUNT = 7;
+
+    /**
+     * @return - path of app apk file.
+     */
+    String getApkPath();
+
+    /**
+     * @return - package name of app (nullable).
+     */
+    String getPackageName();
+
+    /**
+     * @return - package name of app installer, or null if app was installed by user (not by store).
+     */
+    String getInstallerPackageName();
+
+    /**
+     * @return - encoded signing certificates of app (empty if app not signed).
+     * @throws IOException - if certificates can't be taken (for example package not found).
+     */
+    byte[][] getSignatureCertificates() throws IOException;
+
+    /**
+     * @return - dir of extracted native libraries (<code>ApplicationInfo.nativeLibraryDir</code>), or null if unknown.
+     * Dir is empty or missing if libraries are loaded directly from apk (<code>extractNativeLibs="false"</code>).
+     */
+    String getNativeLibraryDir();
+
+    /**
+     * @return - ABIs supported by device, preferred first (<code>Build.SUPPORTED_ABIS</code>).
+     */
+    String[] getSupportedAbis();
+
+    /**
+     * @return - time of last app update (<code>PackageInfo.lastUpdateTime</code>), or 0 if unknown. Part of {@link ApkIdentity}.
+     */
+    long getLastUpdateTime();
+
+    /**
+     * @return - true if app is debuggable (<code>ApplicationInfo.FLAG_DEBUGGABLE</code>).
+     */
+    boolean isDebuggable();
+
+    /**
+     * @return - true if app is debug build (<code>BuildConfig.DEBUG</code>).
+     */
+    boolean isDebugBuild();
+
+    /**
+     * @return - true if java debugger is attached or app waits for it (<code>Debug.isDebuggerConnected()</code>).
+     */
+    boolean isDebuggerConnected();
+
+    /**
+     * @return - pid of process which traces app (<code>TracerPid</code> of <code>/proc/self/status</code>: gdb, strace, frida), or 0 if not traced.
+     * @throws IOException - if status can't be read.
+     */
+    int getTracerPid() throws IOException;
+
+    /**
+     * @return - CPU time of current thread in nanoseconds (<code>Debug.threadCpuTimeNanos()</code>), or -1 if platform can't measure it.
+     */
+    long getThreadCpuTimeNanos();
+
+    /**
+     * @param property - one of <code>PROPERTY_*</code> constants.
+     * @return - device property (same as <code>Build.PRODUCT</code>, <code>Build.MODEL</code> ...), never null.
+     */
+    String getDeviceProperty(int property);
+}
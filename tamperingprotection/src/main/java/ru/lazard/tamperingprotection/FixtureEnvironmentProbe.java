@@ -0,0 +1,186 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * In-memory {@link EnvironmentProbe}: all facts are set by setters, only apk is real file.
+ * Use it for run validation on plain JVM (tests, benchmarks, batch verification of apk files).<br>
+ * By default: app is not debuggable, not traced, not installed by store, not signed, native libraries are not extracted,
+ * device supports {@link #DEFAULT_ABIS} and device properties are empty.<br>
+ * Facts must be set before validation (setters are not synchronized with running checks).
+ */
+public class FixtureEnvironmentProbe implements EnvironmentProbe {
+
+    /**
+     * ABIs of typical 64-bit ARM device.
+     */
+    public static final String[] DEFAULT_ABIS = {"arm64-v8a", "armeabi-v7a", "armeabi"};
+
+    private final String apkPath;
+    private volatile String packageName;
+    private volatile String installerPackageName;
+    private volatile byte[][] certificates = new byte[0][];
+    private volatile String nativeLibraryDir;
+    private volatile String[] supportedAbis = DEFAULT_ABIS;
+    private volatile long lastUpdateTime;
+    private volatile boolean isDebuggable;
+    private volatile boolean isDebugBuild;
+    private volatile boolean isDebuggerConnected;
+    private volatile int tracerPid;
+    private final String[] deviceProperties = new String[PROPERTY_COUNT];
+
+    /**
+     * @param apkPath - path of apk file.
+     */
+    public FixtureEnvironmentProbe(String apkPath) {
+        this.apkPath = apkPath;
+        Arrays.fill(deviceProperties, "");
+    }
+
+    @Override
+    public String getApkPath() {
+        return apkPath;
+    }
+
+    @Override
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public void setPackageName(String packageName) {
+        this.packageName = packageName;
+    }
+
+    @Override
+    public String getInstallerPackageName() {
+        return installerPackageName;
+    }
+
+    public void setInstallerPackageName(String installerPackageName) {
+        this.installerPackageName = installerPackageName;
+    }
+
+    @Override
+    public byte[][] getSignatureCertificates() throws IOException {
+        byte[][] certificates = this.certificates;
+        byte[][] copy = new byte[certificates.length][];
+        for (int i = 0; i < certificates.length; i++) {
+            copy[i] = certificates[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * @param certificates - encoded signing certificates.
+     */
+    public void setSignatureCertificates(byte[]... certificates) {
+        this.certificates = certificates.clone();
+    }
+
+    @Override
+    public String getNativeLibraryDir() {
+        return nativeLibraryDir;
+    }
+
+    /**
+     * @param nativeLibraryDir - dir of extracted native libraries, null - libraries are loaded from apk.
+     */
+    public void setNativeLibraryDir(String nativeLibraryDir) {
+        this.nativeLibraryDir = nativeLibraryDir;
+    }
+
+    @Override
+    public String[] getSupportedAbis() {
+        return supportedAbis.clone();
+    }
+
+    public void setSupportedAbis(String... supportedAbis) {
+        this.supportedAbis = supportedAbis.clone();
+    }
+
+    @Override
+    public long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    public void setLastUpdateTime(long lastUpdateTime) {
+        this.lastUpdateTime = lastUpdateTime;
+    }
+
+    @Override
+    public boolean isDebuggable() {
+        return isDebuggable;
+    }
+
+    public void setDebuggable(boolean isDebuggable) {
+        this.isDebuggable = isDebuggable;
+    }
+
+    @Override
+    public boolean isDebugBuild() {
+        return isDebugBuild;
+    }
+
+    public void setDebugBuild(boolean isDebugBuild) {
+        this.isDebugBuild = isDebugBuild;
+    }
+
+    @Override
+    public boolean isDebuggerConnected() {
+        return isDebuggerConnected;
+    }
+
+    public void setDebuggerConnected(boolean isDebuggerConnected) {
+        this.isDebuggerConnected = isDebuggerConnected;
+    }
+
+    @Override
+    public int getTracerPid() {
+        return tracerPid;
+    }
+
+    public void setTracerPid(int tracerPid) {
+        this.tracerPid = tracerPid;
+    }
+
+    /**
+     * @return - -1, CPU time is not measured on plain JVM (wall time is used instead).
+     */
+    @Override
+    public long getThreadCpuTimeNanos() {
+        return -1;
+    }
+
+    @Override
+    public String getDeviceProperty(int property) {
+        synchronized (deviceProperties) {
+            return deviceProperties[property];
+        }
+    }
+
+    /**
+     * @param property - one of <code>EnvironmentProbe.PROPERTY_*</code> constants.
+     * @param value    - value of property (null is stored as empty string).
+     */
+    public void setDeviceProperty(int property, String value) {
+        synchronized (deviceProperties) {
+            deviceProperties[property] = value == null ? "" : value;
+        }
+    }
+
+    /**
+     * Set all device properties at once.
+     */
+    public void setDeviceProperties(String product, String manufacturer, String brand, String device, String model, String hardware, String fingerprint) {
+        synchronized (deviceProperties) {
+            setDeviceProperty(PROPERTY_PRODUCT, product);
+            setDeviceProperty(PROPERTY_MANUFACTURER, manufacturer);
+            setDeviceProperty(PROPERTY_BRAND, brand);
+            setDeviceProperty(PROPERTY_DEVICE, device);
+            setDeviceProperty(PROPERTY_MODEL, model);
+            setDeviceProperty(PROPERTY_HARDWARE, hardware);
+            setDeviceProperty(PROPERTY_FINGERPRINT, fingerprint);
+        }
+    }
+}
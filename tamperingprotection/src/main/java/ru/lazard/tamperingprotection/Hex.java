@@ -0,0 +1,58 @@
+package ru.lazard.tamperingprotection;
+
+/**
+ * Hex formatting and parsing of digests.
+ */
+final class Hex {
+
+    private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+
+    private Hex() {
+    }
+
+    /**
+     * @return - lowercase hex without separators (same as <code>sha256sum</code> prints). For example <code>"9f86d0..."</code>.
+     */
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int value = bytes[i] & 0xFF;
+            chars[i * 2] = HEX_LOWER[value >> 4];
+            chars[i * 2 + 1] = HEX_LOWER[value & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Parse hex string. Case is ignored, separators <code>':'</code> and <code>' '</code> are skipped.
+     *
+     * @return - parsed bytes.
+     * @throws IllegalArgumentException - if string contains not hex chars or odd count of hex digits.
+     */
+    static byte[] parse(String hex) {
+        int digits = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (c == ':' || c == ' ') continue;
+            if (Character.digit(c, 16) < 0)
+                throw new IllegalArgumentException("Not hex char '" + c + "' in \"" + hex + "\".");
+            digits++;
+        }
+        if (digits % 2 != 0) throw new IllegalArgumentException("Odd count of hex digits in \"" + hex + "\".");
+        byte[] bytes = new byte[digits / 2];
+        int position = 0;
+        int high = -1;
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (c == ':' || c == ' ') continue;
+            int digit = Character.digit(c, 16);
+            if (high < 0) {
+                high = digit;
+            } else {
+                bytes[position++] = (byte) ((high << 4) | digit);
+                high = -1;
+            }
+        }
+        return bytes;
+    }
+}
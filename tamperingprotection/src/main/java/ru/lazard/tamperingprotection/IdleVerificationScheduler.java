@@ -0,0 +1,143 @@
+package ru.lazard.tamperingprotection;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Drive {@link IncrementalApkVerifier} from idle time of main thread: each time when message queue is idle
+ * one small step is done (by default 256Kb of content or 16 entries), so hashing of whole apk don't drop frames.<br>
+ * Progress is saved to app files dir, so verification is continued after process death.<br><br>
+ * Usage:<br>
+ * <code>
+ * IdleVerificationScheduler.start(context, expectedRoot, listener);<br>
+ * </code>
+ */
+public final class IdleVerificationScheduler implements MessageQueue.IdleHandler {
+
+    /**
+     * Default count of bytes hashed per idle step.
+     */
+    public static final long DEFAULT_STEP_BYTES = 256 * 1024;
+    /**
+     * Default count of entries hashed per idle step.
+     */
+    public static final int DEFAULT_STEP_ENTRIES = 16;
+    private static final String STATE_FILE_NAME = "tampering_protection_incremental.state";
+    private static final long SAVE_INTERVAL_MILLIS = 1000;
+
+    private final IncrementalApkVerifier verifier;
+    private final File stateFile;
+    private final String expectedRootHex;
+    private final Listener listener;
+    private final long stepBytes;
+    private final int stepEntries;
+    private long lastSaveTime;
+    private int savedEntries;
+
+    public IdleVerificationScheduler(IncrementalApkVerifier verifier, File stateFile, String expectedRootHex, Listener listener, long stepBytes, int stepEntries) {
+        this.verifier = verifier;
+        this.stateFile = stateFile;
+        this.expectedRootHex = expectedRootHex;
+        this.listener = listener;
+        this.stepBytes = stepBytes;
+        this.stepEntries = stepEntries;
+    }
+
+    /**
+     * Restore saved progress and start verification of current app apk in idle time of main thread.
+     * Must be called from main thread.
+     *
+     * @param context         - context.
+     * @param expectedRootHex - expected root digest of apk (see {@link ApkContentDigest}).
+     * @param listener        - receive verdict (on main thread).
+     * @return - scheduler, use it for {@link #stop()}.
+     */
+    public static IdleVerificationScheduler start(Context context, String expectedRootHex, Listener listener) throws IOException, NoSuchAlgorithmException {
+        long lastUpdateTime = 0;
+        try {
+            lastUpdateTime = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // keep 0: identity is defined by file only
+        }
+        IncrementalApkVerifier verifier = new IncrementalApkVerifier(ApkIndex.of(context.getPackageCodePath()), lastUpdateTime);
+        File stateFile = new File(context.getFilesDir(), STATE_FILE_NAME);
+        verifier.load(stateFile);
+        IdleVerificationScheduler scheduler = new IdleVerificationScheduler(verifier, stateFile, expectedRootHex, listener, DEFAULT_STEP_BYTES, DEFAULT_STEP_ENTRIES);
+        scheduler.savedEntries = verifier.getVerifiedEntries();
+        Looper.myQueue().addIdleHandler(scheduler);
+        return scheduler;
+    }
+
+    /**
+     * Stop verification (progress is saved). Must be called from main thread.
+     */
+    public void stop() {
+        Looper.myQueue().removeIdleHandler(this);
+        save();
+        try {
+            verifier.close();
+        } catch (IOException e) {
+            Log.w("TamperingProtection", "Can't close apk.", e);
+        }
+    }
+
+    @Override
+    public boolean queueIdle() {
+        boolean complete;
+        try {
+            complete = verifier.step(stepBytes, stepEntries);
+        } catch (IOException exception) {
+            save();
+            if (listener != null) listener.onVerificationFailed(exception);
+            return false;
+        }
+        if (complete) {
+            save();
+            if (listener != null) listener.onVerificationComplete(verifier.isValid(expectedRootHex), verifier.getRootHex());
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (verifier.getVerifiedEntries() != savedEntries && now - lastSaveTime >= SAVE_INTERVAL_MILLIS) {
+            lastSaveTime = now;
+            save();
+        }
+        return true; // keep handler for next idle
+    }
+
+    private void save() {
+        try {
+            verifier.save(stateFile);
+            savedEntries = verifier.getVerifiedEntries();
+        } catch (IOException e) {
+            Log.w("TamperingProtection", "Can't save verification progress.", e);
+        }
+    }
+
+    public IncrementalApkVerifier getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * Receive verdict of incremental verification (called on main thread).
+     */
+    public interface Listener {
+        /**
+         * @param isValid - true if root digest of apk equals to expected.
+         * @param rootHex - calculated root digest.
+         */
+        void onVerificationComplete(boolean isValid, String rootHex);
+
+        /**
+         * Apk can't be read (broken zip or I/O error).
+         */
+        void onVerificationFailed(IOException exception);
+    }
+}
@@ -0,0 +1,146 @@
+package ru.lazard.tamperingprotection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ValidationMetrics} which keep statistics in memory: histogram of durations, pass/fail counts,
+ * bytes read and <code>PackageManager</code> calls of each check, and count of each error code.<br>
+ * Export statistics to telemetry periodically, for example:<br>
+ * <code>metrics.getDurations(TamperingProtection.CHECK_SIGNATURE).getValueAtPercentile(99)</code>.
+ */
+public class InMemoryValidationMetrics implements ValidationMetrics {
+
+    private final ConcurrentMap<String, CheckStatistics> checks = new ConcurrentHashMap<String, CheckStatistics>();
+    private final ConcurrentMap<Integer, AtomicLong> errors = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    @Override
+    public void onCheckFinished(String check, int errorCode, long durationNanos, long bytesRead, int ipcCalls, long allocatedBytes) {
+        CheckStatistics statistics = checks.get(check);
+        if (statistics == null) {
+            CheckStatistics created = new CheckStatistics();
+            statistics = checks.putIfAbsent(check, created);
+            if (statistics == null) statistics = created;
+        }
+        statistics.durations.record(durationNanos);
+        statistics.bytesRead.addAndGet(bytesRead);
+        statistics.ipcCalls.addAndGet(ipcCalls);
+        if (allocatedBytes >= 0) statistics.allocatedBytes.addAndGet(allocatedBytes);
+        if (errorCode == NO_ERROR) {
+            statistics.passCount.incrementAndGet();
+            return;
+        }
+        statistics.failCount.incrementAndGet();
+        AtomicLong count = errors.get(errorCode);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = errors.putIfAbsent(errorCode, created);
+            if (count == null) count = created;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return - names of measured checks (sorted).
+     */
+    public List<String> getCheckNames() {
+        List<String> names = new ArrayList<String>(checks.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * @return - durations of check in nanoseconds, or null if check was not measured.
+     */
+    public ValidationHistogram getDurations(String check) {
+        CheckStatistics statistics = checks.get(check);
+        return statistics == null ? null : statistics.durations;
+    }
+
+    public long getPassCount(String check) {
+        CheckStatistics statistics = checks.get(check);
+        return statistics == null ? 0 : statistics.passCount.get();
+    }
+
+    public long getFailCount(String check) {
+        CheckStatistics statistics = checks.get(check);
+        return statistics == null ? 0 : statistics.failCount.get();
+    }
+
+    /**
+     * @return - total bytes read from apk by all runs of check.
+     */
+    public long getBytesRead(String check) {
+        CheckStatistics statistics = checks.get(check);
+        return statistics == null ? 0 : statistics.bytesRead.get();
+    }
+
+    /**
+     * @return - total <code>PackageManager</code> calls of all runs of check.
+     */
+    public long getIpcCalls(String check) {
+        CheckStatistics statistics = checks.get(check);
+        return statistics == null ? 0 : statistics.ipcCalls.get();
+    }
+
+    /**
+     * @return - total bytes allocated by all runs of check (0 if platform can't measure allocations).
+     */
+    public long getAllocatedBytes(String check) {
+        CheckStatistics statistics = checks.get(check);
+        return statistics == null ? 0 : statistics.allocatedBytes.get();
+    }
+
+    /**
+     * @param errorCode - one of <code>ValidationException.ERROR_CODE_*</code>.
+     * @return - how many times checks failed with error code.
+     */
+    public long getErrorCount(int errorCode) {
+        AtomicLong count = errors.get(errorCode);
+        return count == null ? 0 : count.get();
+    }
+
+    public void reset() {
+        checks.clear();
+        errors.clear();
+    }
+
+    /**
+     * @return - one line per check: name, pass and fail count, duration percentiles (microseconds), bytes read and IPC calls.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (String name : getCheckNames()) {
+            CheckStatistics statistics = checks.get(name);
+            ValidationHistogram durations = statistics.durations;
+            builder.append(name)
+                    .append(" pass=").append(statistics.passCount.get())
+                    .append(" fail=").append(statistics.failCount.get())
+                    .append(" p50=").append(durations.getValueAtPercentile(50) / 1000).append("us")
+                    .append(" p99=").append(durations.getValueAtPercentile(99) / 1000).append("us")
+                    .append(" max=").append(durations.getMax() / 1000).append("us")
+                    .append(" bytes=").append(statistics.bytesRead.get())
+                    .append(" ipc=").append(statistics.ipcCalls.get())
+                    .append('\n');
+        }
+        for (Map.Entry<Integer, AtomicLong> error : errors.entrySet()) {
+            builder.append("error ").append(error.getKey()).append(" count=").append(error.getValue().get()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static final class CheckStatistics {
+        final ValidationHistogram durations = new ValidationHistogram();
+        final AtomicLong passCount = new AtomicLong();
+        final AtomicLong failCount = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong ipcCalls = new AtomicLong();
+        final AtomicLong allocatedBytes = new AtomicLong();
+    }
+}
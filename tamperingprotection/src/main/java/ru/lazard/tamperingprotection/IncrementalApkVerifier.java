@@ -0,0 +1,249 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Calculate {@link ApkContentDigest} root digest of all apk entries step by step (bounded count of bytes and entries per step),
+ * so full integrity verdict is built over time (for example in idle time, see {@link IdleVerificationScheduler}) without frame drops.<br>
+ * Progress (cursor and partial root digest) can be saved in compact binary form ({@link #saveState()}, {@link #save(File)})
+ * and restored after process death. Saved state is dropped when apk changed.<br>
+ * <b>Note:</b> progress inside of entry is not saved: after restore hashing continue from start of first not finished entry.
+ * Not thread safe.
+ */
+public final class IncrementalApkVerifier {
+
+    private static final int STATE_MAGIC = 0x54504956; // "TPIV"
+    private static final int STATE_VERSION = 1;
+    private static final int ROOT_SIZE = 32;
+
+    private final ApkIndex index;
+    private final ApkIdentity identity;
+    private final MessageDigest entryDigest;
+    private final MessageDigest chainDigest;
+    private EntryDigester digester;
+    private int nextEntry;
+    private boolean entryStarted;
+    private byte[] root;
+    private long bytesHashed;
+    private long elapsedNanos;
+
+    /**
+     * @param index          - index of apk for verification.
+     * @param lastUpdateTime - <code>PackageInfo.lastUpdateTime</code> of package (or 0 if unknown), part of apk identity.
+     */
+    public IncrementalApkVerifier(ApkIndex index, long lastUpdateTime) throws NoSuchAlgorithmException {
+        this.index = index;
+        this.identity = new ApkIdentity(index.getPath(), index.getFileLength(), index.getLastModified(), lastUpdateTime);
+        this.entryDigest = MessageDigest.getInstance(ApkContentDigest.ALGORITHM);
+        this.chainDigest = MessageDigest.getInstance(ApkContentDigest.ALGORITHM);
+    }
+
+    /**
+     * Hash next part of apk.
+     *
+     * @param byteBudget - max count of (uncompressed) bytes to hash in this step.
+     * @param maxEntries - max count of entries to finish in this step.
+     * @return - true if all entries hashed.
+     */
+    public boolean step(long byteBudget, int maxEntries) throws IOException {
+        if (isComplete()) return true;
+        long start = System.nanoTime();
+        try {
+            if (digester == null) digester = new EntryDigester(index);
+            long budget = byteBudget;
+            int entries = maxEntries;
+            while (budget > 0 && entries > 0 && nextEntry < index.size()) {
+                if (!entryStarted) {
+                    digester.begin(nextEntry);
+                    entryStarted = true;
+                }
+                long hashed = digester.update(entryDigest, budget);
+                bytesHashed += hashed;
+                budget -= hashed;
+                if (digester.isEntryFinished()) {
+                    root = ApkContentDigest.combine(chainDigest, root, index.getName(nextEntry), entryDigest.digest());
+                    entryStarted = false;
+                    nextEntry++;
+                    entries--;
+                }
+            }
+            if (nextEntry >= index.size()) {
+                if (root == null) root = chainDigest.digest();
+                close();
+                return true;
+            }
+            return false;
+        } finally {
+            elapsedNanos += System.nanoTime() - start;
+        }
+    }
+
+    public boolean isComplete() {
+        return nextEntry >= index.size() && root != null;
+    }
+
+    /**
+     * @return - count of fully hashed entries.
+     */
+    public int getVerifiedEntries() {
+        return nextEntry;
+    }
+
+    /**
+     * @return - progress from 0 to 1 (by count of entries).
+     */
+    public float getProgress() {
+        return index.size() == 0 ? 1 : (float) nextEntry / index.size();
+    }
+
+    /**
+     * @return - root digest (same as {@link ApkContentDigest#getRootHex()}) or null if not complete.
+     */
+    public String getRootHex() {
+        return isComplete() ? Hex.toHex(root) : null;
+    }
+
+    /**
+     * Integrity verdict.
+     *
+     * @param expectedRootHex - expected root digest (see {@link ApkContentDigest}).
+     * @return - true if verification complete and digest equals to expected.
+     */
+    public boolean isValid(String expectedRootHex) {
+        return isComplete() && Hex.toHex(root).equalsIgnoreCase(expectedRootHex);
+    }
+
+    /**
+     * @return - count of hashed bytes in this process (since creation or restore).
+     */
+    public long getBytesHashed() {
+        return bytesHashed;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public ApkIdentity getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Serialize progress: apk identity, cursor and partial root digest (about 100 bytes + apk path).
+     */
+    public byte[] saveState() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(STATE_MAGIC);
+            out.writeByte(STATE_VERSION);
+            out.writeUTF(identity.getPath());
+            out.writeLong(identity.getLength());
+            out.writeLong(identity.getLastModified());
+            out.writeLong(identity.getLastUpdateTime());
+            out.writeInt(index.size());
+            out.writeInt(nextEntry);
+            out.write(root == null ? new byte[ROOT_SIZE] : root);
+            out.writeBoolean(root != null);
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException exception) {
+            throw new IllegalStateException(exception); // not possible for in memory stream
+        }
+    }
+
+    /**
+     * Restore progress saved by {@link #saveState()}.
+     *
+     * @param state - saved state.
+     * @return - true if state restored. False if state is broken or saved for other apk (then verification start from beginning).
+     */
+    public boolean restoreState(byte[] state) {
+        if (state == null || state.length < 8) return false;
+        CRC32 crc = new CRC32();
+        crc.update(state, 0, state.length - 4);
+        int expectedCrc = ((state[state.length - 4] & 0xFF) << 24) | ((state[state.length - 3] & 0xFF) << 16)
+                | ((state[state.length - 2] & 0xFF) << 8) | (state[state.length - 1] & 0xFF);
+        if ((int) crc.getValue() != expectedCrc) return false;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(state, 0, state.length - 4));
+            if (in.readInt() != STATE_MAGIC || in.readByte() != STATE_VERSION) return false;
+            ApkIdentity savedIdentity = new ApkIdentity(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+            if (!identity.equals(savedIdentity) || in.readInt() != index.size()) return false;
+            int savedNextEntry = in.readInt();
+            byte[] savedRoot = new byte[ROOT_SIZE];
+            in.readFully(savedRoot);
+            boolean hasRoot = in.readBoolean();
+            if (savedNextEntry < 0 || savedNextEntry > index.size() || (savedNextEntry > 0 && !hasRoot)) return false;
+            close();
+            nextEntry = savedNextEntry;
+            root = hasRoot ? savedRoot : null;
+            entryStarted = false;
+            entryDigest.reset();
+            if (nextEntry >= index.size() && root == null) root = chainDigest.digest();
+            return true;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Save progress to file. File is replaced atomically (written to temp file then renamed).
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(saveState());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) throw new IOException("Can't rename " + temp + " to " + file);
+    }
+
+    /**
+     * Restore progress from file saved by {@link #save(File)}.
+     *
+     * @return - true if progress restored. False if file not exists, broken or saved for other apk.
+     */
+    public boolean load(File file) throws IOException {
+        if (!file.isFile() || file.length() > 64 * 1024) return false;
+        byte[] state = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(state);
+        } finally {
+            in.close();
+        }
+        return restoreState(state);
+    }
+
+    /**
+     * Release opened apk file. Verification can be continued by next {@link #step(long, int)}
+     * (from start of not finished entry).
+     */
+    public void close() throws IOException {
+        if (digester != null) {
+            digester.close();
+            digester = null;
+        }
+        if (entryStarted) {
+            entryStarted = false;
+            entryDigest.reset();
+        }
+    }
+}
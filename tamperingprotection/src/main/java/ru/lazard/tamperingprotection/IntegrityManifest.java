@@ -0,0 +1,377 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Expected content of apk produced at build time (by <code>integrityplugin</code> Gradle plugin or {@link IntegrityManifestEncoder}):
+ * SHA-256 digest of content of each entry, count of entries and SHA-256 fingerprint of signer certificate.<br>
+ * Manifest is packaged into apk as {@link #ENTRY_NAME} and checked by {@link IntegrityVerifier}. Entries under <code>META-INF/</code>
+ * (v1 signature files), directory entries and manifest itself are not covered, all other entries are ({@link #isCovered(String)}).<br><br>
+ * Manifest has no readable strings: entry names are stored as salted hashes (first 8 bytes of <code>SHA-256(salt, name)</code>),
+ * salt is new for each build. Entry digests are truncated to 16 bytes.<br>
+ * Optionally manifest has digests of chunks (byte ranges of {@link #getChunkSize()} bytes) of each entry, so big entry
+ * can be verified partially (see {@link SamplingPlan#UNIT_CHUNKS}).<br>
+ * Format (little-endian): magic <code>"TPIM"</code>, version, flags, count of entries, salt (16 bytes), signer fingerprint (32 bytes),
+ * entries sorted by name hash (name hash 8 bytes, digest 16 bytes), [chunk size, count of chunks, size and first chunk of each entry
+ * (in same order), chunk digests (8 bytes each)], CRC32 of all previous bytes.<br>
+ * Lookup is binary search over buffer. Immutable and thread safe.
+ */
+public final class IntegrityManifest {
+
+    /**
+     * Name of manifest entry in apk.
+     */
+    public static final String ENTRY_NAME = "assets/tp_integrity.bin";
+
+    static final int MAGIC = 0x4d495054; // "TPIM"
+    static final int VERSION = 1;
+    static final int FLAG_HAS_SIGNER = 1;
+    static final int FLAG_HAS_CHUNKS = 2;
+    static final int SALT_SIZE = 16;
+    static final int SIGNER_SIZE = 32;
+    static final int NAME_HASH_SIZE = 8;
+    static final int DIGEST_SIZE = 16;
+    static final int ENTRY_SIZE = NAME_HASH_SIZE + DIGEST_SIZE;
+    static final int SALT_OFFSET = 10;
+    static final int SIGNER_OFFSET = SALT_OFFSET + SALT_SIZE;
+    static final int HEADER_SIZE = SIGNER_OFFSET + SIGNER_SIZE;
+    static final int CHUNK_HEADER_SIZE = 8;
+    static final int CHUNK_ENTRY_SIZE = 8;
+    static final int CHUNK_DIGEST_SIZE = 8;
+
+    /**
+     * Default size of chunk, see {@link IntegrityManifestEncoder#IntegrityManifestEncoder(int)}.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAX_SIZE = 16 * 1024 * 1024;
+    private static final String META_INF = "META-INF/";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final byte[] salt = new byte[SALT_SIZE];
+    private final int chunkSize;
+    private final int chunkCount;
+    private final int chunkEntriesOffset;
+    private final int chunkDigestsOffset;
+
+    private IntegrityManifest(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.entryCount = buffer.getInt(6);
+        for (int i = 0; i < SALT_SIZE; i++) {
+            salt[i] = buffer.get(SALT_OFFSET + i);
+        }
+        int chunkHeaderOffset = HEADER_SIZE + entryCount * ENTRY_SIZE;
+        boolean hasChunks = (buffer.get(5) & FLAG_HAS_CHUNKS) != 0;
+        this.chunkSize = hasChunks ? buffer.getInt(chunkHeaderOffset) : 0;
+        this.chunkCount = hasChunks ? buffer.getInt(chunkHeaderOffset + 4) : 0;
+        this.chunkEntriesOffset = chunkHeaderOffset + CHUNK_HEADER_SIZE;
+        this.chunkDigestsOffset = chunkEntriesOffset + entryCount * CHUNK_ENTRY_SIZE;
+    }
+
+    /**
+     * Load manifest from buffer (from position to limit). Buffer is not copied, don't modify it.
+     *
+     * @throws IllegalArgumentException - if buffer is not valid manifest (broken, unknown version...).
+     */
+    public static IntegrityManifest load(ByteBuffer buffer) {
+        ByteBuffer manifest = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int size = manifest.limit();
+        if (size < HEADER_SIZE + 4) throw new IllegalArgumentException("Manifest is too short: " + size + " bytes.");
+        if (manifest.getInt(0) != MAGIC) throw new IllegalArgumentException("Not an integrity manifest: bad magic.");
+        if ((manifest.get(4) & 0xFF) != VERSION) throw new IllegalArgumentException("Unsupported manifest version: " + (manifest.get(4) & 0xFF));
+        int count = manifest.getInt(6);
+        if (count < 0 || count > (size - HEADER_SIZE - 4) / ENTRY_SIZE)
+            throw new IllegalArgumentException("Manifest is broken: bad count of entries " + count + ".");
+        long expectedSize = HEADER_SIZE + (long) count * ENTRY_SIZE + 4;
+        if ((manifest.get(5) & FLAG_HAS_CHUNKS) != 0) {
+            if (size < expectedSize + CHUNK_HEADER_SIZE) throw new IllegalArgumentException("Manifest is broken: no chunks.");
+            int chunkCount = manifest.getInt(HEADER_SIZE + count * ENTRY_SIZE + 4);
+            if (chunkCount < 0) throw new IllegalArgumentException("Manifest is broken: bad count of chunks " + chunkCount + ".");
+            expectedSize += CHUNK_HEADER_SIZE + (long) count * CHUNK_ENTRY_SIZE + (long) chunkCount * CHUNK_DIGEST_SIZE;
+        }
+        if (size != expectedSize) throw new IllegalArgumentException("Manifest is broken: size " + size + " bytes, expected " + expectedSize + ".");
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(size - 4, 8192)];
+        ByteBuffer content = manifest.duplicate();
+        content.limit(size - 4);
+        while (content.hasRemaining()) {
+            int length = Math.min(chunk.length, content.remaining());
+            content.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        if ((int) crc.getValue() != manifest.getInt(size - 4)) throw new IllegalArgumentException("Manifest is broken: bad CRC32.");
+        IntegrityManifest result = new IntegrityManifest(manifest);
+        if (result.hasChunks()) result.checkChunks();
+        return result;
+    }
+
+    /**
+     * Check that chunks of entries are consecutive and match entry sizes (so chunk lookup can't go out of manifest).
+     */
+    private void checkChunks() {
+        if (chunkSize <= 0) throw new IllegalArgumentException("Manifest is broken: bad chunk size " + chunkSize + ".");
+        long next = 0;
+        for (int position = 0; position < entryCount; position++) {
+            if (getFirstChunk(position) != next) throw new IllegalArgumentException("Manifest is broken: bad chunks of entry " + position + ".");
+            next += getChunkCount(position);
+        }
+        if (next != chunkCount) throw new IllegalArgumentException("Manifest is broken: bad count of chunks " + chunkCount + ".");
+    }
+
+    /**
+     * Load manifest from bytes (array is not copied, don't modify it).
+     */
+    public static IntegrityManifest load(byte[] bytes) {
+        return load(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Load manifest from stream, for example <code>getAssets().open("tp_integrity.bin")</code>. Stream is not closed.
+     */
+    public static IntegrityManifest load(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+            out.write(chunk, 0, read);
+        }
+        return load(out.toByteArray());
+    }
+
+    /**
+     * Map manifest file without copy.
+     */
+    public static IntegrityManifest map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return load(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length())); // mapping stay valid after close
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Read manifest packaged into apk (entry {@link #ENTRY_NAME}), without <code>AssetManager</code>.
+     *
+     * @return - manifest, or null if apk has no manifest.
+     * @throws IOException              - if apk can't be read.
+     * @throws IllegalArgumentException - if manifest is broken.
+     */
+    public static IntegrityManifest read(ApkIndex index) throws IOException {
+        int entry = index.indexOf(ENTRY_NAME);
+        if (entry < 0) return null;
+        EntryDigester digester = new EntryDigester(index);
+        try {
+            return load(digester.read(entry, MAX_SIZE));
+        } finally {
+            digester.close();
+        }
+    }
+
+    /**
+     * @return - true if entry content is covered by manifest (all entries except <code>META-INF/*</code>, directories and manifest itself).
+     */
+    public static boolean isCovered(String name) {
+        return !name.startsWith(META_INF) && !name.endsWith("/") && !name.equals(ENTRY_NAME);
+    }
+
+    /**
+     * @return - count of entries covered by manifest.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return - true if manifest has fingerprint of signer certificate.
+     */
+    public boolean hasSigner() {
+        return (buffer.get(5) & FLAG_HAS_SIGNER) != 0;
+    }
+
+    /**
+     * @return - true if manifest has digests of chunks of entries.
+     */
+    public boolean hasChunks() {
+        return chunkSize > 0;
+    }
+
+    /**
+     * @return - size of chunk in bytes, or 0 if manifest has no chunks.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return - count of chunks of all entries, or 0 if manifest has no chunks.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @param certificate - encoded certificate (<code>Signature.toByteArray()</code>).
+     * @return - true if SHA-256 fingerprint of certificate is fingerprint of signer in manifest.
+     */
+    public boolean isSigner(byte[] certificate) throws NoSuchAlgorithmException {
+        if (!hasSigner()) return false;
+        byte[] digest = SignatureFingerprints.sha256Digest(certificate);
+        for (int i = 0; i < SIGNER_SIZE; i++) {
+            if (buffer.get(SIGNER_OFFSET + i) != digest[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return - SHA-256 fingerprint of signer in keytool format, or null if manifest has no signer (for error messages).
+     */
+    public String getSigner() {
+        if (!hasSigner()) return null;
+        byte[] signer = new byte[SIGNER_SIZE];
+        for (int i = 0; i < SIGNER_SIZE; i++) {
+            signer[i] = buffer.get(SIGNER_OFFSET + i);
+        }
+        return SignatureFingerprints.format(signer, SIGNER_SIZE);
+    }
+
+    /**
+     * Hash entry name with salt of this manifest.
+     *
+     * @param digest - SHA-256 digest (reset before and after use).
+     * @param output - array for name hash (at least 8 bytes).
+     */
+    void hashName(MessageDigest digest, String name, byte[] output) {
+        hashName(digest, salt, name, output);
+    }
+
+    static void hashName(MessageDigest digest, byte[] salt, String name, byte[] output) {
+        digest.update(salt);
+        byte[] hash = digest.digest(name.getBytes(UTF_8));
+        System.arraycopy(hash, 0, output, 0, NAME_HASH_SIZE);
+    }
+
+    /**
+     * Find entry by name hash.
+     *
+     * @param nameHash - name hash made by {@link #hashName(MessageDigest, String, byte[])}.
+     * @return - position of entry in manifest, or -1 if entry not found.
+     */
+    int indexOf(byte[] nameHash) {
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compare = compare(HEADER_SIZE + middle * ENTRY_SIZE, nameHash, NAME_HASH_SIZE);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param position - position of entry in manifest ({@link #indexOf(byte[])}).
+     * @param digest   - SHA-256 of entry content (only first 16 bytes are compared).
+     * @return - true if digest is expected digest of entry.
+     */
+    boolean matches(int position, byte[] digest) {
+        return compare(HEADER_SIZE + position * ENTRY_SIZE + NAME_HASH_SIZE, digest, DIGEST_SIZE) == 0;
+    }
+
+    /**
+     * @param position - position of entry in manifest.
+     * @return - uncompressed size of entry (only if manifest has chunks).
+     */
+    long getEntrySize(int position) {
+        return buffer.getInt(chunkEntriesOffset + position * CHUNK_ENTRY_SIZE) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @param position - position of entry in manifest.
+     * @return - index of first chunk of entry (only if manifest has chunks).
+     */
+    int getFirstChunk(int position) {
+        return buffer.getInt(chunkEntriesOffset + position * CHUNK_ENTRY_SIZE + 4);
+    }
+
+    /**
+     * @param position - position of entry in manifest.
+     * @return - count of chunks of entry (empty entry has no chunks).
+     */
+    int getChunkCount(int position) {
+        return (int) ((getEntrySize(position) + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @param chunk - index of chunk, from 0 to {@link #getChunkCount()}.
+     * @return - position of entry which contains chunk.
+     */
+    int positionOfChunk(int chunk) {
+        // last entry with first chunk <= chunk (empty entries have same first chunk as next entry)
+        int low = 0;
+        int high = entryCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (getFirstChunk(middle) <= chunk) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param chunk  - index of chunk, from 0 to {@link #getChunkCount()}.
+     * @param digest - SHA-256 of chunk content (only first 8 bytes are compared).
+     * @return - true if digest is expected digest of chunk.
+     */
+    boolean matchesChunk(int chunk, byte[] digest) {
+        return compare(chunkDigestsOffset + chunk * CHUNK_DIGEST_SIZE, digest, CHUNK_DIGEST_SIZE) == 0;
+    }
+
+    /**
+     * @return - encoded manifest (copy).
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.limit()];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(0);
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Compare bytes of buffer with first <code>length</code> bytes of key, as unsigned bytes.
+     */
+    private int compare(int offset, byte[] key, int length) {
+        for (int i = 0; i < length; i++) {
+            int difference = (buffer.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+            if (difference != 0) return difference;
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "IntegrityManifest{entries=" + entryCount + ", chunks=" + chunkCount + ", chunkSize=" + chunkSize + ", signer=" + getSigner() + "}";
+    }
+}
@@ -0,0 +1,248 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Build-time encoder of {@link IntegrityManifest}: digests of entries, signer fingerprint and random salt of name hashes.<br>
+ * Gradle plugin <code>integrityplugin</code> feeds encoder with entries which will be packaged into apk. Manifest of already built apk
+ * (for tests and audit) can be made from command line:<br>
+ * <code>java -cp tamperingprotection.jar ru.lazard.tamperingprotection.IntegrityManifestEncoder app.apk tp_integrity.bin</code>
+ */
+public final class IntegrityManifestEncoder {
+
+    private static final int MAX_SALT_ATTEMPTS = 8;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final SecureRandom random = new SecureRandom();
+    private final int chunkSize;
+    private final ChunkedDigest digest;
+    private byte[] signer;
+
+    /**
+     * Encoder of manifest with chunks of {@link IntegrityManifest#DEFAULT_CHUNK_SIZE}.
+     */
+    public IntegrityManifestEncoder() throws NoSuchAlgorithmException {
+        this(IntegrityManifest.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize - size of chunks (byte ranges) of entries with own digests, or 0 for manifest without chunks (only whole entries
+     *                  can be verified). Smaller chunk - cheaper verification of one chunk, but bigger manifest (8 bytes per chunk).
+     */
+    public IntegrityManifestEncoder(int chunkSize) throws NoSuchAlgorithmException {
+        if (chunkSize < 0) throw new IllegalArgumentException("chunkSize=" + chunkSize);
+        this.chunkSize = chunkSize;
+        this.digest = new ChunkedDigest(MessageDigest.getInstance(ApkContentDigest.ALGORITHM), MessageDigest.getInstance(ApkContentDigest.ALGORITHM),
+                chunkSize > 0 ? chunkSize : Integer.MAX_VALUE, IntegrityManifest.CHUNK_DIGEST_SIZE);
+    }
+
+    /**
+     * Add digests of all covered entries of apk (see {@link IntegrityManifest#isCovered(String)}).
+     */
+    public IntegrityManifestEncoder addApk(ApkIndex index) throws IOException {
+        EntryDigester digester = new EntryDigester(index);
+        try {
+            for (int entry = 0; entry < index.size(); entry++) {
+                String name = index.getName(entry);
+                if (!IntegrityManifest.isCovered(name)) continue;
+                checkNewEntry(name);
+                digester.digest(entry, digest);
+                addDigestedEntry(name);
+            }
+        } finally {
+            digester.close();
+        }
+        return this;
+    }
+
+    /**
+     * @param name    - full name of entry in apk. For example <code>"classes.dex"</code> or <code>"lib/arm64-v8a/libmain.so"</code>.
+     * @param content - (uncompressed) entry content. Stream is not closed.
+     * @throws IllegalArgumentException - if entry is not covered by manifest or already added.
+     */
+    public IntegrityManifestEncoder addEntry(String name, InputStream content) throws IOException {
+        checkNewEntry(name);
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = content.read(buffer)) >= 0) {
+            digest.update(buffer, 0, read);
+        }
+        addDigestedEntry(name);
+        return this;
+    }
+
+    private void checkNewEntry(String name) {
+        if (!IntegrityManifest.isCovered(name)) throw new IllegalArgumentException("Entry is not covered by manifest: \"" + name + "\".");
+        if (entries.containsKey(name)) throw new IllegalArgumentException("Duplicate entry: \"" + name + "\".");
+    }
+
+    private void addDigestedEntry(String name) {
+        byte[] contentDigest = digest.digest();
+        if (digest.getLength() > 0xFFFFFFFFL) throw new IllegalArgumentException("Entry is too big: \"" + name + "\".");
+        entries.put(name, new Entry(contentDigest, digest.getLength(), chunkSize > 0 ? digest.getChunkDigests() : null));
+    }
+
+    /**
+     * @param certificate - encoded signer certificate (<code>X509Certificate.getEncoded()</code>), or null for manifest without signer.
+     */
+    public IntegrityManifestEncoder setSignerCertificate(byte[] certificate) throws NoSuchAlgorithmException {
+        this.signer = certificate == null ? null : SignatureFingerprints.sha256Digest(certificate).clone();
+        return this;
+    }
+
+    /**
+     * @param fingerprint - SHA-256 fingerprint of signer certificate (keytool format or hex), or null for manifest without signer.
+     * @throws IllegalArgumentException - if fingerprint is not SHA-256 hex.
+     */
+    public IntegrityManifestEncoder setSignerFingerprint(String fingerprint) {
+        if (fingerprint == null) {
+            this.signer = null;
+            return this;
+        }
+        byte[] bytes = Hex.parse(fingerprint);
+        if (bytes.length != IntegrityManifest.SIGNER_SIZE)
+            throw new IllegalArgumentException("Signer fingerprint must be SHA-256 (32 bytes): \"" + fingerprint + "\".");
+        this.signer = bytes;
+        return this;
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return - binary manifest (each call use new salt).
+     */
+    public byte[] encode() throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(ApkContentDigest.ALGORITHM);
+        byte[] salt = new byte[IntegrityManifest.SALT_SIZE];
+        Entry[] table = null;
+        for (int attempt = 0; attempt < MAX_SALT_ATTEMPTS && table == null; attempt++) {
+            random.nextBytes(salt);
+            table = hashEntries(digest, salt);
+        }
+        if (table == null) throw new IllegalStateException("Can't make unique name hashes of " + entries.size() + " entries.");
+
+        int size = IntegrityManifest.HEADER_SIZE + table.length * IntegrityManifest.ENTRY_SIZE;
+        ByteArrayOutputStream chunkDigests = new ByteArrayOutputStream();
+        if (chunkSize > 0) {
+            for (Entry entry : table) {
+                chunkDigests.write(entry.chunkDigests, 0, entry.chunkDigests.length);
+            }
+            size += IntegrityManifest.CHUNK_HEADER_SIZE + table.length * IntegrityManifest.CHUNK_ENTRY_SIZE + chunkDigests.size();
+        }
+        int flags = (signer != null ? IntegrityManifest.FLAG_HAS_SIGNER : 0) | (chunkSize > 0 ? IntegrityManifest.FLAG_HAS_CHUNKS : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(size + 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(IntegrityManifest.MAGIC).put((byte) IntegrityManifest.VERSION).put((byte) flags).putInt(table.length)
+                .put(salt).put(signer != null ? signer : new byte[IntegrityManifest.SIGNER_SIZE]);
+        for (Entry entry : table) {
+            buffer.put(entry.row);
+        }
+        if (chunkSize > 0) {
+            buffer.putInt(chunkSize).putInt(chunkDigests.size() / IntegrityManifest.CHUNK_DIGEST_SIZE);
+            int firstChunk = 0;
+            for (Entry entry : table) {
+                buffer.putInt((int) entry.size).putInt(firstChunk);
+                firstChunk += entry.chunkDigests.length / IntegrityManifest.CHUNK_DIGEST_SIZE;
+            }
+            buffer.put(chunkDigests.toByteArray());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, size);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * @return - loaded encoded manifest.
+     */
+    public IntegrityManifest build() throws NoSuchAlgorithmException {
+        return IntegrityManifest.load(encode());
+    }
+
+    /**
+     * @return - entries with rows (name hash and truncated digest) sorted by name hash, or null if two names have same hash with this salt.
+     */
+    private Entry[] hashEntries(MessageDigest digest, byte[] salt) {
+        Entry[] table = new Entry[entries.size()];
+        int i = 0;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            IntegrityManifest.hashName(digest, salt, entry.getKey(), value.row);
+            table[i++] = value;
+        }
+        Arrays.sort(table, ROW_ORDER);
+        for (i = 1; i < table.length; i++) {
+            if (isSameNameHash(table[i - 1].row, table[i].row)) return null;
+        }
+        return table;
+    }
+
+    private static final Comparator<Entry> ROW_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return ValidationPolicyEncoder.UNSIGNED_ORDER.compare(a.row, b.row);
+        }
+    };
+
+    private static final class Entry {
+        final byte[] row = new byte[IntegrityManifest.ENTRY_SIZE]; // name hash (depends on salt) and truncated digest
+        final long size;
+        final byte[] chunkDigests;
+
+        Entry(byte[] digest, long size, byte[] chunkDigests) {
+            System.arraycopy(digest, 0, row, IntegrityManifest.NAME_HASH_SIZE, IntegrityManifest.DIGEST_SIZE);
+            this.size = size;
+            this.chunkDigests = chunkDigests;
+        }
+    }
+
+    private static boolean isSameNameHash(byte[] a, byte[] b) {
+        for (int i = 0; i < IntegrityManifest.NAME_HASH_SIZE; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Make manifest of built apk. Signer is taken from APK Signing Block (if apk is signed by v2/v3 scheme).
+     *
+     * @param args - path of apk and path of binary manifest.
+     */
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+        if (args.length != 2) {
+            System.err.println("Usage: IntegrityManifestEncoder <app.apk> <manifest.bin>");
+            System.exit(2);
+        }
+        ApkIndex index = ApkIndex.read(new File(args[0]));
+        IntegrityManifestEncoder encoder = new IntegrityManifestEncoder().addApk(index);
+        ApkSigningBlock block = ApkSigningBlock.read(index);
+        if (block != null && block.getCertificates().length > 0) encoder.setSignerCertificate(block.getCertificates()[0]);
+        byte[] manifest = encoder.encode();
+        FileOutputStream out = new FileOutputStream(new File(args[1]));
+        try {
+            out.write(manifest);
+        } finally {
+            out.close();
+        }
+        System.out.println("Manifest written: " + args[1] + " (" + manifest.length + " bytes) " + IntegrityManifest.load(manifest));
+    }
+}
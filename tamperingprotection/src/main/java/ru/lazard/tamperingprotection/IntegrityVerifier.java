@@ -0,0 +1,293 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Check apk against {@link IntegrityManifest} with bounded cost per launch.<br>
+ * Each verification check names and count of all covered entries (and sizes, if manifest has chunks) by central directory only,
+ * no content is read. Then content of random sample of entries or chunks of entries is hashed and compared with digests from manifest
+ * (see {@link SamplingPlan}). Entry added, removed or renamed by repacking is always detected. Entry with modified content is detected
+ * with probability {@link SamplingPlan#getDetectionProbability()} per launch (sample is new on each launch, so patched apk fails
+ * sooner or later). Units verified on previous launches of same apk can be excluded from sample
+ * ({@link #verify(SamplingPlan, Random, BitSet)}), then each unit is hashed once in at most <code>unitCount / sampleSize</code> launches.<br>
+ * Sampled entries are read in order of offset in file. Not thread safe.
+ */
+public final class IntegrityVerifier {
+
+    private static final int SAMPLE_INDEX_BITS = 20;
+
+    private final IntegrityManifest manifest;
+    private final ApkIndex index;
+
+    /**
+     * @param manifest - expected content of apk.
+     * @param index    - index of apk for verification.
+     */
+    public IntegrityVerifier(IntegrityManifest manifest, ApkIndex index) {
+        this.manifest = manifest;
+        this.index = index;
+    }
+
+    /**
+     * Verify apk by sample of whole entries.
+     *
+     * @param sampleSize - count of entries which content is hashed (0 - names only, <code>Integer.MAX_VALUE</code> - all entries).
+     * @param random     - source of sample, use <code>SecureRandom</code> on device (sample must not be predictable).
+     * @return - result of verification.
+     */
+    public Result verify(int sampleSize, Random random) throws IOException, NoSuchAlgorithmException {
+        return verify(SamplingPlan.forSampleSize(manifest, index, SamplingPlan.UNIT_ENTRIES, sampleSize), random);
+    }
+
+    /**
+     * Verify apk.
+     *
+     * @param plan   - sampling plan made for manifest and index of this verifier.
+     * @param random - source of sample, use <code>SecureRandom</code> on device (sample must not be predictable).
+     * @return - result of verification.
+     */
+    public Result verify(SamplingPlan plan, Random random) throws IOException, NoSuchAlgorithmException {
+        return verify(plan, random, new BitSet());
+    }
+
+    /**
+     * Verify apk, sample only units which were not verified before.
+     *
+     * @param plan     - sampling plan made for manifest and index of this verifier.
+     * @param random   - source of sample, use <code>SecureRandom</code> on device (sample must not be predictable).
+     * @param verified - units verified before for same apk (positions of entries in manifest for {@link SamplingPlan#UNIT_ENTRIES},
+     *                 chunks for {@link SamplingPlan#UNIT_CHUNKS}): excluded from sample. Sampled units are added if apk is valid.
+     * @return - result of verification.
+     */
+    public Result verify(SamplingPlan plan, Random random, BitSet verified) throws IOException, NoSuchAlgorithmException {
+        long start = System.nanoTime();
+        MessageDigest digest = MessageDigest.getInstance(ApkContentDigest.ALGORITHM);
+        byte[] nameHash = new byte[IntegrityManifest.NAME_HASH_SIZE];
+
+        // entries[i] - index of covered entry in apk, positions[i] - position of same entry in manifest
+        int[] entries = new int[index.size()];
+        int[] positions = new int[index.size()];
+        int count = 0;
+        for (int entry = 0; entry < index.size(); entry++) {
+            String name = index.getName(entry);
+            if (!IntegrityManifest.isCovered(name)) continue;
+            manifest.hashName(digest, name, nameHash);
+            int position = manifest.indexOf(nameHash);
+            if (position < 0) return new Result("Entry not in manifest: \"" + name + "\".", 0, 0, 0, start);
+            if (manifest.hasChunks() && manifest.getEntrySize(position) != index.getSize(entry))
+                return new Result("Size of entry changed: \"" + name + "\".", 0, 0, 0, start);
+            entries[count] = entry;
+            positions[count] = position;
+            count++;
+        }
+        if (count != manifest.getEntryCount())
+            return new Result("Count of entries changed: expected=" + manifest.getEntryCount() + " actual=" + count + ".", 0, 0, 0, start);
+
+        EntryDigester digester = new EntryDigester(index);
+        try {
+            verified.clear(plan.getUnitCount(), Math.max(plan.getUnitCount(), verified.length())); // units of other manifest
+            if (plan.getUnit() == SamplingPlan.UNIT_CHUNKS) return verifyChunks(plan.getSampleSize(), random, verified, entries, positions, digester, digest, start);
+            int unverified = 0;
+            for (int i = 0; i < count; i++) {
+                if (verified.get(positions[i])) continue;
+                entries[unverified] = entries[i];
+                positions[unverified] = positions[i];
+                unverified++;
+            }
+            return verifyEntries(plan.getSampleSize(), random, verified, unverified, entries, positions, digester, digest, start);
+        } finally {
+            digester.close();
+        }
+    }
+
+    private Result verifyEntries(int sampleSize, Random random, BitSet verified, int count, int[] entries, int[] positions,
+                                 EntryDigester digester, MessageDigest digest, long start) throws IOException {
+        // partial Fisher-Yates shuffle: first sampleSize elements are random sample
+        int sampled = Math.min(sampleSize, count);
+        for (int i = 0; i < sampled; i++) {
+            int j = i + random.nextInt(count - i);
+            swap(entries, i, j);
+            swap(positions, i, j);
+        }
+        long[] order = sortByOffset(entries, sampled);
+
+        long bytesHashed = 0;
+        for (long item : order) {
+            int i = (int) item;
+            bytesHashed += digester.digest(entries[i], digest);
+            if (!manifest.matches(positions[i], digest.digest()))
+                return new Result("Content of entry changed: \"" + index.getName(entries[i]) + "\".", sampled, bytesHashed, 0, start);
+        }
+        for (int i = 0; i < sampled; i++) {
+            verified.set(positions[i]);
+        }
+        return new Result(null, sampled, bytesHashed, 0, start);
+    }
+
+    private Result verifyChunks(int sampleSize, Random random, BitSet verified, int[] entries, int[] positions,
+                                EntryDigester digester, MessageDigest digest, long start) throws IOException {
+        int chunkCount = manifest.getChunkCount();
+        int unverified = chunkCount - verified.cardinality();
+        int sampled = Math.min(sampleSize, unverified);
+        // Floyd's algorithm: sampled distinct chunks without array of all chunks
+        BitSet sample = new BitSet(unverified);
+        for (int j = unverified - sampled; j < unverified; j++) {
+            int chunk = random.nextInt(j + 1);
+            sample.set(sample.get(chunk) ? j : chunk);
+        }
+        if (unverified < chunkCount) {
+            // i-th sampled unverified chunk to chunk of manifest
+            BitSet chunksOfSample = new BitSet(chunkCount);
+            for (int i = 0, chunk = verified.nextClearBit(0); i < unverified; i++, chunk = verified.nextClearBit(chunk + 1)) {
+                if (sample.get(i)) chunksOfSample.set(chunk);
+            }
+            sample = chunksOfSample;
+        }
+        int[] entryOfPosition = new int[manifest.getEntryCount()];
+        for (int i = 0; i < entryOfPosition.length; i++) {
+            entryOfPosition[positions[i]] = entries[i];
+        }
+        // chunks ascend, so chunks of same entry keep their order after sort by entry offset
+        int[] chunks = new int[sampled];
+        int[] chunkEntries = new int[sampled];
+        int[] chunkPositions = new int[sampled];
+        for (int i = 0, chunk = sample.nextSetBit(0); i < sampled; i++, chunk = sample.nextSetBit(chunk + 1)) {
+            chunks[i] = chunk;
+            chunkPositions[i] = manifest.positionOfChunk(chunk);
+            chunkEntries[i] = entryOfPosition[chunkPositions[i]];
+        }
+        long[] order = sortByOffset(chunkEntries, sampled);
+
+        long chunkSize = manifest.getChunkSize();
+        long bytesHashed = 0;
+        long bytesSkipped = 0;
+        int current = -1;
+        long offset = 0; // position in uncompressed content of current entry
+        for (long item : order) {
+            int i = (int) item;
+            long chunkStart = (chunks[i] - manifest.getFirstChunk(chunkPositions[i])) * chunkSize;
+            if (chunkEntries[i] != current || chunkStart < offset) {
+                current = chunkEntries[i];
+                offset = 0;
+                digester.begin(current);
+            }
+            long skipped = digester.skip(chunkStart - offset);
+            offset += skipped;
+            bytesSkipped += skipped;
+            long hashed = digester.update(digest, chunkSize);
+            offset += hashed;
+            bytesHashed += hashed;
+            if (!manifest.matchesChunk(chunks[i], digest.digest()))
+                return new Result("Content of entry changed: \"" + index.getName(current) + "\" (bytes from " + chunkStart + ").", sampled, bytesHashed, bytesSkipped, start);
+        }
+        verified.or(sample);
+        return new Result(null, sampled, bytesHashed, bytesSkipped, start);
+    }
+
+    /**
+     * @return - indexes of first <code>sampled</code> elements sorted by local header offset of their entries (sequential reading of apk).
+     */
+    private long[] sortByOffset(int[] entries, int sampled) {
+        long[] order = new long[sampled];
+        for (int i = 0; i < sampled; i++) {
+            order[i] = i;
+        }
+        if (sampled >= 1 << SAMPLE_INDEX_BITS) return order;
+        for (int i = 0; i < sampled; i++) {
+            // offset in high bits, sample index in low bits
+            order[i] = (index.getLocalHeaderOffset(entries[i]) << SAMPLE_INDEX_BITS) | i;
+        }
+        Arrays.sort(order);
+        for (int i = 0; i < sampled; i++) {
+            order[i] &= (1 << SAMPLE_INDEX_BITS) - 1;
+        }
+        return order;
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int value = array[i];
+        array[i] = array[j];
+        array[j] = value;
+    }
+
+    /**
+     * Result of {@link #verify(SamplingPlan, Random)}.
+     */
+    public static final class Result {
+        private final String failure;
+        private final int sampledEntries;
+        private final long bytesHashed;
+        private final long bytesSkipped;
+        private final long elapsedNanos;
+
+        Result(String failure, int sampledEntries, long bytesHashed, long bytesSkipped, long startNanos) {
+            this.failure = failure;
+            this.sampledEntries = sampledEntries;
+            this.bytesHashed = bytesHashed;
+            this.bytesSkipped = bytesSkipped;
+            this.elapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        /**
+         * @return - true if all checked entries match manifest.
+         */
+        public boolean isValid() {
+            return failure == null;
+        }
+
+        /**
+         * @return - description of first mismatch, or null if valid.
+         */
+        public String getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return - count of sampled units (entries or chunks) which content was hashed.
+         */
+        public int getSampledEntries() {
+            return sampledEntries;
+        }
+
+        /**
+         * @return - count of hashed (uncompressed) bytes.
+         */
+        public long getBytesHashed() {
+            return bytesHashed;
+        }
+
+        /**
+         * @return - count of (uncompressed) bytes inflated without hashing to reach sampled chunks of DEFLATED entries.
+         */
+        public long getBytesSkipped() {
+            return bytesSkipped;
+        }
+
+        /**
+         * @return - time of verification.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return - measured throughput of verification for {@link SamplingPlan#forTimeBudget(IntegrityManifest, ApkIndex, int, long, double)},
+         * or 0 if nothing was hashed.
+         */
+        public double getBytesPerMillisecond() {
+            long bytes = bytesHashed + bytesSkipped; // same bytes as cost of units in SamplingPlan
+            return bytes == 0 ? 0 : bytes * 1e6 / Math.max(1, elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "IntegrityVerifier.Result{valid=" + isValid() + ", sampledEntries=" + sampledEntries + ", bytesHashed=" + bytesHashed
+                    + ", bytesSkipped=" + bytesSkipped + ", elapsedNanos=" + elapsedNanos + (failure == null ? "" : ", failure=" + failure) + "}";
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ru.lazard.tamperingprotection;
+
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton over bytes: find all of many patterns by single pass over text.<br>
+ * Automaton is compiled to dense transition table (DFA) over reduced alphabet (only bytes which are present in patterns
+ * have own column), so each byte of text cost one table lookup and time don't depend on count of patterns.<br>
+ * Text can be scanned by parts (streaming): state returned by {@link #scan} is passed to next call.<br>
+ * Immutable and thread safe.
+ */
+public final class MultiPatternMatcher {
+
+    /**
+     * State of automaton before first byte of text.
+     */
+    public static final int INITIAL_STATE = 0;
+    private static final int[] NO_MATCHES = {};
+
+    private final int[] byteClasses = new int[256];
+    private final int alphabetSize;
+    private final int[] transitions;
+    private final int[][] matches;
+    private final int patternCount;
+
+    private MultiPatternMatcher(byte[][] patterns) {
+        patternCount = patterns.length;
+
+        // reduced alphabet: class 0 is for bytes which are not present in any pattern
+        int classes = 1;
+        for (byte[] pattern : patterns) {
+            if (pattern.length == 0) throw new IllegalArgumentException("Pattern must not be empty.");
+            for (byte b : pattern) {
+                if (byteClasses[b & 0xFF] == 0) byteClasses[b & 0xFF] = classes++;
+            }
+        }
+        alphabetSize = classes;
+
+        // trie
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            maxStates += pattern.length;
+        }
+        int[] trie = new int[maxStates * alphabetSize];
+        Arrays.fill(trie, -1);
+        int[][] output = new int[maxStates][];
+        int states = 1;
+        for (int id = 0; id < patterns.length; id++) {
+            int state = INITIAL_STATE;
+            for (byte b : patterns[id]) {
+                int cell = state * alphabetSize + byteClasses[b & 0xFF];
+                if (trie[cell] < 0) trie[cell] = states++;
+                state = trie[cell];
+            }
+            output[state] = append(output[state], id);
+        }
+
+        // breadth-first: failure links are folded into transitions, outputs of failure states are merged
+        transitions = Arrays.copyOf(trie, states * alphabetSize);
+        matches = new int[states][];
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < alphabetSize; c++) {
+            int next = transitions[c];
+            if (next < 0) {
+                transitions[c] = INITIAL_STATE;
+            } else {
+                fail[next] = INITIAL_STATE;
+                queue[tail++] = next;
+            }
+        }
+        matches[INITIAL_STATE] = NO_MATCHES;
+        while (head < tail) {
+            int state = queue[head++];
+            int[] own = output[state];
+            int[] inherited = matches[fail[state]];
+            matches[state] = own == null ? inherited : merge(own, inherited);
+            for (int c = 0; c < alphabetSize; c++) {
+                int cell = state * alphabetSize + c;
+                int next = transitions[cell];
+                int fallback = transitions[fail[state] * alphabetSize + c];
+                if (next < 0) {
+                    transitions[cell] = fallback;
+                } else {
+                    fail[next] = fallback;
+                    queue[tail++] = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile patterns to automaton.
+     *
+     * @param patterns - not empty patterns, id of pattern is its index.
+     * @throws IllegalArgumentException - if pattern is empty.
+     */
+    public static MultiPatternMatcher compile(byte[]... patterns) {
+        return new MultiPatternMatcher(patterns);
+    }
+
+    /**
+     * @return - count of patterns (ids of patterns are from 0 to count - 1).
+     */
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * @return - count of states of automaton.
+     */
+    public int getStateCount() {
+        return matches.length;
+    }
+
+    /**
+     * @return - state after byte <code>b</code>.
+     */
+    public int next(int state, byte b) {
+        return transitions[state * alphabetSize + byteClasses[b & 0xFF]];
+    }
+
+    /**
+     * @return - ids of patterns which end at this state (don't modify returned array).
+     */
+    public int[] getMatches(int state) {
+        return matches[state];
+    }
+
+    /**
+     * Scan part of text.
+     *
+     * @param state  - state after previous part of text, or {@link #INITIAL_STATE}.
+     * @param found  - (size of {@link #getPatternCount()}) flags of found patterns, flag of each found pattern is set to true.
+     * @return - state after this part of text.
+     */
+    public int scan(int state, byte[] text, int offset, int length, boolean[] found) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            state = transitions[state * alphabetSize + byteClasses[text[i] & 0xFF]];
+            int[] ids = matches[state];
+            for (int id : ids) {
+                found[id] = true;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Scan whole text.
+     *
+     * @return - flags of found patterns (by id).
+     */
+    public boolean[] find(byte[] text) {
+        boolean[] found = new boolean[patternCount];
+        scan(INITIAL_STATE, text, 0, text.length, found);
+        return found;
+    }
+
+    private static int[] append(int[] array, int value) {
+        if (array == null) return new int[]{value};
+        int[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    private static int[] merge(int[] a, int[] b) {
+        if (b.length == 0) return a;
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
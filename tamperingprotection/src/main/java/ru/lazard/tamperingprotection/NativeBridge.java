@@ -0,0 +1,143 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Optional native backend of most expensive checks (library <code>libtamperingprotection.so</code>, sources in <code>src/main/jni</code>):<br>
+ * 1) central directory parsing of {@link ApkIndex},<br>
+ * 2) SHA-256 of memory-mapped content ({@link NativeLibDigester}, big STORED entries of {@link ApkContentDigest}),
+ * by SHA extensions of CPU (x86-64 SHA-NI, ARMv8 SHA2) where CPU supports them,<br>
+ * 3) procfs scanning of {@link ProcScanner}.<br>
+ * Native code gives same results and throws same exceptions as java code. If library is not packaged into apk
+ * (or can't be loaded) all checks silently run in java.<br>
+ * Library is loaded once: from path of system property <code>tp.native.lib</code> if it's set (host tests and benchmarks),
+ * else by <code>System.loadLibrary("tamperingprotection")</code>.
+ */
+public final class NativeBridge {
+
+    /**
+     * Version of native interface, library of other version is not used.
+     */
+    static final int VERSION = 1;
+    static final String LIBRARY_NAME = "tamperingprotection";
+    static final String LIBRARY_PATH_PROPERTY = "tp.native.lib";
+    static final int TABLE_HEADER_SIZE = 6;
+    static final int TABLE_ENTRY_SIZE = 6;
+
+    private static final Throwable loadError = load();
+    private static volatile boolean enabled = true;
+
+    private NativeBridge() {
+    }
+
+    private static Throwable load() {
+        try {
+            String path = System.getProperty(LIBRARY_PATH_PROPERTY);
+            if (path != null && path.length() > 0) {
+                System.load(new File(path).getAbsolutePath());
+            } else {
+                System.loadLibrary(LIBRARY_NAME);
+            }
+            int version = nativeVersion();
+            if (version != VERSION)
+                return new UnsatisfiedLinkError("Native library version " + version + ", required " + VERSION + ".");
+            return null;
+        } catch (UnsatisfiedLinkError error) {
+            return error;
+        } catch (SecurityException exception) {
+            return exception;
+        }
+    }
+
+    /**
+     * @return - true if native library is loaded and backend is enabled, so checks use native code.
+     */
+    public static boolean isAvailable() {
+        return enabled && loadError == null;
+    }
+
+    /**
+     * @return - true if native library is loaded (even if backend is disabled).
+     */
+    public static boolean isLoaded() {
+        return loadError == null;
+    }
+
+    /**
+     * @return - reason why native library is not loaded, or null if it's loaded.
+     */
+    public static Throwable getLoadError() {
+        return loadError;
+    }
+
+    /**
+     * Enable or disable native backend (enabled by default). Disabled backend is useful to compare both paths.
+     */
+    public static void setEnabled(boolean enabled) {
+        NativeBridge.enabled = enabled;
+    }
+
+    /**
+     * @return - SHA-256 implementation used by native code: <code>"sha-ni"</code>, <code>"armv8"</code>, <code>"portable"</code>,
+     * or <code>"java"</code> if native library is not loaded.
+     */
+    public static String getShaBackend() {
+        return isLoaded() ? nativeShaBackend() : "java";
+    }
+
+    /**
+     * Allow or forbid SHA extensions of CPU (tests check portable C code on CPU with extensions).
+     */
+    static void setHardwareSha(boolean allowed) {
+        if (isLoaded()) nativeSetHardwareSha(allowed);
+    }
+
+    /**
+     * Parse central directory of zip file.
+     *
+     * @param names - array of one element, it's set to names of all entries (UTF-8, one after another).
+     * @return - table: {@link #TABLE_HEADER_SIZE} values (fileLength, centralDirectoryOffset, centralDirectorySize, eocdOffset,
+     * entryCount, bytesRead), then {@link #TABLE_ENTRY_SIZE} values of each entry (method, crc, compressedSize, size,
+     * localHeaderOffset, nameLength).
+     * @throws IOException - if file can't be read or it's not a valid zip file (same messages as {@link ApkIndex#read(File)}).
+     */
+    static long[] readCentralDirectory(String path, byte[][] names) throws IOException {
+        long[] table = nativeReadCentralDirectory(path, names);
+        CheckCounters.addBytesRead(table[5]);
+        return table;
+    }
+
+    /**
+     * @return - SHA-256 of region of file.
+     * @throws IOException - if file can't be read or region is out of file.
+     */
+    static byte[] sha256(String path, long offset, long length) throws IOException {
+        byte[] digest = nativeSha256(path, offset, length);
+        CheckCounters.addBytesRead(length);
+        return digest;
+    }
+
+    /**
+     * Scan file for patterns, see {@link ProcScanner#scan(boolean[])}.
+     *
+     * @param patterns - all patterns one after another.
+     * @param lengths  - length of each pattern.
+     * @return - count of patterns found by this scan (flags which were not set before).
+     */
+    static int scan(String path, byte[] patterns, int[] lengths, boolean[] found) throws IOException {
+        return nativeScan(path, patterns, lengths, found);
+    }
+
+    private static native int nativeVersion();
+
+    private static native String nativeShaBackend();
+
+    private static native void nativeSetHardwareSha(boolean allowed);
+
+    private static native long[] nativeReadCentralDirectory(String path, byte[][] names) throws IOException;
+
+    private static native byte[] nativeSha256(String path, long offset, long length) throws IOException;
+
+    private static native int nativeScan(String path, byte[] patterns, int[] lengths, boolean[] found) throws IOException;
+}
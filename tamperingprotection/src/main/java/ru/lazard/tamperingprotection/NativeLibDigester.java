@@ -0,0 +1,258 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * SHA-256 digests of native libraries (<code>lib/&lt;abi&gt;/*.so</code>) of running ABI.<br>
+ * Libraries are listed by apk central directory ({@link ApkIndex}), each library is hashed from file which is really loaded:<br>
+ * 1) extracted file in <code>ApplicationInfo.nativeLibraryDir</code> (<code>extractNativeLibs="true"</code>, default before Android 6),<br>
+ * 2) STORED entry inside apk (<code>extractNativeLibs="false"</code>: entry is page aligned and loaded by linker directly from apk).<br>
+ * Both are hashed through memory-mapped buffer (no stream copy, no extraction), by native code if {@link NativeBridge} is available. DEFLATED entry without extracted file
+ * (apk checked on desktop) is inflated by {@link EntryDigester}.<br>
+ * Digest of library is SHA-256 of its content, so it's same as <code>unzip -p app.apk lib/arm64-v8a/libnative.so | sha256sum</code>.
+ */
+public final class NativeLibDigester {
+
+    /**
+     * Library is hashed from extracted file in native library dir.
+     */
+    public static final int SOURCE_EXTRACTED = 0;
+    /**
+     * Library is hashed in place: memory-mapped STORED entry of apk.
+     */
+    public static final int SOURCE_APK_MAPPED = 1;
+    /**
+     * Library is hashed from inflated DEFLATED entry of apk.
+     */
+    public static final int SOURCE_APK_INFLATED = 2;
+
+    static final String LIB_PREFIX = "lib/";
+    static final String LIB_SUFFIX = ".so";
+    static final int PAGE_SIZE = 4096;
+    private static final int MAX_MAPPED_SIZE = 64 * 1024 * 1024;
+
+    private NativeLibDigester() {
+    }
+
+    /**
+     * Select ABI of native libraries which are installed on device: first supported ABI which has libraries in apk
+     * (same rule as PackageManager uses on install).
+     *
+     * @param supportedAbis - ABIs of device, preferred first (<code>Build.SUPPORTED_ABIS</code>).
+     * @return - ABI, or null if apk has no native libraries for device.
+     */
+    public static String selectAbi(ApkIndex index, String[] supportedAbis) {
+        for (String abi : supportedAbis) {
+            if (abi != null && getLibraryEntries(index, abi).length > 0) return abi;
+        }
+        return null;
+    }
+
+    /**
+     * @return - indexes of <code>lib/&lt;abi&gt;/*.so</code> entries (libraries of subdirectories are not loaded and ignored), sorted by name.
+     */
+    public static int[] getLibraryEntries(final ApkIndex index, String abi) {
+        String prefix = LIB_PREFIX + abi + "/";
+        List<Integer> entries = new ArrayList<Integer>();
+        for (int i = 0; i < index.size(); i++) {
+            String name = index.getName(i);
+            if (name.startsWith(prefix) && name.endsWith(LIB_SUFFIX) && name.indexOf('/', prefix.length()) < 0 && name.length() > prefix.length() + LIB_SUFFIX.length())
+                entries.add(i);
+        }
+        Integer[] sorted = entries.toArray(new Integer[entries.size()]);
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return index.getName(a).compareTo(index.getName(b));
+            }
+        });
+        int[] result = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            result[i] = sorted[i];
+        }
+        return result;
+    }
+
+    /**
+     * Hash all native libraries of ABI.
+     *
+     * @param index            - index of apk.
+     * @param abi              - ABI of libraries (see {@link #selectAbi(ApkIndex, String[])}).
+     * @param nativeLibraryDir - dir of extracted libraries (<code>ApplicationInfo.nativeLibraryDir</code>), nullable.
+     *                         Library is hashed from apk if it's not extracted.
+     */
+    public static Result digest(ApkIndex index, String abi, File nativeLibraryDir) throws IOException, NoSuchAlgorithmException {
+        long start = System.nanoTime();
+        MessageDigest digest = MessageDigest.getInstance(ApkContentDigest.ALGORITHM);
+        int[] entries = getLibraryEntries(index, abi);
+        String[] names = new String[entries.length];
+        byte[][] digests = new byte[entries.length][];
+        int[] sources = new int[entries.length];
+        boolean[] pageAligned = new boolean[entries.length];
+        long bytesHashed = 0;
+        RandomAccessFile apk = null;
+        EntryDigester entryDigester = null;
+        try {
+            for (int i = 0; i < entries.length; i++) {
+                int entry = entries[i];
+                names[i] = index.getName(entry);
+                File extracted = nativeLibraryDir == null ? null : new File(nativeLibraryDir, names[i].substring(names[i].lastIndexOf('/') + 1));
+                if (extracted != null && extracted.isFile()) {
+                    sources[i] = SOURCE_EXTRACTED;
+                    if (NativeBridge.isAvailable()) {
+                        long length = extracted.length();
+                        digests[i] = NativeBridge.sha256(extracted.getPath(), 0, length);
+                        bytesHashed += length;
+                        continue;
+                    }
+                    bytesHashed += digestFile(extracted, digest);
+                } else {
+                    if (entryDigester == null) entryDigester = new EntryDigester(index);
+                    if (index.getMethod(entry) == ApkIndex.METHOD_STORED && index.getCompressedSize(entry) == index.getSize(entry)) {
+                        long offset = entryDigester.getDataOffset(entry);
+                        sources[i] = SOURCE_APK_MAPPED;
+                        pageAligned[i] = offset % PAGE_SIZE == 0;
+                        if (NativeBridge.isAvailable()) {
+                            digests[i] = NativeBridge.sha256(index.getPath(), offset, index.getSize(entry));
+                            bytesHashed += index.getSize(entry);
+                            continue;
+                        }
+                        if (apk == null) apk = new RandomAccessFile(new File(index.getPath()), "r");
+                        bytesHashed += digestMapped(apk.getChannel(), offset, index.getSize(entry), digest);
+                    } else {
+                        sources[i] = SOURCE_APK_INFLATED;
+                        bytesHashed += entryDigester.digest(entry, digest);
+                    }
+                }
+                digests[i] = digest.digest();
+            }
+        } finally {
+            if (entryDigester != null) entryDigester.close();
+            if (apk != null) apk.close();
+        }
+        return new Result(abi, names, digests, sources, pageAligned, bytesHashed, System.nanoTime() - start);
+    }
+
+    /**
+     * Hash whole file through memory-mapped buffer.
+     *
+     * @return - count of hashed bytes.
+     */
+    static long digestFile(File file, MessageDigest digest) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return digestMapped(randomAccessFile.getChannel(), 0, randomAccessFile.length(), digest);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static long digestMapped(FileChannel channel, long offset, long length, MessageDigest digest) throws IOException {
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            long window = Math.min(MAX_MAPPED_SIZE, end - position);
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, window));
+            position += window;
+        }
+        CheckCounters.addBytesRead(length);
+        return length;
+    }
+
+    /**
+     * Digests of native libraries of one ABI.
+     */
+    public static final class Result {
+        private final String abi;
+        private final String[] names;
+        private final byte[][] digests;
+        private final int[] sources;
+        private final boolean[] pageAligned;
+        private final long bytesHashed;
+        private final long elapsedNanos;
+
+        Result(String abi, String[] names, byte[][] digests, int[] sources, boolean[] pageAligned, long bytesHashed, long elapsedNanos) {
+            this.abi = abi;
+            this.names = names;
+            this.digests = digests;
+            this.sources = sources;
+            this.pageAligned = pageAligned;
+            this.bytesHashed = bytesHashed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getAbi() {
+            return abi;
+        }
+
+        public int getLibraryCount() {
+            return names.length;
+        }
+
+        /**
+         * @return - entry name of library, for example <code>"lib/arm64-v8a/libnative.so"</code>.
+         */
+        public String getName(int library) {
+            return names[library];
+        }
+
+        /**
+         * @return - lowercase hex SHA-256 digest of library.
+         */
+        public String getDigest(int library) {
+            return Hex.toHex(digests[library]);
+        }
+
+        /**
+         * @return - lowercase hex SHA-256 digests of all libraries (in order of names).
+         */
+        public String[] getDigests() {
+            String[] hex = new String[digests.length];
+            for (int i = 0; i < hex.length; i++) {
+                hex[i] = Hex.toHex(digests[i]);
+            }
+            return hex;
+        }
+
+        /**
+         * @return - one of <code>SOURCE_*</code> constants.
+         */
+        public int getSource(int library) {
+            return sources[library];
+        }
+
+        /**
+         * @return - true if library is hashed in place from apk and its data is aligned to 4 Kb page
+         * (required by linker to load library from apk, see <code>zipalign -p</code>).
+         */
+        public boolean isPageAligned(int library) {
+            return pageAligned[library];
+        }
+
+        public long getBytesHashed() {
+            return bytesHashed;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("NativeLibDigester.Result{abi=").append(abi);
+            for (int i = 0; i < names.length; i++) {
+                builder.append(i == 0 ? ", " : "; ").append(names[i]).append('=').append(getDigest(i));
+            }
+            return builder.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package ru.lazard.tamperingprotection;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Verification record of apk kept in file between launches: signing certificates, dex CRC code and digest
+ * and passed verdicts of expensive checks (integrity manifest). Sampled check keeps units (entries or chunks) verified so far:
+ * later launches sample the rest, verdict is saved only when all units are verified. On cold start validation reads one small file
+ * and checks apk identity (path, length, modification time and SHA-256 of zip central directory) instead of full verification.<br>
+ * Record is dropped and all facts are calculated again when apk identity not match, file is broken or has other version.<br>
+ * File is replaced atomically (written to temp file, synced, then renamed) and ends with CRC32 of content,
+ * so torn or partial write is never read as record (then verification just runs in full). Saving is best effort: failed write
+ * (full disk, read-only dir) is counted by {@link #getWriteErrorCount()}, calculated facts are still returned.
+ * Facts calculated during one validation are saved by one write when validation completes.<br>
+ * Only passed verdicts are saved: failed check is verified again on each validation.<br>
+ * Enable it by {@link TamperingProtection#setPersistentCache(PersistentValidationCache)}. Thread safe.<br>
+ * <b>Note:</b> record is a cache, not a protection by itself: keep it in private files of app.
+ */
+public final class PersistentValidationCache {
+
+    /**
+     * Default name of record file in <code>Context.getFilesDir()</code>.
+     */
+    public static final String DEFAULT_FILE_NAME = "tp_verification.bin";
+
+    private static final int RECORD_MAGIC = 0x54505652; // "TPVR"
+    private static final int RECORD_VERSION = 2;
+    private static final int DIGEST_SIZE = 32;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rejects = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private Record record; // guarded by this
+    private boolean isLoaded; // guarded by this
+    private boolean isDirty; // guarded by this, record changed and not saved
+    private int batches; // guarded by this, count of running validations which save record on completion
+
+    /**
+     * @param file - record file (created on first save).
+     */
+    public PersistentValidationCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Cache with record file {@link #DEFAULT_FILE_NAME} in private files dir of app.
+     */
+    public static PersistentValidationCache of(Context context) {
+        return new PersistentValidationCache(new File(context.getFilesDir(), DEFAULT_FILE_NAME));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Saved MD5 fingerprints of signing certificates (same as {@link TamperingProtection#getSignatures(Context)}).
+     */
+    public String[] getSignatures(EnvironmentProbe probe) throws IOException, NoSuchAlgorithmException {
+        return SignatureFingerprints.md5(getSignatureCertificates(probe));
+    }
+
+    /**
+     * Saved encoded signing certificates from PackageManager.
+     */
+    synchronized byte[][] getSignatureCertificates(EnvironmentProbe probe) throws IOException {
+        Record record = record(probe);
+        if (record.certificates != null) return hit(record.certificates);
+        misses.incrementAndGet();
+        byte[][] certificates = probe.getSignatureCertificates();
+        if (certificates != null && certificates.length > 0) { // empty result of PackageManager is not saved
+            record.certificates = certificates;
+            changed();
+        }
+        return certificates;
+    }
+
+    /**
+     * Saved signing certificates from APK Signing Block.
+     */
+    synchronized byte[][] getApkCertificates(EnvironmentProbe probe) throws IOException {
+        Record record = record(probe);
+        if (record.apkCertificates != null) return hit(record.apkCertificates);
+        misses.incrementAndGet();
+        byte[][] certificates = TamperingProtection.getApkCertificates(probe.getApkPath());
+        record.apkCertificates = certificates;
+        changed();
+        return certificates;
+    }
+
+    /**
+     * Saved CRC code of dex files (same as {@link TamperingProtection#getDexCRC(Context)}).
+     */
+    public synchronized long getDexCRC(EnvironmentProbe probe) throws IOException {
+        Record record = record(probe);
+        if (record.hasDexCrc) return hit(record.dexCrc);
+        misses.incrementAndGet();
+        record.dexCrc = ApkIndex.of(probe.getApkPath()).getDexCrc();
+        record.hasDexCrc = true;
+        changed();
+        return record.dexCrc;
+    }
+
+    /**
+     * Saved SHA-256 digest of dex files (same as {@link TamperingProtection#getDexDigest(Context)}).
+     */
+    public synchronized String getDexDigest(EnvironmentProbe probe) throws IOException, NoSuchAlgorithmException {
+        Record record = record(probe);
+        if (record.dexDigest != null) return hit(record.dexDigest);
+        misses.incrementAndGet();
+        record.dexDigest = DexDigester.digest(ApkIndex.of(probe.getApkPath()));
+        changed();
+        return record.dexDigest;
+    }
+
+    /**
+     * @param verdict - key of verdict: name of check and digest of its expected values, for example <code>"integrity:&lt;digest of manifest&gt;"</code>.
+     * @return - true if check passed for same apk and same expected values before.
+     */
+    synchronized boolean isPassed(EnvironmentProbe probe, String verdict) throws IOException {
+        Record record = record(probe);
+        if (record.verdicts.contains(verdict)) return hit(Boolean.TRUE);
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Save passed verdict of check (see {@link #isPassed(EnvironmentProbe, String)}).
+     */
+    synchronized void setPassed(EnvironmentProbe probe, String verdict) throws IOException {
+        Record record = record(probe);
+        boolean isChanged = record.verdicts.add(verdict);
+        for (Iterator<String> iterator = record.verifiedUnits.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().startsWith(verdict + ":")) {
+                iterator.remove(); // units of passed check are not needed
+                isChanged = true;
+            }
+        }
+        if (isChanged) changed();
+    }
+
+    /**
+     * @param key - key of units: verdict of sampled check and kind of unit, for example <code>"integrity:&lt;digest of manifest&gt;:chunks"</code>.
+     * @return - units verified for same apk before (copy, empty if nothing verified).
+     */
+    synchronized BitSet getVerifiedUnits(EnvironmentProbe probe, String key) throws IOException {
+        BitSet units = record(probe).verifiedUnits.get(key);
+        return units == null ? new BitSet() : (BitSet) units.clone();
+    }
+
+    /**
+     * Save units verified for current apk (see {@link #getVerifiedUnits(EnvironmentProbe, String)}).
+     */
+    synchronized void setVerifiedUnits(EnvironmentProbe probe, String key, BitSet units) throws IOException {
+        Record record = record(probe);
+        if (units.equals(record.verifiedUnits.get(key))) return;
+        record.verifiedUnits.put(key, (BitSet) units.clone());
+        changed();
+    }
+
+    /**
+     * Delete record file and drop loaded record. Next call of any getter verifies apk again.
+     */
+    public synchronized void invalidate() {
+        record = null;
+        isDirty = false;
+        isLoaded = true;
+        if (file.exists() && !file.delete()) file.deleteOnExit();
+    }
+
+    /**
+     * @return - count of facts and verdicts returned from record.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return - count of facts and verdicts which were not in record (calculated or verified in full).
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return - count of records dropped because file is broken, has other version or saved for other apk.
+     */
+    public long getRejectedCount() {
+        return rejects.get();
+    }
+
+    /**
+     * @return - count of record file writes.
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * @return - count of failed record file writes (facts are kept in memory and saved on next change).
+     */
+    public long getWriteErrorCount() {
+        return writeErrors.get();
+    }
+
+    public void resetCounters() {
+        hits.set(0);
+        misses.set(0);
+        rejects.set(0);
+        writes.set(0);
+        writeErrors.set(0);
+    }
+
+    private <T> T hit(T value) {
+        hits.incrementAndGet();
+        return value;
+    }
+
+    /**
+     * @return - record of current apk: loaded from file on first call, checked by length and modification time of apk on next calls
+     * (central directory is hashed again only when file of apk changed).
+     */
+    private Record record(EnvironmentProbe probe) throws IOException {
+        File apk = new File(probe.getApkPath());
+        if (record != null && record.identity.matches(apk)) return record;
+        ApkIdentity identity = ApkIdentity.of(apk, 0);
+        byte[] centralDirectoryDigest = digestCentralDirectory(ApkIndex.of(apk.getPath()));
+        if (!isLoaded) {
+            isLoaded = true;
+            Record saved = load();
+            if (saved != null && saved.identity.matches(apk) && Arrays.equals(saved.centralDirectoryDigest, centralDirectoryDigest)) {
+                record = saved;
+                return record;
+            }
+            if (saved != null) rejects.incrementAndGet();
+        } else if (record != null) {
+            rejects.incrementAndGet();
+        }
+        record = new Record(identity, centralDirectoryDigest);
+        return record;
+    }
+
+    /**
+     * @return - SHA-256 of zip central directory: names, CRC codes and sizes of all entries.
+     */
+    static byte[] digestCentralDirectory(ApkIndex index) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(index.getPath(), "r");
+        try {
+            MessageDigest digest = MessageDigest.getInstance(ApkContentDigest.ALGORITHM);
+            digest.update(ApkIndex.readFully(randomAccessFile.getChannel(), index.getCentralDirectoryOffset(), (int) index.getCentralDirectorySize()));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception); // SHA-256 is always available
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private Record load() {
+        if (!file.isFile() || file.length() > MAX_RECORD_SIZE) return null;
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+            Record record = decode(bytes);
+            if (record == null) rejects.incrementAndGet();
+            return record;
+        } catch (IOException exception) {
+            rejects.incrementAndGet();
+            return null; // unreadable record: verify in full
+        }
+    }
+
+    /**
+     * Defer saving of changed record until end of validation ({@link #endBatch()}).
+     */
+    synchronized void beginBatch() {
+        batches++;
+    }
+
+    /**
+     * Save record once if it was changed since {@link #beginBatch()} (and no other validation is running).
+     */
+    synchronized void endBatch() {
+        if (batches > 0) batches--;
+        if (batches == 0 && isDirty) flush();
+    }
+
+    private void changed() {
+        isDirty = true;
+        if (batches == 0) flush();
+    }
+
+    /**
+     * Save record, best effort: failed write is counted and record is saved again on next change.
+     */
+    private void flush() {
+        if (record == null) return;
+        try {
+            save(record);
+            isDirty = false;
+        } catch (IOException exception) {
+            writeErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Write record to temp file, sync it and rename over record file.
+     */
+    private void save(Record record) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(encode(record));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+        writes.incrementAndGet();
+    }
+
+    static byte[] encode(Record record) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(RECORD_MAGIC);
+            out.writeByte(RECORD_VERSION);
+            out.writeUTF(record.identity.getPath());
+            out.writeLong(record.identity.getLength());
+            out.writeLong(record.identity.getLastModified());
+            out.write(record.centralDirectoryDigest);
+            writeCertificates(out, record.certificates);
+            writeCertificates(out, record.apkCertificates);
+            out.writeBoolean(record.hasDexCrc);
+            out.writeLong(record.dexCrc);
+            out.writeBoolean(record.dexDigest != null);
+            if (record.dexDigest != null) out.writeUTF(record.dexDigest);
+            out.writeInt(record.verdicts.size());
+            for (String verdict : record.verdicts) {
+                out.writeUTF(verdict);
+            }
+            out.writeInt(record.verifiedUnits.size());
+            for (Map.Entry<String, BitSet> units : record.verifiedUnits.entrySet()) {
+                out.writeUTF(units.getKey());
+                writeUnits(out, units.getValue());
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException exception) {
+            throw new IllegalStateException(exception); // not possible for in memory stream
+        }
+    }
+
+    /**
+     * @return - record or null if bytes are broken (wrong CRC, truncated, trailing bytes) or have other version.
+     */
+    static Record decode(byte[] bytes) {
+        if (bytes == null || bytes.length < 8) return null;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        int expectedCrc = ((bytes[bytes.length - 4] & 0xFF) << 24) | ((bytes[bytes.length - 3] & 0xFF) << 16)
+                | ((bytes[bytes.length - 2] & 0xFF) << 8) | (bytes[bytes.length - 1] & 0xFF);
+        if ((int) crc.getValue() != expectedCrc) return null;
+        try {
+            ByteArrayInputStream stream = new ByteArrayInputStream(bytes, 0, bytes.length - 4);
+            DataInputStream in = new DataInputStream(stream);
+            if (in.readInt() != RECORD_MAGIC || in.readByte() != RECORD_VERSION) return null;
+            ApkIdentity identity = new ApkIdentity(in.readUTF(), in.readLong(), in.readLong(), 0);
+            byte[] centralDirectoryDigest = new byte[DIGEST_SIZE];
+            in.readFully(centralDirectoryDigest);
+            Record record = new Record(identity, centralDirectoryDigest);
+            record.certificates = readCertificates(in);
+            record.apkCertificates = readCertificates(in);
+            record.hasDexCrc = in.readBoolean();
+            record.dexCrc = in.readLong();
+            if (in.readBoolean()) record.dexDigest = in.readUTF();
+            int verdicts = in.readInt();
+            if (verdicts < 0) return null;
+            for (int i = 0; i < verdicts; i++) {
+                record.verdicts.add(in.readUTF());
+            }
+            int verifiedUnits = in.readInt();
+            if (verifiedUnits < 0) return null;
+            for (int i = 0; i < verifiedUnits; i++) {
+                record.verifiedUnits.put(in.readUTF(), readUnits(in));
+            }
+            if (stream.available() != 0) return null;
+            return record;
+        } catch (EOFException exception) {
+            return null;
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    private static void writeCertificates(DataOutputStream out, byte[][] certificates) throws IOException {
+        out.writeInt(certificates == null ? -1 : certificates.length);
+        if (certificates == null) return;
+        for (byte[] certificate : certificates) {
+            out.writeInt(certificate.length);
+            out.write(certificate);
+        }
+    }
+
+    private static byte[][] readCertificates(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) return null;
+        if (count > in.available()) throw new EOFException();
+        byte[][] certificates = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) throw new EOFException();
+            certificates[i] = new byte[length];
+            in.readFully(certificates[i]);
+        }
+        return certificates;
+    }
+
+    /**
+     * Write units as bitmap (bit i is bit <code>i % 8</code> of byte <code>i / 8</code>).
+     */
+    private static void writeUnits(DataOutputStream out, BitSet units) throws IOException {
+        byte[] bitmap = new byte[(units.length() + 7) / 8];
+        for (int unit = units.nextSetBit(0); unit >= 0; unit = units.nextSetBit(unit + 1)) {
+            bitmap[unit >>> 3] |= 1 << (unit & 7);
+        }
+        out.writeInt(bitmap.length);
+        out.write(bitmap);
+    }
+
+    private static BitSet readUnits(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new EOFException();
+        byte[] bitmap = new byte[length];
+        in.readFully(bitmap);
+        BitSet units = new BitSet(length * 8);
+        for (int unit = 0; unit < length * 8; unit++) {
+            if ((bitmap[unit >>> 3] & (1 << (unit & 7))) != 0) units.set(unit);
+        }
+        return units;
+    }
+
+    /**
+     * Saved facts of one apk.
+     */
+    static final class Record {
+        final ApkIdentity identity;
+        final byte[] centralDirectoryDigest;
+        byte[][] certificates;
+        byte[][] apkCertificates;
+        boolean hasDexCrc;
+        long dexCrc;
+        String dexDigest;
+        final Set<String> verdicts = new LinkedHashSet<String>();
+        final Map<String, BitSet> verifiedUnits = new LinkedHashMap<String, BitSet>();
+
+        Record(ApkIdentity identity, byte[] centralDirectoryDigest) {
+            this.identity = identity;
+            this.centralDirectoryDigest = centralDirectoryDigest;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming scanner of procfs file (<code>/proc/self/maps</code>, <code>/proc/self/status</code>) for byte signatures:
+ * libraries and paths of hooking frameworks (Frida, Xposed/LSPosed, Substrate) or fields of process status (<code>TracerPid:</code>).<br>
+ * File is kept open and re-read from start through one reused buffer, signatures are matched by {@link MultiPatternMatcher}
+ * over raw bytes. So scan allocates nothing (no <code>String</code> per line) and cost is one pass over file
+ * for any count of signatures (maps of big app has thousands of lines).
+ * If {@link NativeBridge} is available file is scanned by native code (same result).<br>
+ * Thread safe (scans are serialized), reuse one scanner for repeated checks.
+ */
+public final class ProcScanner implements Closeable {
+
+    /**
+     * Memory maps of current process: loaded libraries, jars and mapped files.
+     */
+    public static final File MAPS = new File("/proc/self/maps");
+    /**
+     * Status of current process.
+     */
+    public static final File STATUS = new File("/proc/self/status");
+    /**
+     * Field of {@link #STATUS} with pid of tracer (0 - not traced).
+     */
+    public static final String TRACER_PID = "TracerPid:";
+
+    /**
+     * Signatures of hooking frameworks in {@link #MAPS} (libraries, jars and paths of injected code).<br>
+     * Every signature starts with <code>/</code> and so is anchored to start of file name or path segment:
+     * bare names ("lspd", "edxp", "zygisk") would be found inside any unrelated path (<code>libtoolspdf.so</code>).
+     */
+    public static final String[] DEFAULT_HOOK_SIGNATURES = {
+            // Frida: agent injected by frida-server, gadget embedded into repacked apk, named pipes of agent
+            "/frida-agent", "/frida-gadget", "/libfrida-gadget", "/linjector-", "/frida-", "/re.frida.server/",
+            // Magisk/KernelSU modules (Riru, Zygisk, LSPosed) are loaded from /data/adb, app code never is
+            "/data/adb/", "/zygisk/", "/libriru",
+            // Xposed, EdXposed and LSPosed
+            "/XposedBridge.jar", "/libxposed", "/edxp.jar", "/libriru_edxp.so", "/lspd/", "/liblspd.so",
+            // Cydia Substrate
+            "/libsubstrate.so", "/libsubstrate-dvm.so", "/com.saurik.substrate",
+    };
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final String[] signatures;
+    private final MultiPatternMatcher matcher;
+    private final byte[] nativePatterns;
+    private final int[] nativeLengths;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private RandomAccessFile input;
+
+    /**
+     * @param file       - procfs file (or fixture file in tests).
+     * @param signatures - not empty byte signatures (UTF-8), id of signature is its index.
+     */
+    public ProcScanner(File file, String... signatures) {
+        this.file = file;
+        this.signatures = signatures.clone();
+        byte[][] patterns = new byte[signatures.length][];
+        int length = 0;
+        for (int i = 0; i < signatures.length; i++) {
+            patterns[i] = signatures[i].getBytes(UTF_8);
+            length += patterns[i].length;
+        }
+        this.matcher = MultiPatternMatcher.compile(patterns);
+        // same patterns for NativeBridge: one after another
+        this.nativePatterns = new byte[length];
+        this.nativeLengths = new int[patterns.length];
+        int offset = 0;
+        for (int i = 0; i < patterns.length; i++) {
+            System.arraycopy(patterns[i], 0, nativePatterns, offset, patterns[i].length);
+            nativeLengths[i] = patterns[i].length;
+            offset += patterns[i].length;
+        }
+    }
+
+    /**
+     * @return - scanner of {@link #MAPS} with {@link #DEFAULT_HOOK_SIGNATURES}.
+     */
+    public static ProcScanner forHooks() {
+        return new ProcScanner(MAPS, DEFAULT_HOOK_SIGNATURES);
+    }
+
+    /**
+     * @return - scanner of {@link #STATUS} for {@link #readField(int)} of {@link #TRACER_PID} (signature 0).
+     */
+    public static ProcScanner forTracerPid() {
+        return new ProcScanner(STATUS, TRACER_PID);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSignatureCount() {
+        return signatures.length;
+    }
+
+    public String getSignature(int id) {
+        return signatures[id];
+    }
+
+    /**
+     * Scan whole file.
+     *
+     * @param found - (size of {@link #getSignatureCount()}) flag of each found signature is set to true, other flags are not changed.
+     * @return - count of signatures found by this scan.
+     */
+    public synchronized int scan(boolean[] found) throws IOException {
+        if (found.length < signatures.length) throw new IllegalArgumentException("found.length=" + found.length);
+        if (NativeBridge.isAvailable()) return NativeBridge.scan(file.getPath(), nativePatterns, nativeLengths, found);
+        RandomAccessFile input = open();
+        int count = 0;
+        int state = MultiPatternMatcher.INITIAL_STATE;
+        int read;
+        while ((read = input.read(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                state = matcher.next(state, buffer[i]);
+                for (int id : matcher.getMatches(state)) {
+                    if (!found[id]) {
+                        found[id] = true;
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read decimal value which follows first occurrence of signature, for example <code>"TracerPid:\t1234"</code>.
+     *
+     * @param id - id of signature (field name).
+     * @return - value of field, or -1 if file has no field.
+     * @throws IOException - if file can't be read or field has no value.
+     */
+    public synchronized long readField(int id) throws IOException {
+        RandomAccessFile input = open();
+        int state = MultiPatternMatcher.INITIAL_STATE;
+        boolean inField = false;
+        boolean hasDigits = false;
+        long value = 0;
+        int read;
+        while ((read = input.read(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                if (!inField) {
+                    state = matcher.next(state, b);
+                    inField = contains(matcher.getMatches(state), id);
+                } else if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    hasDigits = true;
+                    if (value < 0) throw new IOException("Value of \"" + signatures[id] + "\" is too big in " + file);
+                } else if (hasDigits || (b != ' ' && b != '\t')) {
+                    if (!hasDigits) throw new IOException("No value of \"" + signatures[id] + "\" in " + file);
+                    return value;
+                }
+            }
+        }
+        if (!inField) return -1;
+        if (!hasDigits) throw new IOException("No value of \"" + signatures[id] + "\" in " + file);
+        return value;
+    }
+
+    /**
+     * @return - found signatures separated by comma (for error messages).
+     */
+    public String describe(boolean[] found) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < signatures.length; i++) {
+            if (!found[i]) continue;
+            if (builder.length() > 0) builder.append(", ");
+            builder.append(signatures[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Close file (next scan opens it again).
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (input == null) return;
+        try {
+            input.close();
+        } finally {
+            input = null;
+        }
+    }
+
+    /**
+     * @return - file positioned at start. Procfs files are generated on read, so re-read after seek gives fresh content.
+     */
+    private RandomAccessFile open() throws IOException {
+        if (input == null) {
+            input = new RandomAccessFile(file, "r");
+        } else {
+            input.seek(0);
+        }
+        return input;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int value : ids) {
+            if (value == id) return true;
+        }
+        return false;
+    }
+}
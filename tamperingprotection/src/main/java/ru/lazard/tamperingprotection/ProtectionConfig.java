@@ -0,0 +1,363 @@
+package ru.lazard.tamperingprotection;
+
+/**
+ * Immutable configuration of {@link TamperingProtection}: accepted values (as normalized {@link ValidationPolicy})
+ * and enabled checks. Values are validated and normalized once by {@link Builder#build()}, so configuration
+ * (and protection created with it) can be shared by all threads and used concurrently without locking.<br><br>
+ * Usage:<br>
+ * <code>
+ * ProtectionConfig config = new ProtectionConfig.Builder()<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;.setAcceptedPackageNames("ru.lazard.sample")<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;.setAcceptedSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32")<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;.build();<br>
+ * TamperingProtection protection = new TamperingProtection(context, config); // keep one instance<br>
+ * </code>
+ */
+public final class ProtectionConfig {
+
+    /**
+     * Configuration without checks (all is allowed).
+     */
+    public static final ProtectionConfig DEFAULT = new Builder().build();
+
+    final ValidationPolicy policy;
+    final boolean isEmulatorAvailable;
+    final boolean isDebugAvailable;
+    final boolean isDebuggerAvailable;
+    final boolean isHookAvailable;
+    final ProcScanner hookScanner;
+    final boolean isCacheEnabled;
+    final PersistentValidationCache persistentCache;
+    final int signatureSource;
+    final ValidationMetrics metrics;
+    final EmulatorDetector emulatorDetector;
+    final IntegrityManifest integrityManifest;
+    final int integritySampleSize;
+    final long integrityByteBudget;
+    final boolean isStackTraceEnabled;
+    private volatile ProtectionConfig withoutStackTrace; // same configuration for validateAll(), created on first use
+
+    private ProtectionConfig(Builder builder) {
+        this.policy = builder.policy != null ? builder.policy : builder.encoder.build();
+        this.isEmulatorAvailable = builder.isEmulatorAvailable;
+        this.isDebugAvailable = builder.isDebugAvailable;
+        this.isDebuggerAvailable = builder.isDebuggerAvailable;
+        this.isHookAvailable = builder.isHookAvailable;
+        this.hookScanner = builder.hookScanner;
+        this.isCacheEnabled = builder.isCacheEnabled;
+        this.persistentCache = builder.persistentCache;
+        this.signatureSource = builder.signatureSource;
+        this.metrics = builder.metrics;
+        this.emulatorDetector = builder.emulatorDetector;
+        this.integrityManifest = builder.integrityManifest;
+        this.integritySampleSize = builder.integritySampleSize;
+        this.integrityByteBudget = builder.integrityByteBudget;
+        this.isStackTraceEnabled = builder.isStackTraceEnabled;
+    }
+
+    /**
+     * @return - builder with all values of this configuration (for make changed copy).
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.policy = policy;
+        builder.isEmulatorAvailable = isEmulatorAvailable;
+        builder.isDebugAvailable = isDebugAvailable;
+        builder.isDebuggerAvailable = isDebuggerAvailable;
+        builder.isHookAvailable = isHookAvailable;
+        builder.hookScanner = hookScanner;
+        builder.isCacheEnabled = isCacheEnabled;
+        builder.persistentCache = persistentCache;
+        builder.signatureSource = signatureSource;
+        builder.metrics = metrics;
+        builder.emulatorDetector = emulatorDetector;
+        builder.integrityManifest = integrityManifest;
+        builder.integritySampleSize = integritySampleSize;
+        builder.integrityByteBudget = integrityByteBudget;
+        builder.isStackTraceEnabled = isStackTraceEnabled;
+        return builder;
+    }
+
+    /**
+     * @return - same configuration with {@link #isStackTraceEnabled()} false (for validation which result is only true/false).
+     */
+    ProtectionConfig withoutStackTrace() {
+        if (!isStackTraceEnabled) return this;
+        ProtectionConfig config = withoutStackTrace;
+        if (config == null) withoutStackTrace = config = toBuilder().setStackTraceEnabled(false).build();
+        return config;
+    }
+
+    public ValidationPolicy getPolicy() {
+        return policy;
+    }
+
+    public boolean isEmulatorAvailable() {
+        return isEmulatorAvailable;
+    }
+
+    public boolean isDebugAvailable() {
+        return isDebugAvailable;
+    }
+
+    public boolean isDebuggerAvailable() {
+        return isDebuggerAvailable;
+    }
+
+    public boolean isHookAvailable() {
+        return isHookAvailable;
+    }
+
+    public boolean isCacheEnabled() {
+        return isCacheEnabled;
+    }
+
+    public boolean isStackTraceEnabled() {
+        return isStackTraceEnabled;
+    }
+
+    public PersistentValidationCache getPersistentCache() {
+        return persistentCache;
+    }
+
+    public int getSignatureSource() {
+        return signatureSource;
+    }
+
+    public ValidationMetrics getMetrics() {
+        return metrics;
+    }
+
+    public EmulatorDetector getEmulatorDetector() {
+        return emulatorDetector;
+    }
+
+    public IntegrityManifest getIntegrityManifest() {
+        return integrityManifest;
+    }
+
+    /**
+     * Builder of {@link ProtectionConfig}. Not thread safe, values are checked right in setters
+     * (wrong fingerprint or digest throws <code>IllegalArgumentException</code>), so {@link #build()} never fails.
+     * Meaning and defaults of values are same as of <code>TamperingProtection</code> setters with same names.
+     */
+    public static final class Builder {
+        private ValidationPolicyEncoder encoder;
+        private ValidationPolicy policy = ValidationPolicy.EMPTY; // not null while encoder not changed
+        private boolean isEmulatorAvailable = true;
+        private boolean isDebugAvailable = true;
+        private boolean isDebuggerAvailable = true;
+        private boolean isHookAvailable = true;
+        private ProcScanner hookScanner;
+        private boolean isCacheEnabled = false;
+        private PersistentValidationCache persistentCache;
+        private int signatureSource = TamperingProtection.SIGNATURE_SOURCE_PACKAGE_MANAGER;
+        private ValidationMetrics metrics;
+        private EmulatorDetector emulatorDetector = EmulatorDetector.getDefault();
+        private IntegrityManifest integrityManifest;
+        private int integritySampleSize = TamperingProtection.DEFAULT_INTEGRITY_SAMPLE_SIZE;
+        private long integrityByteBudget;
+        private boolean isStackTraceEnabled = true;
+
+        /**
+         * See {@link TamperingProtection#setAcceptedStores(String...)}.
+         */
+        public Builder setAcceptedStores(String... stores) {
+            encoder().setStores(stores);
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setAcceptedPackageNames(String...)}.
+         */
+        public Builder setAcceptedPackageNames(String... packageNames) {
+            encoder().setPackageNames(packageNames);
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setAcceptedSignatures(String...)}.
+         *
+         * @throws IllegalArgumentException - if signature is not MD5 or SHA-256 fingerprint.
+         */
+        public Builder setAcceptedSignatures(String... signatures) {
+            encoder().setSignatures(signatures);
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setAcceptedDexCrcs(long...)}.
+         */
+        public Builder setAcceptedDexCrcs(long... crcs) {
+            encoder().setDexCrcs(crcs);
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setAcceptedDexDigests(String...)}.
+         *
+         * @throws IllegalArgumentException - if digest is not SHA-256 hex.
+         */
+        public Builder setAcceptedDexDigests(String... digests) {
+            encoder().setDexDigests(digests);
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setAcceptedNativeLibDigests(String...)}.
+         *
+         * @throws IllegalArgumentException - if digest is not SHA-256 hex.
+         */
+        public Builder setAcceptedNativeLibDigests(String... digests) {
+            encoder().setNativeLibDigests(digests);
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setPolicy(ValidationPolicy)}.
+         */
+        public Builder setPolicy(ValidationPolicy policy) {
+            if (policy == null) throw new IllegalArgumentException("policy must not be null");
+            this.policy = policy;
+            this.encoder = null;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setSignatureSource(int)}.
+         */
+        public Builder setSignatureSource(int signatureSource) {
+            if (signatureSource != TamperingProtection.SIGNATURE_SOURCE_PACKAGE_MANAGER && signatureSource != TamperingProtection.SIGNATURE_SOURCE_APK_SIGNING_BLOCK)
+                throw new IllegalArgumentException("Unknown signature source: " + signatureSource);
+            this.signatureSource = signatureSource;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setAcceptStartOnEmulator(boolean)}.
+         */
+        public Builder setAcceptStartOnEmulator(boolean isEmulatorAvailable) {
+            this.isEmulatorAvailable = isEmulatorAvailable;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setEmulatorDetector(EmulatorDetector)}.
+         */
+        public Builder setEmulatorDetector(EmulatorDetector emulatorDetector) {
+            if (emulatorDetector == null) throw new IllegalArgumentException("emulatorDetector must not be null");
+            this.emulatorDetector = emulatorDetector;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setAcceptStartInDebugMode(boolean)}.
+         */
+        public Builder setAcceptStartInDebugMode(boolean isDebugAvailable) {
+            this.isDebugAvailable = isDebugAvailable;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setAcceptDebuggerAttached(boolean)}.
+         */
+        public Builder setAcceptDebuggerAttached(boolean isDebuggerAvailable) {
+            this.isDebuggerAvailable = isDebuggerAvailable;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setAcceptHookingFrameworks(boolean)}.
+         */
+        public Builder setAcceptHookingFrameworks(boolean isHookAvailable) {
+            this.isHookAvailable = isHookAvailable;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setHookScanner(ProcScanner)}.
+         */
+        public Builder setHookScanner(ProcScanner hookScanner) {
+            this.hookScanner = hookScanner;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setCacheEnabled(boolean)}.
+         */
+        public Builder setCacheEnabled(boolean isCacheEnabled) {
+            this.isCacheEnabled = isCacheEnabled;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setStackTraceEnabled(boolean)}.
+         */
+        public Builder setStackTraceEnabled(boolean isStackTraceEnabled) {
+            this.isStackTraceEnabled = isStackTraceEnabled;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setPersistentCache(PersistentValidationCache)}.
+         */
+        public Builder setPersistentCache(PersistentValidationCache persistentCache) {
+            this.persistentCache = persistentCache;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setMetrics(ValidationMetrics)}.
+         */
+        public Builder setMetrics(ValidationMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setIntegrityManifest(IntegrityManifest, int)}.
+         */
+        public Builder setIntegrityManifest(IntegrityManifest manifest, int sampleSize) {
+            if (sampleSize < 0) throw new IllegalArgumentException("sampleSize=" + sampleSize);
+            this.integrityManifest = manifest;
+            this.integritySampleSize = sampleSize;
+            this.integrityByteBudget = 0;
+            return this;
+        }
+
+        /**
+         * See {@link TamperingProtection#setIntegrityManifest(IntegrityManifest)}.
+         */
+        public Builder setIntegrityManifest(IntegrityManifest manifest) {
+            return setIntegrityManifest(manifest, TamperingProtection.DEFAULT_INTEGRITY_SAMPLE_SIZE);
+        }
+
+        /**
+         * See {@link TamperingProtection#setIntegrityManifestByteBudget(IntegrityManifest, long)}.
+         */
+        public Builder setIntegrityManifestByteBudget(IntegrityManifest manifest, long byteBudget) {
+            if (byteBudget <= 0) throw new IllegalArgumentException("byteBudget=" + byteBudget);
+            this.integrityManifest = manifest;
+            this.integrityByteBudget = byteBudget;
+            return this;
+        }
+
+        /**
+         * @return - immutable configuration (builder can be changed and built again).
+         */
+        public ProtectionConfig build() {
+            return new ProtectionConfig(this);
+        }
+
+        /**
+         * @return - encoder of accepted values (policy is encoded once on build, not on each setter).
+         */
+        private ValidationPolicyEncoder encoder() {
+            if (encoder == null) {
+                encoder = new ValidationPolicyEncoder(policy);
+                policy = null;
+            }
+            return encoder;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package ru.lazard.tamperingprotection;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic re-validation of cheap runtime checks: debugger can be attached and tracer (frida, strace) can be injected
+ * at any time after {@link TamperingProtection#validateAll()} passed on start.<br>
+ * By default {@link TamperingProtection#CHECK_DEBUG}, {@link TamperingProtection#CHECK_DEBUGGER} and {@link TamperingProtection#CHECK_HOOKS}
+ * are re-run (checks must be enabled in protection, for example by <code>setAcceptDebuggerAttached(false)</code>).<br>
+ * All watchdogs of process share one daemon thread. Interval is jittered (attacker can't predict time of next check),
+ * CPU time of checks is limited by budget per minute: when budget is spent, runs are skipped until it's refilled.<br><br>
+ * Usage:<br>
+ * <code>
+ * RuntimeWatchdog watchdog = new RuntimeWatchdog(protection, listener);<br>
+ * watchdog.start();<br>
+ * </code>
+ */
+public final class RuntimeWatchdog {
+
+    /**
+     * Default mean interval between runs.
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 30 * 1000;
+    /**
+     * Default jitter: interval is random from <code>interval * (1 - jitter)</code> to <code>interval * (1 + jitter)</code>.
+     */
+    public static final float DEFAULT_JITTER = 0.5f;
+    /**
+     * Default CPU budget of checks (milliseconds of CPU time per minute).
+     */
+    public static final long DEFAULT_CPU_BUDGET_MILLIS_PER_MINUTE = 20;
+
+    private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final Set<String> DEFAULT_CHECKS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            TamperingProtection.CHECK_DEBUG, TamperingProtection.CHECK_DEBUGGER, TamperingProtection.CHECK_HOOKS)));
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private static ScheduledExecutorService sharedExecutor;
+
+    private final TamperingProtection protection;
+    private final Listener listener;
+    private final Random random = new SecureRandom();
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+            runChecks();
+        }
+    };
+    private volatile Set<String> checks = DEFAULT_CHECKS;
+    private volatile long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private volatile float jitter = DEFAULT_JITTER;
+    private volatile long budgetNanosPerMinute = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CPU_BUDGET_MILLIS_PER_MINUTE);
+
+    // guarded by this
+    private ScheduledFuture<?> next;
+    private long budgetNanos; // token bucket: refilled with budgetNanosPerMinute per minute, at most budgetNanosPerMinute
+    private long refillTime;
+    private long runCount;
+    private long skippedCount;
+    private long cpuTimeNanos;
+
+    /**
+     * @param protection - configured protection, its checks are re-run.
+     * @param listener   - receive detected tampering (called on watchdog thread).
+     */
+    public RuntimeWatchdog(TamperingProtection protection, Listener listener) {
+        this.protection = protection;
+        this.listener = listener;
+    }
+
+    /**
+     * @param intervalMillis - mean interval between runs, by default {@link #DEFAULT_INTERVAL_MILLIS}.
+     * @param jitter         - relative jitter of interval (0..1), by default {@link #DEFAULT_JITTER}.
+     */
+    public RuntimeWatchdog setInterval(long intervalMillis, float jitter) {
+        if (intervalMillis <= 0) throw new IllegalArgumentException("intervalMillis=" + intervalMillis);
+        if (!(jitter >= 0 && jitter <= 1)) throw new IllegalArgumentException("jitter=" + jitter);
+        this.intervalMillis = intervalMillis;
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * @param cpuMillisPerMinute - max CPU time of checks per minute, by default {@link #DEFAULT_CPU_BUDGET_MILLIS_PER_MINUTE}.
+     *                           On platform without thread CPU clock wall time of checks is counted.
+     */
+    public RuntimeWatchdog setCpuBudget(long cpuMillisPerMinute) {
+        if (cpuMillisPerMinute <= 0) throw new IllegalArgumentException("cpuMillisPerMinute=" + cpuMillisPerMinute);
+        this.budgetNanosPerMinute = TimeUnit.MILLISECONDS.toNanos(cpuMillisPerMinute);
+        return this;
+    }
+
+    /**
+     * @param names - names of re-run checks, for example {@link TamperingProtection#CHECK_DEBUGGER}. Use only cheap checks.
+     * @throws IllegalArgumentException - if name is unknown or check depends on check which is not in names
+     *                                  (for example {@link TamperingProtection#CHECK_DEX_DIGEST} without {@link TamperingProtection#CHECK_DEX_CRC}).
+     */
+    public RuntimeWatchdog setChecks(String... names) {
+        Set<String> checks = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(names)));
+        protection.verifyCheckNames(checks);
+        this.checks = checks;
+        return this;
+    }
+
+    /**
+     * Start periodic checks (first run after one jittered interval). Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (next != null) return;
+        budgetNanos = budgetNanosPerMinute;
+        refillTime = System.nanoTime();
+        schedule();
+    }
+
+    /**
+     * Stop periodic checks. Running check is finished, listener is not called after stop.
+     */
+    public synchronized void stop() {
+        if (next == null) return;
+        next.cancel(false);
+        next = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return next != null;
+    }
+
+    /**
+     * @return - count of runs of checks.
+     */
+    public synchronized long getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @return - count of runs skipped because CPU budget was spent.
+     */
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * @return - total CPU time (or wall time, see {@link #setCpuBudget(long)}) of all runs.
+     */
+    public synchronized long getCpuTimeNanos() {
+        return cpuTimeNanos;
+    }
+
+    private void schedule() {
+        long delay = (long) (intervalMillis * (1 + jitter * (2 * random.nextDouble() - 1)));
+        next = getSharedExecutor().schedule(task, Math.max(1, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void runChecks() {
+        synchronized (this) {
+            if (next == null) return; // stopped
+            refill();
+            if (budgetNanos <= 0) {
+                skippedCount++;
+                schedule();
+                return;
+            }
+        }
+        EnvironmentProbe probe = protection.getProbe();
+        long cpuStart = probe.getThreadCpuTimeNanos();
+        long wallStart = System.nanoTime();
+        Throwable failure;
+        try {
+            failure = protection.validateChecks(checks, DIRECT_EXECUTOR, null).getFailure();
+        } catch (Throwable exception) {
+            failure = exception; // unexpected failure is reported too, next run is scheduled anyway
+        }
+        long cpuEnd = cpuStart < 0 ? -1 : probe.getThreadCpuTimeNanos();
+        long spent = cpuEnd < 0 ? System.nanoTime() - wallStart : cpuEnd - cpuStart;
+        synchronized (this) {
+            if (next == null) return; // stopped while checks were running
+            runCount++;
+            cpuTimeNanos += spent;
+            budgetNanos -= spent;
+            schedule();
+        }
+        if (failure != null && listener != null)
+            listener.onTamperingDetected(ValidationFuture.toValidationException(failure));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - refillTime;
+        refillTime = now;
+        long refill = elapsed >= MINUTE_NANOS ? budgetNanosPerMinute : (long) ((double) budgetNanosPerMinute * elapsed / MINUTE_NANOS);
+        budgetNanos = Math.min(budgetNanosPerMinute, budgetNanos + refill);
+    }
+
+    private static synchronized ScheduledExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TamperingProtection-watchdog");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Receive tampering detected by periodic checks.
+     */
+    public interface Listener {
+        /**
+         * Called on watchdog thread on each failed run (watchdog keeps running, call {@link RuntimeWatchdog#stop()} if needed).
+         *
+         * @param exception - failure of first failed check.
+         */
+        void onTamperingDetected(TamperingProtection.ValidationException exception);
+    }
+}
@@ -0,0 +1,184 @@
+package ru.lazard.tamperingprotection;
+
+/**
+ * Trade-off between cost of {@link IntegrityVerifier} and chance to detect modified apk.<br>
+ * Verifier hashes random sample of units: whole entries ({@link #UNIT_ENTRIES}) or chunks of entries ({@link #UNIT_CHUNKS},
+ * byte ranges of {@link IntegrityManifest#getChunkSize()} bytes). Chunks are sampled uniformly, so entries are sampled
+ * in proportion to their size and one sampled chunk of big dex costs about as much as small resource.<br>
+ * Plan is made for sample size, or for budget in bytes or milliseconds (throughput of device is measured by
+ * {@link IntegrityVerifier.Result#getBytesPerMillisecond()}, so budget can be tuned per device class), and reports
+ * probability to detect modified unit on one launch and on many launches (sample is new on each launch).<br>
+ * Cost of unit is count of processed uncompressed bytes: chunk of DEFLATED entry costs all bytes from start of entry
+ * to end of chunk (deflate stream has no random access). Immutable.
+ */
+public final class SamplingPlan {
+
+    /**
+     * Sample whole entries. Works with any manifest.
+     */
+    public static final int UNIT_ENTRIES = 0;
+    /**
+     * Sample chunks of entries. Manifest must have chunks ({@link IntegrityManifest#hasChunks()}).
+     */
+    public static final int UNIT_CHUNKS = 1;
+
+    private final int unit;
+    private final int unitCount;
+    private final int sampleSize;
+    private final double unitCost;
+
+    private SamplingPlan(int unit, int unitCount, int sampleSize, double unitCost) {
+        this.unit = unit;
+        this.unitCount = unitCount;
+        this.sampleSize = sampleSize;
+        this.unitCost = unitCost;
+    }
+
+    /**
+     * @param unit       - {@link #UNIT_ENTRIES} or {@link #UNIT_CHUNKS}.
+     * @param sampleSize - count of hashed units (0 - names only, <code>Integer.MAX_VALUE</code> - all units).
+     */
+    public static SamplingPlan forSampleSize(IntegrityManifest manifest, ApkIndex index, int unit, int sampleSize) {
+        if (sampleSize < 0) throw new IllegalArgumentException("sampleSize=" + sampleSize);
+        int unitCount = getUnitCount(manifest, unit);
+        return new SamplingPlan(unit, unitCount, Math.min(sampleSize, unitCount), getUnitCost(manifest, index, unit));
+    }
+
+    /**
+     * @param unit  - {@link #UNIT_ENTRIES} or {@link #UNIT_CHUNKS}.
+     * @param bytes - expected count of processed bytes per verification.
+     * @return - plan with max sample size which expected cost fits budget.
+     */
+    public static SamplingPlan forByteBudget(IntegrityManifest manifest, ApkIndex index, int unit, long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("bytes=" + bytes);
+        int unitCount = getUnitCount(manifest, unit);
+        double unitCost = getUnitCost(manifest, index, unit);
+        int sampleSize = unitCost == 0 ? unitCount : (int) Math.min(unitCount, (long) (bytes / unitCost));
+        return new SamplingPlan(unit, unitCount, sampleSize, unitCost);
+    }
+
+    /**
+     * @param unit                - {@link #UNIT_ENTRIES} or {@link #UNIT_CHUNKS}.
+     * @param millis              - expected time of verification.
+     * @param bytesPerMillisecond - throughput of hashing on this device ({@link IntegrityVerifier.Result#getBytesPerMillisecond()}
+     *                            of previous verification).
+     * @return - plan with max sample size which expected time fits budget.
+     */
+    public static SamplingPlan forTimeBudget(IntegrityManifest manifest, ApkIndex index, int unit, long millis, double bytesPerMillisecond) {
+        if (millis < 0 || !(bytesPerMillisecond > 0)) throw new IllegalArgumentException("millis=" + millis + " bytesPerMillisecond=" + bytesPerMillisecond);
+        return forByteBudget(manifest, index, unit, (long) Math.min(Long.MAX_VALUE, millis * bytesPerMillisecond));
+    }
+
+    /**
+     * @param unit        - {@link #UNIT_ENTRIES} or {@link #UNIT_CHUNKS}.
+     * @param probability - required probability to detect one modified unit on one launch (0..1).
+     * @return - plan with min sample size which gives required probability.
+     */
+    public static SamplingPlan forDetectionProbability(IntegrityManifest manifest, ApkIndex index, int unit, double probability) {
+        if (!(probability >= 0 && probability <= 1)) throw new IllegalArgumentException("probability=" + probability);
+        int unitCount = getUnitCount(manifest, unit);
+        int sampleSize = (int) Math.min(unitCount, Math.ceil(probability * unitCount - 1e-9));
+        return new SamplingPlan(unit, unitCount, Math.max(0, sampleSize), getUnitCost(manifest, index, unit));
+    }
+
+    private static int getUnitCount(IntegrityManifest manifest, int unit) {
+        if (unit == UNIT_ENTRIES) return manifest.getEntryCount();
+        if (unit != UNIT_CHUNKS) throw new IllegalArgumentException("Unknown unit " + unit + ".");
+        if (!manifest.hasChunks()) throw new IllegalArgumentException("Manifest has no chunks.");
+        return manifest.getChunkCount();
+    }
+
+    /**
+     * @return - mean count of processed bytes per unit (central directory only, content is not read).
+     */
+    private static double getUnitCost(IntegrityManifest manifest, ApkIndex index, int unit) {
+        long chunkSize = manifest.getChunkSize();
+        double cost = 0;
+        long units = 0;
+        for (int entry = 0; entry < index.size(); entry++) {
+            if (!IntegrityManifest.isCovered(index.getName(entry))) continue;
+            long size = index.getSize(entry);
+            if (unit == UNIT_ENTRIES) {
+                cost += size;
+                units++;
+                continue;
+            }
+            long chunks = (size + chunkSize - 1) / chunkSize;
+            if (chunks == 0) continue;
+            if (index.getMethod(entry) == ApkIndex.METHOD_STORED) {
+                cost += size;
+            } else {
+                // chunk i costs (i + 1) * chunkSize, last chunk costs whole entry
+                cost += chunkSize * (double) (chunks - 1) * chunks / 2 + size;
+            }
+            units += chunks;
+        }
+        return units == 0 ? 0 : cost / units;
+    }
+
+    /**
+     * @return - {@link #UNIT_ENTRIES} or {@link #UNIT_CHUNKS}.
+     */
+    public int getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return - count of units in manifest.
+     */
+    public int getUnitCount() {
+        return unitCount;
+    }
+
+    /**
+     * @return - count of units hashed per verification.
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @return - expected count of processed (uncompressed) bytes per verification.
+     */
+    public long getExpectedBytes() {
+        return Math.round(sampleSize * unitCost);
+    }
+
+    /**
+     * @return - probability to detect apk with one modified unit on one launch.
+     */
+    public double getDetectionProbability() {
+        return getDetectionProbability(1);
+    }
+
+    /**
+     * @param modifiedUnits - count of modified units (entries or chunks).
+     * @return - probability that sample contains at least one modified unit.
+     */
+    public double getDetectionProbability(int modifiedUnits) {
+        if (modifiedUnits <= 0 || unitCount == 0) return 0;
+        if (modifiedUnits >= unitCount) return sampleSize > 0 ? 1 : 0;
+        // probability that sample without replacement misses all modified units
+        double missed = 1;
+        for (int i = 0; i < sampleSize && missed > 0; i++) {
+            missed *= (double) Math.max(0, unitCount - modifiedUnits - i) / (unitCount - i);
+        }
+        return 1 - missed;
+    }
+
+    /**
+     * @param modifiedUnits - count of modified units (entries or chunks).
+     * @param launches      - count of launches (verifications with independent samples).
+     * @return - probability to detect modified apk on at least one of launches. With {@link PersistentValidationCache} units verified on
+     * previous launches are not sampled again, so it is lower bound (modified unit is sampled in at most <code>unitCount / sampleSize</code> launches).
+     */
+    public double getDetectionProbability(int modifiedUnits, int launches) {
+        return 1 - Math.pow(1 - getDetectionProbability(modifiedUnits), launches);
+    }
+
+    @Override
+    public String toString() {
+        return "SamplingPlan{unit=" + (unit == UNIT_ENTRIES ? "entries" : "chunks") + ", sampleSize=" + sampleSize + "/" + unitCount
+                + ", expectedBytes=" + getExpectedBytes() + ", detectionProbability=" + getDetectionProbability() + "}";
+    }
+}
@@ -0,0 +1,121 @@
+package ru.lazard.tamperingprotection;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Signature fingerprints (MD5 and SHA-256) of certificates.<br>
+ * Digests are calculated by thread local <code>MessageDigest</code> into thread local buffer, so check of certificate
+ * against {@link ValidationPolicy} don't allocate memory. Hex strings are made only for error messages.
+ */
+final class SignatureFingerprints {
+
+    static final int MD5_LENGTH = 16;
+    static final int SHA256_LENGTH = 32;
+
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>();
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>();
+    private static final ThreadLocal<byte[]> DIGEST_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SHA256_LENGTH];
+        }
+    };
+
+    private SignatureFingerprints() {
+    }
+
+    private static void digest(ThreadLocal<MessageDigest> digests, String algorithm, byte[] data, byte[] output, int length) throws NoSuchAlgorithmException {
+        MessageDigest digest = getDigest(digests, algorithm);
+        digest.update(data);
+        try {
+            digest.digest(output, 0, length);
+        } catch (DigestException exception) {
+            throw new IllegalStateException(exception); // buffer is always big enough
+        }
+    }
+
+    private static MessageDigest getDigest(ThreadLocal<MessageDigest> digests, String algorithm) throws NoSuchAlgorithmException {
+        MessageDigest digest = digests.get();
+        if (digest == null) {
+            digest = MessageDigest.getInstance(algorithm);
+            digests.set(digest);
+        }
+        return digest;
+    }
+
+    /**
+     * @return - thread local buffer with MD5 digest of certificate in first 16 bytes (valid until next digest on this thread).
+     */
+    static byte[] md5Digest(byte[] certificate) throws NoSuchAlgorithmException {
+        byte[] buffer = DIGEST_BUFFER.get();
+        digest(MD5, "MD5", certificate, buffer, MD5_LENGTH);
+        return buffer;
+    }
+
+    /**
+     * @return - thread local buffer with SHA-256 digest of certificate (valid until next digest on this thread).
+     */
+    static byte[] sha256Digest(byte[] certificate) throws NoSuchAlgorithmException {
+        byte[] buffer = DIGEST_BUFFER.get();
+        digest(SHA256, "SHA-256", certificate, buffer, SHA256_LENGTH);
+        return buffer;
+    }
+
+    /**
+     * @return - MD5 fingerprint of certificate, like <code>"CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32"</code>.
+     */
+    static String md5(byte[] certificate) throws NoSuchAlgorithmException {
+        byte[] buffer = DIGEST_BUFFER.get();
+        digest(MD5, "MD5", certificate, buffer, MD5_LENGTH);
+        return format(buffer, MD5_LENGTH);
+    }
+
+    /**
+     * @return - SHA-256 fingerprint of certificate, like <code>"FA:C6:17:45:..."</code> (32 bytes).
+     */
+    static String sha256(byte[] certificate) throws NoSuchAlgorithmException {
+        byte[] buffer = DIGEST_BUFFER.get();
+        digest(SHA256, "SHA-256", certificate, buffer, SHA256_LENGTH);
+        return format(buffer, SHA256_LENGTH);
+    }
+
+    /**
+     * @return - MD5 fingerprints of certificates.
+     */
+    static String[] md5(byte[][] certificates) throws NoSuchAlgorithmException {
+        String[] fingerprints = new String[certificates.length];
+        for (int i = 0; i < certificates.length; i++) {
+            fingerprints[i] = md5(certificates[i]);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @return - SHA-256 fingerprints of certificates.
+     */
+    static String[] sha256(byte[][] certificates) throws NoSuchAlgorithmException {
+        String[] fingerprints = new String[certificates.length];
+        for (int i = 0; i < certificates.length; i++) {
+            fingerprints[i] = sha256(certificates[i]);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Format fingerprint same as keytool: uppercase hex bytes separated by ':'.
+     */
+    static String format(byte[] digest, int length) {
+        if (length == 0) return "";
+        char[] chars = new char[length * 3 - 1];
+        for (int i = 0; i < length; i++) {
+            int value = digest[i] & 0xFF;
+            if (i > 0) chars[i * 3 - 1] = ':';
+            chars[i * 3] = HEX_UPPER[value >> 4];
+            chars[i * 3 + 1] = HEX_UPPER[value & 0x0F];
+        }
+        return new String(chars);
+    }
+}
@@ -1,38 +1,35 @@
 package ru.lazard.tamperingprotection;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.Signature;
-import android.os.Build;
-import android.text.TextUtils;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-
-import com.layapp.collages.BuildConfig;
-
+import java.io.File;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
-import kotlin.jvm.functions.Function1;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Class for check is application tampered or not.<br> TamperingProtection check: <br>
- * 1) CRC code of classes.dex - protection from code modification.<br>
+ * 1) CRC code (or SHA-256 digest) of classes.dex - protection from code modification.<br>
  * 2) application signature - protection from resign you app. <br>
  * 3) installer store - app must be inbstalled only from store (not by hand).<br>
  * 4) package name - sometimes malefactor change package name and sells your application as its.<br>
  * 5) debug mode - production version of app mustn't run in debug mode.<br>
  * 6) run on emulator - user musn't run app on emulator.<br>
+ * 7) debugger - debugger or tracer mustn't be attached to app (also checked periodically by {@link RuntimeWatchdog}).<br>
+ * 8) hooking frameworks - Frida, Xposed or Substrate mustn't be loaded into app process.<br>
+ * 9) SHA-256 digests of native libraries (lib/&lt;abi&gt;/*.so) - protection from native code modification.<br>
  * <p>
  * <br><br>
  * Simple usage:<br>
@@ -47,6 +44,13 @@ import kotlin.jvm.functions.Function1;
  * <p>
  * protection.validateAll();<br>
  * </code>
+ * <br>
+ * All facts about app and device are taken from {@link EnvironmentProbe} ({@link AndroidEnvironmentProbe} by default),
+ * so validation can run on plain JVM with {@link FixtureEnvironmentProbe}.
+ * <br>
+ * Configuration is immutable {@link ProtectionConfig}: build it once and share one protection between threads
+ * (<code>new TamperingProtection(context, config)</code>), validation methods can be called concurrently without locking.
+ * Setters make changed copy of configuration.
  * <br><br>
  * Created by Egor on 08.11.2016.<br><br>
  */
@@ -66,17 +70,117 @@ public class TamperingProtection {
      */
     public static final String SAMSUNG_APP_STORE_PACKAGE = "com.sec.android.app.samsungapps";
 
-    private final Context context;
-    private List<String> stores = Arrays.asList();
-    private List<String> packageNames = Arrays.asList();
-    private List<String> signatures = Arrays.asList();
-    private long[] dexCrcs = {};
-    private boolean isEmulatorAvailable = true;
-    private boolean isDebugAvailable = true;
+    /**
+     * Take app signatures from PackageManager (<code>PackageManager.GET_SIGNATURES</code>). Works for all signature schemes.
+     */
+    public static final int SIGNATURE_SOURCE_PACKAGE_MANAGER = 0;
+    /**
+     * Take app signatures directly from APK Signing Block of apk file (APK Signature Scheme v2/v3), see {@link ApkSigningBlock}.
+     * It's faster (no binder call) and not affected by hooking of PackageManager. Apps signed only by v1 scheme must use {@link #SIGNATURE_SOURCE_PACKAGE_MANAGER}.<br>
+     * <b>Note:</b> signatures inside block are not verified. Android ignores v2 block before API 24 and v3 block before API 28, so
+     * on such devices apk re-signed by v1 with signing block copied from original apk passes this check. Combine it with
+     * dex digest or integrity manifest ({@link #setAcceptedDexDigests(String...)}, {@link #setIntegrityManifest(IntegrityManifest, int)}).
+     */
+    public static final int SIGNATURE_SOURCE_APK_SIGNING_BLOCK = 1;
+
+    /**
+     * Names of checks (in {@link ValidationReport}).
+     */
+    public static final String CHECK_DEBUG = "debug";
+    public static final String CHECK_DEBUGGER = "debugger";
+    public static final String CHECK_HOOKS = "hooks";
+    public static final String CHECK_EMULATOR = "emulator";
+    public static final String CHECK_PACKAGE = "package";
+    public static final String CHECK_STORE = "store";
+    public static final String CHECK_SIGNATURE = "signature";
+    public static final String CHECK_DEX_CRC = "dexCrc";
+    public static final String CHECK_DEX_DIGEST = "dexDigest";
+    public static final String CHECK_NATIVE_LIBS = "nativeLibs";
+    public static final String CHECK_INTEGRITY = "integrity";
+
+    /**
+     * Default count of apk entries hashed by integrity check on each validation, see {@link #setIntegrityManifest(IntegrityManifest, int)}.
+     */
+    public static final int DEFAULT_INTEGRITY_SAMPLE_SIZE = 8;
+
+    // estimated costs of checks (microseconds on mid-range device), cheap checks are run first
+    private static final int COST_DEBUG = 1;
+    private static final int COST_EMULATOR = 5;
+    private static final int COST_DEBUGGER = 20; // read of /proc/self/status
+    private static final int COST_PACKAGE = 10;
+    private static final int COST_STORE = 100; // binder call
+    private static final int COST_HOOKS = 200; // scan of /proc/self/maps
+    private static final int COST_SIGNATURE = 500; // binder call and digest of certificates
+    private static final int COST_DEX_CRC = 1000; // read of zip central directory
+    private static final int COST_INTEGRITY = 20000; // names of all entries and digest of sampled entries
+    private static final int COST_NATIVE_LIBS = 50000; // digest of native libraries of one ABI
+    private static final int COST_DEX_DIGEST = 100000; // digest of all dex files
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static ProcScanner defaultHookScanner;
+
+    private final EnvironmentProbe probe;
+    private volatile ProtectionConfig config; // replaced as whole, each validation uses one snapshot
 
 
     public TamperingProtection(Context context) {
-        this.context = context;
+        this(new AndroidEnvironmentProbe(context));
+    }
+
+    /**
+     * @param config - immutable configuration, protection with it can be shared by all threads.
+     */
+    public TamperingProtection(Context context, ProtectionConfig config) {
+        this(new AndroidEnvironmentProbe(context), config);
+    }
+
+    /**
+     * @param probe - source of facts about app and device.
+     */
+    public TamperingProtection(EnvironmentProbe probe) {
+        this(probe, ProtectionConfig.DEFAULT);
+    }
+
+    /**
+     * @param probe  - source of facts about app and device.
+     * @param config - immutable configuration, protection with it can be shared by all threads.
+     */
+    public TamperingProtection(EnvironmentProbe probe, ProtectionConfig config) {
+        if (config == null) throw new IllegalArgumentException("config must not be null");
+        this.probe = probe;
+        this.config = config;
+    }
+
+    EnvironmentProbe getProbe() {
+        return probe;
+    }
+
+    /**
+     * @return - current configuration (changed copy is made by <code>getConfig().toBuilder()</code>).
+     */
+    public ProtectionConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Replace whole configuration at once. Running validations finish with previous configuration.
+     */
+    public synchronized void setConfig(ProtectionConfig config) {
+        if (config == null) throw new IllegalArgumentException("config must not be null");
+        this.config = config;
+    }
+
+    /**
+     * Setters change configuration by copy: concurrent validations see old or new configuration, never part of it.
+     */
+    private synchronized ProtectionConfig.Builder edit() {
+        return config.toBuilder();
     }
 
 
@@ -84,32 +188,35 @@ public class TamperingProtection {
      * Get CRC code of resources.arsc file.<br><b>Note:</b> CRC code of .arsc modified each time when you modify resources.
      *
      * @param context
-     * @return - CRC code of resources.arsc file in apk.
+     * @return - CRC code of resources.arsc file in apk (0 if apk has no resources.arsc).
      * @throws IOException
      */
     @NonNull
     public static long getResCRC(@NonNull Context context) throws IOException {
-        ZipFile zf = new ZipFile(context.getPackageCodePath());
-        long crc = 0;
-        ZipEntry ze2 = zf.getEntry("resources.arsc");
-        if (ze2 != null) {
-            crc+=ze2.getCrc();
-        }
-        Log.e("Crc", "RES's summ = " + ze2.getCrc());
-        return crc;
+        ApkIndex index = ApkIndex.of(context.getPackageCodePath());
+        int entry = index.indexOf("resources.arsc");
+        return entry < 0 ? 0 : index.getCrc(entry);
     }
 
 
     public static long getTotalCRC(@NonNull Context context) throws IOException {
-        ZipFile zf = new ZipFile(context.getPackageCodePath());
-        long crc = 0;
-        Enumeration<? extends ZipEntry> entries = zf.entries();
-        while(entries.hasMoreElements()){
-            ZipEntry zipEntry = entries.nextElement();
-            crc+=zipEntry.getCrc();
-        }
-        Log.e("Crc", "Total summ = " +crc);
-        return crc;
+        return ApkIndex.of(context.getPackageCodePath()).getTotalCrc();
+    }
+
+
+    /**
+     * Get SHA-256 digest of content of all entries in apk (dex files, resources, assets, native libs...).
+     * Entries are hashed in parallel on all available cores, see {@link ApkContentDigest}.<br>
+     * <b>Note:</b> hashing of big apk take time, don't call it on UI thread.
+     *
+     * @param context
+     * @return - lowercase hex SHA-256 root digest of all entries.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    @NonNull
+    public static String getTotalDigest(@NonNull Context context) throws IOException, NoSuchAlgorithmException {
+        return ApkContentDigest.digest(ApkIndex.of(context.getPackageCodePath())).getRootHex();
     }
 
 
@@ -117,29 +224,49 @@ public class TamperingProtection {
      * Get CRC code of classes.dex file.<br><b>Note:</b> CRC code of .dex modified each time when you modify java code.
      *
      * @param context
-     * @return - CRC code of classes.dex file in apk.
+     * @return - CRC code of classes.dex file in apk (sum of classes.dex, classes2.dex ... classesN.dex for multidex apk).
      * @throws IOException
      */
     @NonNull
     public static long getDexCRC(@NonNull Context context) throws IOException {
-        ZipFile zf = new ZipFile(context.getPackageCodePath());
-        long crc = 0;
-        for (int i = 1; i < 1000; i++) {
-            String index = ""+i;
-            if (i==1){
-                index="";
-            }
-            String name = "classes" + index + ".dex";
-            ZipEntry ze = zf.getEntry(name);
-            if (ze !=null){
-                crc+=ze.getCrc();
-            }else{
-                Log.e("Crc","DEX's summ = "+crc);
-                return crc;
-            }
-        }
-        Log.e("Crc","DEX's summ = "+crc);
-        return crc;
+        return ApkIndex.of(context.getPackageCodePath()).getDexCrc();
+    }
+
+
+    /**
+     * Get SHA-256 digest of real content of classes.dex files (classes.dex, classes2.dex ... classesN.dex concatenated).<br>
+     * Unlike {@link #getDexCRC(Context)} digest can't be forged by editing zip headers. Same digest can be calculated from command line:<br>
+     * <code>unzip -p app.apk classes.dex classes2.dex | sha256sum</code> (list all dex files in order).
+     *
+     * @param context
+     * @return - lowercase hex SHA-256 digest. For example <code>"9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"</code>
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    @NonNull
+    public static String getDexDigest(@NonNull Context context) throws IOException, NoSuchAlgorithmException {
+        return DexDigester.digest(ApkIndex.of(context.getPackageCodePath()));
+    }
+
+    /**
+     * Get SHA-256 digests of native libraries (lib/&lt;abi&gt;/*.so) of current device ABI, as they are loaded
+     * (extracted files or libraries inside apk). Same digest can be calculated from command line:<br>
+     * <code>unzip -p app.apk lib/arm64-v8a/libnative.so | sha256sum</code><br>
+     * Accept digests of all ABIs of apk (run on devices of each ABI or use command line).
+     *
+     * @param context
+     * @return - lowercase hex SHA-256 digests (empty if app has no native libraries for device).
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    @NonNull
+    public static String[] getNativeLibDigests(@NonNull Context context) throws IOException, NoSuchAlgorithmException {
+        AndroidEnvironmentProbe probe = new AndroidEnvironmentProbe(context);
+        ApkIndex index = ApkIndex.of(probe.getApkPath());
+        String abi = NativeLibDigester.selectAbi(index, probe.getSupportedAbis());
+        if (abi == null) return new String[0];
+        String nativeLibraryDir = probe.getNativeLibraryDir();
+        return NativeLibDigester.digest(index, abi, nativeLibraryDir == null ? null : new File(nativeLibraryDir)).getDigests();
     }
 
 
@@ -159,82 +286,61 @@ public class TamperingProtection {
      */
     @NonNull
     public static String[] getSignatures(@NonNull Context context) throws PackageManager.NameNotFoundException, NoSuchAlgorithmException {
-        PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), PackageManager.GET_SIGNATURES);
-
-        if (packageInfo.signatures == null || packageInfo.signatures.length <= 0) {
-            return new String[]{};
-        }
-
-        String[] md5Signatures = new String[packageInfo.signatures.length];
-
-        for (int i = 0; i < packageInfo.signatures.length; i++) {
-            Signature signature = packageInfo.signatures[i];
-            if (signature == null) continue;
-
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(signature.toByteArray());
-            byte[] digits = md.digest();
-
-            char[] hexArray = "0123456789ABCDEF".toCharArray();
-            String md5String = "";
-            for (byte digit : digits) {
-                int pos = digit & 0xFF;
-                md5String += "" + hexArray[pos >> 4] + hexArray[pos & 0x0f] + ":";
-            }
-            if (md5String.length() > 0) {
-                md5String = md5String.substring(0, md5String.length() - 1);
-            }
+        return SignatureFingerprints.md5(AndroidEnvironmentProbe.getSignatureCertificates(context));
+    }
 
-            md5Signatures[i] = md5String;
-        }
+    /**
+     * Get SHA-256 fingerprint of you app (same as {@link #getSignatures(Context)}, but SHA-256 instead of MD5).<br>
+     * For get SHA-256 fingerprint from command line use same <code>keytool -list -v ...</code> command (look for "SHA256:" row).
+     *
+     * @param context
+     * @return - fingerprints, each looks like: <code>"FA:C6:17:45:DC:09:03:78:6F:B9:ED:E6:2A:96:2B:39:9F:73:48:F0:BB:6F:89:9B:83:32:66:75:91:03:3B:9C"</code>.
+     */
+    @NonNull
+    public static String[] getSignaturesSha256(@NonNull Context context) throws PackageManager.NameNotFoundException, NoSuchAlgorithmException {
+        return SignatureFingerprints.sha256(AndroidEnvironmentProbe.getSignatureCertificates(context));
+    }
 
+    /**
+     * Get Md5 fingerprint of you app from APK Signing Block of apk file (without PackageManager call).
+     *
+     * @param context
+     * @return - fingerprints of signers (empty if apk has no v2/v3 signing block).
+     * @throws IOException - if apk can't be read or signing block is broken.
+     */
+    @NonNull
+    public static String[] getSignaturesFromApk(@NonNull Context context) throws IOException, NoSuchAlgorithmException {
+        return SignatureFingerprints.md5(getApkCertificates(context.getPackageCodePath()));
+    }
 
-        return md5Signatures;
+    /**
+     * @param apkPath - path of apk file.
+     * @return - encoded signing certificates from APK Signing Block (empty if apk has no v2/v3 signing block).
+     */
+    static byte[][] getApkCertificates(String apkPath) throws IOException {
+        ApkSigningBlock block = ApkSigningBlock.read(ApkIndex.of(apkPath));
+        return block == null ? new byte[0][] : block.getCertificates();
     }
 
     /**
-     * Check is current device is emulator.
+     * Check is current device is emulator (by {@link EmulatorDetector} with default rules).
      *
      * @return
      */
     public static boolean isEmulator() {
-        // received from this project: https://github.com/gingo/android-emulator-detector
-        int rating = 0;
-        if (Build.PRODUCT.equals("sdk") ||
-                Build.PRODUCT.equals("google_sdk") ||
-                Build.PRODUCT.equals("sdk_x86") ||
-                Build.PRODUCT.equals("vbox86p")) {
-            rating++;
-        }
-        if (Build.MANUFACTURER.equals("unknown") ||
-                Build.MANUFACTURER.equals("Genymotion")) {
-            rating++;
-        }
-        if (Build.BRAND.equals("generic") ||
-                Build.BRAND.equals("generic_x86")) {
-            rating++;
-        }
-        if (Build.DEVICE.equals("generic") ||
-                Build.DEVICE.equals("generic_x86") ||
-                Build.DEVICE.equals("vbox86p")) {
-            rating++;
-        }
-        if (Build.MODEL.equals("sdk") ||
-                Build.MODEL.equals("google_sdk") ||
-                Build.MODEL.equals("Android SDK built for x86")) {
-            rating++;
-        }
-        if (Build.HARDWARE.equals("goldfish") ||
-                Build.HARDWARE.equals("vbox86")) {
-            rating++;
-        }
-        if (Build.FINGERPRINT.contains("generic/sdk/generic") ||
-                Build.FINGERPRINT.contains("generic_x86/sdk_x86/generic_x86") ||
-                Build.FINGERPRINT.contains("generic/google_sdk/generic") ||
-                Build.FINGERPRINT.contains("generic/vbox86p/vbox86p")) {
-            rating++;
+        return getEmulatorResult().isEmulator();
+    }
+
+    /**
+     * Check is current device is emulator, with score breakdown (which <code>Build</code> properties look like emulator).
+     * Rules are evaluated once per process.
+     */
+    public static EmulatorDetector.Result getEmulatorResult() {
+        String[] properties = new String[EnvironmentProbe.PROPERTY_COUNT];
+        for (int i = 0; i < properties.length; i++) {
+            properties[i] = AndroidEnvironmentProbe.getBuildProperty(i);
         }
-        return rating > 4;
+        return EmulatorDetector.getDefault().evaluate(properties);
     }
 
     /**
@@ -244,8 +350,7 @@ public class TamperingProtection {
      * @return
      */
     public static boolean isDebug(Context context) {
-        boolean isDebuggable = (0 != (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE));
-        return isDebuggable;
+        return new AndroidEnvironmentProbe(context).isDebuggable();
     }
 
     /**
@@ -256,7 +361,7 @@ public class TamperingProtection {
      * @return
      */
     public static String getCurrentStore(Context context) {
-        return context.getPackageManager().getInstallerPackageName(context.getPackageName());
+        return new AndroidEnvironmentProbe(context).getInstallerPackageName();
     }
 
     /**
@@ -266,7 +371,7 @@ public class TamperingProtection {
      * @return - current package name
      */
     public static String getPackageName(Context context) {
-        return context.getApplicationContext().getPackageName();
+        return new AndroidEnvironmentProbe(context).getPackageName();
     }
 
     /**
@@ -274,8 +379,8 @@ public class TamperingProtection {
      *
      * @param stores - Package names of stores. <br>By default allowed installation from anywhere. For production recommended next stores:  Google play, Amazon and Samsung store. Their package names are: <br>{@link #GOOGLE_PLAY_STORE_PACKAGE},<br>{@link #AMAZON_APP_STORE_PACKAGE},<br>{@link #SAMSUNG_APP_STORE_PACKAGE}.
      */
-    public void setAcceptedStores(String... stores) {
-        this.stores = Arrays.asList(stores);
+    public synchronized void setAcceptedStores(String... stores) {
+        this.config = edit().setAcceptedStores(stores).build();
     }
 
     /**
@@ -283,8 +388,8 @@ public class TamperingProtection {
      *
      * @param packageNames - List of package names.
      */
-    public void setAcceptedPackageNames(String... packageNames) {
-        this.packageNames = Arrays.asList(packageNames);
+    public synchronized void setAcceptedPackageNames(String... packageNames) {
+        this.config = edit().setAcceptedPackageNames(packageNames).build();
     }
 
     /**
@@ -296,10 +401,22 @@ public class TamperingProtection {
      * keytool -list -v -keystore ~/.android/debug.keystore -alias androiddebugkey -storepass android -keypass android
      * </code>
      *
-     * @param signatures - list of signatures ( <b>MD5</b> fingerprint of keystore ). Each looks like: <code>"CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32"</code>
+     * SHA-256 fingerprints are accepted too (see {@link #getSignaturesSha256(Context)}).
+     *
+     * @param signatures - list of signatures ( <b>MD5</b> or <b>SHA-256</b> fingerprint of keystore ). Each looks like: <code>"CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32"</code>
+     * @throws IllegalArgumentException - if signature is not MD5 or SHA-256 fingerprint.
      */
-    public void setAcceptedSignatures(String... signatures) {
-        this.signatures = Arrays.asList(signatures);
+    public synchronized void setAcceptedSignatures(String... signatures) {
+        this.config = edit().setAcceptedSignatures(signatures).build();
+    }
+
+    /**
+     * Where app signatures are taken from for signature validation.
+     *
+     * @param signatureSource - {@link #SIGNATURE_SOURCE_PACKAGE_MANAGER} (by default) or {@link #SIGNATURE_SOURCE_APK_SIGNING_BLOCK}.
+     */
+    public synchronized void setSignatureSource(int signatureSource) {
+        this.config = edit().setSignatureSource(signatureSource).build();
     }
 
     /**
@@ -307,8 +424,17 @@ public class TamperingProtection {
      *
      * @param isEmulatorAvailable - by default true
      */
-    public void setAcceptStartOnEmulator(boolean isEmulatorAvailable) {
-        this.isEmulatorAvailable = isEmulatorAvailable;
+    public synchronized void setAcceptStartOnEmulator(boolean isEmulatorAvailable) {
+        this.config = edit().setAcceptStartOnEmulator(isEmulatorAvailable).build();
+    }
+
+    /**
+     * Rules of emulator detection.
+     *
+     * @param emulatorDetector - by default {@link EmulatorDetector#getDefault()}. Use {@link EmulatorDetector#parse(int, String...)} for own rules.
+     */
+    public synchronized void setEmulatorDetector(EmulatorDetector emulatorDetector) {
+        this.config = edit().setEmulatorDetector(emulatorDetector).build();
     }
 
     /**
@@ -316,8 +442,80 @@ public class TamperingProtection {
      *
      * @param isDebugAvailable - by default true
      */
-    public void setAcceptStartInDebugMode(boolean isDebugAvailable) {
-        this.isDebugAvailable = isDebugAvailable;
+    public synchronized void setAcceptStartInDebugMode(boolean isDebugAvailable) {
+        this.config = edit().setAcceptStartInDebugMode(isDebugAvailable).build();
+    }
+
+    /**
+     * Is allow attached java debugger or native tracer (gdb, strace, frida in ptrace mode) or not.
+     * Debugger can be attached at any time, use {@link RuntimeWatchdog} for periodic check.
+     *
+     * @param isDebuggerAvailable - by default true
+     */
+    public synchronized void setAcceptDebuggerAttached(boolean isDebuggerAvailable) {
+        this.config = edit().setAcceptDebuggerAttached(isDebuggerAvailable).build();
+    }
+
+    /**
+     * Is allow hooking frameworks (Frida, Xposed/LSPosed, Substrate) loaded into process or not.
+     * Libraries are searched in <code>/proc/self/maps</code> by {@link ProcScanner#DEFAULT_HOOK_SIGNATURES}.
+     * Frameworks can be injected at any time, use {@link RuntimeWatchdog} for periodic check.
+     *
+     * @param isHookAvailable - by default true
+     */
+    public synchronized void setAcceptHookingFrameworks(boolean isHookAvailable) {
+        this.config = edit().setAcceptHookingFrameworks(isHookAvailable).build();
+    }
+
+    /**
+     * Set own signatures of hooking frameworks (or fixture file for tests), used when {@link #setAcceptHookingFrameworks(boolean)} is false.
+     *
+     * @param hookScanner - scanner of process maps, null - {@link ProcScanner#forHooks()}.
+     */
+    public synchronized void setHookScanner(ProcScanner hookScanner) {
+        this.config = edit().setHookScanner(hookScanner).build();
+    }
+
+    /**
+     * Use process-wide {@link ValidationCache} for signatures, dex CRC, installer store, package name and debug flag.
+     * Facts are calculated once and recalculated only when apk changed, so repeated validations are almost free.
+     *
+     * @param isCacheEnabled - by default false
+     */
+    public synchronized void setCacheEnabled(boolean isCacheEnabled) {
+        this.config = edit().setCacheEnabled(isCacheEnabled).build();
+    }
+
+    /**
+     * Fill stack trace of {@link ValidationException} thrown by checks. Failure of tampered app is an expected outcome,
+     * so stack trace (most expensive part of exception creation) is rarely needed.<br>
+     * {@link #validateAll()} never fills stack trace, because it returns only true/false.
+     *
+     * @param isStackTraceEnabled - by default true
+     */
+    public synchronized void setStackTraceEnabled(boolean isStackTraceEnabled) {
+        this.config = edit().setStackTraceEnabled(isStackTraceEnabled).build();
+    }
+
+    /**
+     * Keep verification record of apk (signatures, dex CRC and digest, passed integrity verdict or units verified by sampled integrity check)
+     * in file between launches.
+     * Cold start validation reads the record and checks apk identity instead of verifying apk in full.
+     * Record is used before {@link #setCacheEnabled(boolean) process-wide cache}.
+     *
+     * @param persistentCache - (nullable) cache, for example {@link PersistentValidationCache#of(Context)}. By default null (nothing saved).
+     */
+    public synchronized void setPersistentCache(PersistentValidationCache persistentCache) {
+        this.config = edit().setPersistentCache(persistentCache).build();
+    }
+
+    /**
+     * Measure each check: wall time, bytes read from apk, <code>PackageManager</code> calls, allocations and error code.
+     *
+     * @param metrics - (nullable) receiver of measurements, for example {@link InMemoryValidationMetrics}. By default null (checks are not measured).
+     */
+    public synchronized void setMetrics(ValidationMetrics metrics) {
+        this.config = edit().setMetrics(metrics).build();
     }
 
     /**
@@ -325,8 +523,77 @@ public class TamperingProtection {
      *
      * @param crcs - by default empty (no crc check).
      */
-    public void setAcceptedDexCrcs(long... crcs) {
-        this.dexCrcs = crcs;
+    public synchronized void setAcceptedDexCrcs(long... crcs) {
+        this.config = edit().setAcceptedDexCrcs(crcs).build();
+    }
+
+    /**
+     * Check SHA-256 digest of real content of classes.dex files. It's strong protection from code modification
+     * (hashing of all dex files take time, for big apps prefer {@link DexDigester#step(long)} in idle time).
+     * Get digest by {@link #getDexDigest(Context)}.<br><b>Note:</b> don't keep digests hardcoded in java classes! Keep it in resources (strings.xml), or in JNI code, or WebServer.
+     *
+     * @param digests - lowercase or uppercase hex SHA-256 digests. By default empty (no digest check).
+     */
+    public synchronized void setAcceptedDexDigests(String... digests) {
+        this.config = edit().setAcceptedDexDigests(digests).build();
+    }
+
+    /**
+     * Check SHA-256 digest of each native library (lib/&lt;abi&gt;/*.so) of device ABI. Libraries are hashed through memory-mapped
+     * buffer: extracted files of <code>nativeLibraryDir</code>, or STORED entries inside apk when app is installed
+     * with <code>extractNativeLibs="false"</code> (no extraction or copy). Get digests by {@link #getNativeLibDigests(Context)}.
+     *
+     * @param digests - lowercase or uppercase hex SHA-256 digests of libraries of all ABIs. By default empty (no native libraries check).
+     */
+    public synchronized void setAcceptedNativeLibDigests(String... digests) {
+        this.config = edit().setAcceptedNativeLibDigests(digests).build();
+    }
+
+    /**
+     * Set all accepted stores, package names, signatures, dex CRC codes, dex digests and native library digests at once
+     * (replace values of <code>setAccepted...</code> methods). Use it for big policies encoded at build time,
+     * for example: <code>setPolicy(ValidationPolicy.load(getResources().openRawResource(R.raw.policy)))</code>.
+     *
+     * @param policy - policy produced by {@link ValidationPolicyEncoder}.
+     */
+    public synchronized void setPolicy(ValidationPolicy policy) {
+        this.config = edit().setPolicy(policy).build();
+    }
+
+    public ValidationPolicy getPolicy() {
+        return config.policy;
+    }
+
+    /**
+     * Check apk against integrity manifest made at build time by <code>integrityplugin</code> Gradle plugin: count and names of all entries,
+     * content digests of randomly sampled entries and signer (see {@link IntegrityVerifier}).
+     * Manifest packaged into apk is read by <code>IntegrityManifest.read(ApkIndex.of(context.getPackageCodePath()))</code>.
+     *
+     * @param manifest   - (nullable) expected content of apk. By default null (no integrity check).
+     * @param sampleSize - count of entries hashed on each validation. Modified entry is detected with probability
+     *                   <code>sampleSize / entryCount</code> per validation.
+     */
+    public synchronized void setIntegrityManifest(IntegrityManifest manifest, int sampleSize) {
+        this.config = edit().setIntegrityManifest(manifest, sampleSize).build();
+    }
+
+    /**
+     * Check apk against integrity manifest with bounded count of hashed bytes instead of count of entries.
+     * If manifest has chunks, chunks of entries (byte ranges) are sampled, so big dex costs no more than small resource
+     * (see {@link SamplingPlan}). Use <code>SamplingPlan.forByteBudget(...).getDetectionProbability()</code> to choose budget.
+     *
+     * @param manifest   - (nullable) expected content of apk. By default null (no integrity check).
+     * @param byteBudget - expected count of processed bytes on each validation.
+     */
+    public synchronized void setIntegrityManifestByteBudget(IntegrityManifest manifest, long byteBudget) {
+        this.config = edit().setIntegrityManifestByteBudget(manifest, byteBudget).build();
+    }
+
+    /**
+     * Same as {@link #setIntegrityManifest(IntegrityManifest, int)} with {@link #DEFAULT_INTEGRITY_SAMPLE_SIZE}.
+     */
+    public void setIntegrityManifest(IntegrityManifest manifest) {
+        setIntegrityManifest(manifest, DEFAULT_INTEGRITY_SAMPLE_SIZE);
     }
 
     /**
@@ -335,12 +602,11 @@ public class TamperingProtection {
      * @return - True if valid. False if tampered.
      */
     public boolean validateAll() {
-        try {
-            validateAllOrThrowException();
-            return true;
-        } catch (ValidationException exception) {
-            return false;
-        }
+        // failure is not returned: it's created without stack trace and its message is never rendered
+        Throwable failure = validateAsync(this.config.withoutStackTrace(), DIRECT_EXECUTOR, null, ValidationFuture.MODE_FAIL_FAST).getFailure();
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        return failure == null;
     }
 
     /**
@@ -350,113 +616,586 @@ public class TamperingProtection {
      * @return - nothing if valid. Throw <code>ValidationException</code> if tampered.
      */
     public void validateAllOrThrowException() throws ValidationException {
-        validateDebugMode();
-        validateEmulator();
-        validatePackage();
-        validateStore();
-        validateSignature();
-        validateDexCRC();
+        Throwable failure = validateAsync(DIRECT_EXECUTOR, null).getFailure();
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw ValidationFuture.toValidationException(failure);
+    }
 
+    /**
+     * Check is app valid or tampered without blocking current thread (don't make zip reading and PackageManager calls on UI thread).<br>
+     * All checks are run concurrently on executor, result is same as {@link #validateAllOrThrowException()} returns.
+     *
+     * @param executor - executor for checks. For example <code>AsyncTask.THREAD_POOL_EXECUTOR</code>.
+     * @return - future of validation result. Use it for cancel validation or wait for result with timeout.
+     */
+    public ValidationFuture validateAsync(Executor executor) {
+        return validateAsync(executor, null);
     }
 
-    private void validateDebugMode() throws ValidationException {
-        if (isDebugAvailable) return; // // validation success (no validation need)
+    /**
+     * Check is app valid or tampered without blocking current thread (don't make zip reading and PackageManager calls on UI thread).<br>
+     * All checks are run concurrently on executor, result is same as {@link #validateAllOrThrowException()} returns.
+     *
+     * @param executor - executor for checks. For example <code>AsyncTask.THREAD_POOL_EXECUTOR</code>.
+     * @param listener - (nullable) receive result of validation. <b>Note:</b> listener is called on executor thread.
+     * @return - future of validation result. Use it for cancel validation or wait for result with timeout.
+     */
+    public ValidationFuture validateAsync(Executor executor, ValidationListener listener) {
+        return validateAsync(executor, listener, ValidationFuture.MODE_FAIL_FAST);
+    }
+
+    /**
+     * Same as {@link #validateAsync(Executor, ValidationListener)} with choice of fail-fast semantics.
+     *
+     * @param mode - {@link ValidationFuture#MODE_FAIL_FAST} (stop on first failure) or {@link ValidationFuture#MODE_COLLECT_ALL} (run all checks).
+     */
+    public ValidationFuture validateAsync(Executor executor, ValidationListener listener, int mode) {
+        return validateAsync(this.config, executor, listener, mode);
+    }
+
+    private ValidationFuture validateAsync(ProtectionConfig config, Executor executor, ValidationListener listener, int mode) {
+        ValidationFuture future = new ValidationFuture(getChecks(config), listener, mode, config.metrics);
+        start(future, config, executor);
+        return future;
+    }
+
+    /**
+     * Start validation. Facts saved to persistent cache during validation are written once, when it completes.
+     */
+    private static void start(ValidationFuture future, ProtectionConfig config, Executor executor) {
+        final PersistentValidationCache persistentCache = config.persistentCache;
+        if (persistentCache != null) {
+            persistentCache.beginBatch();
+            future.setCompletion(new Runnable() {
+                @Override
+                public void run() {
+                    persistentCache.endBatch();
+                }
+            });
+        }
+        future.start(executor);
+    }
+
+    /**
+     * Run only given checks (for periodic re-validation by {@link RuntimeWatchdog}).
+     *
+     * @param names - names of checks, for example {@link #CHECK_DEBUGGER}.
+     * @throws IllegalArgumentException - if name is unknown or check depends on check which is not in names.
+     */
+    ValidationFuture validateChecks(Collection<String> names, Executor executor, ValidationListener listener) {
+        ProtectionConfig config = this.config;
+        ValidationFuture future = new ValidationFuture(getChecks(config, names), listener, ValidationFuture.MODE_FAIL_FAST, config.metrics);
+        start(future, config, executor);
+        return future;
+    }
+
+    /**
+     * Run all checks on current thread and report outcome of each (for diagnostics and logs).<br>
+     * Unlike {@link #validateAllOrThrowException()} validation don't stop on first failure.
+     *
+     * @return - report with all failures (checks which depend on failed check are skipped).
+     */
+    public ValidationReport validateAndReport() {
+        ValidationFuture future = validateAsync(DIRECT_EXECUTOR, null, ValidationFuture.MODE_COLLECT_ALL);
+        return future.getReport();
+    }
+
+    /**
+     * @param names - names of checks, for example {@link #CHECK_DEBUGGER}.
+     * @return - given checks in order of validation.
+     * @throws IllegalArgumentException - if name is unknown or check depends on check which is not in names.
+     */
+    List<ValidationCheck> getChecks(ProtectionConfig config, Collection<String> names) {
+        List<ValidationCheck> checks = new ArrayList<ValidationCheck>();
+        Set<String> unknown = new HashSet<String>(names);
+        for (ValidationCheck check : getChecks(config)) {
+            if (names.contains(check.getName())) checks.add(check);
+            unknown.remove(check.getName());
+        }
+        if (!unknown.isEmpty()) throw new IllegalArgumentException("Unknown checks: " + unknown);
+        return ValidationFuture.order(checks);
+    }
+
+    /**
+     * @throws IllegalArgumentException - if name is unknown or check depends on check which is not in names.
+     */
+    void verifyCheckNames(Collection<String> names) {
+        getChecks(config, names);
+    }
+
+    /**
+     * @param config - configuration of all checks (snapshot of validation).
+     * @return - all checks in order of validation (cheap checks first, see {@link ValidationFuture#order(List)}).
+     */
+    List<ValidationCheck> getChecks(final ProtectionConfig config) {
+        return ValidationFuture.order(Arrays.<ValidationCheck>asList(
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_DEBUG;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.isDebugAvailable ? 0 : COST_DEBUG;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateDebugMode(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_DEBUGGER;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.isDebuggerAvailable ? 0 : COST_DEBUGGER;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateDebugger(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_HOOKS;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.isHookAvailable ? 0 : COST_HOOKS;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateHooks(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_EMULATOR;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.isEmulatorAvailable ? 0 : COST_EMULATOR;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateEmulator(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_PACKAGE;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.policy.getPackageNameCount() <= 0 ? 0 : COST_PACKAGE;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validatePackage(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_STORE;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.policy.getStoreCount() <= 0 ? 0 : COST_STORE;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateStore(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_SIGNATURE;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.policy.getSignatureCount() <= 0 ? 0 : COST_SIGNATURE;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateSignature(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_DEX_CRC;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.policy.getDexCrcCount() <= 0 ? 0 : COST_DEX_CRC;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateDexCRC(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_NATIVE_LIBS;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.policy.getNativeLibDigestCount() <= 0 ? 0 : COST_NATIVE_LIBS;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateNativeLibs(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_INTEGRITY;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.integrityManifest == null ? 0 : COST_INTEGRITY;
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateIntegrity(config);
+                    }
+                },
+                new ValidationCheck() {
+                    @Override
+                    public String getName() {
+                        return CHECK_DEX_DIGEST;
+                    }
+
+                    @Override
+                    public int getCost() {
+                        return config.policy.getDexDigestCount() <= 0 ? 0 : COST_DEX_DIGEST;
+                    }
+
+                    @Override
+                    public String[] getDependencies() {
+                        return new String[]{CHECK_DEX_CRC}; // cheap CRC fails first on repacked apk
+                    }
+
+                    @Override
+                    public void validate() throws ValidationException {
+                        validateDexDigest(config);
+                    }
+                }));
+    }
+
+    private void validateDebugMode(ProtectionConfig config) throws ValidationException {
+        if (config.isDebugAvailable) return; // // validation success (no validation need)
 
         // check by ApplicationInfo
-        if (isDebug(context))
-            throw new ValidationException(ValidationException.ERROR_CODE_DEBUG_MODE, "Run in debug mode checked by ApplicationInfo. Flags=" + context.getApplicationInfo().flags);
+        if (config.isCacheEnabled ? ValidationCache.getInstance().isDebug(probe) : probe.isDebuggable())
+            throw failure(config, ValidationException.ERROR_CODE_DEBUG_MODE, null, "Run in debug mode checked by ApplicationInfo (FLAG_DEBUGGABLE).");
 
         // check by BuildConfig
-        if (BuildConfig.DEBUG)
-            throw new ValidationException(ValidationException.ERROR_CODE_DEBUG_MODE, "Run in debug mode checked by BuildConfig.");
+        if (probe.isDebugBuild())
+            throw failure(config, ValidationException.ERROR_CODE_DEBUG_MODE, null, "Run in debug mode checked by BuildConfig.");
     }
 
-    private void validateEmulator() throws ValidationException {
-        if (isEmulatorAvailable) return; // validation success (no validation need)
-        boolean isEmulator = isEmulator();
+    private void validateDebugger(ProtectionConfig config) throws ValidationException {
+        if (config.isDebuggerAvailable) return; // validation success (no validation need)
+
+        if (probe.isDebuggerConnected())
+            throw failure(config, ValidationException.ERROR_CODE_DEBUGGER_ATTACHED, null, "Java debugger is attached.");
+        try {
+            int tracerPid = probe.getTracerPid();
+            if (tracerPid != 0)
+                throw failure(config, ValidationException.ERROR_CODE_DEBUGGER_ATTACHED, null, "Process is traced: TracerPid={};", tracerPid);
+        } catch (IOException exception) {
+            throw failure(config, ValidationException.ERROR_CODE_DEBUGGER_UNKNOWN_EXCEPTION, exception, "Exception on tracer validation.");
+        }
+    }
 
+    private void validateHooks(ProtectionConfig config) throws ValidationException {
+        if (config.isHookAvailable) return; // validation success (no validation need)
+
+        final ProcScanner scanner = config.hookScanner != null ? config.hookScanner : getDefaultHookScanner();
+        final boolean[] found = new boolean[scanner.getSignatureCount()];
+        int count;
+        try {
+            count = scanner.scan(found);
+        } catch (IOException exception) {
+            throw failure(config, ValidationException.ERROR_CODE_HOOK_UNKNOWN_EXCEPTION, exception, "Exception on hooking frameworks validation.");
+        }
+        if (count > 0)
+            throw failure(config, ValidationException.ERROR_CODE_HOOK_DETECTED, null, "Hooking framework is loaded: {} in {};", new Object() {
+                @Override
+                public String toString() {
+                    return scanner.describe(found);
+                }
+            }, scanner.getFile());
+    }
 
-        if (isEmulator)
-            throw new ValidationException(ValidationException.ERROR_CODE_RUN_ON_EMULATOR, "Device looks like emulator.\n" +
-                    "Build.PRODUCT: " + Build.PRODUCT + "\n" +
-                    "Build.MANUFACTURER: " + Build.MANUFACTURER + "\n" +
-                    "Build.BRAND: " + Build.BRAND + "\n" +
-                    "Build.DEVICE: " + Build.DEVICE + "\n" +
-                    "Build.MODEL: " + Build.MODEL + "\n" +
-                    "Build.HARDWARE: " + Build.HARDWARE + "\n" +
-                    "Build.FINGERPRINT: " + Build.FINGERPRINT);
+    private static synchronized ProcScanner getDefaultHookScanner() {
+        if (defaultHookScanner == null) defaultHookScanner = ProcScanner.forHooks(); // scanner is thread safe, shared by all protections
+        return defaultHookScanner;
     }
 
-    private void validatePackage() throws ValidationException {
-        if (packageNames == null || packageNames.size() <= 0)
+    private void validateEmulator(ProtectionConfig config) throws ValidationException {
+        if (config.isEmulatorAvailable) return; // validation success (no validation need)
+        EmulatorDetector.Result result = config.emulatorDetector.evaluate(probe);
+
+
+        if (result.isEmulator())
+            throw failure(config, ValidationException.ERROR_CODE_RUN_ON_EMULATOR, null, "Device looks like emulator: {}\n" +
+                            "Build.PRODUCT: {}\nBuild.MANUFACTURER: {}\nBuild.BRAND: {}\nBuild.DEVICE: {}\n" +
+                            "Build.MODEL: {}\nBuild.HARDWARE: {}\nBuild.FINGERPRINT: {}", result,
+                    probe.getDeviceProperty(EnvironmentProbe.PROPERTY_PRODUCT),
+                    probe.getDeviceProperty(EnvironmentProbe.PROPERTY_MANUFACTURER),
+                    probe.getDeviceProperty(EnvironmentProbe.PROPERTY_BRAND),
+                    probe.getDeviceProperty(EnvironmentProbe.PROPERTY_DEVICE),
+                    probe.getDeviceProperty(EnvironmentProbe.PROPERTY_MODEL),
+                    probe.getDeviceProperty(EnvironmentProbe.PROPERTY_HARDWARE),
+                    probe.getDeviceProperty(EnvironmentProbe.PROPERTY_FINGERPRINT));
+    }
+
+    private void validatePackage(ProtectionConfig config) throws ValidationException {
+        if (config.policy.getPackageNameCount() <= 0)
             return;// validation success (no validation need)
-        String packageName = getPackageName(context);
-        if (TextUtils.isEmpty(packageName))
-            throw new ValidationException(ValidationException.ERROR_CODE_PACKAGE_NAME_IS_EMPTY, "Current package name is empty: packageName=\"" + packageName + "\";");
-        for (String allowedPackageName : packageNames) {
-            if (packageName.equalsIgnoreCase(allowedPackageName)) return;// validation success
-        }
-        throw new ValidationException(ValidationException.ERROR_CODE_PACKAGE_NAME_NOT_VALID, "Not valid package name:  CurrentPackageName=\"" + packageName + "\";  validPackageNames=" + packageNames.toString() + ";");
+        String packageName = config.isCacheEnabled ? ValidationCache.getInstance().getPackageName(probe) : probe.getPackageName();
+        if (isEmpty(packageName))
+            throw failure(config, ValidationException.ERROR_CODE_PACKAGE_NAME_IS_EMPTY, null, "Current package name is empty: packageName=\"{}\";", packageName);
+        if (config.policy.containsPackageName(packageName)) return;// validation success
+        throw failure(config, ValidationException.ERROR_CODE_PACKAGE_NAME_NOT_VALID, null, "Not valid package name:  CurrentPackageName=\"{}\";  validPackageNames={};", packageName, config.policy.describe(ValidationPolicy.SECTION_PACKAGE_NAMES));
     }
 
-    private void validateStore() throws ValidationException {
-        if (stores == null || stores.size() <= 0) return;// validation success (no validation need)
-        final String installer = getCurrentStore(context);
-        if (TextUtils.isEmpty(installer))
-            throw new ValidationException(ValidationException.ERROR_CODE_STORE_IS_EMPTY, "Current store is empty: store=\"" + installer + "\"; App installed by user (not by store).");
-        for (String allowedStore : stores) {
-            if (installer.equalsIgnoreCase(allowedStore)) return;// validation success
+    private void validateStore(ProtectionConfig config) throws ValidationException {
+        if (config.policy.getStoreCount() <= 0) return;// validation success (no validation need)
+        final String installer = config.isCacheEnabled ? ValidationCache.getInstance().getCurrentStore(probe) : probe.getInstallerPackageName();
+        if (isEmpty(installer))
+            throw failure(config, ValidationException.ERROR_CODE_STORE_IS_EMPTY, null, "Current store is empty: store=\"{}\"; App installed by user (not by store).", installer);
+        if (config.policy.containsStore(installer)) return;// validation success
+        throw failure(config, ValidationException.ERROR_CODE_STORE_NOT_VALID, null, "Not valid store:  CurrentStore=\"{}\";  validStores={};", installer, config.policy.describe(ValidationPolicy.SECTION_STORES));
+    }
+
+    private void validateDexCRC(ProtectionConfig config) throws ValidationException {
+        if (config.policy.getDexCrcCount() <= 0)
+            return;// validation success (no validation need)
+        try {
+            long crc = config.persistentCache != null ? config.persistentCache.getDexCRC(probe)
+                    : config.isCacheEnabled ? ValidationCache.getInstance().getDexCRC(probe) : ApkIndex.of(probe.getApkPath()).getDexCrc();
+            if (config.policy.containsDexCrc(crc)) return;// validation success
+            throw failure(config, ValidationException.ERROR_CODE_CRC_NOT_VALID, null, "Crc code of .dex not valid. CurrentDexCrc={}  acceptedDexCrcs={};", crc, config.policy.describe(ValidationPolicy.SECTION_DEX_CRCS));
+        } catch (IOException e) {
+            throw failure(config, ValidationException.ERROR_CODE_CRC_UNKNOWN_EXCEPTION, e, "Exception on .dex CNC validation.");
         }
-        throw new ValidationException(ValidationException.ERROR_CODE_STORE_NOT_VALID, "Not valid store:  CurrentStore=\"" + installer + "\";  validStores=" + stores.toString() + ";");
     }
 
-    private void validateDexCRC() throws ValidationException {
-        if (dexCrcs == null || dexCrcs.length <= 0)
+    private void validateNativeLibs(ProtectionConfig config) throws ValidationException {
+        if (config.policy.getNativeLibDigestCount() <= 0)
             return;// validation success (no validation need)
         try {
-            long crc = getDexCRC(context);
-            for (long allowedDexCrc : dexCrcs) {
-                if (allowedDexCrc == crc) return;// validation success
+            ApkIndex index = ApkIndex.of(probe.getApkPath());
+            String[] abis = probe.getSupportedAbis();
+            String abi = NativeLibDigester.selectAbi(index, abis);
+            if (abi == null)
+                throw failure(config, ValidationException.ERROR_CODE_NATIVE_LIB_NOT_VALID, null, "No native libraries for device ABIs {} in apk.", (Object) abis);
+            String nativeLibraryDir = probe.getNativeLibraryDir();
+            NativeLibDigester.Result result = NativeLibDigester.digest(index, abi, nativeLibraryDir == null ? null : new File(nativeLibraryDir));
+            for (int i = 0; i < result.getLibraryCount(); i++) {
+                String digest = result.getDigest(i);
+                if (!config.policy.containsNativeLibDigest(digest))
+                    throw failure(config, ValidationException.ERROR_CODE_NATIVE_LIB_NOT_VALID, null, "Digest of native library not valid. Library=\"{}\"  CurrentDigest={}  acceptedNativeLibDigests={};", result.getName(i), digest, config.policy.describe(ValidationPolicy.SECTION_NATIVE_LIB_DIGESTS));
             }
-            throw new ValidationException(ValidationException.ERROR_CODE_CRC_NOT_VALID, "Crc code of .dex not valid. CurrentDexCrc=" + crc + "  acceptedDexCrcs=" + Arrays.toString(dexCrcs) + ";");
         } catch (IOException e) {
-            e.printStackTrace();
-            throw new ValidationException(ValidationException.ERROR_CODE_CRC_UNKNOWN_EXCEPTION, "Exception on .dex CNC validation.", e);
+            throw failure(config, ValidationException.ERROR_CODE_NATIVE_LIB_UNKNOWN_EXCEPTION, e, "Exception on native libraries validation.");
+        } catch (NoSuchAlgorithmException e) {
+            throw failure(config, ValidationException.ERROR_CODE_NATIVE_LIB_UNKNOWN_EXCEPTION, e, "Exception on native libraries validation.");
+        }
+    }
+
+    private void validateDexDigest(ProtectionConfig config) throws ValidationException {
+        if (config.policy.getDexDigestCount() <= 0)
+            return;// validation success (no validation need)
+        try {
+            String digest = config.persistentCache != null ? config.persistentCache.getDexDigest(probe)
+                    : config.isCacheEnabled ? ValidationCache.getInstance().getDexDigest(probe) : DexDigester.digest(ApkIndex.of(probe.getApkPath()));
+            if (config.policy.containsDexDigest(digest)) return;// validation success
+            throw failure(config, ValidationException.ERROR_CODE_DEX_DIGEST_NOT_VALID, null, "Digest of .dex not valid. CurrentDexDigest={}  acceptedDexDigests={};", digest, config.policy.describe(ValidationPolicy.SECTION_DEX_DIGESTS));
+        } catch (IOException e) {
+            throw failure(config, ValidationException.ERROR_CODE_DEX_DIGEST_UNKNOWN_EXCEPTION, e, "Exception on .dex digest validation.");
+        } catch (NoSuchAlgorithmException e) {
+            throw failure(config, ValidationException.ERROR_CODE_DEX_DIGEST_UNKNOWN_EXCEPTION, e, "Exception on .dex digest validation.");
+        }
+    }
+
+    private void validateIntegrity(ProtectionConfig config) throws ValidationException {
+        IntegrityManifest manifest = config.integrityManifest;
+        if (manifest == null)
+            return;// validation success (no validation need)
+        try {
+            if (manifest.hasSigner()) {
+                byte[][] certificates = getCertificates(config);
+                boolean isSigner = false;
+                for (int i = 0; certificates != null && i < certificates.length && !isSigner; i++) {
+                    isSigner = manifest.isSigner(certificates[i]);
+                }
+                if (!isSigner)
+                    throw failure(config, ValidationException.ERROR_CODE_INTEGRITY_NOT_VALID, null, "Apk not signed by signer of integrity manifest. ManifestSigner={};", manifest.getSigner());
+            }
+            String verdict = config.persistentCache == null ? null : CHECK_INTEGRITY + ":" + Hex.toHex(MessageDigest.getInstance(ApkContentDigest.ALGORITHM).digest(manifest.toByteArray()));
+            if (verdict != null && config.persistentCache.isPassed(probe, verdict)) return;// validation success (passed for same apk before)
+            ApkIndex index = ApkIndex.of(probe.getApkPath());
+            SamplingPlan plan = config.integrityByteBudget > 0
+                    ? SamplingPlan.forByteBudget(manifest, index, manifest.hasChunks() ? SamplingPlan.UNIT_CHUNKS : SamplingPlan.UNIT_ENTRIES, config.integrityByteBudget)
+                    : SamplingPlan.forSampleSize(manifest, index, SamplingPlan.UNIT_ENTRIES, config.integritySampleSize);
+            // sample is drawn from units not verified on previous launches, verdict is saved only when all units are verified
+            String unitsKey = verdict == null ? null : verdict + ":" + (plan.getUnit() == SamplingPlan.UNIT_CHUNKS ? "chunks" : "entries");
+            BitSet verified = unitsKey == null ? new BitSet() : config.persistentCache.getVerifiedUnits(probe, unitsKey);
+            IntegrityVerifier.Result result = new IntegrityVerifier(manifest, index).verify(plan, new SecureRandom(), verified);
+            if (result.isValid()) {
+                if (unitsKey != null && verified.cardinality() >= plan.getUnitCount()) {
+                    config.persistentCache.setPassed(probe, verdict);
+                } else if (unitsKey != null) {
+                    config.persistentCache.setVerifiedUnits(probe, unitsKey, verified);
+                }
+                return;// validation success
+            }
+            throw failure(config, ValidationException.ERROR_CODE_INTEGRITY_NOT_VALID, null, "Apk not match integrity manifest. {}", result.getFailure());
+        } catch (IOException exception) {
+            throw failure(config, ValidationException.ERROR_CODE_INTEGRITY_UNKNOWN_EXCEPTION, exception, "Exception on integrity validation.");
+        } catch (NoSuchAlgorithmException exception) {
+            throw failure(config, ValidationException.ERROR_CODE_INTEGRITY_UNKNOWN_EXCEPTION, exception, "Exception on integrity validation.");
+        }
+    }
+
+    /**
+     * @return - signing certificates of app from source chosen by {@link #setSignatureSource(int)}.
+     */
+    private byte[][] getCertificates(ProtectionConfig config) throws IOException {
+        if (config.signatureSource == SIGNATURE_SOURCE_APK_SIGNING_BLOCK) {
+            if (config.persistentCache != null) return config.persistentCache.getApkCertificates(probe);
+            return config.isCacheEnabled ? ValidationCache.getInstance().getApkCertificates(probe) : getApkCertificates(probe.getApkPath());
         }
+        if (config.persistentCache != null) return config.persistentCache.getSignatureCertificates(probe);
+        return config.isCacheEnabled ? ValidationCache.getInstance().getSignatureCertificates(probe) : probe.getSignatureCertificates();
     }
 
-    private void validateSignature() throws ValidationException {
-        if (signatures == null || signatures.size() <= 0)
+    private void validateSignature(final ProtectionConfig config) throws ValidationException {
+        if (config.policy.getSignatureCount() <= 0)
             return;// validation success (no validation need)
         try {
-            String[] md5Signatures = getSignatures(context);
+            final byte[][] certificates = getCertificates(config);
 
-            if (md5Signatures == null || md5Signatures.length <= 0) {
-                throw new ValidationException(ValidationException.ERROR_CODE_SIGNATURE_IS_EMPTY, "No signatures found.");
+            if (certificates == null || certificates.length <= 0) {
+                throw failure(config, ValidationException.ERROR_CODE_SIGNATURE_IS_EMPTY, null, "No signatures found.");
             }
             // TODO Maybe multiple signatures is a type of tampering, but im not sure. If you sure then uncomment next rows.
-            // if (md5Signatures.length != 1) {
-            //     throw new ValidationException(ValidationException.ERROR_CODE_SIGNATURE_MULTIPLE, "Multiple signatures found. Total signatures=" + packageInfo.signatures.length + ";");
+            // if (certificates.length != 1) {
+            //     throw new ValidationException(ValidationException.ERROR_CODE_SIGNATURE_MULTIPLE, "Multiple signatures found. Total signatures=" + certificates.length + ";");
             // }
 
-            for (String md5Signature : md5Signatures) {
-                for (String allowedSignature : signatures) {
-                    if (md5Signature.equalsIgnoreCase(allowedSignature))
-                        return;// validation success
-                }
+            for (byte[] certificate : certificates) {
+                if (config.policy.containsSignature(certificate))
+                    return;// validation success
             }
-            throw new ValidationException(ValidationException.ERROR_CODE_SIGNATURE_NOT_VALID, "Not valid signature: CurrentSignatures=" + md5Signatures + ";  validSignatures=" + signatures.toString() + ";");
-        } catch (PackageManager.NameNotFoundException exception) {
-            throw new ValidationException(ValidationException.ERROR_CODE_SIGNATURE_UNKNOWN_EXCEPTION, "Exception on signature validation.", exception);
+            throw failure(config, ValidationException.ERROR_CODE_SIGNATURE_NOT_VALID, null, "Not valid signature: CurrentSignatures={};  validSignatures={};", new Object() {
+                @Override
+                public String toString() {
+                    try {
+                        return describe(config, certificates);
+                    } catch (NoSuchAlgorithmException exception) {
+                        return exception.toString();
+                    }
+                }
+            }, config.policy.describe(ValidationPolicy.SECTION_SIGNATURES_MD5));
+        } catch (IOException exception) {
+            throw failure(config, ValidationException.ERROR_CODE_SIGNATURE_UNKNOWN_EXCEPTION, exception, "Exception on signature validation.");
         } catch (NoSuchAlgorithmException exception) {
-            throw new ValidationException(ValidationException.ERROR_CODE_SIGNATURE_UNKNOWN_EXCEPTION, "Exception on signature validation.", exception);
+            throw failure(config, ValidationException.ERROR_CODE_SIGNATURE_UNKNOWN_EXCEPTION, exception, "Exception on signature validation.");
         }
 
     }
 
+    /**
+     * @return - fingerprints of certificates (MD5 and SHA-256 as accepted fingerprints are), for error messages.
+     */
+    private String describe(ProtectionConfig config, byte[][] certificates) throws NoSuchAlgorithmException {
+        boolean hasSha256 = false;
+        boolean hasMd5 = false;
+        for (byte[] fingerprint : config.policy.getSignatureDigests()) {
+            if (fingerprint.length == SignatureFingerprints.MD5_LENGTH) hasMd5 = true;
+            else hasSha256 = true;
+        }
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < certificates.length; i++) {
+            if (i > 0) builder.append(", ");
+            if (hasMd5 || !hasSha256) builder.append(SignatureFingerprints.md5(certificates[i]));
+            if (hasMd5 && hasSha256) builder.append(" / ");
+            if (hasSha256) builder.append(SignatureFingerprints.sha256(certificates[i]));
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * @param cause     - (nullable) cause of failure.
+     * @param template  - message, each <code>{}</code> is replaced by next argument when message is rendered.
+     * @param arguments - raw values of message (arrays and lazy descriptions are formatted only by {@link ValidationException#getMessage()}).
+     * @return - failure of check, stack trace is filled only if {@link ProtectionConfig#isStackTraceEnabled()}.
+     */
+    private static ValidationException failure(ProtectionConfig config, int code, Throwable cause, String template, Object... arguments) {
+        return new ValidationException(code, config.isStackTraceEnabled, cause, template, arguments);
+    }
+
+    private static boolean isEmpty(String string) {
+        return string == null || string.length() == 0;
+    }
+
+    /**
+     * Receive result of asynchronous validation ({@link #validateAsync(Executor, ValidationListener)}).
+     */
+    public interface ValidationListener {
+        /**
+         * App is valid.
+         */
+        void onValidationSuccess();
+
+        /**
+         * App is tampered.
+         *
+         * @param exception - detailed description of fail reason.
+         */
+        void onValidationFailed(ValidationException exception);
+    }
+
     /**
      * Exception with detailed description of validation fail reason.<br>
-     * Look to {@link #getErrorCode} for get fail reason details ( and {@link #getMessage} for get text description).
+     * Look to {@link #getErrorCode} for get fail reason details ( and {@link #getMessage} for get text description).<br>
+     * Failures of checks keep raw values ({@link #getArguments()}) and render text description only on first
+     * {@link #getMessage} call, so failure which is only counted (or only its code is checked) costs almost nothing.
      */
     public static final class ValidationException extends Exception {
         public static final int ERROR_CODE_UNKNOWN_EXCEPTION = 1;
@@ -472,16 +1211,84 @@ public class TamperingProtection {
         public static final int ERROR_CODE_SIGNATURE_UNKNOWN_EXCEPTION = 11;
         public static final int ERROR_CODE_CRC_NOT_VALID = 12;
         public static final int ERROR_CODE_CRC_UNKNOWN_EXCEPTION = 13;
+        public static final int ERROR_CODE_TIMEOUT = 14;
+        public static final int ERROR_CODE_DEX_DIGEST_NOT_VALID = 15;
+        public static final int ERROR_CODE_DEX_DIGEST_UNKNOWN_EXCEPTION = 16;
+        public static final int ERROR_CODE_INTEGRITY_NOT_VALID = 17;
+        public static final int ERROR_CODE_INTEGRITY_UNKNOWN_EXCEPTION = 18;
+        public static final int ERROR_CODE_DEBUGGER_ATTACHED = 19;
+        public static final int ERROR_CODE_DEBUGGER_UNKNOWN_EXCEPTION = 20;
+        public static final int ERROR_CODE_HOOK_DETECTED = 21;
+        public static final int ERROR_CODE_HOOK_UNKNOWN_EXCEPTION = 22;
+        public static final int ERROR_CODE_NATIVE_LIB_NOT_VALID = 23;
+        public static final int ERROR_CODE_NATIVE_LIB_UNKNOWN_EXCEPTION = 24;
+        private static final Object[] NO_ARGUMENTS = new Object[0];
+        private static final StackTraceElement[] NO_STACK_TRACE = new StackTraceElement[0];
         private final int code;
+        private final String template;
+        private final Object[] arguments;
+        private volatile String message;
+        private boolean isConstructed; // Throwable constructor calls fillInStackTrace() before fields are set
 
         public ValidationException(int code, String message) {
-            super(message);
-            this.code = code;
+            this(code, true, null, message, NO_ARGUMENTS);
         }
 
         public ValidationException(int code, String message, Throwable cause) {
-            super(message, cause);
+            this(code, true, cause, message, NO_ARGUMENTS);
+        }
+
+        /**
+         * @param isStackTraceEnabled - false for exception without stack trace (filled stack trace is most expensive part of exception).
+         * @param template            - message, each <code>{}</code> is replaced by next argument on first {@link #getMessage()} call.
+         */
+        ValidationException(int code, boolean isStackTraceEnabled, Throwable cause, String template, Object... arguments) {
+            super(null, cause);
             this.code = code;
+            this.template = template;
+            this.arguments = arguments;
+            isConstructed = true;
+            if (isStackTraceEnabled) fillInStackTrace();
+            else setStackTrace(NO_STACK_TRACE);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return isConstructed ? super.fillInStackTrace() : this;
+        }
+
+        /**
+         * @return - text description of fail reason (rendered once from {@link #getArguments()}).
+         */
+        @Override
+        public String getMessage() {
+            String message = this.message;
+            if (message == null && template != null) this.message = message = render(template, arguments);
+            return message;
+        }
+
+        /**
+         * @return - raw values of text description in order of appearance (strings, numbers, arrays, or descriptions
+         * which are formatted by <code>toString()</code>). Empty if description has no values.
+         */
+        public Object[] getArguments() {
+            return arguments.clone();
+        }
+
+        private static String render(String template, Object[] arguments) {
+            if (arguments.length == 0) return template;
+            StringBuilder builder = new StringBuilder(template.length() + 16 * arguments.length);
+            int start = 0;
+            for (Object argument : arguments) {
+                int index = template.indexOf("{}", start);
+                if (index < 0) break;
+                builder.append(template, start, index);
+                if (argument instanceof long[]) builder.append(Arrays.toString((long[]) argument));
+                else if (argument instanceof Object[]) builder.append(Arrays.toString((Object[]) argument));
+                else builder.append(argument);
+                start = index + 2;
+            }
+            return builder.append(template, start, template.length()).toString();
         }
 
         /**
@@ -497,7 +1304,21 @@ public class TamperingProtection {
          * <br>{@link #ERROR_CODE_STORE_NOT_VALID},
          * <br>{@link #ERROR_CODE_SIGNATURE_IS_EMPTY},
          * <br>{@link #ERROR_CODE_SIGNATURE_MULTIPLE},
-         * <br>{@link #ERROR_CODE_SIGNATURE_NOT_VALID}
+         * <br>{@link #ERROR_CODE_SIGNATURE_NOT_VALID},
+         * <br>{@link #ERROR_CODE_SIGNATURE_UNKNOWN_EXCEPTION},
+         * <br>{@link #ERROR_CODE_CRC_NOT_VALID},
+         * <br>{@link #ERROR_CODE_CRC_UNKNOWN_EXCEPTION},
+         * <br>{@link #ERROR_CODE_TIMEOUT},
+         * <br>{@link #ERROR_CODE_DEX_DIGEST_NOT_VALID},
+         * <br>{@link #ERROR_CODE_DEX_DIGEST_UNKNOWN_EXCEPTION},
+         * <br>{@link #ERROR_CODE_INTEGRITY_NOT_VALID},
+         * <br>{@link #ERROR_CODE_INTEGRITY_UNKNOWN_EXCEPTION},
+         * <br>{@link #ERROR_CODE_DEBUGGER_ATTACHED},
+         * <br>{@link #ERROR_CODE_DEBUGGER_UNKNOWN_EXCEPTION},
+         * <br>{@link #ERROR_CODE_HOOK_DETECTED},
+         * <br>{@link #ERROR_CODE_HOOK_UNKNOWN_EXCEPTION},
+         * <br>{@link #ERROR_CODE_NATIVE_LIB_NOT_VALID},
+         * <br>{@link #ERROR_CODE_NATIVE_LIB_UNKNOWN_EXCEPTION}
          */
         public int getErrorCode() {
             return code;
@@ -0,0 +1,305 @@
+package ru.lazard.tamperingprotection;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of static facts about app: signatures, dex CRC code and digest, installer store, package name and debug flag.<br>
+ * Facts are calculated once per process and recalculated only when {@link ApkIdentity} of apk changed
+ * (apk path, length or modification time; <code>lastUpdateTime</code> of package is taken only when facts are recalculated,
+ * so cached lookup makes no PackageManager call).<br>
+ * Facts are taken from {@link EnvironmentProbe} of validation.
+ * Cache is opt-in, enable it by {@link TamperingProtection#setCacheEnabled(boolean)}.<br>
+ * Concurrent requests of fact which is not calculated yet are coalesced: fact is calculated once, other threads wait for result.<br>
+ * Use {@link #getHitCount()} and {@link #getMissCount()} for check cache efficiency in production.
+ */
+public final class ValidationCache {
+
+    private static final ValidationCache INSTANCE = new ValidationCache();
+
+    private static final String KEY_SIGNATURES = "signatures";
+    private static final String KEY_CERTIFICATES = "certificates";
+    private static final String KEY_APK_CERTIFICATES = "apkCertificates";
+    private static final String KEY_DEX_CRC = "dexCrc";
+    private static final String KEY_DEX_DIGEST = "dexDigest";
+    private static final String KEY_STORE = "store";
+    private static final String KEY_PACKAGE_NAME = "packageName";
+    private static final String KEY_DEBUG = "debug";
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile Facts facts;
+
+    private ValidationCache() {
+    }
+
+    public static ValidationCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Cached MD5 fingerprints of signing certificates (same as {@link TamperingProtection#getSignatures(Context)}).
+     */
+    public String[] getSignatures(final EnvironmentProbe probe) throws IOException, NoSuchAlgorithmException {
+        String[] signatures = get(probe, KEY_SIGNATURES, new Fact<String[]>() {
+            @Override
+            public String[] compute() throws IOException, NoSuchAlgorithmException {
+                return SignatureFingerprints.md5(getSignatureCertificates(probe));
+            }
+        });
+        return signatures.clone();
+    }
+
+    /**
+     * Cached encoded signing certificates (raw bytes of signatures).
+     */
+    byte[][] getSignatureCertificates(final EnvironmentProbe probe) throws IOException {
+        return getUnchecked(probe, KEY_CERTIFICATES, new Fact<byte[][]>() {
+            @Override
+            public byte[][] compute() throws IOException {
+                return probe.getSignatureCertificates();
+            }
+        });
+    }
+
+    /**
+     * Cached signing certificates from APK Signing Block.
+     */
+    byte[][] getApkCertificates(final EnvironmentProbe probe) throws IOException {
+        return getUnchecked(probe, KEY_APK_CERTIFICATES, new Fact<byte[][]>() {
+            @Override
+            public byte[][] compute() throws IOException {
+                return TamperingProtection.getApkCertificates(probe.getApkPath());
+            }
+        });
+    }
+
+    /**
+     * Cached CRC code of dex files (same as {@link TamperingProtection#getDexCRC(Context)}).
+     */
+    public long getDexCRC(final EnvironmentProbe probe) throws IOException {
+        return getUnchecked(probe, KEY_DEX_CRC, new Fact<Long>() {
+            @Override
+            public Long compute() throws IOException {
+                return ApkIndex.of(probe.getApkPath()).getDexCrc();
+            }
+        });
+    }
+
+    /**
+     * Cached SHA-256 digest of dex files (same as {@link TamperingProtection#getDexDigest(Context)}).
+     */
+    public String getDexDigest(final EnvironmentProbe probe) throws IOException, NoSuchAlgorithmException {
+        return get(probe, KEY_DEX_DIGEST, new Fact<String>() {
+            @Override
+            public String compute() throws IOException, NoSuchAlgorithmException {
+                return DexDigester.digest(ApkIndex.of(probe.getApkPath()));
+            }
+        });
+    }
+
+    /**
+     * Cached {@link EnvironmentProbe#getInstallerPackageName()}.
+     */
+    public String getCurrentStore(final EnvironmentProbe probe) {
+        return getQuietly(probe, KEY_STORE, new Fact<String>() {
+            @Override
+            public String compute() {
+                return probe.getInstallerPackageName();
+            }
+        });
+    }
+
+    /**
+     * Cached {@link EnvironmentProbe#getPackageName()}.
+     */
+    public String getPackageName(final EnvironmentProbe probe) {
+        return getQuietly(probe, KEY_PACKAGE_NAME, new Fact<String>() {
+            @Override
+            public String compute() {
+                return probe.getPackageName();
+            }
+        });
+    }
+
+    /**
+     * Cached {@link EnvironmentProbe#isDebuggable()}.
+     */
+    public boolean isDebug(final EnvironmentProbe probe) {
+        return getQuietly(probe, KEY_DEBUG, new Fact<Boolean>() {
+            @Override
+            public Boolean compute() {
+                return probe.isDebuggable();
+            }
+        });
+    }
+
+    /**
+     * Drop all cached facts. Next call of any getter recalculate them.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            if (facts != null) invalidations.incrementAndGet();
+            facts = null;
+        }
+    }
+
+    /**
+     * @return - identity of apk for which facts are cached now (or null if nothing cached).
+     */
+    public ApkIdentity getIdentity() {
+        Facts facts = this.facts;
+        return facts == null ? null : facts.identity;
+    }
+
+    /**
+     * @return - count of facts returned from cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return - count of facts which were calculated (not found in cache).
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return - count of facts which were being calculated by other thread and returned from its calculation (included in hits).
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return - count of cache drops because apk identity changed (or {@link #invalidate()} called).
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    public void resetCounters() {
+        hits.set(0);
+        misses.set(0);
+        coalesced.set(0);
+        invalidations.set(0);
+    }
+
+    private Facts facts(EnvironmentProbe probe) {
+        File file = new File(probe.getApkPath());
+        Facts facts = this.facts;
+        if (facts != null && facts.identity.matches(file)) return facts; // no PackageManager call on cached lookup
+        synchronized (this) {
+            facts = this.facts;
+            if (facts != null && facts.identity.matches(file)) return facts;
+            if (facts != null) invalidations.incrementAndGet();
+            facts = new Facts(ApkIdentity.of(file, probe.getLastUpdateTime()));
+            this.facts = facts;
+            return facts;
+        }
+    }
+
+    /**
+     * Get fact from cache or calculate it. Concurrent calls for fact which is not calculated yet wait for one calculation
+     * (first caller calculates, others get its result). Failed calculation is not cached: next call calculates again.
+     */
+    private <T> T get(EnvironmentProbe probe, String key, final Fact<T> fact) throws IOException, NoSuchAlgorithmException {
+        Facts facts = facts(probe);
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return fact.compute();
+            }
+        });
+        @SuppressWarnings("unchecked")
+        FutureTask<T> existing = (FutureTask<T>) facts.values.putIfAbsent(key, task);
+        if (existing == null) {
+            misses.incrementAndGet();
+            task.run(); // calculated on current thread
+        } else {
+            hits.incrementAndGet();
+            if (!existing.isDone()) coalesced.incrementAndGet();
+            task = existing;
+        }
+        try {
+            return getResult(task);
+        } catch (IOException exception) {
+            facts.values.remove(key, task);
+            throw exception;
+        } catch (NoSuchAlgorithmException exception) {
+            facts.values.remove(key, task);
+            throw exception;
+        } catch (RuntimeException exception) {
+            facts.values.remove(key, task);
+            throw exception;
+        }
+    }
+
+    private <T> T getUnchecked(EnvironmentProbe probe, String key, Fact<T> fact) throws IOException {
+        try {
+            return get(probe, key, fact);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception); // fact don't use digests
+        }
+    }
+
+    private <T> T getQuietly(EnvironmentProbe probe, String key, Fact<T> fact) {
+        try {
+            return get(probe, key, fact);
+        } catch (IOException exception) {
+            throw new IllegalStateException(exception); // fact don't read files
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static <T> T getResult(FutureTask<T> task) throws IOException, NoSuchAlgorithmException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException exception) {
+                    interrupted = true; // calculation is shared, wait for it and restore interrupt flag
+                }
+            }
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Calculation of one fact.
+     */
+    private interface Fact<T> {
+        T compute() throws IOException, NoSuchAlgorithmException;
+    }
+
+    private static final class Facts {
+        private final ApkIdentity identity;
+        private final ConcurrentHashMap<String, FutureTask<?>> values = new ConcurrentHashMap<String, FutureTask<?>>();
+
+        private Facts(ApkIdentity identity) {
+            this.identity = identity;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ru.lazard.tamperingprotection;
+
+/**
+ * One check of {@link TamperingProtection} (debug mode, emulator, package name, store, signature, dex CRC).<br>
+ * Check declares its estimated cost (cheap checks are run first) and names of checks it depends on
+ * (check is run only after its dependencies passed, and skipped if any of them failed).
+ */
+abstract class ValidationCheck {
+
+    /**
+     * @return - short name of check (for logs and reports).
+     */
+    public abstract String getName();
+
+    /**
+     * Run check.
+     *
+     * @throws TamperingProtection.ValidationException - if app tampered.
+     */
+    public abstract void validate() throws TamperingProtection.ValidationException;
+
+    /**
+     * @return - estimated cost of check in microseconds (0 if check is not configured and pass without work).
+     */
+    public int getCost() {
+        return 0;
+    }
+
+    /**
+     * @return - names of checks which must pass before this check.
+     */
+    public String[] getDependencies() {
+        return new String[0];
+    }
+}
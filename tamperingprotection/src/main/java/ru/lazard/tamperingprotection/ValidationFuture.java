@@ -0,0 +1,445 @@
+package ru.lazard.tamperingprotection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationListener;
+
+/**
+ * Result of asynchronous validation ({@link TamperingProtection#validateAsync}).<br>
+ * Checks are ordered by estimated cost (cheap first) and by dependencies ({@link #order(List)}).
+ * Each check is submitted to executor as soon as checks it depends on passed, so independent checks run concurrently
+ * (with direct executor checks run one by one in order). Result is merged deterministically:
+ * if several checks fail, then reported failure of the first check in order
+ * (same as {@link TamperingProtection#validateAllOrThrowException()} reports).<br>
+ * In {@link #MODE_FAIL_FAST} mode checks which are not finished yet are cancelled as soon as result is known.
+ * In {@link #MODE_COLLECT_ALL} mode all checks are run and {@link #getReport()} contains all failures.<br>
+ * {@link #get()} return <code>null</code> if app valid, or throw <code>ExecutionException</code> with
+ * {@link ValidationException} cause if tampered.
+ */
+public final class ValidationFuture implements Future<Void> {
+
+    /**
+     * Complete validation on first failure (by default).
+     */
+    public static final int MODE_FAIL_FAST = 0;
+    /**
+     * Run all checks (checks which depend on failed check are skipped) and report all failures.
+     */
+    public static final int MODE_COLLECT_ALL = 1;
+
+    private static final int STATE_RUNNING = 0;
+    private static final int STATE_VALID = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private final List<ValidationCheck> checks;
+    private final int mode;
+    private final int[][] dependencies; // indexes of checks each check depends on
+    private final FutureTask<?>[] tasks;
+    private final Throwable[] failures;
+    private final boolean[] finished;
+    private final boolean[] submitted;
+    private final int[] outcomes;
+    private final long[] durations;
+    private final ValidationListener listener;
+    private final ValidationMetrics metrics;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private Executor executor;
+    private boolean isPumping;
+    private boolean isPumpRequested;
+    private long startTime;
+    private long elapsedNanos;
+    private int state = STATE_RUNNING;
+    private Throwable failure;
+    private Runnable completion;
+
+    ValidationFuture(List<ValidationCheck> checks, ValidationListener listener) {
+        this(checks, listener, MODE_FAIL_FAST);
+    }
+
+    /**
+     * @param checks - checks in order of scheduling (see {@link #order(List)}), each check must be after checks it depends on.
+     */
+    ValidationFuture(List<ValidationCheck> checks, ValidationListener listener, int mode) {
+        this(checks, listener, mode, null);
+    }
+
+    /**
+     * @param metrics - (nullable) receive measurement of each check.
+     */
+    ValidationFuture(List<ValidationCheck> checks, ValidationListener listener, int mode, ValidationMetrics metrics) {
+        if (mode != MODE_FAIL_FAST && mode != MODE_COLLECT_ALL) throw new IllegalArgumentException("Unknown validation mode: " + mode);
+        this.checks = checks;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.mode = mode;
+        this.tasks = new FutureTask<?>[checks.size()];
+        this.failures = new Throwable[checks.size()];
+        this.finished = new boolean[checks.size()];
+        this.submitted = new boolean[checks.size()];
+        this.outcomes = new int[checks.size()];
+        this.durations = new long[checks.size()];
+        this.dependencies = new int[checks.size()][];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new FutureTask<Void>(new CheckRunnable(i), null);
+            outcomes[i] = ValidationReport.OUTCOME_NOT_RUN;
+            String[] names = checks.get(i).getDependencies();
+            dependencies[i] = new int[names.length];
+            for (int j = 0; j < names.length; j++) {
+                dependencies[i][j] = indexOf(checks, names[j], i);
+            }
+        }
+    }
+
+    private static int indexOf(List<ValidationCheck> checks, String name, int before) {
+        for (int i = 0; i < before; i++) {
+            if (checks.get(i).getName().equals(name)) return i;
+        }
+        throw new IllegalArgumentException("Check \"" + checks.get(before).getName() + "\" depends on \"" + name + "\", which is not scheduled before it.");
+    }
+
+    /**
+     * Order checks for scheduling: by estimated cost (cheap first, equal costs keep given order),
+     * each check is moved after checks it depends on.
+     *
+     * @throws IllegalArgumentException - if dependency is unknown or dependencies are cyclic.
+     */
+    static List<ValidationCheck> order(List<ValidationCheck> checks) {
+        List<ValidationCheck> byCost = new ArrayList<ValidationCheck>(checks);
+        Collections.sort(byCost, new Comparator<ValidationCheck>() { // stable
+            @Override
+            public int compare(ValidationCheck a, ValidationCheck b) {
+                return a.getCost() < b.getCost() ? -1 : (a.getCost() == b.getCost() ? 0 : 1);
+            }
+        });
+        List<ValidationCheck> ordered = new ArrayList<ValidationCheck>(byCost.size());
+        List<String> names = new ArrayList<String>(byCost.size());
+        while (!byCost.isEmpty()) {
+            int ready = -1;
+            for (int i = 0; i < byCost.size() && ready < 0; i++) {
+                ready = i;
+                for (String dependency : byCost.get(i).getDependencies()) {
+                    if (!names.contains(dependency)) {
+                        ready = -1;
+                        break;
+                    }
+                }
+            }
+            if (ready < 0) throw new IllegalArgumentException("Unknown or cyclic dependencies of checks: " + names(byCost));
+            ValidationCheck check = byCost.remove(ready);
+            ordered.add(check);
+            names.add(check.getName());
+        }
+        return ordered;
+    }
+
+    private static List<String> names(List<ValidationCheck> checks) {
+        List<String> names = new ArrayList<String>(checks.size());
+        for (ValidationCheck check : checks) {
+            names.add(check.getName());
+        }
+        return names;
+    }
+
+    /**
+     * @param completion - (nullable) action run once when validation is completed or cancelled, before result is available.
+     */
+    void setCompletion(Runnable completion) {
+        this.completion = completion;
+    }
+
+    void start(Executor executor) {
+        synchronized (this) {
+            this.executor = executor;
+            this.startTime = System.nanoTime();
+        }
+        if (tasks.length == 0) {
+            complete(STATE_VALID, null);
+            return;
+        }
+        pump();
+    }
+
+    /**
+     * Submit all checks which are ready (dependencies passed) in order of scheduling.
+     * Calls from checks run by direct executor only request one more pass, so checks are run one by one in order.
+     */
+    private void pump() {
+        synchronized (this) {
+            if (isPumping) {
+                isPumpRequested = true;
+                return;
+            }
+            isPumping = true;
+        }
+        while (true) {
+            int index = -1;
+            synchronized (this) {
+                if (state != STATE_RUNNING) {
+                    isPumping = false;
+                    return;
+                }
+                for (int i = 0; i < tasks.length && index < 0; i++) {
+                    if (submitted[i] || !isReady(i)) continue;
+                    submitted[i] = true;
+                    index = i;
+                }
+                if (index < 0) {
+                    if (!isPumpRequested) {
+                        isPumping = false;
+                        return;
+                    }
+                    isPumpRequested = false;
+                    continue;
+                }
+            }
+            try {
+                executor.execute(tasks[index]);
+            } catch (RejectedExecutionException exception) {
+                onCheckFinished(index, exception, 0); // check can't run (executor shut down or saturated): it fails
+            }
+        }
+    }
+
+    private boolean isReady(int index) {
+        for (int dependency : dependencies[index]) {
+            if (!finished[dependency] || outcomes[dependency] != ValidationReport.OUTCOME_PASSED) return false;
+        }
+        return true;
+    }
+
+    private void onCheckFinished(int index, Throwable throwable, long duration) {
+        int newState;
+        Throwable result = null;
+        synchronized (this) {
+            if (state != STATE_RUNNING) return;
+            finished[index] = true;
+            failures[index] = throwable;
+            durations[index] = duration;
+            outcomes[index] = throwable == null ? ValidationReport.OUTCOME_PASSED : ValidationReport.OUTCOME_FAILED;
+            if (throwable != null) skipDependents(index);
+            newState = STATE_VALID;
+            for (int i = 0; i < finished.length; i++) {
+                if (!finished[i]) {
+                    newState = STATE_RUNNING; // earlier check may still fail, wait for it
+                    if (mode == MODE_FAIL_FAST) break;
+                    continue;
+                }
+                if (failures[i] != null && result == null) {
+                    result = failures[i];
+                    if (newState == STATE_VALID) newState = STATE_FAILED;
+                    if (mode == MODE_FAIL_FAST) break;
+                }
+            }
+            if (newState == STATE_RUNNING) result = null;
+        }
+        if (newState == STATE_RUNNING) {
+            pump();
+            return;
+        }
+        complete(newState, result);
+    }
+
+    /**
+     * Mark checks which depend (directly or not) on failed check as skipped.
+     */
+    private void skipDependents(int failed) {
+        for (int i = failed + 1; i < tasks.length; i++) {
+            if (finished[i]) continue;
+            for (int dependency : dependencies[i]) {
+                if (finished[dependency] && outcomes[dependency] != ValidationReport.OUTCOME_PASSED) {
+                    finished[i] = true;
+                    submitted[i] = true;
+                    outcomes[i] = ValidationReport.OUTCOME_SKIPPED;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void complete(int newState, Throwable result) {
+        synchronized (this) {
+            if (state != STATE_RUNNING) return;
+            state = newState;
+            failure = result;
+            elapsedNanos = System.nanoTime() - startTime;
+        }
+        runCompletion();
+        done.countDown();
+        for (FutureTask<?> task : tasks) {
+            task.cancel(false);
+        }
+        if (listener == null || newState == STATE_CANCELLED) return;
+        if (newState == STATE_VALID) {
+            listener.onValidationSuccess();
+        } else {
+            listener.onValidationFailed(toValidationException(result));
+        }
+    }
+
+    private void runCompletion() {
+        if (completion == null) return;
+        try {
+            completion.run();
+        } catch (RuntimeException exception) {
+            // broken completion must not break validation
+        }
+    }
+
+    static ValidationException toValidationException(Throwable throwable) {
+        if (throwable instanceof ValidationException) return (ValidationException) throwable;
+        return new ValidationException(ValidationException.ERROR_CODE_UNKNOWN_EXCEPTION, "Exception on validation.", throwable);
+    }
+
+    /**
+     * Cancel validation. Listener is not notified about cancelled validation.
+     *
+     * @param mayInterruptIfRunning - interrupt threads of running checks.
+     * @return - false if validation already completed.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (state != STATE_RUNNING) return false;
+            state = STATE_CANCELLED;
+        }
+        runCompletion();
+        done.countDown();
+        for (FutureTask<?> task : tasks) {
+            task.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != STATE_RUNNING;
+    }
+
+    /**
+     * @return - true if validation completed and app is valid.
+     */
+    public synchronized boolean isValid() {
+        return state == STATE_VALID;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) throw new TimeoutException("Validation not completed in " + timeout + " " + unit);
+        return result();
+    }
+
+    /**
+     * Wait for result of validation. If validation not completed in time, then it's cancelled.
+     *
+     * @param timeout - max time to wait.
+     * @param unit    - unit of timeout.
+     * @throws ValidationException - if app tampered, or with code {@link ValidationException#ERROR_CODE_TIMEOUT} if timeout elapsed.
+     */
+    public void awaitOrThrowException(long timeout, TimeUnit unit) throws ValidationException {
+        try {
+            get(timeout, unit);
+        } catch (TimeoutException exception) {
+            cancel(true);
+            throw new ValidationException(ValidationException.ERROR_CODE_TIMEOUT, "Validation not completed in " + timeout + " " + unit + ".", exception);
+        } catch (InterruptedException exception) {
+            cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ValidationException(ValidationException.ERROR_CODE_UNKNOWN_EXCEPTION, "Validation interrupted.", exception);
+        } catch (CancellationException exception) {
+            throw new ValidationException(ValidationException.ERROR_CODE_UNKNOWN_EXCEPTION, "Validation cancelled.", exception);
+        } catch (ExecutionException exception) {
+            throw toValidationException(exception.getCause());
+        }
+    }
+
+    /**
+     * Outcome and timing of each check. Call it after validation completed (for running validation report is partial).
+     */
+    public synchronized ValidationReport getReport() {
+        List<ValidationReport.Entry> entries = new ArrayList<ValidationReport.Entry>(tasks.length);
+        for (int i = 0; i < tasks.length; i++) {
+            Throwable throwable = failures[i];
+            entries.add(new ValidationReport.Entry(checks.get(i).getName(), checks.get(i).getCost(), outcomes[i],
+                    throwable == null ? null : toValidationException(throwable), durations[i]));
+        }
+        return new ValidationReport(entries, state == STATE_RUNNING ? System.nanoTime() - startTime : elapsedNanos);
+    }
+
+    /**
+     * @return - failure of completed validation (<code>ValidationException</code>, unexpected <code>RuntimeException</code> or <code>Error</code>), or null if app valid.
+     */
+    synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    private Void result() throws ExecutionException {
+        synchronized (this) {
+            if (state == STATE_CANCELLED) throw new CancellationException("Validation cancelled.");
+            if (state == STATE_FAILED) throw new ExecutionException(failure);
+            return null;
+        }
+    }
+
+    private final class CheckRunnable implements Runnable {
+        private final int index;
+
+        private CheckRunnable(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            Throwable throwable = null;
+            CheckCounters counters = metrics == null ? null : CheckCounters.begin();
+            long start = System.nanoTime();
+            try {
+                checks.get(index).validate();
+            } catch (Throwable exception) {
+                throwable = exception; // also Error: executor swallows it, validation would never complete
+            }
+            long duration = System.nanoTime() - start;
+            if (counters != null) {
+                counters.end();
+                report(counters, throwable, duration);
+            }
+            onCheckFinished(index, throwable, duration);
+        }
+
+        private void report(CheckCounters counters, Throwable throwable, long duration) {
+            int errorCode = ValidationMetrics.NO_ERROR;
+            if (throwable instanceof ValidationException) errorCode = ((ValidationException) throwable).getErrorCode();
+            else if (throwable != null) errorCode = ValidationException.ERROR_CODE_UNKNOWN_EXCEPTION;
+            try {
+                metrics.onCheckFinished(checks.get(index).getName(), errorCode, duration,
+                        counters.getBytesRead(), counters.getIpcCalls(), counters.getAllocatedBytes());
+            } catch (RuntimeException e) {
+                // broken metrics must not break validation
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ru.lazard.tamperingprotection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram of non-negative values (durations in nanoseconds, sizes in bytes) with fixed relative precision,
+ * same idea as HdrHistogram: values below 128 are counted exactly, bigger values are counted in log-linear buckets
+ * (64 buckets per power of two), so percentile value differs from real value less than 1.6%.<br>
+ * Recording is lock free and don't allocate memory. Histogram has fixed size (about 30 KB) for whole <code>long</code> range.
+ */
+public final class ValidationHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // buckets per power of two
+    private static final int LINEAR_COUNT = SUB_BUCKET_COUNT << 1; // values counted exactly
+    private static final int BUCKET_COUNT = LINEAR_COUNT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_COUNT) return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        int top = (int) (value >>> shift); // SUB_BUCKET_COUNT .. 2 * SUB_BUCKET_COUNT - 1
+        return LINEAR_COUNT + (shift - 1) * SUB_BUCKET_COUNT + (top - SUB_BUCKET_COUNT);
+    }
+
+    /**
+     * @return - biggest value counted in bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_COUNT) return bucket;
+        int index = bucket - LINEAR_COUNT;
+        int shift = index / SUB_BUCKET_COUNT + 1;
+        long top = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return (top << shift) + (1L << shift) - 1;
+    }
+
+    /**
+     * @param value - value to count (negative values are counted as 0).
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            // retry
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return - smallest recorded value (0 if histogram is empty).
+     */
+    public long getMin() {
+        return getCount() == 0 ? 0 : min.get();
+    }
+
+    /**
+     * @return - biggest recorded value (0 if histogram is empty).
+     */
+    public long getMax() {
+        return getCount() == 0 ? 0 : max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * @param percentile - percentile from 0 to 100, for example 50 (median) or 99.
+     * @return - value which is not less than given percent of recorded values (0 if histogram is empty).
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be in range 0..100: " + percentile);
+        long count = getCount();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestValueOf(i), getMax());
+        }
+        return getMax(); // values recorded concurrently
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " min=" + getMin() + " p50=" + getValueAtPercentile(50)
+                + " p90=" + getValueAtPercentile(90) + " p99=" + getValueAtPercentile(99) + " max=" + getMax();
+    }
+}
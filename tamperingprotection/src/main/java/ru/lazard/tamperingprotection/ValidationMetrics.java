@@ -0,0 +1,25 @@
+package ru.lazard.tamperingprotection;
+
+/**
+ * Receive cost and outcome of each check ({@link TamperingProtection#setMetrics(ValidationMetrics)}).<br>
+ * Method is called on thread which run the check, right after check finished. Implementation must be thread safe and fast
+ * (see {@link InMemoryValidationMetrics}). Checks skipped or not run are not reported.<br>
+ * When metrics are not set, checks are not measured at all.
+ */
+public interface ValidationMetrics {
+
+    /**
+     * Error code of passed check.
+     */
+    int NO_ERROR = 0;
+
+    /**
+     * @param check          - name of check, for example {@link TamperingProtection#CHECK_DEX_CRC}.
+     * @param errorCode      - {@link #NO_ERROR} if check passed, else {@link TamperingProtection.ValidationException#getErrorCode()}.
+     * @param durationNanos  - wall time of check.
+     * @param bytesRead      - bytes read from apk file by check (0 if facts are taken from {@link ValidationCache}).
+     * @param ipcCalls       - count of <code>PackageManager</code> calls made by check.
+     * @param allocatedBytes - bytes allocated by check thread, or -1 if platform can't measure it (Android).
+     */
+    void onCheckFinished(String check, int errorCode, long durationNanos, long bytesRead, int ipcCalls, long allocatedBytes);
+}
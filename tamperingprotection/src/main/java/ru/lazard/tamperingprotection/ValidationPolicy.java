@@ -0,0 +1,537 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Accepted stores, package names, signatures, dex CRC codes, dex digests and native library digests in compact binary form.<br>
+ * Policy is produced at build time by {@link ValidationPolicyEncoder} and loaded without parsing:
+ * buffer is used as is (it can be memory-mapped asset, see {@link #map(FileChannel, long, long)}).
+ * Entries are normalized (lowercase strings, raw bytes of digests) and sorted, so each check is binary search
+ * over buffer: O(log n) for hundreds of package variants and signer keys.<br><br>
+ * Format (little-endian): magic <code>"TPPL"</code>, version, count of sections, directory of sections
+ * (type, offset, length), sections, CRC32 of all previous bytes.<br>
+ * Section of strings: count, offsets of strings (count + 1), UTF-8 bytes of sorted strings.<br>
+ * Section of fixed size entries: count, size of entry, sorted entries (compared as unsigned bytes).<br>
+ * Immutable and thread safe.
+ */
+public final class ValidationPolicy {
+
+    static final int MAGIC = 0x4c505054; // "TPPL"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 6;
+    static final int DIRECTORY_ENTRY_SIZE = 9;
+
+    static final int SECTION_STORES = 1;
+    static final int SECTION_PACKAGE_NAMES = 2;
+    static final int SECTION_SIGNATURES_MD5 = 3;
+    static final int SECTION_SIGNATURES_SHA256 = 4;
+    static final int SECTION_DEX_CRCS = 5;
+    static final int SECTION_DEX_DIGESTS = 6;
+    static final int SECTION_NATIVE_LIB_DIGESTS = 7;
+    static final int SECTION_COUNT = 8; // types are from 1 to 7, unknown types are ignored
+
+    static final int CRC_SIZE = 8;
+    static final int DIGEST_SIZE = 32;
+
+    /**
+     * Policy without entries (nothing is checked).
+     */
+    public static final ValidationPolicy EMPTY = new ValidationPolicy(ByteBuffer.wrap(new ValidationPolicyEncoder().encode()).order(ByteOrder.LITTLE_ENDIAN));
+
+    private final ByteBuffer buffer;
+    private final int[] sectionOffsets = new int[SECTION_COUNT];
+    private final int[] sectionCounts = new int[SECTION_COUNT];
+
+    private ValidationPolicy(ByteBuffer buffer) {
+        this.buffer = buffer;
+        int sections = buffer.get(5) & 0xFF;
+        for (int i = 0; i < sections; i++) {
+            int entry = HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+            int type = buffer.get(entry) & 0xFF;
+            if (type > 0 && type < SECTION_COUNT) {
+                sectionOffsets[type] = buffer.getInt(entry + 1);
+                sectionCounts[type] = buffer.getInt(sectionOffsets[type]);
+            }
+        }
+    }
+
+    /**
+     * Load policy from buffer (from position to limit). Buffer is not copied, don't modify it.
+     *
+     * @throws IllegalArgumentException - if buffer is not valid policy (broken, unknown version...).
+     */
+    public static ValidationPolicy load(ByteBuffer buffer) {
+        ByteBuffer policy = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int size = policy.limit();
+        if (size < HEADER_SIZE + 4) throw new IllegalArgumentException("Policy is too short: " + size + " bytes.");
+        if (policy.getInt(0) != MAGIC) throw new IllegalArgumentException("Not a policy: bad magic.");
+        if ((policy.get(4) & 0xFF) != VERSION) throw new IllegalArgumentException("Unsupported policy version: " + (policy.get(4) & 0xFF));
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(size - 4, 8192)];
+        ByteBuffer content = policy.duplicate();
+        content.limit(size - 4);
+        while (content.hasRemaining()) {
+            int length = Math.min(chunk.length, content.remaining());
+            content.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        if ((int) crc.getValue() != policy.getInt(size - 4)) throw new IllegalArgumentException("Policy is broken: bad CRC32.");
+        int sections = policy.get(5) & 0xFF;
+        if (HEADER_SIZE + sections * DIRECTORY_ENTRY_SIZE > size - 4) throw new IllegalArgumentException("Policy is broken: bad directory.");
+        boolean[] isPresent = new boolean[256];
+        for (int i = 0; i < sections; i++) {
+            int entry = HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+            int offset = policy.getInt(entry + 1);
+            int length = policy.getInt(entry + 5);
+            int type = policy.get(entry) & 0xFF;
+            if (isPresent[type]) throw new IllegalArgumentException("Policy is broken: duplicate section " + type + ".");
+            isPresent[type] = true;
+            if (offset < 0 || length < 4 || offset > size - 4 - length)
+                throw new IllegalArgumentException("Policy is broken: section " + type + " out of bounds.");
+            if (type > 0 && type < SECTION_COUNT && !isSectionValid(policy, type, offset, length))
+                throw new IllegalArgumentException("Policy is broken: entries of section " + type + " out of bounds.");
+            if (type > 0 && type < SECTION_COUNT && !isSectionSorted(policy, type, offset))
+                throw new IllegalArgumentException("Policy is broken: entries of section " + type + " not sorted or duplicated.");
+        }
+        return new ValidationPolicy(policy);
+    }
+
+    /**
+     * @return - true if entries of section (count and entry size, or table of string offsets) fit into section length.
+     */
+    private static boolean isSectionValid(ByteBuffer policy, int type, int offset, int length) {
+        long count = policy.getInt(offset);
+        if (count < 0) return false;
+        if (type != SECTION_STORES && type != SECTION_PACKAGE_NAMES) {
+            if (length < 8) return false;
+            long entrySize = policy.getInt(offset + 4);
+            return entrySize > 0 && count * entrySize <= length - 8;
+        }
+        long table = 4 + (count + 1) * 4;
+        if (table > length) return false;
+        int previous = 0;
+        for (int i = 0; i <= count; i++) {
+            int end = policy.getInt(offset + 4 + i * 4);
+            if (i == 0 ? end != 0 : end < previous) return false;
+            previous = end;
+        }
+        return previous <= length - table;
+    }
+
+    /**
+     * @return - true if entries of section (valid by bounds) are in strictly ascending order, as required by binary search of lookups.
+     */
+    private static boolean isSectionSorted(ByteBuffer policy, int type, int offset) {
+        int count = policy.getInt(offset);
+        if (type != SECTION_STORES && type != SECTION_PACKAGE_NAMES) {
+            int entrySize = policy.getInt(offset + 4);
+            int data = offset + 8;
+            for (int i = 1; i < count; i++) {
+                if (compare(policy, data + (i - 1) * entrySize, entrySize, data + i * entrySize, entrySize) >= 0) return false;
+            }
+            return true;
+        }
+        int offsets = offset + 4;
+        int data = offsets + (count + 1) * 4;
+        for (int i = 1; i < count; i++) {
+            int previous = policy.getInt(offsets + (i - 1) * 4);
+            int start = policy.getInt(offsets + i * 4);
+            int end = policy.getInt(offsets + i * 4 + 4);
+            if (compare(policy, data + previous, start - previous, data + start, end - start) >= 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare two byte ranges of buffer as unsigned bytes (shorter range is less if it's prefix of other).
+     */
+    private static int compare(ByteBuffer buffer, int offset, int length, int otherOffset, int otherLength) {
+        int common = Math.min(length, otherLength);
+        for (int i = 0; i < common; i++) {
+            int difference = (buffer.get(offset + i) & 0xFF) - (buffer.get(otherOffset + i) & 0xFF);
+            if (difference != 0) return difference;
+        }
+        return length - otherLength;
+    }
+
+    /**
+     * Load policy from bytes (array is not copied, don't modify it).
+     */
+    public static ValidationPolicy load(byte[] bytes) {
+        return load(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Load policy from stream, for example <code>getResources().openRawResource(R.raw.policy)</code>. Stream is not closed.
+     */
+    public static ValidationPolicy load(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+            out.write(chunk, 0, read);
+        }
+        return load(out.toByteArray());
+    }
+
+    /**
+     * Map policy from file without copy. For not compressed asset use
+     * <code>AssetFileDescriptor</code>: <code>new FileInputStream(afd.getFileDescriptor()).getChannel()</code>,
+     * <code>afd.getStartOffset()</code> and <code>afd.getLength()</code>.
+     */
+    public static ValidationPolicy map(FileChannel channel, long offset, long length) throws IOException {
+        return load(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+
+    /**
+     * Map policy file without copy.
+     */
+    public static ValidationPolicy map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return map(randomAccessFile.getChannel(), 0, randomAccessFile.length()); // mapping stay valid after close
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * @return - encoded policy (copy).
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.limit()];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(0);
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+    public int getStoreCount() {
+        return sectionCounts[SECTION_STORES];
+    }
+
+    public int getPackageNameCount() {
+        return sectionCounts[SECTION_PACKAGE_NAMES];
+    }
+
+    /**
+     * @return - count of MD5 and SHA-256 fingerprints.
+     */
+    public int getSignatureCount() {
+        return sectionCounts[SECTION_SIGNATURES_MD5] + sectionCounts[SECTION_SIGNATURES_SHA256];
+    }
+
+    public int getDexCrcCount() {
+        return sectionCounts[SECTION_DEX_CRCS];
+    }
+
+    public int getDexDigestCount() {
+        return sectionCounts[SECTION_DEX_DIGESTS];
+    }
+
+    public int getNativeLibDigestCount() {
+        return sectionCounts[SECTION_NATIVE_LIB_DIGESTS];
+    }
+
+    /**
+     * @return - true if store is accepted (case is ignored).
+     */
+    public boolean containsStore(String store) {
+        return store != null && containsString(SECTION_STORES, utf8(normalize(store)));
+    }
+
+    /**
+     * @return - true if package name is accepted (case is ignored).
+     */
+    public boolean containsPackageName(String packageName) {
+        return packageName != null && containsString(SECTION_PACKAGE_NAMES, utf8(normalize(packageName)));
+    }
+
+    public boolean containsDexCrc(long crc) {
+        return containsFixed(SECTION_DEX_CRCS, ValidationPolicyEncoder.encodeCrc(crc), CRC_SIZE);
+    }
+
+    /**
+     * @param digest - hex SHA-256 digest of dex files (case is ignored).
+     */
+    public boolean containsDexDigest(String digest) {
+        byte[] bytes;
+        try {
+            bytes = Hex.parse(digest);
+        } catch (IllegalArgumentException exception) {
+            return false;
+        }
+        return containsFixed(SECTION_DEX_DIGESTS, bytes, bytes.length);
+    }
+
+    /**
+     * @param digest - hex SHA-256 digest of native library (case is ignored).
+     */
+    public boolean containsNativeLibDigest(String digest) {
+        byte[] bytes;
+        try {
+            bytes = Hex.parse(digest);
+        } catch (IllegalArgumentException exception) {
+            return false;
+        }
+        return containsFixed(SECTION_NATIVE_LIB_DIGESTS, bytes, bytes.length);
+    }
+
+    /**
+     * @param certificate - encoded certificate (<code>Signature.toByteArray()</code>).
+     * @return - true if MD5 or SHA-256 fingerprint of certificate is accepted.
+     */
+    public boolean containsSignature(byte[] certificate) throws NoSuchAlgorithmException {
+        if (sectionCounts[SECTION_SIGNATURES_MD5] > 0
+                && containsFixed(SECTION_SIGNATURES_MD5, SignatureFingerprints.md5Digest(certificate), SignatureFingerprints.MD5_LENGTH))
+            return true;
+        return sectionCounts[SECTION_SIGNATURES_SHA256] > 0
+                && containsFixed(SECTION_SIGNATURES_SHA256, SignatureFingerprints.sha256Digest(certificate), SignatureFingerprints.SHA256_LENGTH);
+    }
+
+    /**
+     * @return - accepted stores (normalized), for error messages.
+     */
+    public List<String> getStores() {
+        return getStrings(SECTION_STORES);
+    }
+
+    /**
+     * @return - accepted package names (normalized), for error messages.
+     */
+    public List<String> getPackageNames() {
+        return getStrings(SECTION_PACKAGE_NAMES);
+    }
+
+    /**
+     * @return - accepted fingerprints (keytool format: MD5 first, then SHA-256), for error messages.
+     */
+    public List<String> getSignatures() {
+        List<String> signatures = new ArrayList<String>(getSignatureCount());
+        for (byte[] fingerprint : getFixed(SECTION_SIGNATURES_MD5)) {
+            signatures.add(SignatureFingerprints.format(fingerprint, fingerprint.length));
+        }
+        for (byte[] fingerprint : getFixed(SECTION_SIGNATURES_SHA256)) {
+            signatures.add(SignatureFingerprints.format(fingerprint, fingerprint.length));
+        }
+        return signatures;
+    }
+
+    /**
+     * @return - accepted dex CRC codes (sorted).
+     */
+    public long[] getDexCrcs() {
+        List<byte[]> entries = getFixed(SECTION_DEX_CRCS);
+        long[] crcs = new long[entries.size()];
+        for (int i = 0; i < crcs.length; i++) {
+            crcs[i] = ValidationPolicyEncoder.decodeCrc(entries.get(i));
+        }
+        return crcs;
+    }
+
+    /**
+     * @return - accepted dex digests (lowercase hex).
+     */
+    public List<String> getDexDigests() {
+        List<String> digests = new ArrayList<String>();
+        for (byte[] digest : getFixed(SECTION_DEX_DIGESTS)) {
+            digests.add(Hex.toHex(digest));
+        }
+        return digests;
+    }
+
+    /**
+     * @return - accepted native library digests (lowercase hex).
+     */
+    public List<String> getNativeLibDigests() {
+        List<String> digests = new ArrayList<String>();
+        for (byte[] digest : getFixed(SECTION_NATIVE_LIB_DIGESTS)) {
+            digests.add(Hex.toHex(digest));
+        }
+        return digests;
+    }
+
+    /**
+     * Accepted values are decoded and formatted only when error message is rendered (most failures are never printed).
+     *
+     * @param section - one of <code>SECTION_*</code> (both signature sections give all fingerprints).
+     * @return - description of accepted values of section, same as getter of section returns.
+     */
+    Object describe(final int section) {
+        return new Object() {
+            @Override
+            public String toString() {
+                switch (section) {
+                    case SECTION_STORES:
+                        return getStores().toString();
+                    case SECTION_PACKAGE_NAMES:
+                        return getPackageNames().toString();
+                    case SECTION_SIGNATURES_MD5:
+                    case SECTION_SIGNATURES_SHA256:
+                        return getSignatures().toString();
+                    case SECTION_DEX_CRCS:
+                        return Arrays.toString(getDexCrcs());
+                    case SECTION_DEX_DIGESTS:
+                        return getDexDigests().toString();
+                    case SECTION_NATIVE_LIB_DIGESTS:
+                        return getNativeLibDigests().toString();
+                    default:
+                        return "[]";
+                }
+            }
+        };
+    }
+
+    /**
+     * @return - MD5 and SHA-256 fingerprints as raw bytes.
+     */
+    List<byte[]> getSignatureDigests() {
+        List<byte[]> digests = new ArrayList<byte[]>(getFixed(SECTION_SIGNATURES_MD5));
+        digests.addAll(getFixed(SECTION_SIGNATURES_SHA256));
+        return digests;
+    }
+
+    List<byte[]> getDexDigestBytes() {
+        return getFixed(SECTION_DEX_DIGESTS);
+    }
+
+    List<byte[]> getNativeLibDigestBytes() {
+        return getFixed(SECTION_NATIVE_LIB_DIGESTS);
+    }
+
+    static String normalize(String string) {
+        return string.toLowerCase(Locale.US);
+    }
+
+    static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException exception) {
+            throw new IllegalStateException(exception); // UTF-8 is always supported
+        }
+    }
+
+    private boolean containsString(int section, byte[] key) {
+        int count = sectionCounts[section];
+        if (count == 0) return false;
+        int offsets = sectionOffsets[section] + 4;
+        int data = offsets + (count + 1) * 4;
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int start = data + buffer.getInt(offsets + middle * 4);
+            int end = data + buffer.getInt(offsets + middle * 4 + 4);
+            int compare = compare(start, end - start, key, key.length);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsFixed(int section, byte[] key, int keyLength) {
+        int count = sectionCounts[section];
+        if (count == 0) return false;
+        int size = buffer.getInt(sectionOffsets[section] + 4);
+        if (size != keyLength) return false;
+        int data = sectionOffsets[section] + 8;
+        // binary search locates candidate (first entry not less than key), equality is checked in constant time
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(data + middle * size, size, key, keyLength) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low < count && constantTimeEquals(data + low * size, key, keyLength);
+    }
+
+    /**
+     * Compare <code>length</code> bytes of buffer with key. Time don't depend on position of first different byte.
+     */
+    private boolean constantTimeEquals(int offset, byte[] key, int length) {
+        int difference = 0;
+        for (int i = 0; i < length; i++) {
+            difference |= buffer.get(offset + i) ^ key[i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Compare bytes of buffer with first <code>keyLength</code> bytes of key, as unsigned bytes.
+     */
+    private int compare(int offset, int length, byte[] key, int keyLength) {
+        int common = Math.min(length, keyLength);
+        for (int i = 0; i < common; i++) {
+            int difference = (buffer.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+            if (difference != 0) return difference;
+        }
+        return length - keyLength;
+    }
+
+    private List<String> getStrings(int section) {
+        int count = sectionCounts[section];
+        if (count == 0) return Collections.emptyList();
+        int offsets = sectionOffsets[section] + 4;
+        int data = offsets + (count + 1) * 4;
+        List<String> strings = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            int start = buffer.getInt(offsets + i * 4);
+            byte[] bytes = new byte[buffer.getInt(offsets + i * 4 + 4) - start];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = buffer.get(data + start + j);
+            }
+            try {
+                strings.add(new String(bytes, "UTF-8"));
+            } catch (UnsupportedEncodingException exception) {
+                throw new IllegalStateException(exception); // UTF-8 is always supported
+            }
+        }
+        return strings;
+    }
+
+    private List<byte[]> getFixed(int section) {
+        int count = sectionCounts[section];
+        if (count == 0) return Collections.emptyList();
+        int size = buffer.getInt(sectionOffsets[section] + 4);
+        int data = sectionOffsets[section] + 8;
+        List<byte[]> entries = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] entry = new byte[size];
+            for (int j = 0; j < size; j++) {
+                entry[j] = buffer.get(data + i * size + j);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return "ValidationPolicy{stores=" + getStores() + ", packageNames=" + getPackageNames() + ", signatures=" + getSignatures()
+                + ", dexCrcs=" + getDexCrcs().length + ", dexDigests=" + getDexDigests() + ", nativeLibDigests=" + getNativeLibDigests() + "}";
+    }
+}
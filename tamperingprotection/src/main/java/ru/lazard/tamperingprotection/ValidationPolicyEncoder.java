@@ -0,0 +1,378 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Build-time encoder of {@link ValidationPolicy}: normalize, sort and deduplicate entries and write binary policy.<br>
+ * Text form of policy (one entry per line, <code>'#'</code> starts comment):<br>
+ * <code>
+ * store com.android.vending<br>
+ * package ru.lazard.sample<br>
+ * signature CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32<br>
+ * dexCrc 2738943211<br>
+ * dexDigest 9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08<br>
+ * nativeLibDigest 2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae<br>
+ * </code>
+ * Command line: <code>java -cp tamperingprotection.jar ru.lazard.tamperingprotection.ValidationPolicyEncoder policy.txt res/raw/policy.bin</code>
+ */
+public final class ValidationPolicyEncoder {
+
+    static final Comparator<byte[]> UNSIGNED_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            int common = Math.min(a.length, b.length);
+            for (int i = 0; i < common; i++) {
+                int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (difference != 0) return difference;
+            }
+            return a.length - b.length;
+        }
+    };
+
+    private final List<List<byte[]>> sections = new ArrayList<List<byte[]>>(ValidationPolicy.SECTION_COUNT);
+
+    public ValidationPolicyEncoder() {
+        for (int i = 0; i < ValidationPolicy.SECTION_COUNT; i++) {
+            sections.add(new ArrayList<byte[]>());
+        }
+    }
+
+    /**
+     * Encoder with all entries of policy (for edit of policy).
+     */
+    public ValidationPolicyEncoder(ValidationPolicy policy) {
+        this();
+        for (String store : policy.getStores()) {
+            addStore(store);
+        }
+        for (String packageName : policy.getPackageNames()) {
+            addPackageName(packageName);
+        }
+        for (byte[] fingerprint : policy.getSignatureDigests()) {
+            sections.get(fingerprint.length == SignatureFingerprints.MD5_LENGTH ? ValidationPolicy.SECTION_SIGNATURES_MD5 : ValidationPolicy.SECTION_SIGNATURES_SHA256).add(fingerprint);
+        }
+        for (long crc : policy.getDexCrcs()) {
+            addDexCrc(crc);
+        }
+        sections.get(ValidationPolicy.SECTION_DEX_DIGESTS).addAll(policy.getDexDigestBytes());
+        sections.get(ValidationPolicy.SECTION_NATIVE_LIB_DIGESTS).addAll(policy.getNativeLibDigestBytes());
+    }
+
+    /**
+     * Parse policy from text form (see {@link ValidationPolicyEncoder}).
+     *
+     * @throws IllegalArgumentException - if line is not valid entry.
+     */
+    public static ValidationPolicyEncoder parse(Reader reader) throws IOException {
+        ValidationPolicyEncoder encoder = new ValidationPolicyEncoder();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            String trimmed = line.trim();
+            if (trimmed.length() == 0 || trimmed.startsWith("#")) continue;
+            String[] parts = trimmed.split("\\s+", 2);
+            if (parts.length != 2) throw new IllegalArgumentException("Line " + number + ": entry must be \"<type> <value>\": \"" + line + "\".");
+            String type = parts[0];
+            String value = parts[1].trim();
+            if (type.equals("store")) {
+                encoder.addStore(value);
+            } else if (type.equals("package")) {
+                encoder.addPackageName(value);
+            } else if (type.equals("signature")) {
+                encoder.addSignature(value);
+            } else if (type.equals("dexCrc")) {
+                try {
+                    encoder.addDexCrc(Long.parseLong(value));
+                } catch (NumberFormatException exception) {
+                    throw new IllegalArgumentException("Line " + number + ": bad CRC code \"" + value + "\".", exception);
+                }
+            } else if (type.equals("dexDigest")) {
+                encoder.addDexDigest(value);
+            } else if (type.equals("nativeLibDigest")) {
+                encoder.addNativeLibDigest(value);
+            } else {
+                throw new IllegalArgumentException("Line " + number + ": unknown entry type \"" + type + "\".");
+            }
+        }
+        return encoder;
+    }
+
+    public ValidationPolicyEncoder addStore(String store) {
+        sections.get(ValidationPolicy.SECTION_STORES).add(ValidationPolicy.utf8(ValidationPolicy.normalize(store)));
+        return this;
+    }
+
+    public ValidationPolicyEncoder addPackageName(String packageName) {
+        sections.get(ValidationPolicy.SECTION_PACKAGE_NAMES).add(ValidationPolicy.utf8(ValidationPolicy.normalize(packageName)));
+        return this;
+    }
+
+    /**
+     * @param fingerprint - MD5 or SHA-256 fingerprint of signing certificate, like <code>"CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32"</code>.
+     * @throws IllegalArgumentException - if fingerprint is not MD5 or SHA-256 hex.
+     */
+    public ValidationPolicyEncoder addSignature(String fingerprint) {
+        byte[] bytes = Hex.parse(fingerprint);
+        if (bytes.length == SignatureFingerprints.MD5_LENGTH) {
+            sections.get(ValidationPolicy.SECTION_SIGNATURES_MD5).add(bytes);
+        } else if (bytes.length == SignatureFingerprints.SHA256_LENGTH) {
+            sections.get(ValidationPolicy.SECTION_SIGNATURES_SHA256).add(bytes);
+        } else {
+            throw new IllegalArgumentException("Fingerprint must be MD5 (16 bytes) or SHA-256 (32 bytes): \"" + fingerprint + "\".");
+        }
+        return this;
+    }
+
+    public ValidationPolicyEncoder addDexCrc(long crc) {
+        sections.get(ValidationPolicy.SECTION_DEX_CRCS).add(encodeCrc(crc));
+        return this;
+    }
+
+    /**
+     * @param digest - hex SHA-256 digest of dex files.
+     * @throws IllegalArgumentException - if digest is not SHA-256 hex.
+     */
+    public ValidationPolicyEncoder addDexDigest(String digest) {
+        byte[] bytes = Hex.parse(digest);
+        if (bytes.length != ValidationPolicy.DIGEST_SIZE)
+            throw new IllegalArgumentException("Dex digest must be SHA-256 (32 bytes): \"" + digest + "\".");
+        sections.get(ValidationPolicy.SECTION_DEX_DIGESTS).add(bytes);
+        return this;
+    }
+
+    /**
+     * @param digest - hex SHA-256 digest of native library (see {@link NativeLibDigester}).
+     * @throws IllegalArgumentException - if digest is not SHA-256 hex.
+     */
+    public ValidationPolicyEncoder addNativeLibDigest(String digest) {
+        byte[] bytes = Hex.parse(digest);
+        if (bytes.length != ValidationPolicy.DIGEST_SIZE)
+            throw new IllegalArgumentException("Native library digest must be SHA-256 (32 bytes): \"" + digest + "\".");
+        sections.get(ValidationPolicy.SECTION_NATIVE_LIB_DIGESTS).add(bytes);
+        return this;
+    }
+
+    /**
+     * Replace accepted stores (null is same as empty).
+     */
+    public ValidationPolicyEncoder setStores(String... stores) {
+        sections.get(ValidationPolicy.SECTION_STORES).clear();
+        if (stores == null) return this;
+        for (String store : stores) {
+            addStore(store);
+        }
+        return this;
+    }
+
+    /**
+     * Replace accepted package names.
+     */
+    public ValidationPolicyEncoder setPackageNames(String... packageNames) {
+        sections.get(ValidationPolicy.SECTION_PACKAGE_NAMES).clear();
+        if (packageNames == null) return this;
+        for (String packageName : packageNames) {
+            addPackageName(packageName);
+        }
+        return this;
+    }
+
+    /**
+     * Replace accepted signatures (MD5 and SHA-256).
+     *
+     * @throws IllegalArgumentException - if fingerprint is not MD5 or SHA-256 hex (then signatures are not changed).
+     */
+    public ValidationPolicyEncoder setSignatures(String... fingerprints) {
+        if (fingerprints == null) fingerprints = new String[0];
+        for (String fingerprint : fingerprints) {
+            if (fingerprint == null) throw new IllegalArgumentException("Fingerprint must not be null.");
+            int length = Hex.parse(fingerprint).length;
+            if (length != SignatureFingerprints.MD5_LENGTH && length != SignatureFingerprints.SHA256_LENGTH)
+                throw new IllegalArgumentException("Fingerprint must be MD5 (16 bytes) or SHA-256 (32 bytes): \"" + fingerprint + "\".");
+        }
+        sections.get(ValidationPolicy.SECTION_SIGNATURES_MD5).clear();
+        sections.get(ValidationPolicy.SECTION_SIGNATURES_SHA256).clear();
+        for (String fingerprint : fingerprints) {
+            addSignature(fingerprint);
+        }
+        return this;
+    }
+
+    /**
+     * Replace accepted dex CRC codes.
+     */
+    public ValidationPolicyEncoder setDexCrcs(long... crcs) {
+        sections.get(ValidationPolicy.SECTION_DEX_CRCS).clear();
+        if (crcs == null) return this;
+        for (long crc : crcs) {
+            addDexCrc(crc);
+        }
+        return this;
+    }
+
+    /**
+     * Replace accepted dex digests.
+     */
+    public ValidationPolicyEncoder setDexDigests(String... digests) {
+        sections.get(ValidationPolicy.SECTION_DEX_DIGESTS).clear();
+        if (digests == null) return this;
+        for (String digest : digests) {
+            addDexDigest(digest);
+        }
+        return this;
+    }
+
+    /**
+     * Replace accepted native library digests.
+     */
+    public ValidationPolicyEncoder setNativeLibDigests(String... digests) {
+        sections.get(ValidationPolicy.SECTION_NATIVE_LIB_DIGESTS).clear();
+        if (digests == null) return this;
+        for (String digest : digests) {
+            addNativeLibDigest(digest);
+        }
+        return this;
+    }
+
+    /**
+     * @return - binary policy.
+     */
+    public byte[] encode() {
+        int sectionCount = ValidationPolicy.SECTION_COUNT - 1;
+        List<byte[]>[] sorted = sortedSections();
+        int size = ValidationPolicy.HEADER_SIZE + sectionCount * ValidationPolicy.DIRECTORY_ENTRY_SIZE;
+        int[] lengths = new int[ValidationPolicy.SECTION_COUNT];
+        for (int type = 1; type < ValidationPolicy.SECTION_COUNT; type++) {
+            lengths[type] = sectionLength(type, sorted[type]);
+            size += lengths[type];
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size + 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(ValidationPolicy.MAGIC).put((byte) ValidationPolicy.VERSION).put((byte) sectionCount);
+        int offset = ValidationPolicy.HEADER_SIZE + sectionCount * ValidationPolicy.DIRECTORY_ENTRY_SIZE;
+        for (int type = 1; type < ValidationPolicy.SECTION_COUNT; type++) {
+            buffer.put((byte) type).putInt(offset).putInt(lengths[type]);
+            offset += lengths[type];
+        }
+        for (int type = 1; type < ValidationPolicy.SECTION_COUNT; type++) {
+            List<byte[]> entries = sorted[type];
+            buffer.putInt(entries.size());
+            if (isStringSection(type)) {
+                int position = 0;
+                buffer.putInt(position);
+                for (byte[] entry : entries) {
+                    position += entry.length;
+                    buffer.putInt(position);
+                }
+            } else {
+                buffer.putInt(entrySize(type));
+            }
+            for (byte[] entry : entries) {
+                buffer.put(entry);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, size);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * @return - loaded encoded policy.
+     */
+    public ValidationPolicy build() {
+        return ValidationPolicy.load(encode());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<byte[]>[] sortedSections() {
+        List<byte[]>[] sorted = new List[ValidationPolicy.SECTION_COUNT];
+        for (int type = 1; type < ValidationPolicy.SECTION_COUNT; type++) {
+            List<byte[]> entries = new ArrayList<byte[]>(sections.get(type));
+            Collections.sort(entries, UNSIGNED_ORDER);
+            List<byte[]> unique = new ArrayList<byte[]>(entries.size());
+            for (byte[] entry : entries) {
+                if (unique.isEmpty() || UNSIGNED_ORDER.compare(unique.get(unique.size() - 1), entry) != 0) unique.add(entry);
+            }
+            sorted[type] = unique;
+        }
+        return sorted;
+    }
+
+    private static int sectionLength(int type, List<byte[]> entries) {
+        if (!isStringSection(type)) return 8 + entries.size() * entrySize(type);
+        int length = 4 + (entries.size() + 1) * 4;
+        for (byte[] entry : entries) {
+            length += entry.length;
+        }
+        return length;
+    }
+
+    private static boolean isStringSection(int type) {
+        return type == ValidationPolicy.SECTION_STORES || type == ValidationPolicy.SECTION_PACKAGE_NAMES;
+    }
+
+    private static int entrySize(int type) {
+        switch (type) {
+            case ValidationPolicy.SECTION_SIGNATURES_MD5:
+                return SignatureFingerprints.MD5_LENGTH;
+            case ValidationPolicy.SECTION_SIGNATURES_SHA256:
+                return SignatureFingerprints.SHA256_LENGTH;
+            case ValidationPolicy.SECTION_DEX_CRCS:
+                return ValidationPolicy.CRC_SIZE;
+            default:
+                return ValidationPolicy.DIGEST_SIZE;
+        }
+    }
+
+    /**
+     * CRC code as 8 big-endian bytes with inverted sign bit: unsigned order of bytes is same as order of signed values.
+     */
+    static byte[] encodeCrc(long crc) {
+        return ByteBuffer.allocate(ValidationPolicy.CRC_SIZE).putLong(0, crc ^ Long.MIN_VALUE).array();
+    }
+
+    static long decodeCrc(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getLong(0) ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Encode text policy file to binary policy file.
+     *
+     * @param args - path of text policy and path of binary policy.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ValidationPolicyEncoder <policy.txt> <policy.bin>");
+            System.exit(2);
+        }
+        ValidationPolicyEncoder encoder;
+        Reader reader = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+        try {
+            encoder = parse(reader);
+        } finally {
+            reader.close();
+        }
+        byte[] policy = encoder.encode();
+        FileOutputStream out = new FileOutputStream(new File(args[1]));
+        try {
+            out.write(policy);
+        } finally {
+            out.close();
+        }
+        System.out.println("Policy written: " + args[1] + " (" + policy.length + " bytes) " + ValidationPolicy.load(policy));
+    }
+}
@@ -0,0 +1,167 @@
+package ru.lazard.tamperingprotection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+
+/**
+ * Outcome and timing of each check of validation (in order checks were scheduled).<br>
+ * In {@link ValidationFuture#MODE_COLLECT_ALL} mode report contains all failures, in {@link ValidationFuture#MODE_FAIL_FAST}
+ * mode checks after first failure are {@link #OUTCOME_NOT_RUN}.
+ */
+public final class ValidationReport {
+
+    /**
+     * Check passed.
+     */
+    public static final int OUTCOME_PASSED = 0;
+    /**
+     * Check failed, see {@link Entry#getFailure()}.
+     */
+    public static final int OUTCOME_FAILED = 1;
+    /**
+     * Check not run because check it depends on failed.
+     */
+    public static final int OUTCOME_SKIPPED = 2;
+    /**
+     * Check not run (or not finished) because validation completed or cancelled before.
+     */
+    public static final int OUTCOME_NOT_RUN = 3;
+
+    private static final String[] OUTCOME_NAMES = {"passed", "failed", "skipped", "not run"};
+
+    private final List<Entry> entries;
+    private final long elapsedNanos;
+
+    ValidationReport(List<Entry> entries, long elapsedNanos) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return - true if all checks passed.
+     */
+    public boolean isValid() {
+        for (Entry entry : entries) {
+            if (entry.outcome != OUTCOME_PASSED) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return - all checks in order of scheduling.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return - check by name, or null.
+     */
+    public Entry getEntry(String name) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name)) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * @return - failures of failed checks (in order of scheduling).
+     */
+    public List<ValidationException> getFailures() {
+        List<ValidationException> failures = new ArrayList<ValidationException>();
+        for (Entry entry : entries) {
+            if (entry.failure != null) failures.add(entry.failure);
+        }
+        return failures;
+    }
+
+    /**
+     * @return - failure of first failed check (same as {@link TamperingProtection#validateAllOrThrowException()} throws), or null.
+     */
+    public ValidationException getFirstFailure() {
+        for (Entry entry : entries) {
+            if (entry.failure != null) return entry.failure;
+        }
+        return null;
+    }
+
+    /**
+     * @return - wall time of validation (from start to completion).
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return - table of checks: name, outcome, time and error code.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ValidationReport{valid=").append(isValid())
+                .append(", elapsed=").append(elapsedNanos / 1000).append("us");
+        for (Entry entry : entries) {
+            builder.append("\n  ").append(entry);
+        }
+        return builder.append("\n}").toString();
+    }
+
+    /**
+     * Outcome of one check.
+     */
+    public static final class Entry {
+        private final String name;
+        private final int cost;
+        private final int outcome;
+        private final ValidationException failure;
+        private final long durationNanos;
+
+        Entry(String name, int cost, int outcome, ValidationException failure, long durationNanos) {
+            this.name = name;
+            this.cost = cost;
+            this.outcome = outcome;
+            this.failure = failure;
+            this.durationNanos = durationNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return - estimated cost of check (microseconds).
+         */
+        public int getCost() {
+            return cost;
+        }
+
+        /**
+         * @return - one of <code>OUTCOME_*</code> constants.
+         */
+        public int getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * @return - failure if check failed, else null.
+         */
+        public ValidationException getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return - time of check (0 if check not run).
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + OUTCOME_NAMES[outcome] + " in " + durationNanos / 1000 + "us (cost " + cost + "us)"
+                    + (failure == null ? "" : " code=" + failure.getErrorCode());
+        }
+    }
+}
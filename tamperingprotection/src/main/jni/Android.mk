@@ -0,0 +1,11 @@
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+LOCAL_MODULE := tamperingprotection
+LOCAL_SRC_FILES := tamperingprotection.c sha256.c
+LOCAL_CFLAGS := -std=c99 -O2 -fvisibility=hidden -Wall -Wextra
+# SHA2 instructions are used only if CPU reports them (getauxval), other code don't use them
+ifeq ($(TARGET_ARCH_ABI),arm64-v8a)
+LOCAL_CFLAGS += -march=armv8-a+crypto
+endif
+include $(BUILD_SHARED_LIBRARY)
@@ -0,0 +1,258 @@
+#include "sha256.h"
+
+#include <string.h>
+
+#if defined(__x86_64__)
+#include <cpuid.h>
+#include <immintrin.h>
+#define TP_SHA_X86 1
+#elif defined(__aarch64__) && (defined(__ARM_FEATURE_CRYPTO) || defined(__ARM_FEATURE_SHA2))
+#include <arm_neon.h>
+#include <sys/auxv.h>
+#ifndef HWCAP_SHA2
+#define HWCAP_SHA2 (1 << 6)
+#endif
+#define TP_SHA_ARMV8 1
+#endif
+
+typedef void (*compress_fn)(uint32_t state[8], const uint8_t *data, size_t blocks);
+
+static const uint32_t K[64] = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2,
+};
+
+#define ROTR(x, n) (((x) >> (n)) | ((x) << (32 - (n))))
+
+static void compress_portable(uint32_t state[8], const uint8_t *data, size_t blocks) {
+    uint32_t w[64];
+    while (blocks--) {
+        int i;
+        uint32_t a, b, c, d, e, f, g, h;
+        for (i = 0; i < 16; i++) {
+            w[i] = (uint32_t) data[4 * i] << 24 | (uint32_t) data[4 * i + 1] << 16 | (uint32_t) data[4 * i + 2] << 8 | data[4 * i + 3];
+        }
+        for (i = 16; i < 64; i++) {
+            uint32_t s0 = ROTR(w[i - 15], 7) ^ ROTR(w[i - 15], 18) ^ (w[i - 15] >> 3);
+            uint32_t s1 = ROTR(w[i - 2], 17) ^ ROTR(w[i - 2], 19) ^ (w[i - 2] >> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+        a = state[0], b = state[1], c = state[2], d = state[3];
+        e = state[4], f = state[5], g = state[6], h = state[7];
+        for (i = 0; i < 64; i++) {
+            uint32_t t1 = h + (ROTR(e, 6) ^ ROTR(e, 11) ^ ROTR(e, 25)) + ((e & f) ^ (~e & g)) + K[i] + w[i];
+            uint32_t t2 = (ROTR(a, 2) ^ ROTR(a, 13) ^ ROTR(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+            h = g, g = f, f = e, e = d + t1;
+            d = c, c = b, b = a, a = t1 + t2;
+        }
+        state[0] += a, state[1] += b, state[2] += c, state[3] += d;
+        state[4] += e, state[5] += f, state[6] += g, state[7] += h;
+        data += TP_SHA256_BLOCK;
+    }
+}
+
+#ifdef TP_SHA_X86
+
+/* Message words of 4 rounds: first 4 groups are loaded from block, next are expanded from previous 4 groups. */
+#define X86_SCHEDULE(i, w0, w1, w2, w3) \
+    if ((i) >= 4) w0 = _mm_sha256msg2_epu32(_mm_add_epi32(_mm_sha256msg1_epu32(w0, w1), _mm_alignr_epi8(w3, w2, 4)), w3)
+
+#define X86_ROUNDS(i, w0, w1, w2, w3) do { \
+        X86_SCHEDULE(i, w0, w1, w2, w3); \
+        msg = _mm_add_epi32(w0, _mm_loadu_si128((const __m128i *) &K[4 * (i)])); \
+        state1 = _mm_sha256rnds2_epu32(state1, state0, msg); \
+        state0 = _mm_sha256rnds2_epu32(state0, state1, _mm_shuffle_epi32(msg, 0x0E)); \
+    } while (0)
+
+__attribute__((target("sha,sse4.1")))
+static void compress_x86(uint32_t state[8], const uint8_t *data, size_t blocks) {
+    const __m128i byte_swap = _mm_set_epi64x(0x0c0d0e0f08090a0bULL, 0x0405060700010203ULL);
+    __m128i state0, state1, msg, w0, w1, w2, w3;
+    /* instructions keep state as ABEF and CDGH */
+    __m128i dcba = _mm_shuffle_epi32(_mm_loadu_si128((const __m128i *) &state[0]), 0xB1);
+    __m128i efgh = _mm_shuffle_epi32(_mm_loadu_si128((const __m128i *) &state[4]), 0x1B);
+    state0 = _mm_alignr_epi8(dcba, efgh, 8);
+    state1 = _mm_blend_epi16(efgh, dcba, 0xF0);
+    while (blocks--) {
+        __m128i abef = state0;
+        __m128i cdgh = state1;
+        w0 = _mm_shuffle_epi8(_mm_loadu_si128((const __m128i *) (data + 0)), byte_swap);
+        w1 = _mm_shuffle_epi8(_mm_loadu_si128((const __m128i *) (data + 16)), byte_swap);
+        w2 = _mm_shuffle_epi8(_mm_loadu_si128((const __m128i *) (data + 32)), byte_swap);
+        w3 = _mm_shuffle_epi8(_mm_loadu_si128((const __m128i *) (data + 48)), byte_swap);
+        X86_ROUNDS(0, w0, w1, w2, w3);
+        X86_ROUNDS(1, w1, w2, w3, w0);
+        X86_ROUNDS(2, w2, w3, w0, w1);
+        X86_ROUNDS(3, w3, w0, w1, w2);
+        X86_ROUNDS(4, w0, w1, w2, w3);
+        X86_ROUNDS(5, w1, w2, w3, w0);
+        X86_ROUNDS(6, w2, w3, w0, w1);
+        X86_ROUNDS(7, w3, w0, w1, w2);
+        X86_ROUNDS(8, w0, w1, w2, w3);
+        X86_ROUNDS(9, w1, w2, w3, w0);
+        X86_ROUNDS(10, w2, w3, w0, w1);
+        X86_ROUNDS(11, w3, w0, w1, w2);
+        X86_ROUNDS(12, w0, w1, w2, w3);
+        X86_ROUNDS(13, w1, w2, w3, w0);
+        X86_ROUNDS(14, w2, w3, w0, w1);
+        X86_ROUNDS(15, w3, w0, w1, w2);
+        state0 = _mm_add_epi32(state0, abef);
+        state1 = _mm_add_epi32(state1, cdgh);
+        data += TP_SHA256_BLOCK;
+    }
+    {
+        __m128i feba = _mm_shuffle_epi32(state0, 0x1B);
+        __m128i dchg = _mm_shuffle_epi32(state1, 0xB1);
+        _mm_storeu_si128((__m128i *) &state[0], _mm_blend_epi16(feba, dchg, 0xF0));
+        _mm_storeu_si128((__m128i *) &state[4], _mm_alignr_epi8(dchg, feba, 8));
+    }
+}
+
+static int has_hardware_sha(void) {
+    unsigned int eax, ebx, ecx, edx;
+    if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx)) return 0;
+    if (!(ecx & bit_SSE4_1) || !(ecx & bit_SSSE3)) return 0;
+    if (!__get_cpuid_count(7, 0, &eax, &ebx, &ecx, &edx)) return 0;
+    return (ebx & (1u << 29)) != 0; /* SHA extensions */
+}
+
+#define HARDWARE_NAME "sha-ni"
+#define HARDWARE_COMPRESS compress_x86
+
+#endif
+
+#ifdef TP_SHA_ARMV8
+
+/* Message words of 4 rounds: first 4 groups are loaded from block, next are expanded from previous 4 groups. */
+#define ARM_ROUNDS(i, w0, w1, w2, w3) do { \
+        uint32x4_t abcd = state0; \
+        if ((i) >= 4) w0 = vsha256su1q_u32(vsha256su0q_u32(w0, w1), w2, w3); \
+        msg = vaddq_u32(w0, vld1q_u32(&K[4 * (i)])); \
+        state0 = vsha256hq_u32(state0, state1, msg); \
+        state1 = vsha256h2q_u32(state1, abcd, msg); \
+    } while (0)
+
+static void compress_armv8(uint32_t state[8], const uint8_t *data, size_t blocks) {
+    uint32x4_t state0 = vld1q_u32(&state[0]);
+    uint32x4_t state1 = vld1q_u32(&state[4]);
+    uint32x4_t msg, w0, w1, w2, w3;
+    while (blocks--) {
+        uint32x4_t abcd = state0;
+        uint32x4_t efgh = state1;
+        w0 = vreinterpretq_u32_u8(vrev32q_u8(vld1q_u8(data + 0)));
+        w1 = vreinterpretq_u32_u8(vrev32q_u8(vld1q_u8(data + 16)));
+        w2 = vreinterpretq_u32_u8(vrev32q_u8(vld1q_u8(data + 32)));
+        w3 = vreinterpretq_u32_u8(vrev32q_u8(vld1q_u8(data + 48)));
+        ARM_ROUNDS(0, w0, w1, w2, w3);
+        ARM_ROUNDS(1, w1, w2, w3, w0);
+        ARM_ROUNDS(2, w2, w3, w0, w1);
+        ARM_ROUNDS(3, w3, w0, w1, w2);
+        ARM_ROUNDS(4, w0, w1, w2, w3);
+        ARM_ROUNDS(5, w1, w2, w3, w0);
+        ARM_ROUNDS(6, w2, w3, w0, w1);
+        ARM_ROUNDS(7, w3, w0, w1, w2);
+        ARM_ROUNDS(8, w0, w1, w2, w3);
+        ARM_ROUNDS(9, w1, w2, w3, w0);
+        ARM_ROUNDS(10, w2, w3, w0, w1);
+        ARM_ROUNDS(11, w3, w0, w1, w2);
+        ARM_ROUNDS(12, w0, w1, w2, w3);
+        ARM_ROUNDS(13, w1, w2, w3, w0);
+        ARM_ROUNDS(14, w2, w3, w0, w1);
+        ARM_ROUNDS(15, w3, w0, w1, w2);
+        state0 = vaddq_u32(state0, abcd);
+        state1 = vaddq_u32(state1, efgh);
+        data += TP_SHA256_BLOCK;
+    }
+    vst1q_u32(&state[0], state0);
+    vst1q_u32(&state[4], state1);
+}
+
+static int has_hardware_sha(void) {
+    return (getauxval(AT_HWCAP) & HWCAP_SHA2) != 0;
+}
+
+#define HARDWARE_NAME "armv8"
+#define HARDWARE_COMPRESS compress_armv8
+
+#endif
+
+static compress_fn compress = compress_portable;
+static const char *backend = "portable";
+
+void tp_sha256_select(int allow_hardware) {
+#ifdef HARDWARE_NAME
+    if (allow_hardware && has_hardware_sha()) {
+        compress = HARDWARE_COMPRESS;
+        backend = HARDWARE_NAME;
+        return;
+    }
+#else
+    (void) allow_hardware;
+#endif
+    compress = compress_portable;
+    backend = "portable";
+}
+
+const char *tp_sha256_backend(void) {
+    return backend;
+}
+
+void tp_sha256_init(tp_sha256 *ctx) {
+    static const uint32_t initial[8] = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19,
+    };
+    memcpy(ctx->state, initial, sizeof(initial));
+    ctx->length = 0;
+    ctx->filled = 0;
+}
+
+void tp_sha256_update(tp_sha256 *ctx, const uint8_t *data, size_t length) {
+    ctx->length += length;
+    if (ctx->filled > 0) {
+        size_t part = TP_SHA256_BLOCK - ctx->filled;
+        if (part > length) part = length;
+        memcpy(ctx->block + ctx->filled, data, part);
+        ctx->filled += part;
+        data += part;
+        length -= part;
+        if (ctx->filled < TP_SHA256_BLOCK) return;
+        compress(ctx->state, ctx->block, 1);
+        ctx->filled = 0;
+    }
+    if (length >= TP_SHA256_BLOCK) {
+        size_t blocks = length / TP_SHA256_BLOCK;
+        compress(ctx->state, data, blocks);
+        data += blocks * TP_SHA256_BLOCK;
+        length -= blocks * TP_SHA256_BLOCK;
+    }
+    memcpy(ctx->block, data, length);
+    ctx->filled = length;
+}
+
+void tp_sha256_final(tp_sha256 *ctx, uint8_t out[TP_SHA256_SIZE]) {
+    uint64_t bits = ctx->length * 8;
+    int i;
+    ctx->block[ctx->filled++] = 0x80;
+    if (ctx->filled > TP_SHA256_BLOCK - 8) {
+        memset(ctx->block + ctx->filled, 0, TP_SHA256_BLOCK - ctx->filled);
+        compress(ctx->state, ctx->block, 1);
+        ctx->filled = 0;
+    }
+    memset(ctx->block + ctx->filled, 0, TP_SHA256_BLOCK - 8 - ctx->filled);
+    for (i = 0; i < 8; i++) {
+        ctx->block[TP_SHA256_BLOCK - 1 - i] = (uint8_t) (bits >> (8 * i));
+    }
+    compress(ctx->state, ctx->block, 1);
+    for (i = 0; i < 8; i++) {
+        out[4 * i] = (uint8_t) (ctx->state[i] >> 24);
+        out[4 * i + 1] = (uint8_t) (ctx->state[i] >> 16);
+        out[4 * i + 2] = (uint8_t) (ctx->state[i] >> 8);
+        out[4 * i + 3] = (uint8_t) ctx->state[i];
+    }
+}
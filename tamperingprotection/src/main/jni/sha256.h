@@ -0,0 +1,33 @@
+#ifndef TAMPERINGPROTECTION_SHA256_H
+#define TAMPERINGPROTECTION_SHA256_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define TP_SHA256_SIZE 32
+#define TP_SHA256_BLOCK 64
+
+/*
+ * SHA-256 (FIPS 180-4). Blocks are compressed by SHA extensions of CPU when available
+ * (x86-64 SHA-NI, ARMv8 SHA2), otherwise by portable C code. Result is same for all implementations.
+ */
+typedef struct {
+    uint32_t state[8];
+    uint64_t length;
+    uint8_t block[TP_SHA256_BLOCK];
+    size_t filled;
+} tp_sha256;
+
+/* Select implementation by CPU features. Called once before hashing (JNI_OnLoad). */
+void tp_sha256_select(int allow_hardware);
+
+/* Name of selected implementation: "sha-ni", "armv8" or "portable". */
+const char *tp_sha256_backend(void);
+
+void tp_sha256_init(tp_sha256 *ctx);
+
+void tp_sha256_update(tp_sha256 *ctx, const uint8_t *data, size_t length);
+
+void tp_sha256_final(tp_sha256 *ctx, uint8_t out[TP_SHA256_SIZE]);
+
+#endif
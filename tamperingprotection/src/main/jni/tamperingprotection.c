@@ -0,0 +1,554 @@
+/*
+ * Native backend of ru.lazard.tamperingprotection.NativeBridge: central directory parsing of apk,
+ * SHA-256 of memory-mapped file regions and procfs scanning. Each function does same work and throws same
+ * exceptions as java implementation it replaces (ApkIndex, NativeLibDigester, ProcScanner).
+ */
+#define _GNU_SOURCE
+#define _FILE_OFFSET_BITS 64
+
+#include <jni.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdarg.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include "sha256.h"
+
+/* version of native interface, checked by NativeBridge.VERSION */
+#define NATIVE_VERSION 1
+
+#define CENTRAL_HEADER_SIGNATURE 0x02014b50
+#define CENTRAL_HEADER_SIZE 46
+#define EOCD_SIGNATURE 0x06054b50
+#define EOCD_SIZE 22
+#define ZIP64_EOCD_LOCATOR_SIGNATURE 0x07064b50
+#define ZIP64_EOCD_LOCATOR_SIZE 20
+#define ZIP64_EOCD_SIGNATURE 0x06064b50
+#define ZIP64_EOCD_SIZE 56
+#define ZIP64_EXTRA_ID 0x0001
+#define MAX_COMMENT_SIZE 0xFFFF
+#define UINT32_MASK 0xFFFFFFFFLL
+
+/* layout of table returned by nativeReadCentralDirectory (NativeBridge.TABLE_*) */
+#define TABLE_HEADER_SIZE 6
+#define TABLE_ENTRY_SIZE 6
+
+#define MAX_MAPPED_SIZE (64LL * 1024 * 1024)
+#define SCAN_BUFFER_SIZE (64 * 1024)
+
+static void throw_new(JNIEnv *env, const char *class_name, const char *format, ...)
+        __attribute__((format(printf, 3, 4)));
+
+static void throw_new(JNIEnv *env, const char *class_name, const char *format, ...) {
+    char message[512];
+    va_list args;
+    jclass exception_class;
+    va_start(args, format);
+    vsnprintf(message, sizeof(message), format, args);
+    va_end(args);
+    if ((*env)->ExceptionCheck(env)) return;
+    exception_class = (*env)->FindClass(env, class_name);
+    if (exception_class != NULL) (*env)->ThrowNew(env, exception_class, message);
+}
+
+#define throw_zip(env, ...) throw_new(env, "java/util/zip/ZipException", __VA_ARGS__)
+#define throw_io(env, ...) throw_new(env, "java/io/IOException", __VA_ARGS__)
+
+static int open_file(JNIEnv *env, jstring path) {
+    const char *chars = (*env)->GetStringUTFChars(env, path, NULL);
+    int fd;
+    if (chars == NULL) return -1;
+    do {
+        fd = open(chars, O_RDONLY | O_CLOEXEC);
+    } while (fd < 0 && errno == EINTR);
+    if (fd < 0) throw_new(env, "java/io/FileNotFoundException", "%s (%s)", chars, strerror(errno));
+    (*env)->ReleaseStringUTFChars(env, path, chars);
+    return fd;
+}
+
+static int read_fully(JNIEnv *env, int fd, uint8_t *buffer, size_t length, int64_t offset) {
+    size_t done = 0;
+    while (done < length) {
+        ssize_t bytes = pread(fd, buffer + done, length - done, (off_t) (offset + done));
+        if (bytes < 0 && errno == EINTR) continue;
+        if (bytes < 0) {
+            throw_io(env, "Read failed at offset %lld: %s", (long long) (offset + done), strerror(errno));
+            return 0;
+        }
+        if (bytes == 0) {
+            throw_zip(env, "Unexpected end of file at offset %lld", (long long) (offset + done));
+            return 0;
+        }
+        done += (size_t) bytes;
+    }
+    return 1;
+}
+
+static uint16_t u16(const uint8_t *p) {
+    return (uint16_t) (p[0] | p[1] << 8);
+}
+
+static uint32_t u32(const uint8_t *p) {
+    return (uint32_t) p[0] | (uint32_t) p[1] << 8 | (uint32_t) p[2] << 16 | (uint32_t) p[3] << 24;
+}
+
+static int64_t i64(const uint8_t *p) {
+    return (int64_t) ((uint64_t) u32(p) | (uint64_t) u32(p + 4) << 32);
+}
+
+static void throw_entry(JNIEnv *env, const char *prefix, const uint8_t *name, int length, const char *format, ...)
+        __attribute__((format(printf, 5, 6)));
+
+/*
+ * Throw ZipException "<prefix>\"<name>\"<suffix>". Name of broken zip may contain any bytes (zero, not valid UTF-8),
+ * so it's decoded by java (new String(bytes, "UTF-8")) same as ApkIndex.read decodes it, not passed through ThrowNew.
+ */
+static void throw_entry(JNIEnv *env, const char *prefix, const uint8_t *name, int length, const char *format, ...) {
+    char suffix[128];
+    va_list args;
+    jclass string_class, exception_class;
+    jmethodID decode, concat, create;
+    jbyteArray bytes;
+    jstring charset, message, part;
+    jobject exception;
+    va_start(args, format);
+    vsnprintf(suffix, sizeof(suffix), format, args);
+    va_end(args);
+    if ((*env)->ExceptionCheck(env)) return;
+    string_class = (*env)->FindClass(env, "java/lang/String");
+    exception_class = (*env)->FindClass(env, "java/util/zip/ZipException");
+    if (string_class == NULL || exception_class == NULL) return;
+    decode = (*env)->GetMethodID(env, string_class, "<init>", "([BLjava/lang/String;)V");
+    concat = (*env)->GetMethodID(env, string_class, "concat", "(Ljava/lang/String;)Ljava/lang/String;");
+    create = (*env)->GetMethodID(env, exception_class, "<init>", "(Ljava/lang/String;)V");
+    if (decode == NULL || concat == NULL || create == NULL) return;
+    bytes = (*env)->NewByteArray(env, length);
+    if (bytes == NULL) return;
+    (*env)->SetByteArrayRegion(env, bytes, 0, length, (const jbyte *) name);
+    if ((charset = (*env)->NewStringUTF(env, "UTF-8")) == NULL) return;
+    part = (*env)->NewObject(env, string_class, decode, bytes, charset);
+    if ((*env)->ExceptionCheck(env)) return;
+    if ((message = (*env)->NewStringUTF(env, prefix)) == NULL) return;
+    message = (*env)->CallObjectMethod(env, message, concat, part);
+    if ((*env)->ExceptionCheck(env)) return;
+    if ((part = (*env)->NewStringUTF(env, suffix)) == NULL) return;
+    message = (*env)->CallObjectMethod(env, message, concat, part);
+    if ((*env)->ExceptionCheck(env)) return;
+    exception = (*env)->NewObject(env, exception_class, create, message);
+    if (exception != NULL) (*env)->Throw(env, (jthrowable) exception);
+}
+
+/*
+ * Parse central directory of zip file (same rules as ApkIndex.read).
+ * names[0] is set to names of all entries (UTF-8, one after another).
+ * Returns table: fileLength, cdOffset, cdSize, eocdOffset, entryCount, bytesRead, then for each entry:
+ * method, crc, compressedSize, size, localHeaderOffset, nameLength.
+ */
+JNIEXPORT jlongArray JNICALL
+Java_ru_lazard_tamperingprotection_NativeBridge_nativeReadCentralDirectory(JNIEnv *env, jclass clazz, jstring path, jobjectArray names) {
+    jlongArray result = NULL;
+    struct stat st;
+    uint8_t *tail = NULL;
+    uint8_t *mapped = NULL;
+    size_t mapped_length = 0;
+    jlong *table = NULL;
+    int64_t file_length, tail_offset, eocd_offset, entry_count, cd_size, cd_offset, cd_end, bytes_read;
+    int tail_length, eocd_position = -1, i;
+    int fd = open_file(env, path);
+    (void) clazz;
+    if (fd < 0) return NULL;
+
+    if (fstat(fd, &st) != 0) {
+        throw_io(env, "Stat failed: %s", strerror(errno));
+        goto done;
+    }
+    file_length = (int64_t) st.st_size;
+    if (file_length < EOCD_SIZE) {
+        throw_zip(env, "File too short to be a zip file: length=%lld", (long long) file_length);
+        goto done;
+    }
+
+    /* find end of central directory record (it's followed by comment up to 64Kb) */
+    tail_length = (int) (file_length < EOCD_SIZE + MAX_COMMENT_SIZE ? file_length : EOCD_SIZE + MAX_COMMENT_SIZE);
+    tail_offset = file_length - tail_length;
+    tail = malloc((size_t) tail_length);
+    if (tail == NULL) {
+        throw_new(env, "java/lang/OutOfMemoryError", "Tail of zip file: %d bytes", tail_length);
+        goto done;
+    }
+    if (!read_fully(env, fd, tail, (size_t) tail_length, tail_offset)) goto done;
+    bytes_read = tail_length;
+    for (i = tail_length - EOCD_SIZE; i >= 0; i--) {
+        if (u32(tail + i) == EOCD_SIGNATURE && i + EOCD_SIZE + u16(tail + i + 20) == tail_length) {
+            eocd_position = i;
+            break;
+        }
+    }
+    if (eocd_position < 0) {
+        throw_zip(env, "End of central directory record not found.");
+        goto done;
+    }
+    eocd_offset = tail_offset + eocd_position;
+
+    entry_count = u16(tail + eocd_position + 10);
+    cd_size = u32(tail + eocd_position + 12);
+    cd_offset = u32(tail + eocd_position + 16);
+    cd_end = eocd_offset;
+
+    if (entry_count == 0xFFFF || cd_size == UINT32_MASK || cd_offset == UINT32_MASK) {
+        /* zip64 end of central directory locator is placed right before end of central directory record */
+        if (eocd_offset >= ZIP64_EOCD_LOCATOR_SIZE) {
+            uint8_t locator[ZIP64_EOCD_LOCATOR_SIZE];
+            if (!read_fully(env, fd, locator, ZIP64_EOCD_LOCATOR_SIZE, eocd_offset - ZIP64_EOCD_LOCATOR_SIZE)) goto done;
+            bytes_read += ZIP64_EOCD_LOCATOR_SIZE;
+            if (u32(locator) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                uint8_t zip64_eocd[ZIP64_EOCD_SIZE];
+                int64_t zip64_eocd_offset = i64(locator + 8);
+                if (zip64_eocd_offset < 0 || zip64_eocd_offset > eocd_offset - ZIP64_EOCD_LOCATOR_SIZE - ZIP64_EOCD_SIZE) {
+                    throw_zip(env, "Bad zip64 end of central directory offset: %lld", (long long) zip64_eocd_offset);
+                    goto done;
+                }
+                if (!read_fully(env, fd, zip64_eocd, ZIP64_EOCD_SIZE, zip64_eocd_offset)) goto done;
+                bytes_read += ZIP64_EOCD_SIZE;
+                if (u32(zip64_eocd) != ZIP64_EOCD_SIGNATURE) {
+                    throw_zip(env, "Zip64 end of central directory record not found.");
+                    goto done;
+                }
+                entry_count = i64(zip64_eocd + 32);
+                cd_size = i64(zip64_eocd + 40);
+                cd_offset = i64(zip64_eocd + 48);
+                cd_end = zip64_eocd_offset;
+            }
+        }
+    }
+
+    if (cd_offset < 0 || cd_size < 0 || cd_offset > cd_end || cd_size > cd_end - cd_offset) {
+        throw_zip(env, "Bad central directory: offset=%lld size=%lld fileLength=%lld", (long long) cd_offset, (long long) cd_size, (long long) file_length);
+        goto done;
+    }
+    if (cd_size > INT32_MAX) {
+        throw_zip(env, "Central directory too large: size=%lld", (long long) cd_size);
+        goto done;
+    }
+    if (entry_count < 0 || entry_count > cd_size / CENTRAL_HEADER_SIZE) {
+        throw_zip(env, "Bad entry count: %lld for central directory size=%lld", (long long) entry_count, (long long) cd_size);
+        goto done;
+    }
+
+    {
+        long page_size = sysconf(_SC_PAGESIZE);
+        int64_t map_offset = cd_offset - cd_offset % page_size;
+        const uint8_t *cd;
+        int count = (int) entry_count;
+        int limit = (int) cd_size;
+        int position = 0;
+        int names_length = 0;
+        jbyteArray name_bytes;
+        jbyte *name_chars;
+
+        mapped_length = (size_t) (cd_offset - map_offset + cd_size);
+        if (mapped_length > 0) {
+            mapped = mmap(NULL, mapped_length, PROT_READ, MAP_PRIVATE, fd, (off_t) map_offset);
+            if (mapped == MAP_FAILED) {
+                mapped = NULL;
+                throw_io(env, "Central directory mapping failed: %s", strerror(errno));
+                goto done;
+            }
+        }
+        cd = mapped + (cd_offset - map_offset);
+        bytes_read += cd_size;
+
+        table = malloc(sizeof(jlong) * (TABLE_HEADER_SIZE + (size_t) count * TABLE_ENTRY_SIZE));
+        if (table == NULL) {
+            throw_new(env, "java/lang/OutOfMemoryError", "Table of %d entries", count);
+            goto done;
+        }
+        for (i = 0; i < count; i++) {
+            jlong *entry = table + TABLE_HEADER_SIZE + i * TABLE_ENTRY_SIZE;
+            int method, name_length, extra_length, comment_length, name_offset, extra_offset, next;
+            int64_t compressed_size, size, local_header_offset;
+            uint32_t crc;
+            if (limit - position < CENTRAL_HEADER_SIZE || u32(cd + position) != CENTRAL_HEADER_SIGNATURE) {
+                throw_zip(env, "Bad central directory header of entry #%d at offset %lld", i, (long long) (cd_offset + position));
+                goto done;
+            }
+            method = u16(cd + position + 10);
+            crc = u32(cd + position + 16);
+            compressed_size = u32(cd + position + 20);
+            size = u32(cd + position + 24);
+            name_length = u16(cd + position + 28);
+            extra_length = u16(cd + position + 30);
+            comment_length = u16(cd + position + 32);
+            local_header_offset = u32(cd + position + 42);
+            name_offset = position + CENTRAL_HEADER_SIZE;
+            extra_offset = name_offset + name_length;
+            next = extra_offset + extra_length + comment_length;
+            if (next > limit) {
+                throw_zip(env, "Central directory header of entry #%d overflows central directory.", i);
+                goto done;
+            }
+
+            if (size == UINT32_MASK || compressed_size == UINT32_MASK || local_header_offset == UINT32_MASK) {
+                /* values are placed in zip64 extra field (only values which are 0xFFFFFFFF in header, in this order) */
+                int extra = extra_offset;
+                int extra_end = extra_offset + extra_length;
+                while (extra + 4 <= extra_end) {
+                    int id = u16(cd + extra);
+                    int length = u16(cd + extra + 2);
+                    int data = extra + 4;
+                    if (data + length > extra_end) {
+                        throw_entry(env, "Bad extra field of entry \"", cd + name_offset, name_length, "\".");
+                        goto done;
+                    }
+                    if (id == ZIP64_EXTRA_ID) {
+                        int data_end = data + length;
+                        if (size == UINT32_MASK && data + 8 <= data_end) {
+                            size = i64(cd + data);
+                            data += 8;
+                        }
+                        if (compressed_size == UINT32_MASK && data + 8 <= data_end) {
+                            compressed_size = i64(cd + data);
+                            data += 8;
+                        }
+                        if (local_header_offset == UINT32_MASK && data + 8 <= data_end) {
+                            local_header_offset = i64(cd + data);
+                        }
+                        break;
+                    }
+                    extra = data + length;
+                }
+            }
+            if (local_header_offset < 0 || local_header_offset > cd_offset) {
+                throw_entry(env, "Bad local header offset of entry \"", cd + name_offset, name_length, "\": %lld", (long long) local_header_offset);
+                goto done;
+            }
+            if (compressed_size < 0 || size < 0) {
+                throw_entry(env, "Bad size of entry \"", cd + name_offset, name_length, "\".");
+                goto done;
+            }
+
+            entry[0] = method;
+            entry[1] = crc;
+            entry[2] = compressed_size;
+            entry[3] = size;
+            entry[4] = local_header_offset;
+            entry[5] = name_length;
+            names_length += name_length;
+            position = next;
+        }
+
+        /* names are copied by second pass: headers are already validated */
+        name_bytes = (*env)->NewByteArray(env, names_length);
+        if (name_bytes == NULL) goto done;
+        if (names_length > 0) {
+            name_chars = (*env)->GetPrimitiveArrayCritical(env, name_bytes, NULL);
+            if (name_chars == NULL) goto done;
+            position = 0;
+            names_length = 0;
+            for (i = 0; i < count; i++) {
+                int name_length = u16(cd + position + 28);
+                memcpy(name_chars + names_length, cd + position + CENTRAL_HEADER_SIZE, (size_t) name_length);
+                names_length += name_length;
+                position += CENTRAL_HEADER_SIZE + name_length + u16(cd + position + 30) + u16(cd + position + 32);
+            }
+            (*env)->ReleasePrimitiveArrayCritical(env, name_bytes, name_chars, 0);
+        }
+        (*env)->SetObjectArrayElement(env, names, 0, name_bytes);
+        if ((*env)->ExceptionCheck(env)) goto done;
+
+        table[0] = file_length;
+        table[1] = cd_offset;
+        table[2] = cd_size;
+        table[3] = eocd_offset;
+        table[4] = count;
+        table[5] = bytes_read;
+        result = (*env)->NewLongArray(env, TABLE_HEADER_SIZE + count * TABLE_ENTRY_SIZE);
+        if (result != NULL) (*env)->SetLongArrayRegion(env, result, 0, TABLE_HEADER_SIZE + count * TABLE_ENTRY_SIZE, table);
+    }
+
+    done:
+    free(table);
+    free(tail);
+    if (mapped != NULL) munmap(mapped, mapped_length);
+    close(fd);
+    return result;
+}
+
+/*
+ * SHA-256 of region of file. Region is hashed through memory-mapped windows (no copy into heap).
+ */
+JNIEXPORT jbyteArray JNICALL
+Java_ru_lazard_tamperingprotection_NativeBridge_nativeSha256(JNIEnv *env, jclass clazz, jstring path, jlong offset, jlong length) {
+    jbyteArray result = NULL;
+    struct stat st;
+    tp_sha256 ctx;
+    uint8_t digest[TP_SHA256_SIZE];
+    long page_size = sysconf(_SC_PAGESIZE);
+    int64_t position = offset;
+    int64_t end = offset + length;
+    int fd;
+    (void) clazz;
+    if (offset < 0 || length < 0) {
+        throw_new(env, "java/lang/IllegalArgumentException", "offset=%lld length=%lld", (long long) offset, (long long) length);
+        return NULL;
+    }
+    fd = open_file(env, path);
+    if (fd < 0) return NULL;
+    if (fstat(fd, &st) != 0) {
+        throw_io(env, "Stat failed: %s", strerror(errno));
+        goto done;
+    }
+    if (end > (int64_t) st.st_size) {
+        throw_io(env, "Region is out of file: offset=%lld length=%lld fileLength=%lld", (long long) offset, (long long) length, (long long) st.st_size);
+        goto done;
+    }
+
+    tp_sha256_init(&ctx);
+    while (position < end) {
+        int64_t window = end - position < MAX_MAPPED_SIZE ? end - position : MAX_MAPPED_SIZE;
+        int64_t map_offset = position - position % page_size;
+        size_t map_length = (size_t) (position - map_offset + window);
+        uint8_t *mapped = mmap(NULL, map_length, PROT_READ, MAP_PRIVATE, fd, (off_t) map_offset);
+        if (mapped == MAP_FAILED) {
+            throw_io(env, "Mapping failed at offset %lld: %s", (long long) position, strerror(errno));
+            goto done;
+        }
+        madvise(mapped, map_length, MADV_SEQUENTIAL);
+        tp_sha256_update(&ctx, mapped + (position - map_offset), (size_t) window);
+        munmap(mapped, map_length);
+        position += window;
+    }
+    tp_sha256_final(&ctx, digest);
+
+    result = (*env)->NewByteArray(env, TP_SHA256_SIZE);
+    if (result != NULL) (*env)->SetByteArrayRegion(env, result, 0, TP_SHA256_SIZE, (const jbyte *) digest);
+
+    done:
+    close(fd);
+    return result;
+}
+
+/*
+ * Scan file for byte patterns (same result as ProcScanner.scan). File is read from start by one reused buffer,
+ * last (longest pattern - 1) bytes of each read are kept, so pattern split between reads is found.
+ * patterns - all patterns one after another, lengths - length of each pattern.
+ * Returns count of patterns found by this scan which were not set in found before.
+ */
+JNIEXPORT jint JNICALL
+Java_ru_lazard_tamperingprotection_NativeBridge_nativeScan(JNIEnv *env, jclass clazz, jstring path, jbyteArray patterns, jintArray lengths, jbooleanArray found) {
+    jint count = -1;
+    jsize pattern_count = (*env)->GetArrayLength(env, lengths);
+    jsize patterns_length = (*env)->GetArrayLength(env, patterns);
+    jint *pattern_lengths = NULL;
+    jint *pattern_offsets = NULL;
+    jbyte *pattern_bytes = NULL;
+    jboolean *flags = NULL;
+    uint8_t *buffer = NULL;
+    size_t keep = 0, filled = 0;
+    int remaining = 0, i, fd;
+    (void) clazz;
+    if ((*env)->GetArrayLength(env, found) < pattern_count) {
+        throw_new(env, "java/lang/IllegalArgumentException", "found.length=%d", (int) (*env)->GetArrayLength(env, found));
+        return -1;
+    }
+    fd = open_file(env, path);
+    if (fd < 0) return -1;
+
+    pattern_lengths = malloc(sizeof(jint) * (size_t) (pattern_count + 1));
+    pattern_offsets = malloc(sizeof(jint) * (size_t) (pattern_count + 1));
+    pattern_bytes = malloc((size_t) patterns_length + 1);
+    flags = malloc(sizeof(jboolean) * (size_t) (pattern_count + 1));
+    if (pattern_lengths == NULL || pattern_offsets == NULL || pattern_bytes == NULL || flags == NULL) {
+        throw_new(env, "java/lang/OutOfMemoryError", "Patterns: %d", (int) pattern_count);
+        goto done;
+    }
+    (*env)->GetIntArrayRegion(env, lengths, 0, pattern_count, pattern_lengths);
+    (*env)->GetByteArrayRegion(env, patterns, 0, patterns_length, pattern_bytes);
+    (*env)->GetBooleanArrayRegion(env, found, 0, pattern_count, flags);
+    for (i = 0; i < pattern_count; i++) {
+        pattern_offsets[i] = i == 0 ? 0 : pattern_offsets[i - 1] + pattern_lengths[i - 1];
+        if (pattern_lengths[i] <= 0 || pattern_offsets[i] + pattern_lengths[i] > patterns_length) {
+            throw_new(env, "java/lang/IllegalArgumentException", "Bad length of pattern %d", i);
+            goto done;
+        }
+        if ((size_t) pattern_lengths[i] - 1 > keep) keep = (size_t) pattern_lengths[i] - 1;
+        if (!flags[i]) remaining++;
+    }
+
+    buffer = malloc(SCAN_BUFFER_SIZE + keep);
+    if (buffer == NULL) {
+        throw_new(env, "java/lang/OutOfMemoryError", "Scan buffer");
+        goto done;
+    }
+    count = 0;
+    /* stop when all patterns are found: rest of file can't change result */
+    while (remaining > 0) {
+        ssize_t bytes = read(fd, buffer + filled, SCAN_BUFFER_SIZE);
+        if (bytes < 0 && errno == EINTR) continue;
+        if (bytes < 0) {
+            throw_io(env, "Read failed: %s", strerror(errno));
+            count = -1;
+            goto done;
+        }
+        if (bytes == 0) break;
+        filled += (size_t) bytes;
+        for (i = 0; i < pattern_count; i++) {
+            if (flags[i]) continue;
+            if (memmem(buffer, filled, pattern_bytes + pattern_offsets[i], (size_t) pattern_lengths[i]) != NULL) {
+                flags[i] = JNI_TRUE;
+                count++;
+                remaining--;
+            }
+        }
+        if (filled > keep) {
+            memmove(buffer, buffer + filled - keep, keep);
+            filled = keep;
+        }
+    }
+    (*env)->SetBooleanArrayRegion(env, found, 0, pattern_count, flags);
+
+    done:
+    free(buffer);
+    free(flags);
+    free(pattern_bytes);
+    free(pattern_offsets);
+    free(pattern_lengths);
+    close(fd);
+    return count;
+}
+
+/* Name of SHA-256 implementation selected for CPU. */
+JNIEXPORT jstring JNICALL
+Java_ru_lazard_tamperingprotection_NativeBridge_nativeShaBackend(JNIEnv *env, jclass clazz) {
+    (void) clazz;
+    return (*env)->NewStringUTF(env, tp_sha256_backend());
+}
+
+/* Allow or forbid SHA extensions of CPU (tests compare both implementations). */
+JNIEXPORT void JNICALL
+Java_ru_lazard_tamperingprotection_NativeBridge_nativeSetHardwareSha(JNIEnv *env, jclass clazz, jboolean allowed) {
+    (void) env;
+    (void) clazz;
+    tp_sha256_select(allowed);
+}
+
+JNIEXPORT jint JNICALL
+Java_ru_lazard_tamperingprotection_NativeBridge_nativeVersion(JNIEnv *env, jclass clazz) {
+    (void) env;
+    (void) clazz;
+    return NATIVE_VERSION;
+}
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+    (void) vm;
+    (void) reserved;
+    tp_sha256_select(1);
+    return JNI_VERSION_1_6;
+}
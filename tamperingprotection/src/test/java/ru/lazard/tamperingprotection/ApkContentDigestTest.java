@@ -0,0 +1,52 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ApkContentDigestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File createApk() throws Exception {
+        Object[] entries = new Object[2 * 40];
+        for (int i = 0; i < 40; i++) {
+            entries[2 * i] = i % 3 == 0 ? "lib/x86/lib" + i + ".so" : "assets/file" + i + ".bin";
+            entries[2 * i + 1] = ZipFixtures.content(i, (i % 7) * 10000 + i);
+        }
+        return ZipFixtures.createZip(folder.newFile("app.apk"), null, entries);
+    }
+
+    @Test
+    public void entryDigests_matchContent() throws Exception {
+        ApkIndex index = ApkIndex.read(createApk());
+        ApkContentDigest digest = ApkContentDigest.digest(index, 3);
+        for (int i = 0; i < index.size(); i++) {
+            assertArrayEquals(ZipFixtures.sha256(ZipFixtures.content(i, (i % 7) * 10000 + i)), digest.getEntryDigest(i));
+        }
+    }
+
+    @Test
+    public void root_doesNotDependOnThreadCount() throws Exception {
+        ApkIndex index = ApkIndex.read(createApk());
+        String root = ApkContentDigest.digest(index, 1).getRootHex();
+        for (int threads = 2; threads <= 8; threads *= 2) {
+            ApkContentDigest digest = ApkContentDigest.digest(index, threads);
+            assertEquals(root, digest.getRootHex());
+            assertEquals(threads, digest.getThreads());
+        }
+    }
+
+    @Test
+    public void root_changesWhenEntryRenamed() throws Exception {
+        File first = ZipFixtures.createZip(folder.newFile("first.apk"), null, "a.bin", ZipFixtures.content(1, 100));
+        File second = ZipFixtures.createZip(folder.newFile("second.apk"), null, "b.bin", ZipFixtures.content(1, 100));
+        assertNotEquals(ApkContentDigest.digest(ApkIndex.read(first), 1).getRootHex(),
+                ApkContentDigest.digest(ApkIndex.read(second), 1).getRootHex());
+    }
+}
@@ -0,0 +1,100 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check {@link ApkIndex} against fixture zip files (and against <code>java.util.zip.ZipFile</code>).
+ */
+public class ApkIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void entries_matchZipFile() throws Exception {
+        File file = ZipFixtures.createZip(folder.newFile("app.apk"), "apk comment",
+                "AndroidManifest.xml", ZipFixtures.content(1, 1200),
+                "classes.dex", ZipFixtures.content(2, 5000),
+                "res/drawable/icon.png", ZipFixtures.content(3, 700),
+                "resources.arsc", ZipFixtures.content(4, 64));
+
+        ApkIndex index = ApkIndex.read(file);
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            assertEquals(zipFile.size(), index.size());
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            int i = 0;
+            while (entries.hasMoreElements()) {
+                ZipEntry zipEntry = entries.nextElement();
+                assertEquals(zipEntry.getName(), index.getName(i));
+                assertEquals(i, index.indexOf(zipEntry.getName()));
+                assertEquals(zipEntry.getCrc(), index.getCrc(i));
+                assertEquals(zipEntry.getSize(), index.getSize(i));
+                assertEquals(zipEntry.getCompressedSize(), index.getCompressedSize(i));
+                assertEquals(zipEntry.getMethod(), index.getMethod(i));
+                i++;
+            }
+        } finally {
+            zipFile.close();
+        }
+        assertEquals(-1, index.indexOf("classes2.dex"));
+    }
+
+    @Test
+    public void dexCrc_sumsConsecutiveDexFiles() throws Exception {
+        byte[] dex1 = ZipFixtures.content(1, 300);
+        byte[] dex2 = ZipFixtures.content(2, 400);
+        byte[] dex3 = ZipFixtures.content(3, 500);
+        File file = ZipFixtures.createZip(folder.newFile("multidex.apk"), null,
+                "classes3.dex", dex3,
+                "classes.dex", dex1,
+                "classes2.dex", dex2,
+                "classes5.dex", ZipFixtures.content(5, 10)); // not counted: classes4.dex is absent
+
+        ApkIndex index = ApkIndex.read(file);
+        assertEquals(ZipFixtures.crc(dex1) + ZipFixtures.crc(dex2) + ZipFixtures.crc(dex3), index.getDexCrc());
+        assertEquals(3, index.getDexEntries().length);
+        assertEquals(ZipFixtures.crc(dex1) + ZipFixtures.crc(dex2) + ZipFixtures.crc(dex3) + ZipFixtures.crc(ZipFixtures.content(5, 10)), index.getTotalCrc());
+    }
+
+    @Test
+    public void emptyZip() throws Exception {
+        ApkIndex index = ApkIndex.read(ZipFixtures.createZip(folder.newFile("empty.apk"), null));
+        assertEquals(0, index.size());
+        assertEquals(0, index.getDexCrc());
+        assertEquals(0, index.getTotalCrc());
+    }
+
+    @Test(expected = ZipException.class)
+    public void notZip_throwsZipException() throws Exception {
+        File file = folder.newFile("broken.apk");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(ZipFixtures.content(9, 1000));
+        out.close();
+        ApkIndex.read(file);
+    }
+
+    @Test
+    public void of_reusesIndexUntilFileChanged() throws Exception {
+        File file = ZipFixtures.createZip(folder.newFile("reuse.apk"), null, "classes.dex", ZipFixtures.content(1, 100));
+        ApkIndex first = ApkIndex.of(file.getPath());
+        assertSame(first, ApkIndex.of(file.getPath()));
+
+        ZipFixtures.createZip(file, null, "classes.dex", ZipFixtures.content(2, 200), "classes2.dex", ZipFixtures.content(3, 300));
+        file.setLastModified(first.getLastModified() + 2000);
+        ApkIndex second = ApkIndex.of(file.getPath());
+        assertNotSame(first, second);
+        assertEquals(2, second.size());
+    }
+}
@@ -0,0 +1,53 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ApkSigningBlockTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] certificate1 = ZipFixtures.content(11, 700);
+    private final byte[] certificate2 = ZipFixtures.content(12, 650);
+
+    private File createApk() throws Exception {
+        return ZipFixtures.createZip(folder.newFile("app.apk"), null,
+                "AndroidManifest.xml", ZipFixtures.content(1, 100), "classes.dex", ZipFixtures.content(2, 1000));
+    }
+
+    @Test
+    public void v2Block_certificatesOfAllSigners() throws Exception {
+        File file = createApk();
+        ZipFixtures.insertSigningBlock(file, ApkSigningBlock.SIGNATURE_SCHEME_V2_BLOCK_ID, certificate1, certificate2);
+
+        ApkIndex index = ApkIndex.read(file);
+        assertEquals(2, index.size()); // zip still valid
+        ApkSigningBlock block = ApkSigningBlock.read(index);
+        assertEquals(2, block.getSchemeVersion());
+        assertEquals(2, block.getCertificates().length);
+        assertArrayEquals(certificate1, block.getCertificates()[0]);
+        assertArrayEquals(certificate2, block.getCertificates()[1]);
+        assertTrue(new ValidationPolicyEncoder().setSignatures(SignatureFingerprints.md5(certificate2)).build().containsSignature(block.getCertificates()[1]));
+    }
+
+    @Test
+    public void v3Block_certificate() throws Exception {
+        File file = createApk();
+        ZipFixtures.insertSigningBlock(file, ApkSigningBlock.SIGNATURE_SCHEME_V3_BLOCK_ID, certificate1);
+
+        ApkSigningBlock block = ApkSigningBlock.read(ApkIndex.read(file));
+        assertEquals(3, block.getSchemeVersion());
+        assertArrayEquals(certificate1, block.getCertificates()[0]);
+    }
+
+    @Test
+    public void noBlock_null() throws Exception {
+        assertNull(ApkSigningBlock.read(ApkIndex.read(createApk())));
+    }
+}
@@ -0,0 +1,53 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class DexDigesterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] dex1 = ZipFixtures.content(1, 300 * 1024);
+    private final byte[] dex2 = ZipFixtures.content(2, 5000);
+    private final byte[] dex3 = ZipFixtures.content(3, 0);
+
+    @Test
+    public void deflatedDex_digestOfConcatenatedContent() throws Exception {
+        File file = ZipFixtures.createZip(folder.newFile("deflated.apk"), null,
+                "classes2.dex", dex2, "classes.dex", dex1, "resources.arsc", ZipFixtures.content(4, 100), "classes3.dex", dex3);
+        assertEquals(Hex.toHex(ZipFixtures.sha256(dex1, dex2, dex3)), DexDigester.digest(ApkIndex.read(file)));
+    }
+
+    @Test
+    public void storedDex_digestOfConcatenatedContent() throws Exception {
+        File file = ZipFixtures.createStoredZip(folder.newFile("stored.apk"),
+                "classes.dex", dex1, "classes2.dex", dex2, "classes3.dex", dex3);
+        assertEquals(Hex.toHex(ZipFixtures.sha256(dex1, dex2, dex3)), DexDigester.digest(ApkIndex.read(file)));
+    }
+
+    @Test
+    public void stepByStep_sameDigestWithinBudget() throws Exception {
+        File file = ZipFixtures.createZip(folder.newFile("steps.apk"), null, "classes.dex", dex1, "classes2.dex", dex2);
+        DexDigester digester = new DexDigester(ApkIndex.read(file));
+        try {
+            int steps = 0;
+            long hashed = 0;
+            while (!digester.step(16 * 1024)) {
+                assertTrue(digester.getBytesHashed() - hashed <= 16 * 1024);
+                hashed = digester.getBytesHashed();
+                steps++;
+            }
+            assertTrue(steps > 10);
+            assertEquals(dex1.length + dex2.length, digester.getBytesHashed());
+            assertEquals(Hex.toHex(ZipFixtures.sha256(dex1, dex2)), digester.getDigestHex());
+        } finally {
+            digester.close();
+        }
+    }
+}
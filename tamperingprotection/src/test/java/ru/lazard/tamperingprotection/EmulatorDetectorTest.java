@@ -0,0 +1,67 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check {@link EmulatorDetector} with default and own rules.
+ */
+public class EmulatorDetectorTest {
+
+    private static final String[] NEXUS_5 = {"hammerhead", "LGE", "google", "hammerhead", "Nexus 5", "hammerhead",
+            "google/hammerhead/hammerhead:6.0.1/M4B30Z/3437181:user/release-keys"};
+    private static final String[] SDK_X86 = {"sdk_x86", "unknown", "generic_x86", "generic_x86", "Android SDK built for x86", "goldfish",
+            "generic_x86/sdk_x86/generic_x86:7.0/NYC/3300117:userdebug/test-keys"};
+    private static final String[] GENYMOTION = {"vbox86p", "Genymotion", "generic", "vbox86p", "Samsung Galaxy S6", "vbox86",
+            "generic/vbox86p/vbox86p:6.0/MRA58K/genymotion08250738:userdebug/test-keys"};
+    private static final String[] RANCHU = {"sdk_gphone64_x86_64", "Google", "google", "emu64xa", "sdk_gphone64_x86_64", "ranchu",
+            "google/sdk_gphone64_x86_64/emu64xa:14/UE1A.230829.036/10747906:userdebug/dev-keys"};
+
+    @Test
+    public void defaultRules_detectEmulators() {
+        EmulatorDetector detector = EmulatorDetector.getDefault();
+        assertFalse(detector.evaluate(NEXUS_5).isEmulator());
+        assertEquals(0, detector.evaluate(NEXUS_5).getScore());
+        assertTrue(detector.evaluate(SDK_X86).isEmulator());
+        assertEquals(7, detector.evaluate(SDK_X86).getScore());
+        assertTrue(detector.evaluate(GENYMOTION).isEmulator());
+        assertTrue(detector.evaluate(RANCHU).isEmulator());
+    }
+
+    @Test
+    public void scoreBreakdown_perProperty() {
+        EmulatorDetector.Result result = EmulatorDetector.getDefault().evaluate(GENYMOTION);
+        assertEquals(1, result.getPropertyScore(EnvironmentProbe.PROPERTY_PRODUCT));
+        assertEquals(0, result.getPropertyScore(EnvironmentProbe.PROPERTY_MODEL));
+        assertEquals(result.getScore(), result.getMatchedRules().size());
+        assertEquals("PRODUCT equals 1 vbox86p", result.getMatchedRules().get(0).toString());
+    }
+
+    @Test
+    public void manyMatchesInOneProperty_countedOnce() {
+        EmulatorDetector detector = EmulatorDetector.parse(3,
+                "# own rules",
+                "FINGERPRINT contains 1 generic",
+                "FINGERPRINT contains 2 sdk",
+                "MODEL equals 1 Emulator X");
+        String[] properties = {"", "", "", "", "Emulator X", "", "generic/sdk/generic"};
+        EmulatorDetector.Result result = detector.evaluate(properties);
+        assertEquals(2, result.getPropertyScore(EnvironmentProbe.PROPERTY_FINGERPRINT));
+        assertEquals(3, result.getScore());
+        assertTrue(result.isEmulator());
+    }
+
+    @Test
+    public void sameProperties_resultReused() {
+        EmulatorDetector detector = EmulatorDetector.parse(1, "HARDWARE equals 1 goldfish");
+        EmulatorDetector.Result first = detector.evaluate(SDK_X86);
+        assertSame(first, detector.evaluate(SDK_X86.clone()));
+        assertNotSame(first, detector.evaluate(NEXUS_5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badRule_rejected() {
+        EmulatorDetector.parse(1, "SERIAL equals 1 emulator");
+    }
+}
@@ -0,0 +1,76 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class IncrementalApkVerifierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File createApk(String name, int seed) throws Exception {
+        return ZipFixtures.createZip(folder.newFile(name), null,
+                "AndroidManifest.xml", ZipFixtures.content(seed, 2000),
+                "classes.dex", ZipFixtures.content(seed + 1, 200 * 1024),
+                "lib/arm64-v8a/libnative.so", ZipFixtures.content(seed + 2, 100 * 1024),
+                "res/", new byte[0],
+                "resources.arsc", ZipFixtures.content(seed + 3, 30 * 1024));
+    }
+
+    @Test
+    public void smallSteps_sameRootAsFullDigest() throws Exception {
+        ApkIndex index = ApkIndex.read(createApk("app.apk", 1));
+        String expected = ApkContentDigest.digest(index, 1).getRootHex();
+
+        IncrementalApkVerifier verifier = new IncrementalApkVerifier(index, 0);
+        int steps = 0;
+        while (!verifier.step(10 * 1024, 2)) {
+            steps++;
+        }
+        assertTrue(steps > 20);
+        assertEquals(expected, verifier.getRootHex());
+        assertTrue(verifier.isValid(expected));
+    }
+
+    @Test
+    public void restoredState_continuesToSameRoot() throws Exception {
+        ApkIndex index = ApkIndex.read(createApk("app.apk", 1));
+        String expected = ApkContentDigest.digest(index, 1).getRootHex();
+        File stateFile = new File(folder.getRoot(), "state");
+
+        IncrementalApkVerifier first = new IncrementalApkVerifier(index, 42);
+        while (first.getVerifiedEntries() < 2) {
+            first.step(50 * 1024, 1);
+        }
+        first.step(1024, 1); // inside of next entry, not saved
+        first.save(stateFile);
+        first.close();
+
+        IncrementalApkVerifier second = new IncrementalApkVerifier(index, 42);
+        assertTrue(second.load(stateFile));
+        assertEquals(2, second.getVerifiedEntries());
+        while (!second.step(Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            // until complete
+        }
+        assertEquals(expected, second.getRootHex());
+    }
+
+    @Test
+    public void savedStateOfOtherApk_isRejected() throws Exception {
+        ApkIndex index = ApkIndex.read(createApk("app.apk", 1));
+        IncrementalApkVerifier verifier = new IncrementalApkVerifier(index, 1);
+        verifier.step(1024 * 1024, 2);
+        byte[] state = verifier.saveState();
+
+        assertFalse(new IncrementalApkVerifier(index, 2).restoreState(state)); // lastUpdateTime changed
+        assertFalse(new IncrementalApkVerifier(ApkIndex.read(createApk("other.apk", 5)), 1).restoreState(state));
+
+        state[state.length / 2] ^= 1;
+        assertFalse(new IncrementalApkVerifier(index, 1).restoreState(state)); // torn or broken state
+    }
+}
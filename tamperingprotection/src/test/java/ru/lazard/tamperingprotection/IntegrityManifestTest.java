@@ -0,0 +1,249 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check encoding of {@link IntegrityManifest} and verification of apk by {@link IntegrityVerifier}.
+ */
+public class IntegrityManifestTest {
+
+    private static final byte[] CERTIFICATE = {1, 2, 3, 4};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void packagedManifest_validApkPasses() throws Exception {
+        File apk = createApk(ZipFixtures.content(2, 1000));
+        IntegrityManifest manifest = IntegrityManifest.read(ApkIndex.read(apk));
+        assertNotNull(manifest);
+        assertEquals(5, manifest.getEntryCount()); // META-INF and manifest itself are not covered
+        assertTrue(manifest.isSigner(CERTIFICATE));
+        assertFalse(manifest.isSigner(new byte[]{1, 2, 3}));
+
+        IntegrityVerifier.Result full = new IntegrityVerifier(manifest, ApkIndex.read(apk)).verify(Integer.MAX_VALUE, new SecureRandom());
+        assertTrue(full.toString(), full.isValid());
+        assertEquals(5, full.getSampledEntries());
+        IntegrityVerifier.Result sampled = new IntegrityVerifier(manifest, ApkIndex.read(apk)).verify(2, new SecureRandom());
+        assertTrue(sampled.isValid());
+        assertEquals(2, sampled.getSampledEntries());
+    }
+
+    @Test
+    public void modifiedEntry_detectedWhenSampled() throws Exception {
+        File original = createApk(ZipFixtures.content(2, 1000));
+        byte[] manifest = IntegrityManifest.read(ApkIndex.read(original)).toByteArray();
+        File patched = ZipFixtures.createZip(folder.newFile("patched.apk"), null,
+                "classes.dex", ZipFixtures.content(1, 5000),
+                "res/layout/main.xml", ZipFixtures.content(9, 1000),
+                "res/drawable/icon.png", ZipFixtures.content(3, 2000),
+                "lib/armeabi-v7a/libmain.so", ZipFixtures.content(4, 3000),
+                "resources.arsc", ZipFixtures.content(5, 700),
+                "META-INF/CERT.RSA", ZipFixtures.content(6, 10),
+                IntegrityManifest.ENTRY_NAME, manifest);
+        IntegrityManifest loaded = IntegrityManifest.load(manifest);
+
+        // names and count are same, so modification is found only by content of sampled entry
+        assertTrue(new IntegrityVerifier(loaded, ApkIndex.read(patched)).verify(0, new SecureRandom()).isValid());
+        IntegrityVerifier.Result result = new IntegrityVerifier(loaded, ApkIndex.read(patched)).verify(Integer.MAX_VALUE, new SecureRandom());
+        assertFalse(result.isValid());
+        assertTrue(result.getFailure(), result.getFailure().contains("res/layout/main.xml"));
+
+        int detected = 0;
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            if (!new IntegrityVerifier(loaded, ApkIndex.read(patched)).verify(1, random).isValid()) detected++;
+        }
+        assertTrue("detected=" + detected, detected > 100 && detected < 300); // probability 1/5 per launch
+    }
+
+    @Test
+    public void addedOrRemovedEntry_alwaysDetected() throws Exception {
+        File original = createApk(ZipFixtures.content(2, 1000));
+        byte[] manifest = IntegrityManifest.read(ApkIndex.read(original)).toByteArray();
+        IntegrityManifest loaded = IntegrityManifest.load(manifest);
+
+        File added = ZipFixtures.createZip(folder.newFile("added.apk"), null,
+                "classes.dex", ZipFixtures.content(1, 5000),
+                "classes2.dex", ZipFixtures.content(7, 5000),
+                "res/layout/main.xml", ZipFixtures.content(2, 1000),
+                "res/drawable/icon.png", ZipFixtures.content(3, 2000),
+                "lib/armeabi-v7a/libmain.so", ZipFixtures.content(4, 3000),
+                "resources.arsc", ZipFixtures.content(5, 700),
+                IntegrityManifest.ENTRY_NAME, manifest);
+        IntegrityVerifier.Result result = new IntegrityVerifier(loaded, ApkIndex.read(added)).verify(0, new SecureRandom());
+        assertFalse(result.isValid());
+        assertTrue(result.getFailure(), result.getFailure().contains("classes2.dex"));
+
+        File removed = ZipFixtures.createZip(folder.newFile("removed.apk"), null,
+                "classes.dex", ZipFixtures.content(1, 5000),
+                "res/layout/main.xml", ZipFixtures.content(2, 1000),
+                "resources.arsc", ZipFixtures.content(5, 700),
+                IntegrityManifest.ENTRY_NAME, manifest);
+        assertFalse(new IntegrityVerifier(loaded, ApkIndex.read(removed)).verify(0, new SecureRandom()).isValid());
+    }
+
+    @Test
+    public void manifest_compactAndWithoutNames() throws Exception {
+        IntegrityManifestEncoder encoder = new IntegrityManifestEncoder(0).setSignerCertificate(CERTIFICATE);
+        for (int i = 0; i < 1000; i++) {
+            encoder.addEntry("res/drawable/icon" + i + ".png", new ByteArrayInputStream(ZipFixtures.content(i, 10)));
+        }
+        byte[] first = encoder.encode();
+        byte[] second = encoder.encode();
+        assertEquals(IntegrityManifest.HEADER_SIZE + 1000 * IntegrityManifest.ENTRY_SIZE + 4, first.length);
+        assertFalse(new String(first, "ISO-8859-1").contains("icon"));
+        assertFalse(Arrays.equals(first, second)); // new salt on each build
+        assertEquals(1000, IntegrityManifest.load(second).getEntryCount());
+
+        first[IntegrityManifest.HEADER_SIZE] ^= 1;
+        try {
+            IntegrityManifest.load(first);
+            fail("Broken manifest loaded");
+        } catch (IllegalArgumentException expected) {
+            // bad CRC32
+        }
+        try {
+            encoder.addEntry("META-INF/MANIFEST.MF", new ByteArrayInputStream(new byte[0]));
+            fail("Not covered entry added");
+        } catch (IllegalArgumentException expected) {
+            // signature files are changed by signing
+        }
+    }
+
+    @Test
+    public void chunks_modifiedRangeOfBigEntryDetected() throws Exception {
+        byte[] dex = ZipFixtures.content(1, 100 * 1024);
+        byte[] library = ZipFixtures.content(4, 50 * 1024);
+        File original = ZipFixtures.createZip(folder.newFile(), null, "classes.dex", dex, "lib/x86/libmain.so", library, "empty.txt", new byte[0]);
+        IntegrityManifest manifest = new IntegrityManifestEncoder(1024).addApk(ApkIndex.read(original)).build();
+        assertTrue(manifest.hasChunks());
+        assertEquals(150, manifest.getChunkCount());
+        assertEquals(3, manifest.getEntryCount());
+
+        SamplingPlan all = SamplingPlan.forSampleSize(manifest, ApkIndex.read(original), SamplingPlan.UNIT_CHUNKS, Integer.MAX_VALUE);
+        IntegrityVerifier.Result valid = new IntegrityVerifier(manifest, ApkIndex.read(original)).verify(all, new SecureRandom());
+        assertTrue(valid.toString(), valid.isValid());
+        assertEquals(150, valid.getSampledEntries());
+        assertEquals(dex.length + library.length, valid.getBytesHashed());
+
+        // same size, one byte changed in last chunk of dex (deflated) and in middle of stored library
+        byte[] patchedDex = dex.clone();
+        patchedDex[dex.length - 1] ^= 1;
+        byte[] patchedLibrary = library.clone();
+        patchedLibrary[25 * 1024 + 7] ^= 1;
+        File patched = folder.newFile();
+        ZipFixtures.createZip(patched, null, "classes.dex", patchedDex, "lib/x86/libmain.so", library, "empty.txt", new byte[0]);
+        IntegrityVerifier.Result result = new IntegrityVerifier(manifest, ApkIndex.read(patched)).verify(all, new SecureRandom());
+        assertFalse(result.isValid());
+        assertTrue(result.getFailure(), result.getFailure().contains("classes.dex") && result.getFailure().contains("bytes from " + 99 * 1024));
+        ZipFixtures.createStoredZip(patched, "classes.dex", dex, "lib/x86/libmain.so", patchedLibrary, "empty.txt", new byte[0]);
+        result = new IntegrityVerifier(manifest, ApkIndex.read(patched)).verify(all, new SecureRandom());
+        assertTrue(result.getFailure(), result.getFailure().contains("lib/x86/libmain.so") && result.getFailure().contains("bytes from " + 25 * 1024));
+
+        // one chunk of 150 per launch
+        SamplingPlan one = SamplingPlan.forSampleSize(manifest, ApkIndex.read(patched), SamplingPlan.UNIT_CHUNKS, 1);
+        int detected = 0;
+        Random random = new Random(42);
+        for (int i = 0; i < 3000; i++) {
+            if (!new IntegrityVerifier(manifest, ApkIndex.read(patched)).verify(one, random).isValid()) detected++;
+        }
+        assertTrue("detected=" + detected, detected > 5 && detected < 40);
+    }
+
+    @Test
+    public void verifiedUnits_notSampledAgain() throws Exception {
+        byte[] dex = ZipFixtures.content(1, 100 * 1024);
+        File original = ZipFixtures.createZip(folder.newFile(), null, "classes.dex", dex, "res/raw/a", ZipFixtures.content(2, 3000),
+                "res/raw/b", ZipFixtures.content(3, 2000), "res/raw/c", ZipFixtures.content(4, 1000));
+        IntegrityManifest manifest = new IntegrityManifestEncoder(1024).addApk(ApkIndex.read(original)).build();
+        assertEquals(106, manifest.getChunkCount());
+
+        for (int unit : new int[]{SamplingPlan.UNIT_ENTRIES, SamplingPlan.UNIT_CHUNKS}) {
+            SamplingPlan plan = SamplingPlan.forSampleSize(manifest, ApkIndex.read(original), unit, unit == SamplingPlan.UNIT_CHUNKS ? 40 : 3);
+            BitSet verified = new BitSet();
+            for (int launch = 1; verified.cardinality() < plan.getUnitCount(); launch++) {
+                IntegrityVerifier.Result result = new IntegrityVerifier(manifest, ApkIndex.read(original)).verify(plan, new SecureRandom(), verified);
+                assertTrue(result.toString(), result.isValid());
+                assertEquals(Math.min(plan.getSampleSize() * launch, plan.getUnitCount()), verified.cardinality()); // new units on each launch
+            }
+            IntegrityVerifier.Result result = new IntegrityVerifier(manifest, ApkIndex.read(original)).verify(plan, new SecureRandom(), verified);
+            assertEquals(0, result.getSampledEntries());
+        }
+
+        // one chunk per launch: modified chunk is found in at most 106 launches
+        byte[] patchedDex = dex.clone();
+        patchedDex[50 * 1024] ^= 1;
+        File patched = ZipFixtures.createZip(folder.newFile(), null, "classes.dex", patchedDex, "res/raw/a", ZipFixtures.content(2, 3000),
+                "res/raw/b", ZipFixtures.content(3, 2000), "res/raw/c", ZipFixtures.content(4, 1000));
+        SamplingPlan one = SamplingPlan.forSampleSize(manifest, ApkIndex.read(patched), SamplingPlan.UNIT_CHUNKS, 1);
+        Random random = new Random(42);
+        for (int attempt = 0; attempt < 20; attempt++) {
+            BitSet verified = new BitSet();
+            int launches = 1;
+            while (new IntegrityVerifier(manifest, ApkIndex.read(patched)).verify(one, random, verified).isValid()) {
+                launches++;
+            }
+            assertTrue("launches=" + launches, launches <= 106);
+        }
+    }
+
+    @Test
+    public void chunks_changedSizeAlwaysDetected() throws Exception {
+        File original = ZipFixtures.createZip(folder.newFile(), null, "classes.dex", ZipFixtures.content(1, 10000));
+        IntegrityManifest manifest = IntegrityManifest.load(new IntegrityManifestEncoder(1024).addApk(ApkIndex.read(original)).encode());
+        File patched = ZipFixtures.createZip(folder.newFile(), null, "classes.dex", ZipFixtures.content(1, 10001));
+        IntegrityVerifier.Result result = new IntegrityVerifier(manifest, ApkIndex.read(patched)).verify(0, new SecureRandom());
+        assertFalse(result.isValid());
+        assertTrue(result.getFailure(), result.getFailure().startsWith("Size of entry changed"));
+    }
+
+    @Test
+    public void validation_usesManifestAndSigner() throws Exception {
+        File apk = createApk(ZipFixtures.content(2, 1000));
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(apk.getPath());
+        probe.setSignatureCertificates(CERTIFICATE);
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setIntegrityManifest(IntegrityManifest.read(ApkIndex.read(apk)), Integer.MAX_VALUE);
+        protection.validateAllOrThrowException();
+
+        probe.setSignatureCertificates(new byte[]{9, 9});
+        try {
+            protection.validateAllOrThrowException();
+            fail("Resigned apk passed");
+        } catch (TamperingProtection.ValidationException exception) {
+            assertEquals(TamperingProtection.ValidationException.ERROR_CODE_INTEGRITY_NOT_VALID, exception.getErrorCode());
+        }
+    }
+
+    /**
+     * Build apk, make manifest of it and package manifest (as plugin does before packaging).
+     */
+    private File createApk(byte[] layout) throws Exception {
+        Object[] entries = {
+                "classes.dex", ZipFixtures.content(1, 5000),
+                "res/layout/main.xml", layout,
+                "res/drawable/icon.png", ZipFixtures.content(3, 2000),
+                "lib/armeabi-v7a/libmain.so", ZipFixtures.content(4, 3000),
+                "resources.arsc", ZipFixtures.content(5, 700),
+                "META-INF/CERT.RSA", ZipFixtures.content(6, 10)};
+        File unpackaged = ZipFixtures.createZip(folder.newFile(), null, entries);
+        byte[] manifest = new IntegrityManifestEncoder().addApk(ApkIndex.read(unpackaged)).setSignerCertificate(CERTIFICATE).encode();
+        Object[] withManifest = new Object[entries.length + 2];
+        System.arraycopy(entries, 0, withManifest, 0, entries.length);
+        withManifest[entries.length] = IntegrityManifest.ENTRY_NAME;
+        withManifest[entries.length + 1] = manifest;
+        return ZipFixtures.createZip(folder.newFile(), null, withManifest);
+    }
+}
@@ -0,0 +1,78 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check {@link MultiPatternMatcher} against naive search.
+ */
+public class MultiPatternMatcherTest {
+
+    private static byte[] bytes(String string) throws Exception {
+        return string.getBytes("UTF-8");
+    }
+
+    private static boolean contains(byte[] text, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= text.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (text[i + j] != pattern[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void overlappingPatterns_allFound() throws Exception {
+        MultiPatternMatcher matcher = MultiPatternMatcher.compile(bytes("he"), bytes("she"), bytes("his"), bytes("hers"), bytes("xyz"));
+        boolean[] found = matcher.find(bytes("ushers"));
+        assertTrue(found[0]);
+        assertTrue(found[1]);
+        assertFalse(found[2]);
+        assertTrue(found[3]);
+        assertFalse(found[4]);
+    }
+
+    @Test
+    public void streamingScan_findsPatternAcrossParts() throws Exception {
+        MultiPatternMatcher matcher = MultiPatternMatcher.compile(bytes("generic/sdk/generic"));
+        byte[] text = bytes("google/generic/sdk/generic:4.4/KK");
+        boolean[] found = new boolean[1];
+        int state = MultiPatternMatcher.INITIAL_STATE;
+        for (int i = 0; i < text.length; i += 3) {
+            state = matcher.scan(state, text, i, Math.min(3, text.length - i), found);
+        }
+        assertTrue(found[0]);
+    }
+
+    @Test
+    public void randomPatterns_sameAsNaiveSearch() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            byte[][] patterns = new byte[1 + random.nextInt(20)][];
+            for (int i = 0; i < patterns.length; i++) {
+                patterns[i] = new byte[1 + random.nextInt(5)];
+                for (int j = 0; j < patterns[i].length; j++) {
+                    patterns[i][j] = (byte) ('a' + random.nextInt(4)); // small alphabet: many overlaps
+                }
+            }
+            byte[] text = new byte[random.nextInt(100)];
+            for (int j = 0; j < text.length; j++) {
+                text[j] = (byte) (random.nextInt(8) == 0 ? 0xFF : 'a' + random.nextInt(5));
+            }
+            boolean[] found = MultiPatternMatcher.compile(patterns).find(text);
+            for (int i = 0; i < patterns.length; i++) {
+                assertEquals(contains(text, patterns[i]), found[i]);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPattern_rejected() {
+        MultiPatternMatcher.compile(new byte[0]);
+    }
+}
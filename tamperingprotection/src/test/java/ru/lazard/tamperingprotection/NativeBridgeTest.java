@@ -0,0 +1,203 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that native backend gives same results as java code (central directory, SHA-256, procfs scanning).<br>
+ * Tests are skipped if library is not built: <code>make -C tamperingprotection/src/main/jni OUT=/tmp/native</code>,
+ * then run tests with <code>-Dtp.native.lib=/tmp/native/libtamperingprotection.so</code>.
+ */
+public class NativeBridgeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("Native library is not loaded: " + NativeBridge.getLoadError(), NativeBridge.isLoaded());
+    }
+
+    @After
+    public void tearDown() {
+        NativeBridge.setEnabled(true);
+        NativeBridge.setHardwareSha(true);
+    }
+
+    @Test
+    public void sha256_sameAsJava() throws Exception {
+        byte[] content = ZipFixtures.content(7, 3 * 1024 * 1024 + 17);
+        File file = write(folder.newFile("content.bin"), content);
+        int[][] regions = {{0, 0}, {0, 1}, {1, 55}, {3, 56}, {0, 63}, {5, 64}, {4095, 65}, {4097, 1000}, {0, content.length}, {1, content.length - 1}};
+        for (boolean isHardware : new boolean[]{true, false}) {
+            NativeBridge.setHardwareSha(isHardware);
+            for (int[] region : regions) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(content, region[0], region[1]);
+                assertArrayEquals(NativeBridge.getShaBackend() + " " + Arrays.toString(region),
+                        digest.digest(), NativeBridge.sha256(file.getPath(), region[0], region[1]));
+            }
+        }
+        try {
+            NativeBridge.sha256(file.getPath(), 10, content.length);
+            fail("Region out of file hashed");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void centralDirectory_sameAsJava() throws Exception {
+        File file = ZipFixtures.createZip(folder.newFile("app.apk"), "apk comment",
+                "AndroidManifest.xml", ZipFixtures.content(1, 1200),
+                "classes.dex", ZipFixtures.content(2, 5000),
+                "classes2.dex", ZipFixtures.content(3, 300),
+                "res/drawable/\u0438\u043a\u043e\u043d\u043a\u0430.png", ZipFixtures.content(4, 700), // not ASCII name
+                "lib/x86_64/libnative.so", ZipFixtures.content(5, 100 * 1024));
+        assertSameIndex(file);
+        assertSameIndex(ZipFixtures.createZip(folder.newFile("empty.apk"), null));
+
+        // zip64 end of central directory: more than 0xFFFF entries
+        File zip64 = folder.newFile("zip64.apk");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip64));
+        for (int i = 0; i < 0x10000 + 10; i++) {
+            out.putNextEntry(new ZipEntry("res/raw/" + i));
+            out.closeEntry();
+        }
+        out.close();
+        assertEquals(0x10000 + 10, assertSameIndex(zip64).size());
+    }
+
+    @Test
+    public void brokenZip_sameErrorAsJava() throws Exception {
+        byte[] zip = ZipFixtures.readAll(ZipFixtures.createZip(folder.newFile("app.apk"), null,
+                "classes.dex", ZipFixtures.content(2, 5000), "resources.arsc", ZipFixtures.content(4, 64)));
+        ApkIndex index = ApkIndex.read(write(folder.newFile("index.apk"), zip));
+        int cdOffset = (int) index.getCentralDirectoryOffset();
+
+        assertSameError(write(folder.newFile("short.apk"), new byte[10]));
+        assertSameError(write(folder.newFile("garbage.apk"), ZipFixtures.content(9, 1000)));
+        byte[] badHeader = zip.clone();
+        badHeader[cdOffset] = 0;
+        assertSameError(write(folder.newFile("header.apk"), badHeader));
+        byte[] badOffset = zip.clone();
+        badOffset[cdOffset + 42 + 3] = 0x7F; // local header offset of first entry is after central directory
+        assertSameError(write(folder.newFile("offset.apk"), badOffset));
+        byte[] badCount = zip.clone();
+        badCount[(int) index.getEocdOffset() + 10] = 100; // 100 entries can't fit into central directory
+        assertSameError(write(folder.newFile("count.apk"), badCount));
+
+        File missing = new File(folder.getRoot(), "missing.apk");
+        for (boolean isNative : new boolean[]{true, false}) {
+            NativeBridge.setEnabled(isNative);
+            try {
+                ApkIndex.read(missing);
+                fail("Missing file read");
+            } catch (FileNotFoundException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void scan_sameAsJava() throws Exception {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 64 * 1024 - 6) content.append("0000-1000 r--p 00000000 00:00 0 /system/lib/libm.so\n");
+        content.setLength(64 * 1024 - 6); // signature is split between first and second read of native buffer
+        content.append("/data/app/libsubstrate.so\n");
+        while (content.length() < 200 * 1024) content.append("0000-1000 r--p 00000000 00:00 0 /system/lib/libc.so\n");
+        content.append("7f8b000000-7f8b400000 r-xp 00000000 fd:05 4567 /data/local/tmp/frida-agent-64.so\n");
+        File maps = write(folder.newFile("maps"), content.toString().getBytes("UTF-8"));
+
+        boolean[][] results = new boolean[2][];
+        for (int i = 0; i < 2; i++) {
+            NativeBridge.setEnabled(i == 0);
+            ProcScanner scanner = new ProcScanner(maps, ProcScanner.DEFAULT_HOOK_SIGNATURES);
+            boolean[] found = new boolean[scanner.getSignatureCount()];
+            found[0] = true; // "/frida-agent" found by previous scan is not counted again
+            assertEquals(2, scanner.scan(found)); // "/libsubstrate.so" and "/frida-"
+            assertEquals("/frida-agent, /frida-, /libsubstrate.so", scanner.describe(found));
+            assertEquals(0, scanner.scan(found));
+            scanner.close();
+            results[i] = found;
+        }
+        assertArrayEquals(results[1], results[0]);
+    }
+
+    @Test
+    public void disabled_fallsBackToJava() throws Exception {
+        assertTrue(NativeBridge.isAvailable());
+        assertFalse("java".equals(NativeBridge.getShaBackend()));
+        NativeBridge.setEnabled(false);
+        assertFalse(NativeBridge.isAvailable());
+        assertTrue(NativeBridge.isLoaded());
+        File file = ZipFixtures.createZip(folder.newFile("app.apk"), null, "lib/x86_64/libnative.so", ZipFixtures.content(5, 100 * 1024));
+        assertEquals(1, ApkIndex.read(file).size());
+    }
+
+    private static ApkIndex assertSameIndex(File file) throws Exception {
+        NativeBridge.setEnabled(true);
+        ApkIndex nativeIndex = ApkIndex.read(file);
+        NativeBridge.setEnabled(false);
+        ApkIndex javaIndex = ApkIndex.read(file);
+        NativeBridge.setEnabled(true);
+        assertEquals(javaIndex.size(), nativeIndex.size());
+        assertEquals(javaIndex.getFileLength(), nativeIndex.getFileLength());
+        assertEquals(javaIndex.getCentralDirectoryOffset(), nativeIndex.getCentralDirectoryOffset());
+        assertEquals(javaIndex.getCentralDirectorySize(), nativeIndex.getCentralDirectorySize());
+        assertEquals(javaIndex.getEocdOffset(), nativeIndex.getEocdOffset());
+        assertEquals(javaIndex.getDexCrc(), nativeIndex.getDexCrc());
+        for (int i = 0; i < javaIndex.size(); i++) {
+            assertEquals(javaIndex.getName(i), nativeIndex.getName(i));
+            assertEquals(javaIndex.getCrc(i), nativeIndex.getCrc(i));
+            assertEquals(javaIndex.getMethod(i), nativeIndex.getMethod(i));
+            assertEquals(javaIndex.getCompressedSize(i), nativeIndex.getCompressedSize(i));
+            assertEquals(javaIndex.getSize(i), nativeIndex.getSize(i));
+            assertEquals(javaIndex.getLocalHeaderOffset(i), nativeIndex.getLocalHeaderOffset(i));
+        }
+        return nativeIndex;
+    }
+
+    private static void assertSameError(File file) {
+        String[] messages = new String[2];
+        for (int i = 0; i < 2; i++) {
+            NativeBridge.setEnabled(i == 0);
+            try {
+                ApkIndex.read(file);
+                fail("Broken zip read: " + file.getName());
+            } catch (IOException exception) {
+                assertEquals(ZipException.class, exception.getClass());
+                messages[i] = exception.getMessage();
+            }
+        }
+        assertEquals(messages[1], messages[0]);
+    }
+
+    private static File write(File file, byte[] content) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
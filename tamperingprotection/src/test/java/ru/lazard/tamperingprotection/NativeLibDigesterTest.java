@@ -0,0 +1,141 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check native libraries hashed by {@link NativeLibDigester} in apk and in extracted dir, and native libraries check of protection.
+ */
+public class NativeLibDigesterTest {
+
+    private static final byte[] ARM64_MAIN = ZipFixtures.content(1, 100 * 1024);
+    private static final byte[] ARM64_UTIL = ZipFixtures.content(2, 3000);
+    private static final byte[] ARM_MAIN = ZipFixtures.content(3, 90 * 1024);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void libraries_ofSelectedAbi() throws Exception {
+        ApkIndex index = ApkIndex.read(createApk());
+        assertEquals("arm64-v8a", NativeLibDigester.selectAbi(index, FixtureEnvironmentProbe.DEFAULT_ABIS));
+        assertEquals("armeabi-v7a", NativeLibDigester.selectAbi(index, new String[]{"armeabi-v7a", "armeabi"}));
+        assertNull(NativeLibDigester.selectAbi(index, new String[]{"x86_64", "x86"}));
+
+        int[] entries = NativeLibDigester.getLibraryEntries(index, "arm64-v8a");
+        assertEquals(2, entries.length); // lib/arm64-v8a/sub/libskip.so and lib/arm64-v8a/readme.txt are not libraries
+        assertEquals("lib/arm64-v8a/libmain.so", index.getName(entries[0]));
+        assertEquals("lib/arm64-v8a/libutil.so", index.getName(entries[1]));
+    }
+
+    @Test
+    public void storedLibraries_hashedInApk() throws Exception {
+        ApkIndex index = ApkIndex.read(createApk());
+        NativeLibDigester.Result result = NativeLibDigester.digest(index, "arm64-v8a", null);
+        assertEquals(2, result.getLibraryCount());
+        assertEquals(Hex.toHex(ZipFixtures.sha256(ARM64_MAIN)), result.getDigest(0));
+        assertEquals(Hex.toHex(ZipFixtures.sha256(ARM64_UTIL)), result.getDigest(1));
+        assertEquals(NativeLibDigester.SOURCE_APK_MAPPED, result.getSource(0));
+        assertEquals(ARM64_MAIN.length + ARM64_UTIL.length, result.getBytesHashed());
+    }
+
+    @Test
+    public void extractedLibraries_hashedInDir() throws Exception {
+        ApkIndex index = ApkIndex.read(createApk());
+        File dir = folder.newFolder("lib");
+        write(new File(dir, "libmain.so"), ARM64_MAIN);
+        NativeLibDigester.Result result = NativeLibDigester.digest(index, "arm64-v8a", dir);
+        assertEquals(NativeLibDigester.SOURCE_EXTRACTED, result.getSource(0));
+        assertEquals(NativeLibDigester.SOURCE_APK_MAPPED, result.getSource(1)); // not extracted
+        assertEquals(Hex.toHex(ZipFixtures.sha256(ARM64_MAIN)), result.getDigest(0));
+
+        byte[] patched = ARM64_MAIN.clone();
+        patched[5000] ^= 1;
+        write(new File(dir, "libmain.so"), patched);
+        assertEquals(Hex.toHex(ZipFixtures.sha256(patched)), NativeLibDigester.digest(index, "arm64-v8a", dir).getDigest(0));
+    }
+
+    @Test
+    public void deflatedLibraries_inflated() throws Exception {
+        File apk = ZipFixtures.createZip(folder.newFile(), null, "classes.dex", ZipFixtures.content(9, 100), "lib/x86/libmain.sx", ARM_MAIN);
+        // rename entry to .so in local header and central directory: fixture stores all *.so entries
+        byte[] bytes = ZipFixtures.readAll(apk);
+        String zip = new String(bytes, "ISO-8859-1").replace("lib/x86/libmain.sx", "lib/x86/libmain.so");
+        write(apk, zip.getBytes("ISO-8859-1"));
+        ApkIndex index = ApkIndex.read(apk);
+        NativeLibDigester.Result result = NativeLibDigester.digest(index, "x86", null);
+        assertEquals(NativeLibDigester.SOURCE_APK_INFLATED, result.getSource(0));
+        assertEquals(Hex.toHex(ZipFixtures.sha256(ARM_MAIN)), result.getDigest(0));
+    }
+
+    @Test
+    public void protection_acceptsOnlyKnownLibraries() throws Exception {
+        File apk = createApk();
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(apk.getPath());
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setAcceptedNativeLibDigests(Hex.toHex(ZipFixtures.sha256(ARM64_MAIN)), Hex.toHex(ZipFixtures.sha256(ARM64_UTIL)),
+                Hex.toHex(ZipFixtures.sha256(ARM_MAIN)));
+        protection.validateAllOrThrowException();
+
+        probe.setSupportedAbis("armeabi-v7a");
+        protection.validateAllOrThrowException();
+
+        File dir = folder.newFolder("lib");
+        write(new File(dir, "libmain.so"), ZipFixtures.content(7, 500)); // library replaced after install
+        probe.setNativeLibraryDir(dir.getPath());
+        assertFailure(protection, ValidationException.ERROR_CODE_NATIVE_LIB_NOT_VALID, "lib/armeabi-v7a/libmain.so");
+
+        probe.setNativeLibraryDir(null);
+        probe.setSupportedAbis("x86");
+        assertFailure(protection, ValidationException.ERROR_CODE_NATIVE_LIB_NOT_VALID, "x86");
+
+        protection.setAcceptedNativeLibDigests(Hex.toHex(ZipFixtures.sha256(ARM64_MAIN)));
+        probe.setSupportedAbis(FixtureEnvironmentProbe.DEFAULT_ABIS);
+        assertFailure(protection, ValidationException.ERROR_CODE_NATIVE_LIB_NOT_VALID, "lib/arm64-v8a/libutil.so");
+    }
+
+    @Test
+    public void policy_keepsNativeLibDigests() throws Exception {
+        String digest = Hex.toHex(ZipFixtures.sha256(ARM64_MAIN));
+        ValidationPolicy policy = ValidationPolicyEncoder.parse(new StringReader("dexCrc 1\nnativeLibDigest " + digest.toUpperCase() + "\n")).build();
+        assertEquals(1, policy.getNativeLibDigestCount());
+        assertTrue(policy.containsNativeLibDigest(digest));
+        assertFalse(policy.containsDexDigest(digest));
+        assertEquals(1, new ValidationPolicyEncoder(policy).build().getNativeLibDigestCount());
+    }
+
+    private void assertFailure(TamperingProtection protection, int code, String messagePart) {
+        try {
+            protection.validateAllOrThrowException();
+            fail("Native libraries not checked");
+        } catch (ValidationException exception) {
+            assertEquals(code, exception.getErrorCode());
+            assertTrue(exception.getMessage(), exception.getMessage().contains(messagePart));
+        }
+    }
+
+    private File createApk() throws Exception {
+        return ZipFixtures.createZip(folder.newFile(), null,
+                "classes.dex", ZipFixtures.content(9, 1000),
+                "lib/arm64-v8a/libutil.so", ARM64_UTIL,
+                "lib/arm64-v8a/libmain.so", ARM64_MAIN,
+                "lib/arm64-v8a/sub/libskip.so", ZipFixtures.content(4, 10),
+                "lib/arm64-v8a/readme.txt", ZipFixtures.content(5, 10),
+                "lib/armeabi-v7a/libmain.so", ARM_MAIN);
+    }
+
+    private static void write(File file, byte[] content) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+}
@@ -0,0 +1,226 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check verification record saved by {@link PersistentValidationCache}: reuse after restart, drop on apk change and on broken file.
+ */
+public class PersistentValidationCacheTest {
+
+    private static final String PACKAGE_NAME = "ru.lazard.sample";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File apk;
+    private File record;
+    private byte[] certificate;
+    private AtomicInteger packageManagerCalls;
+    private FixtureEnvironmentProbe probe;
+
+    @Before
+    public void setUp() throws Exception {
+        apk = createApk(ZipFixtures.content(2, 5000));
+        record = new File(folder.getRoot(), PersistentValidationCache.DEFAULT_FILE_NAME);
+        certificate = ZipFixtures.content(9, 800);
+        packageManagerCalls = new AtomicInteger();
+        probe = new FixtureEnvironmentProbe(apk.getPath()) {
+            @Override
+            public byte[][] getSignatureCertificates() throws IOException {
+                packageManagerCalls.incrementAndGet();
+                return super.getSignatureCertificates();
+            }
+        };
+        probe.setPackageName(PACKAGE_NAME);
+        probe.setSignatureCertificates(certificate);
+    }
+
+    @Test
+    public void record_reusedAfterRestart() throws Exception {
+        PersistentValidationCache cache = new PersistentValidationCache(record);
+        String digest = cache.getDexDigest(probe);
+        long crc = cache.getDexCRC(probe);
+        assertEquals(SignatureFingerprints.md5(certificate), cache.getSignatures(probe)[0]);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(3, cache.getWriteCount());
+        assertTrue(record.isFile());
+
+        PersistentValidationCache restarted = new PersistentValidationCache(record); // new process
+        assertEquals(digest, restarted.getDexDigest(probe));
+        assertEquals(crc, restarted.getDexCRC(probe));
+        assertEquals(SignatureFingerprints.md5(certificate), restarted.getSignatures(probe)[0]);
+        assertEquals(3, restarted.getHitCount());
+        assertEquals(0, restarted.getMissCount());
+        assertEquals(0, restarted.getWriteCount());
+        assertEquals(1, packageManagerCalls.get());
+    }
+
+    @Test
+    public void record_droppedWhenApkChanged() throws Exception {
+        PersistentValidationCache cache = new PersistentValidationCache(record);
+        String digest = cache.getDexDigest(probe);
+
+        createApk(ZipFixtures.content(3, 6000)); // app updated
+        PersistentValidationCache restarted = new PersistentValidationCache(record);
+        assertFalse(digest.equals(restarted.getDexDigest(probe)));
+        assertEquals(1, restarted.getRejectedCount());
+        assertEquals(DexDigester.digest(ApkIndex.read(apk)), restarted.getDexDigest(probe));
+    }
+
+    @Test
+    public void brokenRecord_ignored() throws Exception {
+        PersistentValidationCache cache = new PersistentValidationCache(record);
+        cache.getDexDigest(probe);
+        cache.getSignatures(probe);
+        byte[] bytes = ZipFixtures.readAll(record);
+
+        // torn write: only part of record is written
+        for (int length : new int[]{0, 5, bytes.length / 2, bytes.length - 1}) {
+            byte[] torn = new byte[length];
+            System.arraycopy(bytes, 0, torn, 0, length);
+            assertNull(PersistentValidationCache.decode(torn));
+        }
+        byte[] flipped = bytes.clone();
+        flipped[bytes.length / 2] ^= 1;
+        assertNull(PersistentValidationCache.decode(flipped));
+        assertNotNull(PersistentValidationCache.decode(bytes));
+
+        write(record, flipped);
+        PersistentValidationCache restarted = new PersistentValidationCache(record);
+        restarted.getDexDigest(probe);
+        assertEquals(0, restarted.getHitCount());
+        assertEquals(1, restarted.getRejectedCount());
+        assertNotNull(PersistentValidationCache.decode(ZipFixtures.readAll(record))); // replaced by valid record
+    }
+
+    @Test
+    public void integrityVerdict_savedOnlyWhenPassed() throws Exception {
+        IntegrityManifest manifest = new IntegrityManifestEncoder().addApk(ApkIndex.read(apk)).build();
+        PersistentValidationCache cache = new PersistentValidationCache(record);
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setPersistentCache(cache);
+        protection.setIntegrityManifest(manifest);
+        protection.validateAllOrThrowException();
+        assertEquals(1, cache.getMissCount());
+
+        PersistentValidationCache restarted = new PersistentValidationCache(record);
+        protection.setPersistentCache(restarted);
+        protection.validateAllOrThrowException();
+        assertEquals(1, restarted.getHitCount());
+
+        IntegrityManifest other = new IntegrityManifestEncoder().addApk(ApkIndex.read(ZipFixtures.createZip(folder.newFile(), null,
+                "AndroidManifest.xml", ZipFixtures.content(1, 1200), "classes.dex", ZipFixtures.content(4, 5000)))).build();
+        protection.setIntegrityManifest(other);
+        assertFalse(protection.validateAll());
+        assertFalse(protection.validateAll());
+        assertEquals(1, restarted.getHitCount()); // failed verdict is not saved
+    }
+
+    @Test
+    public void integritySample_nextLaunchSamplesOtherUnits() throws Exception {
+        Object[] entries = new Object[20];
+        for (int i = 0; i < 10; i++) {
+            entries[2 * i] = "res/raw/file" + i;
+            entries[2 * i + 1] = ZipFixtures.content(i, 500 + i * 100);
+        }
+        ZipFixtures.createZip(apk, null, entries);
+        IntegrityManifest manifest = new IntegrityManifestEncoder().addApk(ApkIndex.read(apk)).build();
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setIntegrityManifest(manifest, 3); // 3 of 10 entries per launch
+
+        int[] verified = {3, 6, 9};
+        for (int launch = 0; launch < verified.length; launch++) {
+            PersistentValidationCache restarted = new PersistentValidationCache(record); // new process
+            protection.setPersistentCache(restarted);
+            protection.validateAllOrThrowException();
+            PersistentValidationCache.Record saved = PersistentValidationCache.decode(ZipFixtures.readAll(record));
+            assertTrue(saved.verdicts.isEmpty()); // partial sample is not saved as verdict
+            assertEquals(1, saved.verifiedUnits.size());
+            assertEquals(verified[launch], saved.verifiedUnits.values().iterator().next().cardinality()); // other entries sampled
+        }
+
+        PersistentValidationCache restarted = new PersistentValidationCache(record);
+        protection.setPersistentCache(restarted);
+        protection.validateAllOrThrowException(); // last entry
+        PersistentValidationCache.Record saved = PersistentValidationCache.decode(ZipFixtures.readAll(record));
+        assertEquals(1, saved.verdicts.size());
+        assertTrue(saved.verifiedUnits.isEmpty());
+
+        restarted = new PersistentValidationCache(record);
+        protection.setPersistentCache(restarted);
+        protection.validateAllOrThrowException();
+        assertEquals(1, restarted.getHitCount()); // all entries verified: verdict reused
+    }
+
+    @Test
+    public void coldStart_oneWritePerValidation() throws Exception {
+        IntegrityManifest manifest = new IntegrityManifestEncoder().addApk(ApkIndex.read(apk)).build();
+        PersistentValidationCache cache = new PersistentValidationCache(record);
+        protection(cache, manifest).validateAllOrThrowException();
+        assertEquals(1, cache.getWriteCount()); // signatures, dex CRC, dex digest and integrity verdict
+        assertEquals(0, cache.getWriteErrorCount());
+
+        PersistentValidationCache restarted = new PersistentValidationCache(record);
+        protection(restarted, manifest).validateAllOrThrowException();
+        assertEquals(0, restarted.getMissCount());
+        assertEquals(0, restarted.getWriteCount());
+    }
+
+    @Test
+    public void failedWrite_validationStillPasses() throws Exception {
+        File readOnly = new File(new File(folder.getRoot(), "missing"), PersistentValidationCache.DEFAULT_FILE_NAME); // dir can't be written
+        PersistentValidationCache cache = new PersistentValidationCache(readOnly);
+        TamperingProtection protection = protection(cache, new IntegrityManifestEncoder().addApk(ApkIndex.read(apk)).build());
+        protection.validateAllOrThrowException();
+        assertEquals(0, cache.getWriteCount());
+        assertEquals(1, cache.getWriteErrorCount());
+        assertEquals(DexDigester.digest(ApkIndex.read(apk)), cache.getDexDigest(probe)); // kept in memory
+        assertEquals(1, cache.getHitCount());
+        protection.validateAllOrThrowException();
+        assertEquals(2, cache.getWriteErrorCount()); // not saved record is written again after next validation
+    }
+
+    private TamperingProtection protection(PersistentValidationCache cache, IntegrityManifest manifest) throws Exception {
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setPersistentCache(cache);
+        protection.setAcceptedSignatures(SignatureFingerprints.md5(certificate));
+        protection.setAcceptedDexCrcs(ApkIndex.read(apk).getDexCrc());
+        protection.setAcceptedDexDigests(DexDigester.digest(ApkIndex.read(apk)));
+        protection.setIntegrityManifest(manifest);
+        return protection;
+    }
+
+    @Test
+    public void invalidate_deletesRecord() throws Exception {
+        PersistentValidationCache cache = new PersistentValidationCache(record);
+        cache.getDexCRC(probe);
+        cache.invalidate();
+        assertFalse(record.exists());
+        cache.getDexCRC(probe);
+        assertEquals(0, cache.getHitCount());
+        assertTrue(record.exists());
+    }
+
+    private File createApk(byte[] dex) throws Exception {
+        File file = apk != null ? apk : new File(folder.getRoot(), "app.apk");
+        return ZipFixtures.createZip(file, null,
+                "AndroidManifest.xml", ZipFixtures.content(1, 1200),
+                "classes.dex", dex);
+    }
+
+    private static void write(File file, byte[] content) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+}
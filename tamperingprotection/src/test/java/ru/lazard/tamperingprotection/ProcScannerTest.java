@@ -0,0 +1,150 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check hooking frameworks and status fields found by {@link ProcScanner} in fixture and real procfs files.
+ */
+public class ProcScannerTest {
+
+    private static final String CLEAN_MAPS = ""
+            + "12c00000-52c00000 rw-p 00000000 00:00 0                                  [anon:dalvik-main space]\n"
+            + "70a3c000-70d1e000 rw-p 00000000 fd:00 1234                               /system/framework/arm64/boot.art\n"
+            + "7f8a1b2000-7f8a1d4000 r-xp 00000000 fd:00 2345                           /system/lib64/libc.so\n"
+            + "7f8a2c0000-7f8a2c2000 r--p 00000000 fd:05 3456                           /data/app/ru.lazard.sample-1/base.apk\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hooks_foundInMaps() throws Exception {
+        File maps = write(CLEAN_MAPS
+                + "7f8b000000-7f8b400000 r-xp 00000000 fd:05 4567                           /data/local/tmp/re.frida.server/frida-agent-64.so\n"
+                + "7f8c000000-7f8c010000 r--p 00000000 fd:00 5678                           /system/framework/XposedBridge.jar\n");
+        ProcScanner scanner = new ProcScanner(maps, ProcScanner.DEFAULT_HOOK_SIGNATURES);
+        boolean[] found = new boolean[scanner.getSignatureCount()];
+        assertEquals(4, scanner.scan(found)); // "/frida-agent", "/frida-", "/re.frida.server/" and "/XposedBridge.jar"
+        assertEquals("/frida-agent, /frida-, /re.frida.server/, /XposedBridge.jar", scanner.describe(found));
+        assertEquals(0, scanner.scan(found)); // already found flags are not counted again
+        scanner.close();
+
+        assertEquals(0, new ProcScanner(write(CLEAN_MAPS), ProcScanner.DEFAULT_HOOK_SIGNATURES).scan(new boolean[scanner.getSignatureCount()]));
+    }
+
+    @Test
+    public void hooks_notFoundInsideUnrelatedNames() throws Exception {
+        File maps = write(CLEAN_MAPS
+                + "7f8f000000-7f8f100000 r-xp 00000000 fd:05 1 /data/app/com.example.toolspdf-1/lib/arm64/libtoolspdf.so\n"
+                + "7f8f100000-7f8f200000 r--p 00000000 fd:05 2 /data/app/com.example.speedxport-1/base.apk\n"
+                + "7f8f200000-7f8f300000 r--p 00000000 fd:05 3 /data/data/com.example.zygiskguide/files/fridays.db\n");
+        ProcScanner scanner = new ProcScanner(maps, ProcScanner.DEFAULT_HOOK_SIGNATURES);
+        boolean[] found = new boolean[scanner.getSignatureCount()];
+        assertEquals(scanner.describe(found), 0, scanner.scan(found)); // "lspd", "edxp", "zygisk" and "frida" inside names
+        scanner.close();
+    }
+
+    @Test
+    public void signature_foundOnBufferBoundary() throws Exception {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 8 * 1024 - 4) content.append("0000-1000 r--p 00000000 00:00 0 /system/lib/libm.so\n");
+        content.setLength(8 * 1024 - 4); // signature is split between first and second read of buffer
+        content.append("/data/app/libsubstrate.so\n");
+        ProcScanner scanner = new ProcScanner(write(content.toString()), "libsubstrate.so", "libm.so");
+        boolean[] found = new boolean[2];
+        assertEquals(2, scanner.scan(found));
+        assertTrue(found[0]);
+    }
+
+    @Test
+    public void rescan_readsFreshContent() throws Exception {
+        File maps = write(CLEAN_MAPS);
+        ProcScanner scanner = new ProcScanner(maps, "frida-gadget");
+        assertEquals(0, scanner.scan(new boolean[1]));
+
+        FileOutputStream out = new FileOutputStream(maps, true);
+        out.write("7f8d000000-7f8d100000 r-xp 00000000 fd:05 1 /data/app/ru.lazard.sample-1/lib/arm64/libfrida-gadget.so\n".getBytes("UTF-8"));
+        out.close();
+        assertEquals(1, scanner.scan(new boolean[1])); // file is kept open and re-read from start
+        scanner.close();
+        assertEquals(1, scanner.scan(new boolean[1])); // closed scanner reopens file
+        scanner.close();
+    }
+
+    @Test
+    public void field_readFromStatus() throws Exception {
+        File status = write("Name:\tsample\nState:\tS (sleeping)\nTracerPid:\t0\nUid:\t10123\n");
+        ProcScanner scanner = new ProcScanner(status, ProcScanner.TRACER_PID, "Uid:", "Gid:");
+        assertEquals(0, scanner.readField(0));
+        assertEquals(10123, scanner.readField(1));
+        assertEquals(-1, scanner.readField(2)); // no field
+        scanner.close();
+
+        try {
+            new ProcScanner(write("TracerPid:\t\nUid:\t1\n"), ProcScanner.TRACER_PID).readField(0);
+            fail("Field without value");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void realProc_scanned() throws Exception {
+        if (!ProcScanner.MAPS.exists()) return; // not Linux
+        ProcScanner hooks = ProcScanner.forHooks();
+        boolean[] found = new boolean[hooks.getSignatureCount()];
+        assertEquals(hooks.describe(found), 0, hooks.scan(found));
+        hooks.close();
+
+        ProcScanner self = new ProcScanner(ProcScanner.MAPS, "[stack]");
+        assertEquals(1, self.scan(new boolean[1]));
+        self.close();
+
+        ProcScanner status = ProcScanner.forTracerPid();
+        assertTrue(status.readField(0) >= 0);
+        status.close();
+    }
+
+    @Test
+    public void hooks_reportedByProtection() throws Exception {
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(folder.newFile().getPath());
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setHookScanner(new ProcScanner(write(CLEAN_MAPS
+                + "7f8e000000-7f8e100000 r-xp 00000000 fd:05 1 /data/adb/lspd/bin/liblspd.so\n"), ProcScanner.DEFAULT_HOOK_SIGNATURES));
+        assertTrue(protection.validateAll()); // hooks allowed by default
+
+        protection.setAcceptHookingFrameworks(false);
+        try {
+            protection.validateAllOrThrowException();
+            fail("Hooking framework not detected");
+        } catch (ValidationException exception) {
+            assertEquals(ValidationException.ERROR_CODE_HOOK_DETECTED, exception.getErrorCode());
+            assertTrue(exception.getMessage(), exception.getMessage().contains("liblspd.so"));
+        }
+
+        protection.setHookScanner(new ProcScanner(new File(folder.getRoot(), "missing"), ProcScanner.DEFAULT_HOOK_SIGNATURES));
+        try {
+            protection.validateAllOrThrowException();
+            fail("Missing maps not reported");
+        } catch (ValidationException exception) {
+            assertEquals(ValidationException.ERROR_CODE_HOOK_UNKNOWN_EXCEPTION, exception.getErrorCode());
+        }
+    }
+
+    private File write(String content) throws Exception {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+}
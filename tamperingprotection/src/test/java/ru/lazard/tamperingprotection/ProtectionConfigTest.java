@@ -0,0 +1,242 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check immutable {@link ProtectionConfig}, concurrent validation by shared protection and coalesced facts of {@link ValidationCache}.
+ */
+public class ProtectionConfigTest {
+
+    private static final String PACKAGE_NAME = "ru.lazard.sample";
+    private static final int THREADS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File apk;
+    private byte[] certificate;
+
+    @Before
+    public void setUp() throws Exception {
+        apk = ZipFixtures.createZip(folder.newFile("app.apk"), null,
+                "AndroidManifest.xml", ZipFixtures.content(1, 1200),
+                "classes.dex", ZipFixtures.content(2, 5000));
+        certificate = ZipFixtures.content(9, 800);
+    }
+
+    @Test
+    public void builder_checksValues() {
+        try {
+            new ProtectionConfig.Builder().setAcceptedSignatures("not a fingerprint");
+            fail("Wrong fingerprint accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        try {
+            new ProtectionConfig.Builder().setSignatureSource(7);
+            fail("Wrong signature source accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        try {
+            new ProtectionConfig.Builder().setIntegrityManifest(null, -1);
+            fail("Negative sample size accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        assertSame(ValidationPolicy.EMPTY, ProtectionConfig.DEFAULT.getPolicy());
+    }
+
+    @Test
+    public void config_notChangedByBuilderAndSetters() throws Exception {
+        ProtectionConfig.Builder builder = new ProtectionConfig.Builder().setAcceptedPackageNames(PACKAGE_NAME);
+        ProtectionConfig config = builder.build();
+        builder.setAcceptedPackageNames("other").setAcceptStartOnEmulator(false);
+        assertTrue(config.getPolicy().containsPackageName(PACKAGE_NAME));
+        assertFalse(config.getPolicy().containsPackageName("other"));
+        assertTrue(config.isEmulatorAvailable());
+
+        TamperingProtection protection = new TamperingProtection(probe(), config);
+        protection.setAcceptedPackageNames("other"); // copy of config is changed
+        assertSame(config, new TamperingProtection(probe(), config).getConfig());
+        assertTrue(protection.getConfig().getPolicy().containsPackageName("other"));
+        assertTrue(config.getPolicy().containsPackageName(PACKAGE_NAME));
+        assertFalse(protection.validateAll());
+
+        ProtectionConfig changed = config.toBuilder().setAcceptStartInDebugMode(false).build();
+        assertSame(config.getPolicy(), changed.getPolicy()); // policy is not encoded again
+        assertFalse(changed.isDebugAvailable());
+    }
+
+    @Test
+    public void sharedProtection_validatedConcurrently() throws Exception {
+        ValidationCache.getInstance().invalidate();
+        ProtectionConfig config = new ProtectionConfig.Builder()
+                .setAcceptedPackageNames(PACKAGE_NAME)
+                .setAcceptedSignatures(SignatureFingerprints.md5(certificate))
+                .setAcceptedDexCrcs(ApkIndex.read(apk).getDexCrc())
+                .setCacheEnabled(true)
+                .build();
+        final TamperingProtection protection = new TamperingProtection(probe(), config);
+        List<Boolean> results = runConcurrently(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                boolean isValid = true;
+                for (int i = 0; i < 50; i++) {
+                    isValid &= protection.validateAll();
+                }
+                return isValid;
+            }
+        });
+        for (Boolean isValid : results) {
+            assertTrue(isValid);
+        }
+        ValidationCache.getInstance().invalidate();
+    }
+
+    @Test
+    public void cache_coalescesConcurrentCalculation() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(apk.getPath()) {
+            @Override
+            public byte[][] getSignatureCertificates() throws IOException {
+                calls.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS); // slow PackageManager call
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.getSignatureCertificates();
+            }
+        };
+        probe.setSignatureCertificates(certificate);
+        final ValidationCache cache = ValidationCache.getInstance();
+        cache.invalidate();
+        cache.resetCounters();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(new Callable<String[]>() {
+                    @Override
+                    public String[] call() throws Exception {
+                        return cache.getSignatures(probe);
+                    }
+                }));
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            while (cache.getHitCount() + cache.getMissCount() < THREADS + 1) {
+                Thread.sleep(1); // all threads asked signatures, first thread also asked certificates
+            }
+            release.countDown();
+            for (Future<String[]> future : futures) {
+                assertEquals(SignatureFingerprints.md5(certificate), future.get()[0]);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, calls.get());
+        assertEquals(THREADS - 1, cache.getCoalescedCount());
+        cache.invalidate();
+    }
+
+    @Test
+    public void cache_lastUpdateTimeTakenOnlyWhenApkChanged() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(apk.getPath()) {
+            @Override
+            public long getLastUpdateTime() {
+                calls.incrementAndGet(); // PackageManager call on device
+                return super.getLastUpdateTime();
+            }
+        };
+        probe.setPackageName(PACKAGE_NAME);
+        probe.setLastUpdateTime(1000);
+        ValidationCache cache = ValidationCache.getInstance();
+        cache.invalidate();
+        cache.resetCounters();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(PACKAGE_NAME, cache.getPackageName(probe));
+            assertFalse(cache.isDebug(probe));
+        }
+        assertEquals(1, calls.get()); // cached lookups compare file identity only
+        assertEquals(1000, cache.getIdentity().getLastUpdateTime());
+
+        probe.setLastUpdateTime(2000);
+        ZipFixtures.createZip(apk, null, "AndroidManifest.xml", ZipFixtures.content(1, 1300)); // app updated
+        assertEquals(PACKAGE_NAME, cache.getPackageName(probe));
+        assertEquals(1, cache.getInvalidationCount());
+        assertEquals(2, calls.get());
+        assertEquals(2000, cache.getIdentity().getLastUpdateTime());
+        cache.invalidate();
+    }
+
+    @Test
+    public void cache_retriesFailedCalculation() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(apk.getPath()) {
+            @Override
+            public byte[][] getSignatureCertificates() throws IOException {
+                if (calls.incrementAndGet() == 1) throw new IOException("PackageManager has died");
+                return super.getSignatureCertificates();
+            }
+        };
+        probe.setSignatureCertificates(certificate);
+        ValidationCache cache = ValidationCache.getInstance();
+        cache.invalidate();
+        try {
+            cache.getSignatures(probe);
+            fail("Exception not thrown");
+        } catch (IOException expected) {
+            // expected
+        }
+        assertEquals(SignatureFingerprints.md5(certificate), cache.getSignatures(probe)[0]);
+        assertEquals(2, calls.get());
+        cache.invalidate();
+    }
+
+    private FixtureEnvironmentProbe probe() {
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(apk.getPath());
+        probe.setPackageName(PACKAGE_NAME);
+        probe.setSignatureCertificates(certificate);
+        return probe;
+    }
+
+    private static <T> List<T> runConcurrently(Callable<T> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(task));
+            }
+            List<T> results = new ArrayList<T>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check periodic re-validation by {@link RuntimeWatchdog} and tracer detection.
+ */
+public class RuntimeWatchdogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void attachedTracer_detectedByNextRun() throws Exception {
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(folder.newFile().getPath());
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setAcceptDebuggerAttached(false);
+        final CountDownLatch detected = new CountDownLatch(1);
+        final AtomicReference<ValidationException> failure = new AtomicReference<ValidationException>();
+        RuntimeWatchdog watchdog = new RuntimeWatchdog(protection, new RuntimeWatchdog.Listener() {
+            @Override
+            public void onTamperingDetected(ValidationException exception) {
+                failure.set(exception);
+                detected.countDown();
+            }
+        }).setInterval(5, 0.5f).setCpuBudget(1000);
+        watchdog.start();
+        try {
+            while (watchdog.getRunCount() < 3) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, detected.getCount()); // valid app
+
+            probe.setTracerPid(4242); // tracer attached after start
+            assertTrue(detected.await(5, TimeUnit.SECONDS));
+            assertEquals(ValidationException.ERROR_CODE_DEBUGGER_ATTACHED, failure.get().getErrorCode());
+            assertTrue(failure.get().getMessage(), failure.get().getMessage().contains("4242"));
+        } finally {
+            watchdog.stop();
+        }
+        assertFalse(watchdog.isRunning());
+    }
+
+    @Test
+    public void setChecks_rejectsUnknownAndUnmetChecks() throws Exception {
+        RuntimeWatchdog watchdog = new RuntimeWatchdog(new TamperingProtection(new FixtureEnvironmentProbe(folder.newFile().getPath())), null);
+        for (String[] names : new String[][]{{"debuger"}, {TamperingProtection.CHECK_DEX_DIGEST}}) {
+            try {
+                watchdog.setChecks(names);
+                fail("Checks must be rejected: " + names[0]);
+            } catch (IllegalArgumentException expected) {
+                // ok
+            }
+        }
+        watchdog.setChecks(TamperingProtection.CHECK_DEX_CRC, TamperingProtection.CHECK_DEX_DIGEST);
+    }
+
+    @Test
+    public void unexpectedFailure_reportedAndWatchdogKeepsRunning() throws Exception {
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(folder.newFile().getPath()) {
+            @Override
+            public boolean isDebuggable() {
+                throw new IllegalStateException("Package manager has died");
+            }
+        };
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setAcceptStartInDebugMode(false);
+        final CountDownLatch reported = new CountDownLatch(3);
+        final AtomicReference<ValidationException> failure = new AtomicReference<ValidationException>();
+        RuntimeWatchdog watchdog = new RuntimeWatchdog(protection, new RuntimeWatchdog.Listener() {
+            @Override
+            public void onTamperingDetected(ValidationException exception) {
+                failure.set(exception);
+                reported.countDown();
+            }
+        }).setInterval(5, 0.5f).setCpuBudget(1000);
+        watchdog.start();
+        try {
+            assertTrue(reported.await(5, TimeUnit.SECONDS));
+            assertEquals(ValidationException.ERROR_CODE_UNKNOWN_EXCEPTION, failure.get().getErrorCode());
+            assertTrue(failure.get().getCause() instanceof IllegalStateException);
+            assertTrue(watchdog.isRunning());
+        } finally {
+            watchdog.stop();
+        }
+    }
+
+    @Test
+    public void spentCpuBudget_skipsRuns() throws Exception {
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(folder.newFile().getPath()) {
+            @Override
+            public boolean isDebuggerConnected() {
+                try {
+                    Thread.sleep(20); // fixture probe has no CPU clock, so wall time is counted
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+        };
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setAcceptDebuggerAttached(false);
+        RuntimeWatchdog watchdog = new RuntimeWatchdog(protection, null).setInterval(5, 0).setCpuBudget(30);
+        watchdog.start();
+        try {
+            while (watchdog.getSkippedCount() < 10) {
+                Thread.sleep(5);
+            }
+        } finally {
+            watchdog.stop();
+        }
+        // 30 ms per minute allow at most two runs of 20 ms, budget is refilled by 0.5 ms per second
+        assertTrue("runs=" + watchdog.getRunCount(), watchdog.getRunCount() >= 1 && watchdog.getRunCount() <= 2);
+        assertTrue(watchdog.getCpuTimeNanos() >= watchdog.getRunCount() * TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void tracerPid_readFromStatus() throws Exception {
+        File status = folder.newFile("status");
+        FileOutputStream out = new FileOutputStream(status);
+        out.write("Name:\tsample\nState:\tS (sleeping)\nTgid:\t1234\nPid:\t1234\nPPid:\t1\nTracerPid:\t5678\nUid:\t10123\n".getBytes("UTF-8"));
+        out.close();
+        assertEquals(5678, AndroidEnvironmentProbe.readTracerPid(status));
+
+        File self = new File("/proc/self/status");
+        if (self.exists()) assertTrue(AndroidEnvironmentProbe.readTracerPid(self) >= 0);
+    }
+
+    @Test
+    public void debugger_checkedOnlyWhenEnabled() throws Exception {
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(folder.newFile().getPath());
+        probe.setDebuggerConnected(true);
+        TamperingProtection protection = new TamperingProtection(probe);
+        assertTrue(protection.validateAll()); // debugger allowed by default
+
+        protection.setAcceptDebuggerAttached(false);
+        try {
+            protection.validateAllOrThrowException();
+            fail("Debugger not detected");
+        } catch (ValidationException exception) {
+            assertEquals(ValidationException.ERROR_CODE_DEBUGGER_ATTACHED, exception.getErrorCode());
+        }
+    }
+}
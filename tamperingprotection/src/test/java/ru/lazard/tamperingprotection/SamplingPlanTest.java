@@ -0,0 +1,90 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check cost and detection probability of {@link SamplingPlan}.
+ */
+public class SamplingPlanTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void detectionProbability_matchesSamplingWithoutReplacement() throws Exception {
+        File apk = createApk();
+        ApkIndex index = ApkIndex.read(apk);
+        IntegrityManifest manifest = new IntegrityManifestEncoder(1024).addApk(index).build();
+
+        SamplingPlan entries = SamplingPlan.forSampleSize(manifest, index, SamplingPlan.UNIT_ENTRIES, 2);
+        assertEquals(10, entries.getUnitCount());
+        assertEquals(0.2, entries.getDetectionProbability(), 1e-9);
+        assertEquals(1 - (8.0 / 10) * (7.0 / 9), entries.getDetectionProbability(2), 1e-9);
+        assertEquals(1 - Math.pow(0.8, 10), entries.getDetectionProbability(1, 10), 1e-9);
+        assertEquals(0, SamplingPlan.forSampleSize(manifest, index, SamplingPlan.UNIT_ENTRIES, 0).getDetectionProbability(), 0);
+        assertEquals(1, SamplingPlan.forSampleSize(manifest, index, SamplingPlan.UNIT_ENTRIES, 100).getDetectionProbability(), 0);
+        assertEquals(5, SamplingPlan.forDetectionProbability(manifest, index, SamplingPlan.UNIT_ENTRIES, 0.5).getSampleSize());
+
+        // 1 entry of 10 Kb and 9 entries of 1 Kb
+        SamplingPlan chunks = SamplingPlan.forSampleSize(manifest, index, SamplingPlan.UNIT_CHUNKS, 19);
+        assertEquals(19, chunks.getUnitCount());
+        assertEquals(1, chunks.getDetectionProbability(), 0);
+    }
+
+    @Test
+    public void byteBudget_boundsExpectedCost() throws Exception {
+        File apk = createApk();
+        ApkIndex index = ApkIndex.read(apk);
+        IntegrityManifest manifest = new IntegrityManifestEncoder(1024).addApk(index).build();
+
+        // mean cost of entry is (10 * 1024 + 9 * 1024) / 10 bytes
+        SamplingPlan entries = SamplingPlan.forByteBudget(manifest, index, SamplingPlan.UNIT_ENTRIES, 4000);
+        assertEquals(2, entries.getSampleSize());
+        assertEquals(3891, entries.getExpectedBytes());
+        assertEquals(10, SamplingPlan.forTimeBudget(manifest, index, SamplingPlan.UNIT_ENTRIES, 10, 10000).getSampleSize());
+
+        // chunk of deflated entry costs bytes from start of entry: 9 * 1024 + (1 + 2 + ... + 10) * 1024 = 64 * 1024 for 19 chunks
+        SamplingPlan chunks = SamplingPlan.forByteBudget(manifest, index, SamplingPlan.UNIT_CHUNKS, 64 * 1024);
+        assertEquals(19, chunks.getSampleSize());
+        assertEquals(64 * 1024, chunks.getExpectedBytes());
+
+        long hashed = 0;
+        long processed = 0;
+        Random random = new Random(1);
+        SamplingPlan plan = SamplingPlan.forSampleSize(manifest, index, SamplingPlan.UNIT_CHUNKS, 3);
+        for (int i = 0; i < 2000; i++) {
+            IntegrityVerifier.Result result = new IntegrityVerifier(manifest, index).verify(plan, random);
+            assertTrue(result.isValid());
+            hashed += result.getBytesHashed();
+            processed += result.getBytesHashed() + result.getBytesSkipped();
+        }
+        assertEquals(3 * 1024, hashed / 2000);
+        // chunks of same entry share skipped bytes, so real cost is not above expected
+        assertTrue("processed=" + processed / 2000, processed / 2000 <= plan.getExpectedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chunks_requireManifestWithChunks() throws Exception {
+        File apk = createApk();
+        ApkIndex index = ApkIndex.read(apk);
+        SamplingPlan.forSampleSize(new IntegrityManifestEncoder(0).addApk(index).build(), index, SamplingPlan.UNIT_CHUNKS, 1);
+    }
+
+    private File createApk() throws Exception {
+        Object[] entries = new Object[20];
+        entries[0] = "classes.dex";
+        entries[1] = ZipFixtures.content(1, 10 * 1024);
+        for (int i = 1; i < 10; i++) {
+            entries[2 * i] = "res/drawable/icon" + i + ".png";
+            entries[2 * i + 1] = ZipFixtures.content(i + 1, 1024);
+        }
+        return ZipFixtures.createZip(folder.newFile(), null, entries);
+    }
+}
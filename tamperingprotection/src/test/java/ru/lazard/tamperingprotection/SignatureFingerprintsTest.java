@@ -0,0 +1,42 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+public class SignatureFingerprintsTest {
+
+    private final byte[] certificate = ZipFixtures.content(7, 900);
+
+    private static String keytoolFormat(String algorithm, byte[] data) throws Exception {
+        byte[] digest = MessageDigest.getInstance(algorithm).digest(data);
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest) {
+            if (builder.length() > 0) builder.append(':');
+            builder.append(String.format("%02X", b & 0xFF));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void fingerprints_formattedAsKeytool() throws Exception {
+        assertEquals(keytoolFormat("MD5", certificate), SignatureFingerprints.md5(certificate));
+        assertEquals(keytoolFormat("SHA-256", certificate), SignatureFingerprints.sha256(certificate));
+    }
+
+    @Test
+    public void accepted_md5AndSha256IgnoringCase() throws Exception {
+        String md5 = keytoolFormat("MD5", certificate).toLowerCase();
+        String sha256 = keytoolFormat("SHA-256", certificate).replace(":", "");
+        assertTrue(new ValidationPolicyEncoder().setSignatures(md5).build().containsSignature(certificate));
+        assertTrue(new ValidationPolicyEncoder().setSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32", sha256).build().containsSignature(certificate));
+        assertFalse(new ValidationPolicyEncoder().setSignatures("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32").build().containsSignature(certificate));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_rejectsNotFingerprint() {
+        new ValidationPolicyEncoder().setSignatures("CC:0C:FB");
+    }
+}
@@ -0,0 +1,206 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validation of fixture apk with {@link FixtureEnvironmentProbe} (without device).
+ */
+public class TamperingProtectionTest {
+
+    private static final String PACKAGE_NAME = "ru.lazard.sample";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File apk;
+    private byte[] certificate;
+    private FixtureEnvironmentProbe probe;
+
+    @Before
+    public void setUp() throws Exception {
+        apk = ZipFixtures.createZip(folder.newFile("app.apk"), null,
+                "AndroidManifest.xml", ZipFixtures.content(1, 1200),
+                "classes.dex", ZipFixtures.content(2, 5000),
+                "classes2.dex", ZipFixtures.content(3, 3000));
+        certificate = ZipFixtures.content(9, 800);
+        probe = new FixtureEnvironmentProbe(apk.getPath());
+        probe.setPackageName(PACKAGE_NAME);
+        probe.setInstallerPackageName(TamperingProtection.GOOGLE_PLAY_STORE_PACKAGE);
+        probe.setSignatureCertificates(certificate);
+        probe.setDeviceProperties("hammerhead", "LGE", "google", "hammerhead", "Nexus 5", "hammerhead",
+                "google/hammerhead/hammerhead:6.0.1/M4B30Z/3437181:user/release-keys");
+    }
+
+    private TamperingProtection protection() throws Exception {
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setAcceptedPackageNames(PACKAGE_NAME);
+        protection.setAcceptedStores(TamperingProtection.GOOGLE_PLAY_STORE_PACKAGE);
+        protection.setAcceptedSignatures(SignatureFingerprints.md5(certificate));
+        protection.setAcceptedDexCrcs(ApkIndex.read(apk).getDexCrc());
+        protection.setAcceptStartOnEmulator(false);
+        protection.setAcceptStartInDebugMode(false);
+        return protection;
+    }
+
+    private static int errorCode(TamperingProtection protection) {
+        try {
+            protection.validateAllOrThrowException();
+            return 0;
+        } catch (ValidationException exception) {
+            return exception.getErrorCode();
+        }
+    }
+
+    @Test
+    public void validApp_passesAllChecks() throws Exception {
+        assertEquals(0, errorCode(protection()));
+        assertTrue(protection().validateAll());
+    }
+
+    @Test
+    public void eachFact_isTakenFromProbe() throws Exception {
+        probe.setDebuggable(true);
+        assertEquals(ValidationException.ERROR_CODE_DEBUG_MODE, errorCode(protection()));
+        probe.setDebuggable(false);
+
+        probe.setDeviceProperties("sdk_x86", "unknown", "generic_x86", "generic_x86", "Android SDK built for x86", "goldfish",
+                "generic_x86/sdk_x86/generic_x86:7.0/NYC/3300117:userdebug/test-keys");
+        assertEquals(ValidationException.ERROR_CODE_RUN_ON_EMULATOR, errorCode(protection()));
+        probe.setDeviceProperties("hammerhead", "LGE", "google", "hammerhead", "Nexus 5", "hammerhead", "");
+
+        probe.setPackageName("com.pirate.sample");
+        assertEquals(ValidationException.ERROR_CODE_PACKAGE_NAME_NOT_VALID, errorCode(protection()));
+        probe.setPackageName(PACKAGE_NAME);
+
+        probe.setInstallerPackageName(null);
+        assertEquals(ValidationException.ERROR_CODE_STORE_IS_EMPTY, errorCode(protection()));
+        probe.setInstallerPackageName(TamperingProtection.GOOGLE_PLAY_STORE_PACKAGE);
+
+        probe.setSignatureCertificates(ZipFixtures.content(10, 800));
+        assertEquals(ValidationException.ERROR_CODE_SIGNATURE_NOT_VALID, errorCode(protection()));
+        probe.setSignatureCertificates();
+        assertEquals(ValidationException.ERROR_CODE_SIGNATURE_IS_EMPTY, errorCode(protection()));
+        probe.setSignatureCertificates(certificate);
+
+        TamperingProtection protection = protection();
+        protection.setAcceptedDexCrcs(1, 2, 3);
+        assertEquals(ValidationException.ERROR_CODE_CRC_NOT_VALID, errorCode(protection));
+    }
+
+    @Test
+    public void checkThrowsError_rethrownBySynchronousValidation() throws Exception {
+        probe = new FixtureEnvironmentProbe(apk.getPath()) {
+            @Override
+            public String getPackageName() {
+                throw new NoClassDefFoundError("android/content/pm/PackageManager");
+            }
+        };
+        probe.setSignatureCertificates(certificate);
+        TamperingProtection protection = protection();
+        try {
+            protection.validateAllOrThrowException();
+            fail("Error must be rethrown");
+        } catch (NoClassDefFoundError expected) {
+            // not ClassCastException
+        }
+        try {
+            protection.validateAll();
+            fail("Error must be rethrown");
+        } catch (NoClassDefFoundError expected) {
+            // not reported as tampered app
+        }
+    }
+
+    @Test
+    public void cachedValidation_sameResultAsUncached() throws Exception {
+        ValidationCache.getInstance().invalidate();
+        TamperingProtection protection = protection();
+        protection.setCacheEnabled(true);
+        assertEquals(0, errorCode(protection));
+        assertEquals(0, errorCode(protection));
+        assertTrue(ValidationCache.getInstance().getHitCount() > 0);
+        assertEquals(apk.getPath(), ValidationCache.getInstance().getIdentity().getPath());
+        ValidationCache.getInstance().invalidate();
+    }
+
+    @Test
+    public void metrics_recordEachCheck() throws Exception {
+        InMemoryValidationMetrics metrics = new InMemoryValidationMetrics();
+        TamperingProtection protection = protection();
+        protection.setAcceptedDexDigests(DexDigester.digest(ApkIndex.read(apk)));
+        protection.setMetrics(metrics);
+        assertEquals(0, errorCode(protection));
+        probe.setInstallerPackageName("com.pirate.store");
+        assertEquals(ValidationException.ERROR_CODE_STORE_NOT_VALID, errorCode(protection));
+
+        assertEquals(2, metrics.getPassCount(TamperingProtection.CHECK_PACKAGE));
+        assertEquals(1, metrics.getPassCount(TamperingProtection.CHECK_STORE));
+        assertEquals(1, metrics.getFailCount(TamperingProtection.CHECK_STORE));
+        assertEquals(1, metrics.getErrorCount(ValidationException.ERROR_CODE_STORE_NOT_VALID));
+        assertEquals(1, metrics.getPassCount(TamperingProtection.CHECK_DEX_DIGEST)); // second validation stopped on store
+        assertTrue(metrics.getBytesRead(TamperingProtection.CHECK_DEX_DIGEST) > 0); // compressed dex files
+        assertEquals(2, metrics.getDurations(TamperingProtection.CHECK_DEBUG).getCount());
+    }
+
+    @Test
+    public void failureMessage_renderedOnDemand() throws Exception {
+        TamperingProtection protection = protection();
+        probe.setPackageName("com.pirate.app");
+        ValidationException exception = failure(protection);
+        assertEquals(ValidationException.ERROR_CODE_PACKAGE_NAME_NOT_VALID, exception.getErrorCode());
+        assertEquals("com.pirate.app", exception.getArguments()[0]);
+        assertEquals("Not valid package name:  CurrentPackageName=\"com.pirate.app\";  validPackageNames=[ru.lazard.sample];", exception.getMessage());
+
+        probe.setPackageName(PACKAGE_NAME);
+        protection.setAcceptedDexCrcs(3, 1);
+        long crc = ApkIndex.read(apk).getDexCrc();
+        assertEquals("Crc code of .dex not valid. CurrentDexCrc=" + crc + "  acceptedDexCrcs=[1, 3];", failure(protection).getMessage());
+
+        final int[] renderCount = new int[1];
+        Object description = new Object() {
+            @Override
+            public String toString() {
+                renderCount[0]++;
+                return "expensive";
+            }
+        };
+        exception = new ValidationException(ValidationException.ERROR_CODE_HOOK_DETECTED, false, null, "Found: {} in {}; {}", description, new long[]{1, 2}, "unused {}");
+        assertEquals(0, renderCount[0]);
+        assertEquals("Found: expensive in [1, 2]; unused {}", exception.getMessage());
+        assertEquals("Found: expensive in [1, 2]; unused {}", exception.toString().substring(exception.getClass().getName().length() + 2));
+        assertEquals(1, renderCount[0]);
+    }
+
+    @Test
+    public void stackTraceDisabled_failureWithoutStackTrace() throws Exception {
+        TamperingProtection protection = protection();
+        probe.setInstallerPackageName("com.pirate.store");
+        assertTrue(failure(protection).getStackTrace().length > 0);
+        assertFalse(protection.validateAll());
+
+        protection.setStackTraceEnabled(false);
+        ValidationException exception = failure(protection);
+        assertEquals(0, exception.getStackTrace().length);
+        assertEquals(ValidationException.ERROR_CODE_STORE_NOT_VALID, exception.getErrorCode());
+        assertEquals("Not valid store:  CurrentStore=\"com.pirate.store\";  validStores=[com.android.vending];", exception.getMessage());
+        assertTrue(new ValidationException(ValidationException.ERROR_CODE_UNKNOWN_EXCEPTION, "Public constructor.").getStackTrace().length > 0);
+    }
+
+    private static ValidationException failure(TamperingProtection protection) {
+        try {
+            protection.validateAllOrThrowException();
+        } catch (ValidationException exception) {
+            return exception;
+        }
+        throw new AssertionError("Validation passed");
+    }
+}
@@ -0,0 +1,279 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+
+import static org.junit.Assert.*;
+
+public class ValidationFutureTest {
+
+    private static ValidationCheck check(final String name, final long sleepMillis, final int errorCode) {
+        return new ValidationCheck() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void validate() throws ValidationException {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (errorCode != 0) throw new ValidationException(errorCode, name);
+            }
+        };
+    }
+
+    private static ValidationCheck costlyCheck(final String name, final int cost, final int errorCode, final String... dependencies) {
+        return new ValidationCheck() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void validate() throws ValidationException {
+                if (errorCode != 0) throw new ValidationException(errorCode, name);
+            }
+
+            @Override
+            public int getCost() {
+                return cost;
+            }
+
+            @Override
+            public String[] getDependencies() {
+                return dependencies;
+            }
+        };
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void allChecksPass_futureIsValid() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ValidationFuture future = new ValidationFuture(Arrays.asList(
+                    check("a", 10, 0), check("b", 0, 0), check("c", 5, 0)), null);
+            future.start(executor);
+            assertNull(future.get(5, TimeUnit.SECONDS));
+            assertTrue(future.isValid());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void severalChecksFail_firstInOrderIsReported() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // second check fails slowly, third fails immediately: second must be reported
+            ValidationFuture future = new ValidationFuture(Arrays.asList(
+                    check("a", 0, 0), check("b", 100, ValidationException.ERROR_CODE_STORE_NOT_VALID), check("c", 0, ValidationException.ERROR_CODE_CRC_NOT_VALID)), null);
+            future.start(executor);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Validation must fail");
+            } catch (ExecutionException exception) {
+                assertEquals(ValidationException.ERROR_CODE_STORE_NOT_VALID, ((ValidationException) exception.getCause()).getErrorCode());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void listenerCalledOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final int[] calls = new int[1];
+            ValidationFuture future = new ValidationFuture(Arrays.asList(
+                    check("a", 0, ValidationException.ERROR_CODE_DEBUG_MODE), check("b", 0, ValidationException.ERROR_CODE_RUN_ON_EMULATOR)),
+                    new TamperingProtection.ValidationListener() {
+                        @Override
+                        public void onValidationSuccess() {
+                            fail("Validation must fail");
+                        }
+
+                        @Override
+                        public void onValidationFailed(ValidationException exception) {
+                            assertEquals(ValidationException.ERROR_CODE_DEBUG_MODE, exception.getErrorCode());
+                            synchronized (calls) {
+                                calls[0]++;
+                            }
+                            latch.countDown();
+                        }
+                    });
+            future.start(executor);
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            synchronized (calls) {
+                assertEquals(1, calls[0]);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkThrowsError_validationFailsAndListenerCalled() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final ValidationException[] failure = new ValidationException[1];
+            ValidationCheck broken = new ValidationCheck() {
+                @Override
+                public String getName() {
+                    return "broken";
+                }
+
+                @Override
+                public void validate() {
+                    throw new NoClassDefFoundError("ru/lazard/Missing");
+                }
+            };
+            ValidationFuture future = new ValidationFuture(Arrays.asList(check("a", 0, 0), broken, check("b", 0, 0)),
+                    new TamperingProtection.ValidationListener() {
+                        @Override
+                        public void onValidationSuccess() {
+                            fail("Validation must fail");
+                        }
+
+                        @Override
+                        public void onValidationFailed(ValidationException exception) {
+                            failure[0] = exception;
+                            latch.countDown();
+                        }
+                    });
+            future.start(executor);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Validation must fail");
+            } catch (ExecutionException exception) {
+                assertTrue(exception.getCause() instanceof NoClassDefFoundError);
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(ValidationException.ERROR_CODE_UNKNOWN_EXCEPTION, failure[0].getErrorCode());
+            assertTrue(failure[0].getCause() instanceof NoClassDefFoundError);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void executorRejectsCheck_validationFails() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        ValidationFuture future = new ValidationFuture(Arrays.asList(check("a", 0, 0), check("b", 0, 0)), null);
+        future.start(executor);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Validation must fail");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof RejectedExecutionException);
+        }
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void timeout_cancelsValidation() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ValidationFuture future = new ValidationFuture(Arrays.asList(check("slow", 5000, 0)), null);
+            future.start(executor);
+            try {
+                future.awaitOrThrowException(50, TimeUnit.MILLISECONDS);
+                fail("Validation must time out");
+            } catch (ValidationException exception) {
+                assertEquals(ValidationException.ERROR_CODE_TIMEOUT, exception.getErrorCode());
+            }
+            assertTrue(future.isCancelled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void order_cheapFirstAfterDependencies() {
+        List<ValidationCheck> ordered = ValidationFuture.order(Arrays.asList(
+                costlyCheck("digest", 1000, 0, "crc"), costlyCheck("crc", 100, 0), costlyCheck("debug", 1, 0), costlyCheck("store", 100, 0)));
+        String[] names = new String[ordered.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = ordered.get(i).getName();
+        }
+        assertArrayEquals(new String[]{"debug", "crc", "store", "digest"}, names);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void order_rejectsUnknownDependency() {
+        ValidationFuture.order(Arrays.asList(costlyCheck("digest", 1000, 0, "crc")));
+    }
+
+    @Test
+    public void failFast_laterChecksNotRun() throws Exception {
+        ValidationFuture future = new ValidationFuture(Arrays.asList(
+                costlyCheck("a", 1, ValidationException.ERROR_CODE_DEBUG_MODE), costlyCheck("b", 2, ValidationException.ERROR_CODE_STORE_NOT_VALID)), null);
+        future.start(DIRECT);
+        ValidationReport report = future.getReport();
+        assertFalse(report.isValid());
+        assertEquals(ValidationReport.OUTCOME_FAILED, report.getEntry("a").getOutcome());
+        assertEquals(ValidationReport.OUTCOME_NOT_RUN, report.getEntry("b").getOutcome());
+    }
+
+    @Test
+    public void collectAll_reportsAllFailuresAndSkipsDependents() throws Exception {
+        ValidationFuture future = new ValidationFuture(Arrays.asList(
+                costlyCheck("a", 1, 0),
+                costlyCheck("crc", 2, ValidationException.ERROR_CODE_CRC_NOT_VALID),
+                costlyCheck("store", 3, ValidationException.ERROR_CODE_STORE_NOT_VALID),
+                costlyCheck("digest", 4, 0, "crc")), null, ValidationFuture.MODE_COLLECT_ALL);
+        future.start(DIRECT);
+        assertEquals(ValidationException.ERROR_CODE_CRC_NOT_VALID, ((ValidationException) future.getFailure()).getErrorCode());
+        ValidationReport report = future.getReport();
+        assertEquals(2, report.getFailures().size());
+        assertEquals(ValidationReport.OUTCOME_PASSED, report.getEntry("a").getOutcome());
+        assertEquals(ValidationReport.OUTCOME_FAILED, report.getEntry("store").getOutcome());
+        assertEquals(ValidationReport.OUTCOME_SKIPPED, report.getEntry("digest").getOutcome());
+        assertEquals(ValidationException.ERROR_CODE_CRC_NOT_VALID, report.getFirstFailure().getErrorCode());
+    }
+
+    @Test
+    public void collectAll_concurrentChecksMergedInOrder() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ValidationFuture future = new ValidationFuture(Arrays.asList(
+                    check("a", 50, ValidationException.ERROR_CODE_STORE_NOT_VALID), check("b", 0, ValidationException.ERROR_CODE_CRC_NOT_VALID), check("c", 0, 0)),
+                    null, ValidationFuture.MODE_COLLECT_ALL);
+            future.start(executor);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Validation must fail");
+            } catch (ExecutionException exception) {
+                assertEquals(ValidationException.ERROR_CODE_STORE_NOT_VALID, ((ValidationException) exception.getCause()).getErrorCode());
+            }
+            assertEquals(2, future.getReport().getFailures().size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
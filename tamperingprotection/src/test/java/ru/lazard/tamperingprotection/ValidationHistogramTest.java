@@ -0,0 +1,43 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ValidationHistogramTest {
+
+    @Test
+    public void buckets_coverValueWithRelativePrecision() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int bucket = ValidationHistogram.bucketOf(value);
+            long highest = ValidationHistogram.highestValueOf(bucket);
+            assertTrue(value + " in bucket " + bucket, highest >= value);
+            assertTrue(value + " in bucket " + bucket, highest - value <= value / 64);
+            if (bucket > 0) assertTrue(ValidationHistogram.highestValueOf(bucket - 1) < value);
+        }
+        assertEquals(Long.MAX_VALUE, ValidationHistogram.highestValueOf(ValidationHistogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentiles() {
+        ValidationHistogram histogram = new ValidationHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500.0, histogram.getMean(), 0.001);
+        assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 64);
+        assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / 64);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,195 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check encoding and lookups of {@link ValidationPolicy}.
+ */
+public class ValidationPolicyTest {
+
+    private static final String DIGEST = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lookups_caseInsensitiveAndExact() throws Exception {
+        ValidationPolicy policy = new ValidationPolicyEncoder()
+                .setStores(TamperingProtection.GOOGLE_PLAY_STORE_PACKAGE, TamperingProtection.AMAZON_APP_STORE_PACKAGE)
+                .setPackageNames("ru.lazard.Sample", "ru.lazard.sample.pro", "ru.lazard.sample")
+                .setDexCrcs(-5, 0, 2738943211L, Long.MAX_VALUE)
+                .setDexDigests(DIGEST.toUpperCase())
+                .build();
+        assertTrue(policy.containsStore("COM.android.vending"));
+        assertFalse(policy.containsStore("com.android.vendin"));
+        assertFalse(policy.containsStore(null));
+        assertTrue(policy.containsPackageName("ru.lazard.sample"));
+        assertFalse(policy.containsPackageName("ru.lazard.sample.lite"));
+        assertEquals(2, policy.getPackageNameCount()); // duplicates removed
+        assertTrue(policy.containsDexCrc(-5));
+        assertTrue(policy.containsDexCrc(2738943211L));
+        assertFalse(policy.containsDexCrc(1));
+        assertArrayEquals(new long[]{-5, 0, 2738943211L, Long.MAX_VALUE}, policy.getDexCrcs());
+        assertTrue(policy.containsDexDigest(DIGEST));
+        assertFalse(policy.containsDexDigest("not hex"));
+        assertEquals(Arrays.asList(DIGEST), policy.getDexDigests());
+    }
+
+    @Test
+    public void manyEntries_sameAsLinearSearch() throws Exception {
+        ValidationPolicyEncoder encoder = new ValidationPolicyEncoder();
+        for (int i = 0; i < 500; i += 2) {
+            encoder.addPackageName("com.whitelabel.variant" + i);
+            encoder.addDexCrc(i * 7919L);
+        }
+        ValidationPolicy policy = encoder.build();
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i % 2 == 0, policy.containsPackageName("com.whitelabel.variant" + i));
+            assertEquals(i % 2 == 0, policy.containsDexCrc(i * 7919L));
+        }
+    }
+
+    @Test
+    public void loadedFromStreamAndMappedFile_sameAsEncoded() throws Exception {
+        ValidationPolicyEncoder encoder = ValidationPolicyEncoder.parse(new StringReader(
+                "# white label policy\n" +
+                        "store com.android.vending\n" +
+                        "package ru.lazard.sample\n" +
+                        "signature CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32\n" +
+                        "dexCrc 2738943211\n" +
+                        "dexDigest " + DIGEST + "\n"));
+        byte[] bytes = encoder.encode();
+        File file = folder.newFile("policy.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        for (ValidationPolicy policy : Arrays.asList(ValidationPolicy.load(new ByteArrayInputStream(bytes)), ValidationPolicy.map(file))) {
+            assertArrayEquals(bytes, policy.toByteArray());
+            assertEquals(Arrays.asList("CC:0C:FB:83:8C:88:A9:66:BB:0D:C9:C8:EB:A6:4F:32"), policy.getSignatures());
+            assertTrue(policy.containsPackageName("ru.lazard.sample"));
+            assertTrue(policy.containsDexCrc(2738943211L));
+        }
+        // edit keeps other sections
+        ValidationPolicy edited = new ValidationPolicyEncoder(ValidationPolicy.load(bytes)).setStores().build();
+        assertEquals(0, edited.getStoreCount());
+        assertEquals(1, edited.getSignatureCount());
+        assertEquals(1, edited.getDexDigestCount());
+    }
+
+    @Test
+    public void brokenPolicy_rejected() {
+        byte[] bytes = new ValidationPolicyEncoder().addPackageName("ru.lazard.sample").encode();
+        bytes[bytes.length / 2] ^= 1;
+        try {
+            ValidationPolicy.load(ByteBuffer.wrap(bytes));
+            fail("Broken policy must be rejected");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void entriesOutOfSection_rejected() {
+        byte[] bytes = new ValidationPolicyEncoder()
+                .setPackageNames("ru.lazard.sample", "ru.lazard.sample.pro")
+                .setDexCrcs(1, 2, 3)
+                .encode();
+        int[][] corruptions = {
+                {ValidationPolicy.SECTION_DEX_CRCS, 0, 1000}, // count
+                {ValidationPolicy.SECTION_DEX_CRCS, 0, -1},
+                {ValidationPolicy.SECTION_DEX_CRCS, 4, 0x40000000}, // entry size
+                {ValidationPolicy.SECTION_PACKAGE_NAMES, 0, 1000}, // count
+                {ValidationPolicy.SECTION_PACKAGE_NAMES, 8, 1000}, // offset of second string
+                {ValidationPolicy.SECTION_PACKAGE_NAMES, 12, 1000}, // end of last string
+                {ValidationPolicy.SECTION_PACKAGE_NAMES, 4, 4}, // first string doesn't start at data
+        };
+        for (int[] corruption : corruptions) {
+            byte[] crafted = withSectionInt(bytes, corruption[0], corruption[1], corruption[2]);
+            try {
+                ValidationPolicy.load(crafted);
+                fail("Policy with entries out of section must be rejected: " + Arrays.toString(corruption));
+            } catch (IllegalArgumentException expected) {
+                // ok
+            }
+        }
+        assertTrue(ValidationPolicy.load(withSectionInt(bytes, ValidationPolicy.SECTION_DEX_CRCS, 0, 2)).containsDexCrc(2)); // fewer entries are ok
+    }
+
+    @Test
+    public void unsortedOrDuplicatedEntries_rejected() {
+        byte[] bytes = new ValidationPolicyEncoder()
+                .setPackageNames("ru.lazard.sample", "ru.lazard.sample.pro")
+                .setDexCrcs(1, 2, 3)
+                .encode();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int crcs = sectionOffset(buffer, ValidationPolicy.SECTION_DEX_CRCS) + 8;
+        int names = sectionOffset(buffer, ValidationPolicy.SECTION_PACKAGE_NAMES) + 4 + 3 * 4;
+
+        byte[] swapped = bytes.clone(); // 2, 1, 3
+        System.arraycopy(bytes, crcs + ValidationPolicy.CRC_SIZE, swapped, crcs, ValidationPolicy.CRC_SIZE);
+        System.arraycopy(bytes, crcs, swapped, crcs + ValidationPolicy.CRC_SIZE, ValidationPolicy.CRC_SIZE);
+        byte[] duplicated = bytes.clone(); // 1, 1, 3
+        System.arraycopy(bytes, crcs, duplicated, crcs + ValidationPolicy.CRC_SIZE, ValidationPolicy.CRC_SIZE);
+        byte[] unsortedNames = bytes.clone(); // "ru.lazard.sample", "au.lazard.sample.pro"
+        unsortedNames[names + "ru.lazard.sample".length()] = 'a';
+        byte[] duplicatedSection = bytes.clone(); // two sections of package names
+        duplicatedSection[ValidationPolicy.HEADER_SIZE + ValidationPolicy.DIRECTORY_ENTRY_SIZE] = duplicatedSection[ValidationPolicy.HEADER_SIZE];
+
+        for (byte[] crafted : new byte[][]{swapped, duplicated, unsortedNames, duplicatedSection}) {
+            try {
+                ValidationPolicy.load(withCrc(crafted));
+                fail("Policy with unsorted entries must be rejected");
+            } catch (IllegalArgumentException expected) {
+                // ok
+            }
+        }
+    }
+
+    /**
+     * @return - copy of encoded policy with int at position of section replaced, with valid CRC32.
+     */
+    private static byte[] withSectionInt(byte[] bytes, int type, int position, int value) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(sectionOffset(buffer, type) + position, value);
+        return withCrc(buffer.array());
+    }
+
+    private static int sectionOffset(ByteBuffer policy, int type) {
+        for (int i = 0; i < (policy.get(5) & 0xFF); i++) {
+            int entry = ValidationPolicy.HEADER_SIZE + i * ValidationPolicy.DIRECTORY_ENTRY_SIZE;
+            if (policy.get(entry) == type) return policy.getInt(entry + 1);
+        }
+        throw new IllegalArgumentException("No section " + type);
+    }
+
+    /**
+     * @return - policy with recalculated CRC32 (array is changed).
+     */
+    private static byte[] withCrc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(bytes.length - 4, (int) crc.getValue());
+        return bytes;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownEntry_rejected() throws Exception {
+        ValidationPolicyEncoder.parse(new StringReader("installer com.android.vending"));
+    }
+}
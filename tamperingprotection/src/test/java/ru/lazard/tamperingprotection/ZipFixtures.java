@@ -0,0 +1,158 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Fixture zip (apk like) files for tests.
+ */
+final class ZipFixtures {
+
+    private ZipFixtures() {
+    }
+
+    /**
+     * Create zip file. Entries <code>*.png</code> and <code>*.so</code> are STORED (as in real apk), other are DEFLATED.
+     *
+     * @param namesAndContents - pairs of entry name (String) and content (byte[]).
+     */
+    static File createZip(File file, String comment, Object... namesAndContents) throws IOException {
+        return createZip(file, comment, false, namesAndContents);
+    }
+
+    /**
+     * Create zip file with all entries STORED.
+     */
+    static File createStoredZip(File file, Object... namesAndContents) throws IOException {
+        return createZip(file, null, true, namesAndContents);
+    }
+
+    private static File createZip(File file, String comment, boolean storeAll, Object... namesAndContents) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                String name = (String) namesAndContents[i];
+                byte[] content = (byte[]) namesAndContents[i + 1];
+                ZipEntry entry = new ZipEntry(name);
+                if (storeAll || name.endsWith(".png") || name.endsWith(".so")) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(content.length);
+                    entry.setCompressedSize(content.length);
+                    entry.setCrc(crc(content));
+                }
+                out.putNextEntry(entry);
+                out.write(content);
+                out.closeEntry();
+            }
+            if (comment != null) out.setComment(comment);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static byte[] content(int seed, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed * 31 + i * (seed + 7));
+        }
+        return bytes;
+    }
+
+    static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    static byte[] sha256(byte[]... contents) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (byte[] content : contents) {
+            digest.update(content);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Insert APK Signing Block with one scheme block (v2 or v3 layout) before central directory of zip file.
+     *
+     * @param certificates - first certificate of each signer.
+     */
+    static void insertSigningBlock(File file, int blockId, byte[]... certificates) throws IOException {
+        boolean v3 = blockId == ApkSigningBlock.SIGNATURE_SCHEME_V3_BLOCK_ID;
+        ByteArrayOutputStream signers = new ByteArrayOutputStream();
+        for (byte[] certificate : certificates) {
+            byte[] signedData = concat(lengthPrefixed(new byte[0]), lengthPrefixed(lengthPrefixed(certificate)),
+                    v3 ? int32(24) : new byte[0], v3 ? int32(Integer.MAX_VALUE) : new byte[0], lengthPrefixed(new byte[0]));
+            byte[] signer = concat(lengthPrefixed(signedData), v3 ? int32(24) : new byte[0], v3 ? int32(Integer.MAX_VALUE) : new byte[0],
+                    lengthPrefixed(new byte[0]), lengthPrefixed(new byte[0]));
+            signers.write(lengthPrefixed(signer));
+        }
+        byte[] value = lengthPrefixed(signers.toByteArray());
+        byte[] otherPair = pair(0x42726577, new byte[100]); // unknown block, must be skipped
+        byte[] schemePair = pair(blockId, value);
+        long blockSize = otherPair.length + schemePair.length + 24;
+        ByteBuffer sizeBuffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, blockSize);
+        byte[] block = concat(sizeBuffer.array(), otherPair, schemePair, sizeBuffer.array(), "APK Sig Block 42".getBytes("US-ASCII"));
+
+        byte[] zip = readAll(file);
+        ApkIndex index = ApkIndex.read(file);
+        int cdOffset = (int) index.getCentralDirectoryOffset();
+        int eocdOffset = (int) index.getEocdOffset();
+        ByteBuffer result = ByteBuffer.allocate(zip.length + block.length).order(ByteOrder.LITTLE_ENDIAN);
+        result.put(zip, 0, cdOffset).put(block).put(zip, cdOffset, zip.length - cdOffset);
+        result.putInt(eocdOffset + block.length + 16, cdOffset + block.length);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(result.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    static byte[] readAll(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static byte[] pair(int id, byte[] value) {
+        ByteBuffer buffer = ByteBuffer.allocate(12 + value.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(4 + value.length).putInt(id).put(value);
+        return buffer.array();
+    }
+
+    private static byte[] lengthPrefixed(byte[] value) {
+        return concat(int32(value.length), value);
+    }
+
+    private static byte[] int32(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, value).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
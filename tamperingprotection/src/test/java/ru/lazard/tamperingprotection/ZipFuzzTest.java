@@ -0,0 +1,221 @@
+package ru.lazard.tamperingprotection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ru.lazard.tamperingprotection.TamperingProtection.ValidationException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fuzz and stress test of apk parsing (central directory, APK Signing Block, dex, all entries, native libraries) by
+ * mutated and adversarial archives: parsers must reject broken apk only by <code>IOException</code>, in bounded time
+ * and memory, also under concurrent load.<br>
+ * Default run is short and deterministic. Longer run:
+ * <code>-Dtp.fuzz.iterations=100000 -Dtp.fuzz.seed=42 -Dtp.fuzz.corpus=/tmp/corpus</code>
+ * (corpus directory receives inputs which failed and first input of each new outcome of parsers).
+ * Failed inputs are copied into <code>src/test/resources/ru/lazard/tamperingprotection/fuzz</code>, they are replayed
+ * by each run.
+ */
+public class ZipFuzzTest {
+
+    private static final int ITERATIONS = Integer.getInteger("tp.fuzz.iterations", 500);
+    private static final long SEED = Long.getLong("tp.fuzz.seed", 20161016L);
+    private static final String CORPUS = System.getProperty("tp.fuzz.corpus");
+    private static final String CORPUS_RESOURCE = "fuzz";
+    private static final long MAX_MILLIS = 2000; // for small (mutated) archive, generous for slow CI machines
+    private static final long MAX_ALLOCATED_BYTES = 16 * 1024 * 1024;
+    private static final long MAX_ADVERSARIAL_MILLIS = 10000;
+    private static final int THREADS = 8;
+    private static final int MIN_OUTCOMES = 40; // distinct outcomes of parsers reached by mutations
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void seeds_validArchives() throws Exception {
+        for (byte[] seed : ZipFuzzer.seeds(folder.getRoot())) {
+            ZipFuzzer.Outcome outcome = ZipFuzzer.exercise(ZipFuzzer.write(folder.newFile(), seed));
+            assertNull(outcome.toString(), outcome.crash);
+            assertTrue(outcome.toString(), outcome.results[0].startsWith("ok"));
+        }
+    }
+
+    @Test
+    public void mutatedArchives_rejectedOnlyByIOException() throws Exception {
+        List<byte[]> seeds = ZipFuzzer.seeds(folder.getRoot());
+        Random random = new Random(SEED);
+        Set<String> keys = new HashSet<String>();
+        List<String> failures = new ArrayList<String>();
+        File file = folder.newFile("mutated.apk");
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] input = ZipFuzzer.mutate(seeds.get(random.nextInt(seeds.size())), random);
+            ZipFuzzer.write(file, input);
+            ZipFuzzer.Outcome outcome = ZipFuzzer.exercise(file);
+            String failure = check(outcome, MAX_MILLIS, MAX_ALLOCATED_BYTES);
+            if (failure == null && NativeBridge.isLoaded()) failure = compareWithJava(file, outcome);
+            if (failure != null) {
+                failures.add("iteration " + i + " (seed " + SEED + "): " + failure + " input " + record(input));
+            } else if (keys.add(outcome.getKey()) && CORPUS != null) {
+                ZipFuzzer.record(new File(CORPUS), input); // first input of new outcome
+            }
+        }
+        assertTrue(failures.size() + " failures: " + failures, failures.isEmpty());
+        assertTrue("Mutations reach few code paths: " + keys, keys.size() >= Math.min(MIN_OUTCOMES, ITERATIONS / 10));
+    }
+
+    @Test
+    public void adversarialArchives_boundedTimeAndMemory() throws Exception {
+        Object[] archives = ZipFuzzer.adversarial();
+        Map<String, ZipFuzzer.Outcome> outcomes = new HashMap<String, ZipFuzzer.Outcome>();
+        for (int i = 0; i < archives.length; i += 2) {
+            byte[] input = (byte[]) archives[i + 1];
+            File file = ZipFuzzer.write(folder.newFile(archives[i] + ".apk"), input);
+            ZipFuzzer.exercise(file); // warm up
+            ZipFuzzer.Outcome outcome = ZipFuzzer.exercise(file);
+            String failure = check(outcome, MAX_ADVERSARIAL_MILLIS, 4L * input.length + MAX_ALLOCATED_BYTES);
+            assertNull(archives[i] + ": " + failure, failure);
+            outcomes.put((String) archives[i], outcome);
+            file.delete();
+        }
+        assertEquals("ok 70000 entries", outcomes.get("many-entries").results[0]);
+        assertEquals("ok 65536 entries", outcomes.get("colliding-names").results[0]);
+        assertTrue(outcomes.get("overlapping-entries").toString(), outcomes.get("overlapping-entries").results[0].startsWith("ZipException"));
+        assertTrue(outcomes.get("zip64-huge-counts").toString(), outcomes.get("zip64-huge-counts").results[0].startsWith("ZipException"));
+        assertEquals("ok 1 entries", outcomes.get("eocd-in-comment").results[0]);
+        assertEquals("ok 33554432", outcomes.get("deflate-bomb").results[3]);
+    }
+
+    @Test
+    public void corpus_replayedWithoutFailures() throws Exception {
+        List<File> files = new ArrayList<File>();
+        URL resource = ZipFuzzTest.class.getResource(CORPUS_RESOURCE);
+        if (resource != null && "file".equals(resource.getProtocol())) addFiles(files, new File(resource.toURI()));
+        if (CORPUS != null) addFiles(files, new File(CORPUS));
+        for (File file : files) {
+            ZipFuzzer.Outcome outcome = ZipFuzzer.exercise(file);
+            String failure = check(outcome, MAX_MILLIS, MAX_ALLOCATED_BYTES + 4 * file.length());
+            if (failure == null && NativeBridge.isLoaded()) failure = compareWithJava(file, outcome);
+            assertNull(file.getName() + ": " + failure, failure);
+        }
+    }
+
+    @Test
+    public void concurrentLoad_sameOutcomes() throws Exception {
+        List<byte[]> seeds = ZipFuzzer.seeds(folder.getRoot());
+        Random random = new Random(SEED + 1);
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 100; i++) {
+            byte[] seed = seeds.get(i % seeds.size());
+            files.add(ZipFuzzer.write(folder.newFile("load" + i + ".apk"), i < seeds.size() ? seed : ZipFuzzer.mutate(seed, random)));
+        }
+        final Map<File, String> expected = new HashMap<File, String>();
+        for (File file : files) {
+            expected.put(file, ZipFuzzer.exercise(file).getKey());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                final long threadSeed = SEED + thread;
+                futures.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        List<File> order = new ArrayList<File>(files);
+                        Collections.shuffle(order, new Random(threadSeed));
+                        List<String> failures = new ArrayList<String>();
+                        for (File file : order) {
+                            ZipFuzzer.Outcome outcome = ZipFuzzer.exercise(file);
+                            String failure = check(outcome, MAX_MILLIS * THREADS, Long.MAX_VALUE);
+                            if (failure == null && !expected.get(file).equals(outcome.getKey()))
+                                failure = "outcome " + outcome.getKey() + " differs from single thread outcome " + expected.get(file);
+                            if (failure == null) failure = validate(file);
+                            if (failure != null) failures.add(file.getName() + ": " + failure);
+                        }
+                        return failures;
+                    }
+                }));
+            }
+            for (Future<List<String>> future : futures) {
+                List<String> failures = future.get(5, TimeUnit.MINUTES);
+                assertTrue(failures.toString(), failures.isEmpty());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return - description of failure (crash, too slow, too much allocated), or null if outcome is acceptable.
+     */
+    private static String check(ZipFuzzer.Outcome outcome, long maxMillis, long maxAllocatedBytes) {
+        if (outcome.crash != null) return "crash: " + outcome;
+        if (TimeUnit.NANOSECONDS.toMillis(outcome.elapsedNanos) > maxMillis) return "too slow: " + outcome;
+        if (outcome.allocatedBytes > maxAllocatedBytes) return "too much allocated: " + outcome;
+        return null;
+    }
+
+    /**
+     * Native backend parses same bytes: result must be same as of java code.
+     */
+    private static String compareWithJava(File file, ZipFuzzer.Outcome outcome) {
+        boolean isEnabled = NativeBridge.isAvailable();
+        NativeBridge.setEnabled(!isEnabled);
+        try {
+            ZipFuzzer.Outcome other = ZipFuzzer.exercise(file);
+            if (other.crash != null || !other.getKey().equals(outcome.getKey()))
+                return "native and java outcomes differ: " + outcome + " / " + other;
+            return null;
+        } finally {
+            NativeBridge.setEnabled(isEnabled);
+        }
+    }
+
+    /**
+     * Validation by all apk checks must fail only by {@link ValidationException} of check (not by unexpected exception).
+     */
+    private static String validate(File file) throws Exception {
+        FixtureEnvironmentProbe probe = new FixtureEnvironmentProbe(file.getPath());
+        TamperingProtection protection = new TamperingProtection(probe);
+        protection.setSignatureSource(TamperingProtection.SIGNATURE_SOURCE_APK_SIGNING_BLOCK);
+        protection.setAcceptedSignatures(SignatureFingerprints.md5(ZipFixtures.content(11, 120)));
+        protection.setAcceptedDexCrcs(1);
+        protection.setAcceptedDexDigests(Hex.toHex(new byte[32]));
+        protection.setAcceptedNativeLibDigests(Hex.toHex(new byte[32]));
+        for (ValidationException failure : protection.validateAndReport().getFailures()) {
+            if (failure.getErrorCode() == ValidationException.ERROR_CODE_UNKNOWN_EXCEPTION) return "validation crashed: " + failure.getCause();
+        }
+        return null;
+    }
+
+    private static String record(byte[] input) throws Exception {
+        File corpus = CORPUS != null ? new File(CORPUS) : new File(System.getProperty("java.io.tmpdir"), "tp-fuzz-failures");
+        return ZipFuzzer.record(corpus, input).getPath();
+    }
+
+    private static void addFiles(List<File> files, File directory) {
+        File[] children = directory.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isFile()) files.add(child);
+        }
+    }
+}
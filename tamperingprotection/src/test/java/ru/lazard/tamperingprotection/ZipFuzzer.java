@@ -0,0 +1,416 @@
+package ru.lazard.tamperingprotection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generator of mutated and adversarial apk (zip) files for {@link ZipFuzzTest}, and runner of all parsers of apk
+ * content on one file.<br>
+ * Mutations are deterministic for same seed of <code>Random</code>, so failure is reproduced by seed (or by file
+ * recorded into corpus).
+ */
+final class ZipFuzzer {
+
+    /**
+     * Stages of {@link #exercise(File)}: each parser of apk content (next stages run only if index is read).
+     */
+    static final String[] STAGES = {"index", "signing", "dex", "content", "native"};
+
+    private static final int[] SIGNATURES = {ApkIndex.LOCAL_HEADER_SIGNATURE, ApkIndex.CENTRAL_HEADER_SIGNATURE, ApkIndex.EOCD_SIGNATURE,
+            ApkIndex.ZIP64_EOCD_SIGNATURE, ApkIndex.ZIP64_EOCD_LOCATOR_SIGNATURE, 0x204b5041 /* "APK " of signing block magic */};
+    private static final long[] INTERESTING_INTS = {0, 1, 2, 0x7F, 0xFF, 0xFFFF, 0x10000, 0x7FFFFFFF, 0x80000000L, 0xFFFFFFFEL, 0xFFFFFFFFL};
+    private static final int[] INTERESTING_SHORTS = {0, 1, 8, 0x7F, 0xFF, 0x7FFF, 0x8000, 0xFFFE, 0xFFFF};
+    private static final String[] ABIS = FixtureEnvironmentProbe.DEFAULT_ABIS;
+
+    private ZipFuzzer() {
+    }
+
+    /**
+     * Outcome of all stages for one file.
+     */
+    static final class Outcome {
+        final String[] results = new String[STAGES.length];
+        Throwable crash; // not IOException thrown by parser: bug
+        String crashStage;
+        long elapsedNanos;
+        long allocatedBytes = -1; // -1 if JVM can't count allocations of thread
+
+        /**
+         * @return - stage results with numbers and entry names removed: same key for same code path of parsers.
+         */
+        String getKey() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < STAGES.length && results[i] != null; i++) {
+                if (i > 0) builder.append(' ');
+                builder.append(STAGES[i]).append('=').append(results[i].replaceAll("\"[^\"]*\"", "\"*\"").replaceAll("-?[0-9]+", "#"));
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(results) + (crash != null ? " crash in " + crashStage + ": " + crash : "")
+                    + " time=" + elapsedNanos / 1000000 + "ms allocated=" + allocatedBytes / 1024 + "kb";
+        }
+    }
+
+    /**
+     * Run all parsers on file: central directory, APK Signing Block, dex digest, digest of all entries, native libraries.
+     * Parsers may reject file only by <code>IOException</code>, any other throwable is recorded as crash.
+     */
+    static Outcome exercise(File file) {
+        Outcome outcome = new Outcome();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocations != null ? allocations.getThreadAllocatedBytes(threadId) : 0;
+        long start = System.nanoTime();
+        ApkIndex index = null;
+        for (int stage = 0; stage < STAGES.length && (stage == 0 || index != null); stage++) {
+            try {
+                switch (stage) {
+                    case 0:
+                        index = ApkIndex.read(file);
+                        index.getDexCrc();
+                        index.getTotalCrc();
+                        index.indexOf("resources.arsc");
+                        outcome.results[stage] = "ok " + index.size() + " entries";
+                        break;
+                    case 1:
+                        ApkSigningBlock block = ApkSigningBlock.read(index);
+                        outcome.results[stage] = block == null ? "none" : "v" + block.getSchemeVersion() + " " + block.getCertificates().length + " signers";
+                        break;
+                    case 2:
+                        outcome.results[stage] = "ok " + DexDigester.digest(index).length();
+                        break;
+                    case 3:
+                        outcome.results[stage] = "ok " + ApkContentDigest.digest(index, 1).getBytesHashed();
+                        break;
+                    default:
+                        String abi = NativeLibDigester.selectAbi(index, ABIS);
+                        outcome.results[stage] = abi == null ? "none" : "ok " + NativeLibDigester.digest(index, abi, null).getLibraryCount();
+                        break;
+                }
+            } catch (IOException exception) {
+                outcome.results[stage] = exception.getClass().getSimpleName() + ": " + exception.getMessage();
+            } catch (NoSuchAlgorithmException exception) {
+                throw new AssertionError(exception);
+            } catch (Throwable throwable) {
+                outcome.results[stage] = "crash " + throwable;
+                if (outcome.crash == null) {
+                    outcome.crash = throwable;
+                    outcome.crashStage = STAGES[stage];
+                }
+            }
+        }
+        outcome.elapsedNanos = System.nanoTime() - start;
+        if (allocations != null) outcome.allocatedBytes = allocations.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return outcome;
+    }
+
+    /**
+     * @return - valid archives which are mutated by fuzzing: plain apk, apk without <code>resources.arsc</code>,
+     * signed by v2 and v3 scheme, zip64 records, EOCD-like bytes in comment, empty zip.
+     */
+    static List<byte[]> seeds(File folder) throws IOException {
+        List<byte[]> seeds = new ArrayList<byte[]>();
+        Object[] entries = {
+                "AndroidManifest.xml", ZipFixtures.content(1, 300),
+                "classes.dex", ZipFixtures.content(2, 700),
+                "classes2.dex", ZipFixtures.content(3, 200),
+                "resources.arsc", ZipFixtures.content(4, 150),
+                "res/drawable/icon.png", ZipFixtures.content(5, 90),
+                "lib/arm64-v8a/libnative.so", ZipFixtures.content(6, 400),
+                "lib/armeabi-v7a/libnative.so", ZipFixtures.content(7, 300)};
+        File file = new File(folder, "seed.apk");
+        byte[] plain = ZipFixtures.readAll(ZipFixtures.createZip(file, null, entries));
+        seeds.add(plain);
+        seeds.add(ZipFixtures.readAll(ZipFixtures.createZip(file, null,
+                "AndroidManifest.xml", ZipFixtures.content(1, 300), "classes.dex", ZipFixtures.content(2, 700))));
+        ZipFixtures.createZip(file, null, entries);
+        ZipFixtures.insertSigningBlock(file, ApkSigningBlock.SIGNATURE_SCHEME_V2_BLOCK_ID, ZipFixtures.content(11, 120), ZipFixtures.content(12, 90));
+        seeds.add(ZipFixtures.readAll(file));
+        ZipFixtures.createZip(file, null, entries);
+        ZipFixtures.insertSigningBlock(file, ApkSigningBlock.SIGNATURE_SCHEME_V3_BLOCK_ID, ZipFixtures.content(13, 100));
+        seeds.add(ZipFixtures.readAll(file));
+        seeds.add(toZip64(plain));
+        seeds.add(ZipFixtures.readAll(ZipFixtures.createZip(file, "PK\u0005\u0006 fake end of central directory PK\u0005\u0006", entries)));
+        seeds.add(ZipFixtures.readAll(ZipFixtures.createZip(file, null)));
+        return seeds;
+    }
+
+    /**
+     * @return - copy of seed changed by 1-4 random mutations: bit flips, interesting values in fields of zip
+     * records, inserted bytes, copied regions, truncation.
+     */
+    static byte[] mutate(byte[] seed, Random random) {
+        byte[] bytes = seed.clone();
+        int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count && bytes.length > 0; i++) {
+            bytes = mutateOnce(bytes, random);
+        }
+        return bytes;
+    }
+
+    private static byte[] mutateOnce(byte[] bytes, Random random) {
+        switch (random.nextInt(10)) {
+            case 0:
+            case 1: {
+                int flips = 1 + random.nextInt(8);
+                for (int i = 0; i < flips; i++) {
+                    bytes[random.nextInt(bytes.length)] ^= 1 << random.nextInt(8);
+                }
+                return bytes;
+            }
+            case 2:
+            case 3:
+            case 4: {
+                int offset = fieldOffset(bytes, random, 4);
+                if (offset >= 0) putInt(bytes, offset, random.nextInt(4) == 0 ? bytes.length - random.nextInt(64) : INTERESTING_INTS[random.nextInt(INTERESTING_INTS.length)]);
+                return bytes;
+            }
+            case 5:
+            case 6: {
+                int offset = fieldOffset(bytes, random, 2);
+                if (offset >= 0) putShort(bytes, offset, INTERESTING_SHORTS[random.nextInt(INTERESTING_SHORTS.length)]);
+                return bytes;
+            }
+            case 7: {
+                byte[] inserted = new byte[1 + random.nextInt(64)];
+                random.nextBytes(inserted);
+                int at = random.nextInt(bytes.length + 1);
+                byte[] result = Arrays.copyOf(bytes, bytes.length + inserted.length);
+                System.arraycopy(bytes, at, result, at + inserted.length, bytes.length - at);
+                System.arraycopy(inserted, 0, result, at, inserted.length);
+                return result;
+            }
+            case 8: {
+                int length = 1 + random.nextInt(Math.min(bytes.length, 256));
+                System.arraycopy(bytes, random.nextInt(bytes.length - length + 1), bytes, random.nextInt(bytes.length - length + 1), length);
+                return bytes;
+            }
+            default:
+                return Arrays.copyOf(bytes, bytes.length - random.nextInt(Math.min(bytes.length, 128)) - 1);
+        }
+    }
+
+    /**
+     * @return - offset of random field near random zip record (local header, central directory header, EOCD, zip64 records,
+     * signing block magic), or -1 if archive has no records.
+     */
+    private static int fieldOffset(byte[] bytes, Random random, int size) {
+        List<Integer> records = new ArrayList<Integer>();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i + 4 <= bytes.length; i++) {
+            int value = buffer.getInt(i);
+            for (int signature : SIGNATURES) {
+                if (value == signature) records.add(i);
+            }
+        }
+        if (records.isEmpty()) return -1;
+        int offset = records.get(random.nextInt(records.size())) + (random.nextInt(48) - 16) * 2; // fields before magic: sizes of signing block
+        return offset >= 0 && offset + size <= bytes.length ? offset : -1;
+    }
+
+    /**
+     * @return - archives which are valid or almost valid, but expensive for naive parser: 70000 entries, 70000 names with
+     * same <code>String.hashCode()</code>, 500 entries which share one deflated local header, 60000 byte names,
+     * zip64 record with huge counts, compressed 32 MB dex. Names are in even positions, archives in odd.
+     */
+    static Object[] adversarial() throws IOException {
+        List<Object> archives = new ArrayList<Object>();
+        byte[] empty = new byte[0];
+
+        ZipBuilder many = new ZipBuilder();
+        for (int i = 0; i < 70000; i++) {
+            many.add("res/raw/" + i, empty, false);
+        }
+        archives.add("many-entries");
+        archives.add(many.build(null));
+
+        ZipBuilder colliding = new ZipBuilder();
+        for (int i = 0; i < 1 << 16; i++) {
+            colliding.add(collidingName(i, 16), empty, false);
+        }
+        archives.add("colliding-names");
+        archives.add(colliding.build(null));
+
+        byte[] zeros = new byte[8 * 1024 * 1024];
+        ZipBuilder overlapping = new ZipBuilder();
+        overlapping.add("classes.dex", zeros, true);
+        archives.add("overlapping-entries");
+        archives.add(overlapping.buildShared(500));
+
+        ZipBuilder longNames = new ZipBuilder();
+        char[] name = new char[60000];
+        for (int i = 0; i < 100; i++) {
+            Arrays.fill(name, (char) ('a' + i % 26));
+            longNames.add(i + new String(name), empty, false);
+        }
+        archives.add("long-names");
+        archives.add(longNames.build(null));
+
+        ZipBuilder bomb = new ZipBuilder();
+        bomb.add("classes.dex", new byte[32 * 1024 * 1024], true);
+        archives.add("deflate-bomb");
+        archives.add(bomb.build(null));
+
+        byte[] liar = toZip64(new ZipBuilder().add("classes.dex", ZipFixtures.content(2, 700), true).build(null));
+        ByteBuffer buffer = ByteBuffer.wrap(liar).order(ByteOrder.LITTLE_ENDIAN);
+        int zip64Eocd = liar.length - ApkIndex.EOCD_SIZE - ApkIndex.ZIP64_EOCD_LOCATOR_SIZE - ApkIndex.ZIP64_EOCD_SIZE;
+        buffer.putLong(zip64Eocd + 24, Long.MAX_VALUE).putLong(zip64Eocd + 32, Long.MAX_VALUE).putLong(zip64Eocd + 40, Long.MAX_VALUE - 1);
+        archives.add("zip64-huge-counts");
+        archives.add(liar);
+
+        ZipBuilder comment = new ZipBuilder();
+        comment.add("classes.dex", ZipFixtures.content(2, 700), true);
+        StringBuilder fakes = new StringBuilder();
+        while (fakes.length() < 0xFFFF - 22) fakes.append("PK\u0005\u0006\u0000\u0000\u0000\u0000\u007F\u007F\u007F\u007F\u007F\u007F\u007F\u007F\u007F\u007F\u007F\u007F\u0000\u0000");
+        fakes.setLength(0xFFFF - 22);
+        archives.add("eocd-in-comment");
+        archives.add(comment.build(fakes.toString()));
+        return archives.toArray();
+    }
+
+    /**
+     * @return - name number <code>n</code> of 2^blocks names: all of them have same <code>String.hashCode()</code>
+     * ("Aa" and "BB" blocks have same hash).
+     */
+    static String collidingName(int n, int blocks) {
+        StringBuilder builder = new StringBuilder(blocks * 2);
+        for (int i = 0; i < blocks; i++) {
+            builder.append((n >> i & 1) == 0 ? "Aa" : "BB");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return - same archive with zip64 end of central directory record and locator (EOCD values are 0xFFFF / 0xFFFFFFFF).
+     */
+    static byte[] toZip64(byte[] zip) {
+        ByteBuffer source = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = zip.length - ApkIndex.EOCD_SIZE; // archive without comment
+        long count = source.getShort(eocd + 10) & 0xFFFF;
+        long cdSize = source.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long cdOffset = source.getInt(eocd + 16) & 0xFFFFFFFFL;
+        ByteBuffer result = ByteBuffer.allocate(zip.length + ApkIndex.ZIP64_EOCD_SIZE + ApkIndex.ZIP64_EOCD_LOCATOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        result.put(zip, 0, eocd);
+        result.putInt(ApkIndex.ZIP64_EOCD_SIGNATURE).putLong(ApkIndex.ZIP64_EOCD_SIZE - 12).putShort((short) 45).putShort((short) 45)
+                .putInt(0).putInt(0).putLong(count).putLong(count).putLong(cdSize).putLong(cdOffset);
+        result.putInt(ApkIndex.ZIP64_EOCD_LOCATOR_SIGNATURE).putInt(0).putLong(eocd).putInt(1);
+        result.putInt(ApkIndex.EOCD_SIGNATURE).putShort((short) 0).putShort((short) 0).putShort((short) -1).putShort((short) -1)
+                .putInt(-1).putInt(-1).putShort((short) 0);
+        return result.array();
+    }
+
+    /**
+     * Save input into corpus directory (name is CRC of content, so same input is saved once).
+     *
+     * @return - saved file.
+     */
+    static File record(File corpus, byte[] input) throws IOException {
+        if (!corpus.isDirectory() && !corpus.mkdirs()) throw new IOException("Can't create corpus directory " + corpus);
+        CRC32 crc = new CRC32();
+        crc.update(input);
+        File file = new File(corpus, String.format("%08x.apk", crc.getValue()));
+        write(file, input);
+        return file;
+    }
+
+    static File write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void putInt(byte[] bytes, int offset, long value) {
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, (int) value);
+    }
+
+    private static void putShort(byte[] bytes, int offset, int value) {
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putShort(offset, (short) value);
+    }
+
+    /**
+     * Builder of big archives in memory (<code>ZipOutputStream</code> without files).
+     */
+    private static final class ZipBuilder {
+        private final List<String> names = new ArrayList<String>();
+        private final List<byte[]> contents = new ArrayList<byte[]>();
+        private final List<Boolean> deflated = new ArrayList<Boolean>();
+
+        ZipBuilder add(String name, byte[] content, boolean isDeflated) {
+            names.add(name);
+            contents.add(content);
+            deflated.add(isDeflated);
+            return this;
+        }
+
+        byte[] build(String comment) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutputStream out = new ZipOutputStream(bytes);
+            for (int i = 0; i < names.size(); i++) {
+                ZipEntry entry = new ZipEntry(names.get(i));
+                byte[] content = contents.get(i);
+                if (!deflated.get(i)) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(content.length);
+                    entry.setCompressedSize(content.length);
+                    entry.setCrc(ZipFixtures.crc(content));
+                }
+                out.putNextEntry(entry);
+                out.write(content);
+                out.closeEntry();
+            }
+            if (comment != null) out.setComment(comment);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @return - archive of first entry, which central directory has <code>count</code> headers
+         * (<code>classes.dex</code>, <code>classes2.dex</code>...) of this one local header and data.
+         */
+        byte[] buildShared(int count) throws IOException {
+            byte[] zip = build(null);
+            ByteBuffer source = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+            int eocd = zip.length - ApkIndex.EOCD_SIZE;
+            int cdOffset = source.getInt(eocd + 16);
+            int headerLength = eocd - cdOffset - names.get(0).length();
+            ByteArrayOutputStream cd = new ByteArrayOutputStream();
+            for (int i = 1; i <= count; i++) {
+                byte[] name = (i == 1 ? "classes.dex" : "classes" + i + ".dex").getBytes("UTF-8");
+                ByteBuffer header = ByteBuffer.allocate(headerLength + name.length).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(zip, cdOffset, ApkIndex.CENTRAL_HEADER_SIZE).put(name)
+                        .put(zip, cdOffset + ApkIndex.CENTRAL_HEADER_SIZE + names.get(0).length(), headerLength - ApkIndex.CENTRAL_HEADER_SIZE);
+                header.putShort(28, (short) name.length);
+                cd.write(header.array());
+            }
+            ByteBuffer result = ByteBuffer.allocate(cdOffset + cd.size() + ApkIndex.EOCD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            result.put(zip, 0, cdOffset).put(cd.toByteArray()).put(zip, eocd, ApkIndex.EOCD_SIZE);
+            result.putShort(cdOffset + cd.size() + 8, (short) count).putShort(cdOffset + cd.size() + 10, (short) count)
+                    .putInt(cdOffset + cd.size() + 12, cd.size());
+            return result.array();
+        }
+    }
+}